@@ -41,11 +41,13 @@ import org.python.google.common.base.Joiner;
 import org.xml.sax.SAXException;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element.ElementFactory;
 import com.zimbra.common.soap.Element.XMLElement;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.common.util.ZimbraServletOutputStream;
 
 /**
  */
@@ -888,4 +890,300 @@ public class ElementTest {
                 ZimbraLog.elapsedTime(start, System.currentTimeMillis()));
     }
 
+    private static Element addHit(Element parent, int i) {
+        Element m = parent.addNonUniqueElement(MailConstants.E_MSG).addAttribute(MailConstants.A_ID, i)
+                .addAttribute(MailConstants.A_SIZE, 1000 + i).addAttribute(MailConstants.A_FLAGS, "u");
+        m.addNonUniqueElement(MailConstants.E_EMAIL).addAttribute(MailConstants.A_ADDRESS, "user" + i + "@example.com");
+        m.addAttribute(MailConstants.E_SUBJECT, "subject " + i + " <&>", Element.Disposition.CONTENT);
+        m.addAttribute(MailConstants.E_FRAG, "fragment " + i, Element.Disposition.CONTENT);
+        return m;
+    }
+
+    private static Element.StreamSource hitSource(final int count) {
+        return new Element.StreamSource() {
+            private int next = 0;
+
+            @Override
+            public boolean next(Element parent) {
+                if (next >= count) {
+                    return false;
+                }
+                addHit(parent, next++);
+                return true;
+            }
+        };
+    }
+
+    private static Element searchResponse(ElementFactory factory, int count, boolean streamed) {
+        Element resp = factory.createElement(MailConstants.SEARCH_RESPONSE);
+        resp.addAttribute(MailConstants.A_SORTBY, "dateDesc").addAttribute(MailConstants.A_QUERY_OFFSET, 0);
+        if (streamed) {
+            resp.addStreamedElements(MailConstants.E_MSG, hitSource(count));
+        } else {
+            for (int i = 0; i < count; i++) {
+                addHit(resp, i);
+            }
+        }
+        resp.addAttribute(MailConstants.A_QUERY_MORE, false);
+        resp.addNonUniqueElement(MailConstants.E_INFO).addAttribute(MailConstants.A_ID, "after");
+        return resp;
+    }
+
+    private static void checkStreamed(ElementFactory factory) throws IOException {
+        String expected = searchResponse(factory, 3, false).toString();
+        StringBuilder sb = new StringBuilder();
+        Element streamed = searchResponse(factory, 3, true);
+        streamed.output(sb);
+        Assert.assertEquals(expected, sb.toString());
+        try {
+            streamed.output(new StringBuilder());
+            Assert.fail("streamed elements serialized twice");
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    private static void checkStreamedAccessors(ElementFactory factory) throws Exception {
+        Element tree = searchResponse(factory, 3, false);
+        // reading the children generates them in place, after which the element is an ordinary tree
+        Element streamed = searchResponse(factory, 3, true);
+        Assert.assertEquals(tree.prettyPrint(), streamed.prettyPrint());
+        Assert.assertEquals(tree.toString(), streamed.toString());
+        Assert.assertEquals(tree.toString(), streamed.toString());
+
+        streamed = searchResponse(factory, 3, true);
+        List<Element> children = streamed.listElements();
+        Assert.assertEquals(4, children.size());
+        Assert.assertEquals(MailConstants.E_MSG, children.get(0).getName());
+        Assert.assertEquals("2", children.get(2).getAttribute(MailConstants.A_ID));
+        Assert.assertSame(streamed, children.get(2).getParent());
+        Assert.assertEquals(3, streamed.listElements(MailConstants.E_MSG).size());
+
+        streamed = searchResponse(factory, 3, true);
+        Assert.assertEquals("0", streamed.getElement(MailConstants.E_MSG).getAttribute(MailConstants.A_ID));
+        streamed = searchResponse(factory, 3, true);
+        Assert.assertEquals(tree.clone().toString(), streamed.clone().toString());
+        Assert.assertEquals(tree.toString(), streamed.toString());
+
+        // children added later go after the streamed ones
+        streamed = searchResponse(factory, 2, true);
+        addHit(streamed, 2);
+        Assert.assertEquals(3, streamed.listElements(MailConstants.E_MSG).size());
+        Assert.assertEquals("2", streamed.listElements(MailConstants.E_MSG).get(2).getAttribute(MailConstants.A_ID));
+    }
+
+    @Test
+    public void streamedElementsXml() throws Exception {
+        checkStreamed(XMLElement.mFactory);
+        checkStreamedAccessors(XMLElement.mFactory);
+    }
+
+    @Test
+    public void streamedElementsJson() throws Exception {
+        checkStreamed(Element.JSONElement.mFactory);
+        checkStreamedAccessors(Element.JSONElement.mFactory);
+        // children parse back as an ordinary list
+        Element streamed = searchResponse(Element.JSONElement.mFactory, 2, true);
+        StringBuilder sb = new StringBuilder();
+        streamed.output(sb);
+        Element parsed = Element.parseJSON(sb.toString());
+        Assert.assertEquals(2, parsed.listElements(MailConstants.E_MSG).size());
+        Assert.assertEquals("subject 1 <&>",
+                parsed.listElements(MailConstants.E_MSG).get(1).getAttribute(MailConstants.E_SUBJECT));
+    }
+
+    @Test
+    public void streamedElementsWrongName() throws Exception {
+        Element resp = Element.JSONElement.mFactory.createElement(MailConstants.SEARCH_RESPONSE);
+        resp.addStreamedElements(MailConstants.E_CONV, hitSource(1));
+        try {
+            resp.output(new StringBuilder());
+            Assert.fail("<m> streamed as <c>");
+        } catch (IOException expected) {
+        }
+        resp = XMLElement.mFactory.createElement(MailConstants.SEARCH_RESPONSE);
+        resp.addStreamedElements(MailConstants.E_CONV, hitSource(1));
+        try {
+            resp.listElements();
+            Assert.fail("<m> streamed as <c>");
+        } catch (Element.ContainerException expected) {
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+
+    private static final class NullAppendable implements Appendable {
+        @Override
+        public Appendable append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            return this;
+        }
+    }
+
+    // Enable for allocation comparison @Test
+    public void streamedElementsAllocation() throws Exception {
+        ElementFactory[] factories = { XMLElement.mFactory, Element.JSONElement.mFactory };
+        for (ElementFactory factory : factories) {
+            for (boolean streamed : new boolean[] { false, true }) {
+                for (int i = 0; i < 100; i++) {
+                    searchResponse(factory, 1000, streamed).output(new NullAppendable());
+                }
+                long start = getAllocatedBytes();
+                long elapsed = System.nanoTime();
+                for (int i = 0; i < 100; i++) {
+                    searchResponse(factory, 1000, streamed).output(new NullAppendable());
+                }
+                elapsed = System.nanoTime() - elapsed;
+                ZimbraLog.test.info("1000 hit %s (streamed=%b): %d bytes allocated per response, %.1f MB/s",
+                        factory.getClass().getSimpleName(), streamed, (getAllocatedBytes() - start) / 100,
+                        (getAllocatedBytes() - start) / (elapsed / 1e9) / (1024 * 1024));
+            }
+        }
+    }
+
+    private static Element getMsgResponse(ElementFactory factory) {
+        Element resp = factory.createElement(MailConstants.GET_MSG_RESPONSE);
+        Element m = addHit(resp, 1);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append("Line ").append(i).append(": r\u00e9sum\u00e9 <a href=\"x\">link</a> \\ \u4e2d\u6587\r\n");
+        }
+        Element mp = m.addNonUniqueElement(MailConstants.E_MIMEPART).addAttribute(MailConstants.A_PART, "1")
+                .addAttribute(MailConstants.A_CONTENT_TYPE, "text/html").addAttribute(MailConstants.A_BODY, true);
+        mp.addAttribute(MailConstants.E_CONTENT, body.toString(), Element.Disposition.CONTENT);
+        return resp;
+    }
+
+    private static void compareJsonOutput(String label, Element elt, int iterations) throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            long allocated = getAllocatedBytes();
+            long elapsed = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (mode == 0) {
+                    elt.toString().getBytes(StandardCharsets.UTF_8);
+                } else if (mode == 1) {
+                    elt.toUTF8();
+                } else {
+                    ZimbraServletOutputStream out = new ZimbraServletOutputStream(ByteStreams.nullOutputStream());
+                    elt.output(out);
+                    out.flush();
+                }
+            }
+            elapsed = System.nanoTime() - elapsed;
+            allocated = getAllocatedBytes() - allocated;
+            ZimbraLog.test.info("%s %s: %.1f us/op, %d bytes allocated/op", label,
+                    mode == 0 ? "toString().getBytes()" : mode == 1 ? "toUTF8()" : "output()",
+                    elapsed / 1000.0 / iterations, allocated / iterations);
+        }
+    }
+
+    // Enable for performance comparison @Test
+    public void jsonOutputPerformance() throws Exception {
+        Element search = searchResponse(Element.JSONElement.mFactory, 1000, false);
+        Element msg = getMsgResponse(Element.JSONElement.mFactory);
+        // warm up
+        compareJsonOutput("SearchResponse", search, 200);
+        compareJsonOutput("GetMsgResponse", msg, 200);
+        compareJsonOutput("SearchResponse", search, 1000);
+        compareJsonOutput("GetMsgResponse", msg, 1000);
+    }
+
+    @Test
+    public void jsonOutput() throws Exception {
+        Element msg = getMsgResponse(Element.JSONElement.mFactory);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(baos);
+        msg.output(out);
+        out.flush();
+        Assert.assertArrayEquals(msg.toString().getBytes(StandardCharsets.UTF_8), baos.toByteArray());
+        Assert.assertArrayEquals(msg.toString().getBytes(StandardCharsets.UTF_8), msg.toUTF8());
+    }
+
+    private static final String[] smallRequests = {
+        "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\"><soap:Header>" +
+            "<context xmlns=\"urn:zimbra\"><session id=\"12\"/><notify seq=\"3\"/></context></soap:Header>" +
+            "<soap:Body><NoOpRequest xmlns=\"urn:zimbraMail\" wait=\"1\"/></soap:Body></soap:Envelope>",
+        "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\"><soap:Body>" +
+            "<GetMsgRequest xmlns=\"urn:zimbraMail\"><m id=\"257\" html=\"1\" needExp=\"1\" max=\"250000\">" +
+            "<header n=\"List-ID\"/></m></GetMsgRequest></soap:Body></soap:Envelope>",
+        "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\"><soap:Body>" +
+            "<ItemActionRequest xmlns=\"urn:zimbraMail\"><action id=\"257,258,-259\" op=\"move\" l=\"3\"/>" +
+            "</ItemActionRequest></soap:Body></soap:Envelope>"
+    };
+
+    /**
+     * The StAX parser must produce exactly what the DOM based parser does, falling back to it where needed.
+     */
+    @Test
+    public void staxParseMatchesDom() throws Exception {
+        List<String> docs = Lists.newArrayList(smallRequests);
+        docs.add(testXml);
+        docs.add(nsTestXml);
+        docs.add(nsUnusedTestXml);
+        docs.add(xmlCdata);
+        docs.add(xmlContainingMixed);
+        docs.add(wrappedXhtmlSingleElem);
+        docs.add(Joiner.on("\n").join(getAcctReqXml));
+        docs.add(Joiner.on("\n").join(attrNSonTopLevelXml));
+        getInfoRespBais.reset();
+        docs.add(new String(ByteStreams.toByteArray(getInfoRespBais), StandardCharsets.UTF_8));
+        for (String doc : docs) {
+            byte[] bytes = doc.getBytes(StandardCharsets.UTF_8);
+            Element dom = W3cDomUtil.parseXML(new ByteArrayInputStream(bytes), XMLElement.mFactory);
+            Element stax = StaxElementParser.parseXML(bytes, XMLElement.mFactory);
+            Assert.assertEquals(doc, dom.toString(), stax.toString());
+            // parsed in place, and rewound for the DOM fallback
+            stax = StaxElementParser.parseXML(new ByteArrayInputStream(bytes), XMLElement.mFactory);
+            Assert.assertEquals(doc, dom.toString(), stax.toString());
+        }
+        try {
+            StaxElementParser.parseXML(brokenXml.getBytes(StandardCharsets.UTF_8), XMLElement.mFactory);
+            Assert.fail("XmlParseException should have been thrown");
+        } catch (XmlParseException expected) {
+        }
+        try {
+            StaxElementParser.parseXML(new ByteArrayInputStream(brokenXml.getBytes(StandardCharsets.UTF_8)),
+                    XMLElement.mFactory);
+            Assert.fail("XmlParseException should have been thrown");
+        } catch (XmlParseException expected) {
+        }
+    }
+
+    // Enable for performance comparison @Test
+    public void staxParsePerformance() throws Exception {
+        for (String doc : smallRequests) {
+            byte[] bytes = doc.getBytes(StandardCharsets.UTF_8);
+            for (int round = 0; round < 2; round++) {
+                for (boolean stax : new boolean[] { false, true }) {
+                    long allocated = getAllocatedBytes();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < maxiter; i++) {
+                        if (stax) {
+                            StaxElementParser.parseXML(bytes, XMLElement.mFactory);
+                        } else {
+                            W3cDomUtil.parseXML(new ByteArrayInputStream(bytes), XMLElement.mFactory);
+                        }
+                    }
+                    ZimbraLog.test.info("%s %s: %.1f us/op, %d bytes allocated/op", stax ? "StAX" : "DOM",
+                            doc.substring(doc.indexOf("Body><") + 6, doc.indexOf("Request") + 7),
+                            (System.nanoTime() - start) / 1000.0 / maxiter, (getAllocatedBytes() - allocated) / maxiter);
+                }
+            }
+        }
+    }
+
 }
@@ -152,4 +152,17 @@ public class StringUtilTest {
         Assert.assertEquals(false, StringUtil.equal(null, "abc"));
         Assert.assertEquals(false, StringUtil.equal("a bc", "abc"));
     }
+
+    @Test
+    public void jsEncode() throws Exception {
+        String[] values = { "", "plain", "<b>\"quoted\" \\ back</b>", "tab\there\r\n", "\u0001\u001f",
+                "line\u2028para\u2029", "\u00e9t\u00e9 \ud83d\ude00", "end<" };
+        for (String value : values) {
+            StringBuilder sb = new StringBuilder();
+            StringUtil.jsEncode(sb, value);
+            Assert.assertEquals(value, StringUtil.jsEncode(value), sb.toString());
+        }
+        Assert.assertEquals("\\u003Cb\\u003E\\\"q\\\" \\\\ \\t\\u0001\\u2028\u00e9",
+                StringUtil.jsEncode("<b>\"q\" \\ \t\u0001\u2028\u00e9"));
+    }
 }
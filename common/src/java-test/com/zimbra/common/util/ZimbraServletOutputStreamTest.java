@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ZimbraServletOutputStream}.
+ */
+public final class ZimbraServletOutputStreamTest {
+
+    private static byte[] encode(String str, int[] splits) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(baos);
+        int start = 0;
+        for (int split : splits) {
+            if (split - start == 1) {
+                out.append(str.charAt(start));
+            } else {
+                out.append(str, start, split);
+            }
+            start = split;
+        }
+        out.append(str.substring(start));
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void utf8() throws Exception {
+        String str = "ascii \u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00 <end>";
+        Assert.assertArrayEquals(str.getBytes(StandardCharsets.UTF_8), encode(str, new int[0]));
+        // surrogate pair split across two appends
+        int split = str.indexOf('\ud83d') + 1;
+        Assert.assertArrayEquals(str.getBytes(StandardCharsets.UTF_8), encode(str, new int[] { split }));
+        // unpaired surrogates are replaced the same way String.getBytes() does
+        str = "a\ud83db\ude00c\ud83d";
+        Assert.assertArrayEquals((str + "x").getBytes(StandardCharsets.UTF_8), encode(str + "x", new int[] { 2 }));
+        // including one left over at the end
+        Assert.assertArrayEquals(str.getBytes(StandardCharsets.UTF_8), encode(str, new int[] { 2 }));
+    }
+
+    @Test
+    public void bufferBoundaries() throws Exception {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append((char) ('a' + random.nextInt(26)));
+                    break;
+                case 1:
+                    sb.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 2:
+                    sb.append((char) (0x800 + random.nextInt(0xD000)));
+                    break;
+                default:
+                    sb.appendCodePoint(0x10000 + random.nextInt(0x10000));
+                    break;
+            }
+        }
+        String str = sb.toString();
+        int[] splits = new int[200];
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = (i == 0 ? 0 : splits[i - 1]) + 1 + random.nextInt(str.length() / splits.length - 1);
+        }
+        Assert.assertArrayEquals(str.getBytes(StandardCharsets.UTF_8), encode(str, splits));
+    }
+}
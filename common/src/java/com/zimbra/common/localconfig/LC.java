@@ -150,6 +150,8 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
+    public static final KnownKey zimbra_zero_copy_min_size = KnownKey.newKey(64 * 1024); // bytes, 0 to disable
+    public static final KnownKey zimbra_pop3_transparent_cache_size = KnownKey.newKey(10000);
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
 
     @Supported
@@ -164,6 +166,18 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    // byte budgets for the MailItem cache; 0 means no limit
+    public static final KnownKey zimbra_item_cache_max_bytes = KnownKey.newKey(256L * 1024 * 1024);
+    public static final KnownKey zimbra_item_cache_mailbox_max_bytes = KnownKey.newKey(16L * 1024 * 1024);
+
+    // most folders per memcached chunk of a mailbox's folder tree
+    public static final KnownKey zimbra_folder_cache_chunk_size = KnownKey.newKey(500);
+
+    // mailboxes reopened in the background after a restart, most recently used first
+    public static final KnownKey zimbra_mailbox_warmup_max = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_mailbox_warmup_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_mailbox_warmup_file = KnownKey.newKey("${zimbra_tmp_directory}/mailbox-warmup");
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -242,6 +256,9 @@ public final class LC {
 
     public static final KnownKey zimbra_index_rfc822address_max_token_length = KnownKey.newKey(256);
     public static final KnownKey zimbra_index_rfc822address_max_token_count = KnownKey.newKey(512);
+    public static final KnownKey zimbra_search_keyset_pagination_enabled = KnownKey.newKey(true);
+    public static final KnownKey zimbra_search_parse_cache_size = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_search_parse_cache_max_query_length = KnownKey.newKey(1024);
 
     public static final KnownKey zimbra_rights_delegated_admin_supported = KnownKey.newKey(true);
 
@@ -299,6 +316,9 @@ public final class LC {
     @Supported
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
+    public static final KnownKey soap_response_streaming_enabled = KnownKey.newKey(true);
+    public static final KnownKey xml_stax_parser_enabled = KnownKey.newKey(true);
+    public static final KnownKey soap_batch_parallel_threads = KnownKey.newKey(8);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
@@ -552,9 +572,14 @@ public final class LC {
 
     public static final KnownKey sqlite_shared_cache_enabled = KnownKey.newKey(false);
     public static final KnownKey sqlite_cache_size = KnownKey.newKey(500);
-    public static final KnownKey sqlite_journal_mode = KnownKey.newKey("PERSIST");
+    public static final KnownKey sqlite_journal_mode = KnownKey.newKey("WAL");
     public static final KnownKey sqlite_page_size = KnownKey.newKey(4096);
     public static final KnownKey sqlite_sync_mode = KnownKey.newKey("NORMAL");
+    public static final KnownKey sqlite_mmap_size = KnownKey.newKey(64 * 1024 * 1024); // bytes per database file, 0 to disable
+    public static final KnownKey sqlite_wal_autocheckpoint = KnownKey.newKey(1000); // pages
+    public static final KnownKey sqlite_busy_timeout_ms = KnownKey.newKey(10000);
+    public static final KnownKey sqlite_statement_cache_size = KnownKey.newKey(64); // per connection, 0 to disable
+    public static final KnownKey sqlite_serialize_group_writers = KnownKey.newKey(false);
 
     @Supported
     public static final KnownKey mailboxd_directory = KnownKey.newKey("${zimbra_home}/mailboxd");
@@ -675,6 +700,10 @@ public final class LC {
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
+    public static final KnownKey nio_worker_pool_adjust_interval = KnownKey.newKey(10); // seconds, 0 to disable
+    public static final KnownKey nio_worker_pool_min_threads = KnownKey.newKey(4);
+    public static final KnownKey nio_worker_pool_total_max_threads = KnownKey.newKey(0); // 0 for no limit
+    public static final KnownKey nio_worker_pool_target_wait_ms = KnownKey.newKey(50);
 
     public static final KnownKey imap_max_request_size = KnownKey.newKey(10 * 1024);
     public static final KnownKey imap_max_nesting_in_search_request = KnownKey.newKey(100);
@@ -695,6 +724,11 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    public static final KnownKey imap_cost_capacity = KnownKey.newKey(0); // cost units/s, 0 for 1000 x CPUs
+    public static final KnownKey imap_cost_min_share = KnownKey.newKey(250); // cost units/s per account
+    public static final KnownKey imap_cost_burst = KnownKey.newKey(30000); // cost units
+    public static final KnownKey imap_cost_throttle_enabled = KnownKey.newKey(true); // false to only account
+    public static final KnownKey imap_search_cache_size = KnownKey.newKey(10);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -849,6 +883,9 @@ public final class LC {
 
     public static final KnownKey zimbra_waitset_initial_sleep_time = KnownKey.newKey(1000);
     public static final KnownKey zimbra_waitset_nodata_sleep_time = KnownKey.newKey(3000);
+    public static final KnownKey zimbra_waitset_stream_heartbeat_interval = KnownKey.newKey(30);
+    public static final KnownKey zimbra_waitset_stream_min_frame_interval = KnownKey.newKey(250);
+    public static final KnownKey zimbra_waitset_stream_max_streams = KnownKey.newKey(1000);
 
     public static final KnownKey zimbra_csv_mapping_file = KnownKey.newKey("${zimbra_home}/conf/zimbra-contact-fields.xml");
 
@@ -908,6 +945,10 @@ public final class LC {
     public static final KnownKey purge_initial_sleep_ms = KnownKey.newKey(30 * Constants.MILLIS_PER_MINUTE);
 
     public static final KnownKey conversation_max_age_ms = KnownKey.newKey(31 * Constants.MILLIS_PER_DAY);
+    public static final KnownKey conversation_bulk_prefetch_limit = KnownKey.newKey(200000);
+    public static final KnownKey bulk_import_batch_size = KnownKey.newKey(100);
+    public static final KnownKey bulk_import_parse_threads = KnownKey.newKey(4);
+    public static final KnownKey bulk_import_directory = KnownKey.newKey("${zimbra_home}/data/import");
     public static final KnownKey tombstone_max_age_ms = KnownKey.newKey(3 * Constants.MILLIS_PER_MONTH);
 
     public static final KnownKey autoprov_initial_sleep_ms = KnownKey.newKey(5 * Constants.MILLIS_PER_MINUTE);
@@ -1054,6 +1095,14 @@ public final class LC {
 
     public static final KnownKey jdbc_results_streaming_enabled = KnownKey.newKey(true);
 
+    // connections carved out of the pool's maxActive for LMTP delivery and for background maintenance
+    // (purge, reindex); 0 makes that work share the interactive partition
+    public static final KnownKey jdbc_pool_delivery_size = KnownKey.newKey(20);
+    public static final KnownKey jdbc_pool_maintenance_size = KnownKey.newKey(10);
+    public static final KnownKey jdbc_pool_wait_timeout_ms = KnownKey.newKey(60 * 1000);
+    // per-item updates queued on a connection before being sent as one JDBC batch; 1 disables batching
+    public static final KnownKey jdbc_batch_size = KnownKey.newKey(500);
+
     public static final KnownKey freebusy_queue_directory = KnownKey.newKey("${zimbra_home}/fbqueue/");
     public static final KnownKey freebusy_exchange_cn1 = KnownKey.newKey(null);
     public static final KnownKey freebusy_exchange_cn2 = KnownKey.newKey(null);
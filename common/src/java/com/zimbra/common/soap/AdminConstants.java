@@ -520,6 +520,8 @@ public final class AdminConstants {
     // StoreManager verification utility
     public static final String E_VERIFY_STORE_MANAGER_REQUEST = "VerifyStoreManagerRequest";
     public static final String E_VERIFY_STORE_MANAGER_RESPONSE = "VerifyStoreManagerResponse";
+    public static final String E_BULK_IMPORT_MESSAGES_REQUEST = "BulkImportMessagesRequest";
+    public static final String E_BULK_IMPORT_MESSAGES_RESPONSE = "BulkImportMessagesResponse";
 
     // Two-Factor Authentication
     public static final String E_CLEAR_TWO_FACTOR_AUTH_DATA_REQUEST = "ClearTwoFactorAuthDataRequest";
@@ -1024,6 +1026,8 @@ public final class AdminConstants {
     // Store Manager Verifier
     public static final QName VERIFY_STORE_MANAGER_REQUEST = QName.get(E_VERIFY_STORE_MANAGER_REQUEST, NAMESPACE);
     public static final QName VERIFY_STORE_MANAGER_RESPONSE = QName.get(E_VERIFY_STORE_MANAGER_RESPONSE, NAMESPACE);
+    public static final QName BULK_IMPORT_MESSAGES_REQUEST = QName.get(E_BULK_IMPORT_MESSAGES_REQUEST, NAMESPACE);
+    public static final QName BULK_IMPORT_MESSAGES_RESPONSE = QName.get(E_BULK_IMPORT_MESSAGES_RESPONSE, NAMESPACE);
 
     // Skins
     public static final QName GET_ALL_SKINS_REQUEST = QName.get(E_GET_ALL_SKINS_REQUEST, NAMESPACE);
@@ -16,10 +16,11 @@
  */
 package com.zimbra.common.soap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -37,9 +38,11 @@ import org.dom4j.QName;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.common.util.ZimbraServletOutputStream;
 
 /**
  * @since Mar 16, 2005
@@ -149,6 +152,27 @@ public abstract class Element implements Cloneable {
     public Element addUniqueElement(QName qname) throws ContainerException  { return addNonUniqueElement(qname); }
     public Element addUniqueElement(Element elt) throws ContainerException  { return addNonUniqueElement(elt); }
 
+    /**
+     * Adds child elements named {@code name} that are generated by {@code source} only when they are needed.  When
+     * this {@link Element} is serialized, each child that {@link StreamSource#next} adds to the element it is passed is
+     * written out and dropped before the next call, so a large response never holds all of them in memory at once.
+     * Anything else that looks at the children of this element ({@link #listElements()}, {@link #clone()},
+     * {@link #prettyPrint()}, ...) first generates all of them as ordinary children.
+     * <p>
+     * The source runs only once: after this element has been serialized the streamed children are gone, and
+     * serializing it again fails.  A source should not fail halfway, as whatever was serialized before the failure
+     * may already have been sent.  This default implementation generates the children right away.
+     *
+     * @return this element
+     */
+    public Element addStreamedElements(String name, StreamSource source) throws ContainerException {
+        for (Element child : new StreamedElements(this, name, source).generate()) {
+            child.mParent = null;
+            addNonUniqueElement(child);
+        }
+        return this;
+    }
+
     /**
      * The approach to namespaces is to ALWAYS store them on elements that use them (for either the element's name
      * or in one of its attributes names) but ignore them where they are not used.  This means that unused namespace
@@ -466,12 +490,18 @@ public abstract class Element implements Cloneable {
 
     // dumping the element hierarchy
     public byte[] toUTF8() {
+        // encode while marshaling rather than building the whole document as a String first
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(baos);
         try {
-            return toString().getBytes("utf-8");
-        } catch (UnsupportedEncodingException e) {
-            // should *never* happen since UTF-8 and UTF-16 cover the exact same character space
+            marshal(out);
+            out.flush();
+        } catch (IOException e) {
+            // should really not happen when writing to a ByteArrayOutputStream, just log it
+            ZimbraLog.soap.error("Caught IOException: ", e);
             return null;
         }
+        return baos.toByteArray();
     }
 
     public void output(Appendable out) throws IOException {
@@ -649,6 +679,9 @@ public abstract class Element implements Cloneable {
 
     public static Element parseXML(InputStream is)
     throws XmlParseException {
+        if (LC.xml_stax_parser_enabled.booleanValue()) {
+            return StaxElementParser.parseXML(is, XMLElement.mFactory);
+        }
         return W3cDomUtil.parseXML(is, XMLElement.mFactory);
     }
 
@@ -777,6 +810,12 @@ public abstract class Element implements Cloneable {
         public String getValue() throws ContainerException;
     }
 
+    /** Generates the children of an element added with {@link Element#addStreamedElements}. */
+    public static interface StreamSource {
+        /** Adds the next child element(s) to {@code parent}.  Returns false once there is nothing left to add. */
+        public boolean next(Element parent) throws ServiceException;
+    }
+
     public static class Attribute {
         private final String  mKey;
         private Object  mValue;
@@ -902,6 +941,19 @@ public abstract class Element implements Cloneable {
                     return mTarget.toString();
             }
 
+            /** Same as appending {@link #toString()}, without building the string. */
+            void marshal(Appendable out) throws IOException {
+                if (mTarget.mAttributes.isEmpty()) {
+                    out.append("null");
+                } else if (mTarget.mAttributes.size() == 1 && mTarget.mAttributes.containsKey(A_CONTENT)) {
+                    out.append('"');
+                    StringUtil.jsEncode(out, mTarget.mAttributes.get(A_CONTENT).toString());
+                    out.append('"');
+                } else {
+                    mTarget.marshal(out, -1, false);
+                }
+            }
+
             /**
              * Converts to an equivalent Element.  Supplying parent information ensures namespaces are handled
              * correctly - with a null parent, toW3cDom would render the pair as
@@ -988,6 +1040,64 @@ public abstract class Element implements Cloneable {
             return elt;
         }
 
+        @Override
+        public Element addStreamedElements(String name, StreamSource source) throws ContainerException {
+            if (mAttributes.containsKey(name)) {
+                throw new ContainerException("already stored element or attribute with name: " + name);
+            }
+            mAttributes.put(name, new StreamedList(new StreamedElements(this, name, source)));
+            return this;
+        }
+
+        /**
+         * The children added by {@link #addStreamedElements}, stored in {@link #mAttributes} like any other list of
+         * children.  They are generated the first time the list is read; {@link #marshal} streams them instead.
+         */
+        private static final class StreamedList extends AbstractList<Element> {
+            private final StreamedElements streamed;
+            private List<Element> children;
+
+            StreamedList(StreamedElements streamed) {
+                this.streamed = streamed;
+            }
+
+            private List<Element> children() {
+                if (children == null) {
+                    children = streamed.generate();
+                }
+                return children;
+            }
+
+            boolean isPending() {
+                return children == null;
+            }
+
+            @Override
+            public Element get(int index) {
+                return children().get(index);
+            }
+
+            @Override
+            public int size() {
+                return children().size();
+            }
+
+            @Override
+            public Element set(int index, Element elt) {
+                return children().set(index, elt);
+            }
+
+            @Override
+            public void add(int index, Element elt) {
+                children().add(index, elt);
+            }
+
+            @Override
+            public Element remove(int index) {
+                return children().remove(index);
+            }
+        }
+
         @Override
         public Element setText(String content) throws ContainerException {
             return addAttribute(A_CONTENT, content);
@@ -1245,6 +1355,18 @@ public abstract class Element implements Cloneable {
             }
 
             private String readQuoted(char quote) throws SoapParseException {
+                // fast path: most strings have no escapes and can be taken as they are
+                for (int end = offset; end < max - 1; end++) {
+                    char c = js.charAt(end);
+                    if (c == quote) {
+                        String str = js.substring(offset, end);
+                        offset = end;
+                        skipChar();
+                        return str;
+                    } else if (c == '\\' || c == '\n' || c == '\t') {
+                        break;
+                    }
+                }
                 StringBuilder sb = new StringBuilder();
                 for (char c = js.charAt(offset); c != quote; c = js.charAt(++offset)) {
                     if (c == '\n' || c == '\t' || offset >= max - 1)
@@ -1257,6 +1379,19 @@ public abstract class Element implements Cloneable {
             }
 
             private String readLiteral() throws SoapParseException {
+                // fast path for literals without escapes
+                peekChar();
+                for (int end = offset; ; end++) {
+                    char c = end < max - 1 ? js.charAt(end) : ' ';
+                    if (c <= ' ' || ",:]}/\"[{;=#".indexOf(c) >= 0) {
+                        if (end == offset)  error("zero-length identifier");
+                        String literal = js.substring(offset, end);
+                        offset = end;
+                        return literal;
+                    } else if (c == '\\') {
+                        break;
+                    }
+                }
                 StringBuilder sb = new StringBuilder();
                 for (char c = peekChar(); offset < max - 1; c = js.charAt(++offset)) {
                     if (c <= ' ' || ",:]}/\"[{;=#".indexOf(c) >= 0)
@@ -1467,17 +1602,23 @@ public abstract class Element implements Cloneable {
                 int index = 0;
                 for (Map.Entry<String, Object> attr : mAttributes.entrySet()) {
                     indent(out, indent, true);
-                    out.append('"').append(StringUtil.jsEncode(attr.getKey())).append(indent >= 0 ? "\": " : "\":");
+                    out.append('"');
+                    StringUtil.jsEncode(out, attr.getKey());
+                    out.append(indent >= 0 ? "\": " : "\":");
 
                     Object value = attr.getValue();
                     if (value instanceof String) {
-                        out.append('"').append(StringUtil.jsEncode(getAttrStringValue(attr, safe))).append('"');
+                        out.append('"');
+                        StringUtil.jsEncode(out, getAttrStringValue(attr, safe));
+                        out.append('"');
                     } else if (value instanceof JSONKeyValuePair) {
-                        out.append(value.toString());
+                        ((JSONKeyValuePair) value).marshal(out);
                     } else if (value instanceof JSONElement) {
                         ((JSONElement) value).marshal(out, indent, safe);
                     } else if (value instanceof FileBackedElement) {
                         ((FileBackedElement) value).marshal(out);
+                    } else if (value instanceof StreamedList && indent < 0 && ((StreamedList) value).isPending()) {
+                        ((StreamedList) value).streamed.marshal(out, safe);
                     } else if (value instanceof Element) {
                         out.append('"').append(StringUtil.jsEncode(value)).append('"');
                     } else if (!(value instanceof List<?>)) {
@@ -1494,7 +1635,7 @@ public abstract class Element implements Cloneable {
                                 if (child instanceof JSONElement) {
                                     ((JSONElement) child).marshal(out, lindent, safe);
                                 } else if (child instanceof JSONKeyValuePair) {
-                                    out.append(child.toString());
+                                    ((JSONKeyValuePair) child).marshal(out);
                                 } else {
                                     out.append('"').append(StringUtil.jsEncode(child)).append('"');
                                 }
@@ -1512,7 +1653,8 @@ public abstract class Element implements Cloneable {
                 if (needNamespace) {
                     indent(out, indent, true);
                     out.append('"').append(A_NAMESPACE).append(indent >= 0 ? "\": \"" : "\":\"");
-                    out.append(StringUtil.jsEncode(mNamespaces.get(""))).append('"');
+                    StringUtil.jsEncode(out, mNamespaces.get(""));
+                    out.append('"');
                 }
                 indent(out, indent - 2, true);
             }
@@ -1530,6 +1672,8 @@ public abstract class Element implements Cloneable {
     public static class XMLElement extends Element {
         private String        mText;
         private List<Element> mChildren;
+        /** children added by {@link #addStreamedElements} that have not been generated yet */
+        private List<StreamedElements> mStreamed;
 
         public static final ElementFactory mFactory = new XMLFactory();
 
@@ -1561,6 +1705,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public void destroy() {
+            mStreamed = null;
             if (mChildren != null) {
                 for (Element elt : mChildren) {
                     elt.destroy();
@@ -1658,8 +1803,47 @@ public abstract class Element implements Cloneable {
             return elt.collapseNamespace();
         }
 
+        @Override
+        public Element addStreamedElements(String name, StreamSource source) throws ContainerException {
+            if (mText != null) {
+                throw new ContainerException(
+                        "cannot add children to element containing text - <" + this.getName() + ">");
+            }
+            if (mStreamed == null) {
+                mStreamed = new ArrayList<StreamedElements>(1);
+            }
+            StreamedElements streamed = new StreamedElements(this, name, source);
+            streamed.position = mChildren == null ? 0 : mChildren.size();
+            mStreamed.add(streamed);
+            return this;
+        }
+
+        /**
+         * Generates the children of any pending {@link #addStreamedElements} calls and puts them where they were
+         * added, so the rest of this class only ever has to deal with ordinary children.
+         */
+        private void generateStreamed() {
+            if (mStreamed == null) {
+                return;
+            }
+            List<StreamedElements> pending = mStreamed;
+            mStreamed = null;
+            int shift = 0;
+            for (StreamedElements streamed : pending) {
+                List<Element> children = streamed.generate();
+                if (!children.isEmpty()) {
+                    if (mChildren == null) {
+                        mChildren = new ArrayList<Element>(children.size());
+                    }
+                    mChildren.addAll(streamed.position + shift, children);
+                    shift += children.size();
+                }
+            }
+        }
+
         @Override
         public Element setText(String content) throws ContainerException {
+            generateStreamed();
             if (content != null && !content.trim().equals("") && mChildren != null) {
                 throw new ContainerException(
                         "cannot set text on element with children - <" + this.getName() + ">");
@@ -1728,6 +1912,7 @@ public abstract class Element implements Cloneable {
         @Override
         protected void detach(Element elt) throws ContainerException {
             super.detach(elt);
+            generateStreamed();
             if (mChildren != null) {
                 mChildren.remove(elt);
                 if (mChildren.size() == 0) {
@@ -1738,6 +1923,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public Element getOptionalElement(String name) {
+            generateStreamed();
             if (mChildren != null && name != null) {
                 for (Element elt : mChildren) {
                     if (elt.getName().equals(name)) {
@@ -1750,6 +1936,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public Element getOptionalElement(QName qname) {
+            generateStreamed();
             if (mChildren != null && qname != null) {
                 for (Element elt : mChildren) {
                     if (elt.getQName().equals(qname)) {
@@ -1774,6 +1961,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public List<Element> listElements(String name) {
+            generateStreamed();
             if (mChildren == null) {
                 return Collections.emptyList();
             }
@@ -1792,6 +1980,7 @@ public abstract class Element implements Cloneable {
 
         @Override
         public boolean hasChildren() {
+            generateStreamed();
             return mChildren != null && !mChildren.isEmpty();
         }
 
@@ -1831,6 +2020,7 @@ public abstract class Element implements Cloneable {
                     return result;
                 }
             }
+            generateStreamed();
             if (mChildren != null) {
                 for (Element elt : mChildren) {
                     if (elt.getName().equals(key)) {
@@ -1916,6 +2106,7 @@ public abstract class Element implements Cloneable {
                 else
                     clone.mNamespaces.putAll(mNamespaces);
             }
+            generateStreamed();
             if (mChildren != null) {
                 for (Element child : mChildren)
                     clone.addNonUniqueElement(child.clone());
@@ -1959,6 +2150,10 @@ public abstract class Element implements Cloneable {
 
         private static final int INDENT_SIZE = 2;
         private void marshal(Appendable out, int indent, boolean safe) throws IOException {
+            if (indent >= 0) {
+                // pretty printing is for logging, where the children are needed as they are
+                generateStreamed();
+            }
             indent(out, indent, indent > 0);
             // element's qualified name
             String qn = getQualifiedName();
@@ -1982,10 +2177,22 @@ public abstract class Element implements Cloneable {
                 }
             }
             // element content (children/text) and closing
-            if (mChildren != null || !StringUtil.isNullOrEmpty(mText)) {
+            if (mChildren != null || mStreamed != null || !StringUtil.isNullOrEmpty(mText)) {
                 out.append('>');
-                if (mChildren != null) {
-                    for (Element child : mChildren) {
+                if (mChildren != null || mStreamed != null) {
+                    int size = mChildren == null ? 0 : mChildren.size();
+                    Iterator<StreamedElements> streamed = mStreamed == null ? null : mStreamed.iterator();
+                    StreamedElements next = streamed != null && streamed.hasNext() ? streamed.next() : null;
+                    for (int i = 0; i <= size; i++) {
+                        // streamed children go out where they were added, between the ordinary ones
+                        while (next != null && next.position == i) {
+                            next.marshal(out, safe);
+                            next = streamed.hasNext() ? streamed.next() : null;
+                        }
+                        if (i == size) {
+                            break;
+                        }
+                        Element child = mChildren.get(i);
                         if (child instanceof XMLElement) {
                             ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
                         } else if (child instanceof FileBackedElement) {
@@ -2170,6 +2377,107 @@ public abstract class Element implements Cloneable {
         }
     }
 
+    /**
+     * The children added by one {@link Element#addStreamedElements} call that have not been generated yet.
+     */
+    private static final class StreamedElements {
+        private final Element parent;
+        private final String name;
+        private StreamSource source;
+        private Element scratch;
+        private boolean serialized = false;
+        /** index among the parent's ordinary children at which these go, for {@link XMLElement} */
+        int position;
+
+        StreamedElements(Element parent, String name, StreamSource source) {
+            this.parent = parent;
+            this.name = name;
+            this.source = source;
+        }
+
+        /**
+         * Returns the children the source adds in its next call, or null once it has run out.  The children are
+         * attached to the parent but not yet listed among its children.
+         */
+        private List<Element> next() throws ServiceException {
+            if (source == null) {
+                return null;
+            }
+            if (scratch == null) {
+                // children are added to a stand-in for the parent so that they inherit its namespaces
+                scratch = parent.getFactory().createElement(parent.getName());
+                scratch.mParent = parent;
+            }
+            if (!source.next(scratch)) {
+                source = null;
+                scratch = null;
+                return null;
+            }
+            List<Element> children = scratch.listElements();
+            for (Element child : children) {
+                if (!name.equals(child.getName())) {
+                    throw ServiceException.FAILURE("unexpected <" + child.getName() + "> among streamed <" + name +
+                            "> elements", null);
+                }
+                child.mParent = parent;
+            }
+            if (scratch instanceof JSONElement) {
+                scratch.mAttributes.clear();
+            } else {
+                ((XMLElement) scratch).mChildren = null;
+            }
+            return children;
+        }
+
+        /** Runs the source to the end and returns all the children it adds. */
+        List<Element> generate() throws ContainerException {
+            List<Element> children = new ArrayList<Element>();
+            try {
+                for (List<Element> batch = next(); batch != null; batch = next()) {
+                    children.addAll(batch);
+                }
+            } catch (ServiceException e) {
+                ContainerException ce = new ContainerException("error generating streamed <" + name + "> elements");
+                ce.initCause(e);
+                throw ce;
+            }
+            return children;
+        }
+
+        /** Runs the source to the end, writing out each child as soon as it has been added. */
+        void marshal(Appendable out, boolean safe) throws IOException {
+            if (serialized) {
+                throw new IllegalStateException("streamed <" + name + "> elements already serialized");
+            }
+            serialized = true;
+            boolean json = parent instanceof JSONElement;
+            if (json) {
+                out.append('[');
+            }
+            boolean first = true;
+            try {
+                for (List<Element> batch = next(); batch != null; batch = next()) {
+                    for (Element child : batch) {
+                        if (json) {
+                            if (!first) {
+                                out.append(',');
+                            }
+                            ((JSONElement) child).marshal(out, -1, safe);
+                        } else {
+                            ((XMLElement) child).marshal(out, -1, safe);
+                        }
+                        first = false;
+                    }
+                }
+            } catch (ServiceException e) {
+                throw new IOException("error generating streamed <" + name + "> elements", e);
+            }
+            if (json) {
+                out.append(']');
+            }
+        }
+    }
+
     public static void main(String[] args) throws ContainerException, SoapParseException {
         System.out.println(Element.parseJSON("{ 'a':'b'}").getAttribute("a", null));
         System.out.println(Element.parseJSON("{ '_attrs' : {'a':'b'}}").getAttribute("a", null));
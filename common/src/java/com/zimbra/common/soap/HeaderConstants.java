@@ -67,6 +67,10 @@ public final class HeaderConstants {
     public static final String E_CSRFTOKEN = "csrfToken";
     public static final String E_SOAP_ID = "soapId";
     public static final String A_WAITSET_ID = "wsId";
+    public static final String E_BATCH      = "batch";
+    public static final String E_REQUEST    = "r";
+    public static final String A_ELAPSED    = "elapsed";
+    public static final String A_PARALLEL   = "parallel";
 
     // sieve constants
     public static final String INDEX = ":index";
@@ -612,6 +612,12 @@ public final class MailConstants {
     public static final String E_LINK = "lk";
 
     public static final String E_INFO = "info";
+    public static final String E_PROFILE = "profile";
+    public static final String E_PROFILE_OP = "op";
+    public static final String E_PROFILE_SQL = "sql";
+    public static final String A_PROFILE_MS = "ms";
+    public static final String A_PROFILE_CALLS = "calls";
+    public static final String A_PROFILE_ROWS = "rows";
     public static final String E_LOCALE = "locale";
     public static final String E_PARAM = "p";
     public static final String E_BROWSE_DATA = "bd";
@@ -921,6 +927,7 @@ public final class MailConstants {
     public static final String A_IN_DUMPSTER = "inDumpster";
     public static final String A_WARMUP = "warmup";
     public static final String A_QUICK = "quick";
+    public static final String A_PROFILE = "profile";
     public static final String A_SCORE = "score";
     public static final String E_HIT = "hit";
 
@@ -0,0 +1,198 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.soap.Element.ElementFactory;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Parses XML straight into an {@link Element} tree with a StAX pull parser, without building a W3C DOM first.
+ * <p>
+ * Only documents the parser can map one to one are handled here: anything that {@link W3cDomUtil} would treat
+ * specially (mixed content or XHTML, which get flattened to text, a DOCTYPE, characters that need cleaning up, or
+ * any parse error at all) makes {@link #parseXML} fall back to the DOM based parser, so the result and the error
+ * reporting are exactly what they were before.
+ */
+final class StaxElementParser {
+
+    private static final XMLInputFactory FACTORY = makeInputFactory();
+
+    private StaxElementParser() {
+    }
+
+    private static XMLInputFactory makeInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        // XXE attack prevention; a DOCTYPE makes us fall back to the DOM parser, which rejects it
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /** Signals that the document has to go through the DOM based parser. */
+    private static final class UnsupportedContentException extends Exception {
+        private static final long serialVersionUID = 2407553612722574519L;
+
+        UnsupportedContentException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Parses {@code is} into an {@link Element} tree and closes the stream.  If the stream supports
+     * {@link InputStream#mark} (like the {@link ByteArrayInputStream} around a buffered SOAP request) it is parsed in
+     * place and rewound for the fallback; otherwise it is read into memory first.
+     */
+    static Element parseXML(InputStream is, ElementFactory factory) throws XmlParseException {
+        try {
+            if (!is.markSupported()) {
+                return parseXML(ByteStreams.toByteArray(is), factory);
+            }
+            is.mark(Integer.MAX_VALUE);
+            try {
+                return parse(is, factory);
+            } catch (XMLStreamException e) {
+                ZimbraLog.misc.trace("falling back to DOM parse: %s", e.getMessage());
+            } catch (UnsupportedContentException e) {
+                ZimbraLog.misc.trace("falling back to DOM parse: %s", e.getMessage());
+            }
+            is.reset();
+            return W3cDomUtil.parseXML(is, factory);
+        } catch (IOException e) {
+            ZimbraLog.misc.warn("Problem reading XML - %s", e.getMessage());
+            throw XmlParseException.PARSE_ERROR();
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    static Element parseXML(byte[] bytes, ElementFactory factory) throws XmlParseException {
+        try {
+            return parse(new ByteArrayInputStream(bytes), factory);
+        } catch (XMLStreamException | UnsupportedContentException e) {
+            ZimbraLog.misc.trace("falling back to DOM parse: %s", e.getMessage());
+            return W3cDomUtil.parseXML(new ByteArrayInputStream(bytes), factory);
+        }
+    }
+
+    private static Element parse(InputStream is, ElementFactory factory)
+    throws XMLStreamException, UnsupportedContentException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+        try {
+            Element root = null;
+            // open elements and their text content, innermost last
+            List<Element> elements = new ArrayList<Element>();
+            List<StringBuilder> texts = new ArrayList<StringBuilder>();
+            while (reader.hasNext()) {
+                int depth = elements.size();
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (depth > 0 && !isBlank(texts.get(depth - 1))) {
+                            throw new UnsupportedContentException("mixed content");
+                        }
+                        Element elt = startElement(reader, factory);
+                        if (depth > 0) {
+                            elements.get(depth - 1).addNonUniqueElement(elt);
+                        } else {
+                            root = elt;
+                        }
+                        elements.add(elt);
+                        texts.add(new StringBuilder());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        Element current = elements.remove(depth - 1);
+                        StringBuilder text = texts.remove(depth - 1);
+                        if (!isBlank(text)) {
+                            if (current.hasChildren()) {
+                                throw new UnsupportedContentException("mixed content");
+                            }
+                            current.setText(text.toString());
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth > 0) {
+                            texts.get(depth - 1).append(reader.getTextCharacters(), reader.getTextStart(),
+                                    reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.DTD:
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        throw new UnsupportedContentException("DTD or entity reference");
+                    default:
+                        // comments, processing instructions, document start/end
+                        break;
+                }
+            }
+            if (root == null) {
+                throw new XMLStreamException("no root element");
+            }
+            return root;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Element startElement(XMLStreamReader reader, ElementFactory factory)
+    throws UnsupportedContentException {
+        String uri = reader.getNamespaceURI();
+        if (Element.XMLElement.XHTML_NS_URI.equalsIgnoreCase(uri)) {
+            throw new UnsupportedContentException("XHTML content");
+        }
+        org.dom4j.Namespace ns = Strings.isNullOrEmpty(uri) ? null :
+            org.dom4j.Namespace.get(Strings.nullToEmpty(reader.getPrefix()), uri);
+        Element elt = factory.createElement(new org.dom4j.QName(reader.getLocalName(), ns));
+        for (int i = 0, count = reader.getAttributeCount(); i < count; i++) {
+            String prefix = reader.getAttributePrefix(i);
+            String name = reader.getAttributeLocalName(i);
+            elt.addAttribute(Strings.isNullOrEmpty(prefix) ? name : prefix + ':' + name, reader.getAttributeValue(i));
+            String attrURI = reader.getAttributeNamespace(i);
+            if (!Strings.isNullOrEmpty(attrURI)) {
+                // as in W3cDomUtil, namespaces are stored on the elements which use them
+                elt.setNamespace(prefix, attrURI);
+            }
+        }
+        return elt;
+    }
+
+    private static boolean isBlank(StringBuilder sb) {
+        for (int i = 0, len = sb.length(); i < len; i++) {
+            if (sb.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -727,6 +727,27 @@ public class StringUtil {
         "\\u0018", "\\u0019", "\\u001A", "\\u001B", "\\u001C", "\\u001D", "\\u001E", "\\u001F"
     };
 
+    /** Replacements for the ASCII characters that need escaping in JavaScript strings, null for all others. */
+    private static final String[] JS_ASCII_ESCAPES = new String[128];
+    static {
+        System.arraycopy(JS_CHAR_ENCODINGS, 0, JS_ASCII_ESCAPES, 0, JS_CHAR_ENCODINGS.length);
+        JS_ASCII_ESCAPES['<'] = "\\u003C";
+        JS_ASCII_ESCAPES['>'] = "\\u003E";
+        JS_ASCII_ESCAPES['\\'] = "\\\\";
+        JS_ASCII_ESCAPES['"'] = "\\\"";
+    }
+
+    private static String jsReplacement(char c) {
+        if (c < 128) {
+            return JS_ASCII_ESCAPES[c];
+        } else if (c == '\u2028') {
+            return "\\u2028";
+        } else if (c == '\u2029') {
+            return "\\u2029";
+        }
+        return null;
+    }
+
     public static String jsEncode(Object obj) {
         if (obj == null) {
             return "";
@@ -735,27 +756,41 @@ public class StringUtil {
         String replacement, str = obj.toString();
         StringBuilder sb = null;
         int i, last, length = str.length();
-        for (i = 0, last = -1; i < length; i++) {
-            char c = str.charAt(i);
-            switch (c) {
-                case '<':       replacement = "\\u003C";             break;
-                case '>':       replacement = "\\u003E";             break;
-                case '\\':      replacement = "\\\\";                break;
-                case '"':       replacement = "\\\"";                break;
-                case '\u2028':  replacement = "\\u2028";             break;
-                case '\u2029':  replacement = "\\u2029";             break;
-                default:        if (c >= ' ')                        continue;
-                                replacement = JS_CHAR_ENCODINGS[c];  break;
+        for (i = 0, last = 0; i < length; i++) {
+            if ((replacement = jsReplacement(str.charAt(i))) == null) {
+                continue;
             }
             if (sb == null) {
-                sb = new StringBuilder(str.substring(0, i));
-            } else {
-                sb.append(str.substring(last, i));
+                sb = new StringBuilder(length + 16);
             }
-            sb.append(replacement);
+            sb.append(str, last, i).append(replacement);
             last = i + 1;
         }
-        return (sb == null ? str : sb.append(str.substring(last, i)).toString());
+        return (sb == null ? str : sb.append(str, last, length).toString());
+    }
+
+    /**
+     * Appends the JavaScript-escaped form of {@code str} to {@code out}.  Unlike {@link #jsEncode(Object)} this
+     * creates no intermediate strings: runs of characters that need no escaping are appended as they are.
+     */
+    public static void jsEncode(Appendable out, CharSequence str) throws IOException {
+        String replacement;
+        int last = 0, length = str.length();
+        for (int i = 0; i < length; i++) {
+            if ((replacement = jsReplacement(str.charAt(i))) == null) {
+                continue;
+            }
+            if (i > last) {
+                out.append(str, last, i);
+            }
+            out.append(replacement);
+            last = i + 1;
+        }
+        if (last == 0) {
+            out.append(str);
+        } else if (last < length) {
+            out.append(str, last, length);
+        }
     }
 
     public static String jsEncodeKey(String key) {
@@ -809,6 +809,25 @@ public final class ZimbraLog {
         sContextString.remove();
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, so that work handed off to another thread can be
+     * logged with the same context (see {@link #setContext(Map)}).
+     */
+    public static Map<String, String> getContext() {
+        Map<String, String> contextMap = sContextMap.get();
+        return contextMap == null ? new LinkedHashMap<String, String>() : new LinkedHashMap<String, String>(contextMap);
+    }
+
+    /**
+     * Replaces the current thread's logging context with a copy of the given one.
+     */
+    public static void setContext(Map<String, String> context) {
+        clearContext();
+        for (Map.Entry<String, String> entry : context.entrySet()) {
+            addToContext(entry.getKey(), entry.getValue());
+        }
+    }
+
     public static String getStackTrace(int maxDepth) {
         // Thread.currentThread().getStackTrace() would seem cleaner but bizarrely is slower.
         StackTraceElement[] stElems = new Throwable().getStackTrace();
@@ -17,8 +17,7 @@
 package com.zimbra.common.util;
 
 import java.io.IOException;
-
-import javax.servlet.ServletOutputStream;
+import java.io.OutputStream;
 
 import com.zimbra.common.localconfig.LC;
 
@@ -62,52 +61,103 @@ import com.zimbra.common.localconfig.LC;
 public class ZimbraServletOutputStream implements Appendable {
 
     private static final int BUFFER_SIZE = LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480);
-    ServletOutputStream mOut;
-    
-    // buffer to avoid frequent toString().getBytes()
-    StringBuilder mBuffer = new StringBuilder(BUFFER_SIZE);
-    
-    public ZimbraServletOutputStream(ServletOutputStream out) {
+    private final OutputStream mOut;
+
+    // characters are encoded to UTF-8 straight into this buffer, without an intermediate String
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mCount = 0;
+    // first half of a surrogate pair split across two appends
+    private char mHighSurrogate = 0;
+
+    public ZimbraServletOutputStream(OutputStream out) {
         mOut = out;
     }
-    
+
+    @Override
     public Appendable append(CharSequence csq) throws IOException {
         append(csq, 0, csq.length());
         return this;
     }
 
+    @Override
     public Appendable append(char c) throws IOException {
-        if (mBuffer.length() + 1 > BUFFER_SIZE)
-            flush();
-        mBuffer.append(c);
+        encode(c);
         return this;
     }
 
+    @Override
     public Appendable append(CharSequence csq, int start, int end) throws IOException {
-        int lenToAppend = end - start;
-        
-        if (lenToAppend >= BUFFER_SIZE) {
-            // data to append itself exceeds our threshold, don't let the buffer grow(realloc)
-            flush(); // flush existing data in the buffer
-            write(csq.subSequence(start, end).toString()); // then directly flush this append data out without buffering
-        } else {
-            if (mBuffer.length() + lenToAppend > BUFFER_SIZE)
-                flush();
-            mBuffer.append(csq, start, end);
+        byte[] buf = mBuffer;
+        for (int i = start; i < end; i++) {
+            char c = csq.charAt(i);
+            if (c < 0x80 && mHighSurrogate == 0) {
+                if (mCount == BUFFER_SIZE) {
+                    writeBuffer();
+                }
+                buf[mCount++] = (byte) c;
+            } else {
+                encode(c);
+            }
         }
-        
         return this;
     }
-    
-    private void write(String str) throws IOException {
-        mOut.write(str.getBytes("utf-8"));
+
+    private void encode(char c) throws IOException {
+        if (mCount + 4 > BUFFER_SIZE) {
+            writeBuffer();
+        }
+        if (mHighSurrogate != 0) {
+            char high = mHighSurrogate;
+            mHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                mBuffer[mCount++] = (byte) (0xF0 | (cp >> 18));
+                mBuffer[mCount++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                mBuffer[mCount++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                mBuffer[mCount++] = (byte) (0x80 | (cp & 0x3F));
+                return;
+            }
+            // unpaired surrogate; same replacement as String.getBytes()
+            mBuffer[mCount++] = '?';
+            encode(c);
+            return;
+        }
+        if (c < 0x80) {
+            mBuffer[mCount++] = (byte) c;
+        } else if (c < 0x800) {
+            mBuffer[mCount++] = (byte) (0xC0 | (c >> 6));
+            mBuffer[mCount++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            mHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            mBuffer[mCount++] = '?';
+        } else {
+            mBuffer[mCount++] = (byte) (0xE0 | (c >> 12));
+            mBuffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            mBuffer[mCount++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
     }
-    
+
+    /**
+     * Writes the buffered data to the underlying stream.  The underlying stream itself is not flushed (see above).
+     * A high surrogate still waiting for its other half is written out as unpaired.
+     */
     public void flush() throws IOException {
-        if (mBuffer.length() > 0) {
-            write(mBuffer.toString());
-            mBuffer.setLength(0);
+        if (mHighSurrogate != 0) {
+            mHighSurrogate = 0;
+            if (mCount == BUFFER_SIZE) {
+                writeBuffer();
+            }
+            mBuffer[mCount++] = '?';
         }
+        writeBuffer();
     }
 
 }
@@ -242,6 +242,8 @@ public final class JaxbUtil {
             com.zimbra.soap.admin.message.BackupQueryResponse.class,
             com.zimbra.soap.admin.message.BackupRequest.class,
             com.zimbra.soap.admin.message.BackupResponse.class,
+            com.zimbra.soap.admin.message.BulkImportMessagesRequest.class,
+            com.zimbra.soap.admin.message.BulkImportMessagesResponse.class,
             com.zimbra.soap.admin.message.CancelPendingRemoteWipeRequest.class,
             com.zimbra.soap.admin.message.CancelPendingRemoteWipeResponse.class,
             com.zimbra.soap.admin.message.CheckAuthConfigRequest.class,
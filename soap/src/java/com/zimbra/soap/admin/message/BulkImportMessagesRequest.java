@@ -0,0 +1,94 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap.admin.message;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.zimbra.common.soap.AdminConstants;
+
+/**
+ * @zm-api-command-auth-required true
+ * @zm-api-command-admin-auth-required true
+ * @zm-api-command-description Import a directory of RFC822 message files into a mailbox.  The import runs
+ * in the background; the messages are parsed in parallel, each is added in its own transaction, and they are
+ * indexed once the import has finished.
+ * <br />
+ * <b>Access</b>: system admin only
+ * <br />
+ * note: the directory is read on the server handling the request, which must be the account's home server,
+ * and must be under the <b>bulk_import_directory</b> local config directory
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_BULK_IMPORT_MESSAGES_REQUEST)
+public class BulkImportMessagesRequest {
+
+    /**
+     * @zm-api-field-tag "start|status"
+     * @zm-api-field-description Action to perform.  Defaults to <b>start</b>
+     * <table>
+     * <tr> <td> <b>start</b> </td> <td> start importing </td> </tr>
+     * <tr> <td> <b>status</b> </td> <td> show import progress </td> </tr>
+     * </table>
+     */
+    @XmlAttribute(name=AdminConstants.E_ACTION, required=false)
+    private String action;
+
+    /**
+     * @zm-api-field-tag account-id
+     * @zm-api-field-description Account ID
+     */
+    @XmlAttribute(name=AdminConstants.A_ID, required=true)
+    private final String id;
+
+    /**
+     * @zm-api-field-tag folder-id
+     * @zm-api-field-description ID of the folder to add the messages to.  Defaults to the Inbox
+     */
+    @XmlAttribute(name=AdminConstants.A_FOLDER, required=false)
+    private String folderId;
+
+    /**
+     * @zm-api-field-tag server-path
+     * @zm-api-field-description Path of a directory on the server containing one message per file.  Relative
+     * paths are relative to <b>bulk_import_directory</b>.  Required for <b>start</b>
+     */
+    @XmlAttribute(name=AdminConstants.A_PATH, required=false)
+    private final String path;
+
+    /**
+     * no-argument constructor wanted by JAXB
+     */
+    @SuppressWarnings("unused")
+    private BulkImportMessagesRequest() {
+        this((String)null, (String)null);
+    }
+
+    public BulkImportMessagesRequest(String id, String path) {
+        this.id = id;
+        this.path = path;
+    }
+
+    public void setAction(String action) { this.action = action; }
+    public void setFolderId(String folderId) { this.folderId = folderId; }
+    public String getAction() { return action; }
+    public String getId() { return id; }
+    public String getFolderId() { return folderId; }
+    public String getPath() { return path; }
+}
@@ -0,0 +1,67 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap.admin.message;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.zimbra.common.soap.AdminConstants;
+
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_BULK_IMPORT_MESSAGES_RESPONSE)
+public class BulkImportMessagesResponse {
+
+    /**
+     * @zm-api-field-tag status
+     * @zm-api-field-description Status - one of <b>started|running|idle</b>
+     */
+    @XmlAttribute(name=AdminConstants.A_STATUS, required=true)
+    private final String status;
+
+    /**
+     * @zm-api-field-description Number of messages added to the mailbox by the running or most recent import
+     */
+    @XmlAttribute(name=AdminConstants.A_NUM_SUCCEEDED, required=true)
+    private final int numSucceeded;
+
+    /**
+     * @zm-api-field-description Number of messages that could not be imported by the running or most
+     * recent import
+     */
+    @XmlAttribute(name=AdminConstants.A_NUM_FAILED, required=true)
+    private final int numFailed;
+
+    /**
+     * no-argument constructor wanted by JAXB
+     */
+    @SuppressWarnings("unused")
+    private BulkImportMessagesResponse() {
+        this((String) null, 0, 0);
+    }
+
+    public BulkImportMessagesResponse(String status, int numSucceeded, int numFailed) {
+        this.status = status;
+        this.numSucceeded = numSucceeded;
+        this.numFailed = numFailed;
+    }
+
+    public String getStatus() { return status; }
+    public int getNumSucceeded() { return numSucceeded; }
+    public int getNumFailed() { return numFailed; }
+}
@@ -148,6 +148,14 @@ public class SearchMultiMailboxRequest implements SearchParameters {
     @XmlAttribute(name = MailConstants.A_QUICK /* quick */, required = false)
     private ZmBoolean quick;
 
+    /**
+     * @zm-api-field-tag
+     * @zm-api-field-description Set this flag to <b>1 (true)</b> to return a <b>&lt;profile></b> of where the search
+     *                           spent its time, with the timings, row counts and SQL of each query operation.
+     */
+    @XmlAttribute(name = MailConstants.A_PROFILE /* profile */, required = false)
+    private ZmBoolean profile;
+
     // Based on SortBy which is NOT an enum and appears to support runtime construction
     /**
      * @zm-api-field-tag sort-by
@@ -385,6 +393,11 @@ public class SearchMultiMailboxRequest implements SearchParameters {
         this.quick = ZmBoolean.fromBool(quick);
     }
 
+    @Override
+    public void setProfile(Boolean profile) {
+        this.profile = ZmBoolean.fromBool(profile);
+    }
+
     @Override
     public void setSortBy(String sortBy) {
         this.sortBy = sortBy;
@@ -543,6 +556,11 @@ public class SearchMultiMailboxRequest implements SearchParameters {
         return ZmBoolean.toBool(quick);
     }
 
+    @Override
+    public Boolean getProfile() {
+        return ZmBoolean.toBool(profile);
+    }
+
     @Override
     public String getSortBy() {
         return sortBy;
@@ -636,8 +654,9 @@ public class SearchMultiMailboxRequest implements SearchParameters {
         return helper.add("includeTagDeleted", includeTagDeleted).add("includeTagMuted", includeTagMuted)
                 .add("allowableTaskStatus", allowableTaskStatus).add("calItemExpandStart", calItemExpandStart)
                 .add("calItemExpandEnd", calItemExpandEnd).add("query", query).add("inDumpster", inDumpster)
-                .add("searchTypes", searchTypes).add("groupBy", groupBy).add("quick", quick).add("sortBy", sortBy)
-                .add("fetch", fetch).add("markRead", markRead).add("maxInlinedLength", maxInlinedLength)
+                .add("searchTypes", searchTypes).add("groupBy", groupBy).add("quick", quick).add("profile", profile)
+                .add("sortBy", sortBy).add("fetch", fetch).add("markRead", markRead)
+                .add("maxInlinedLength", maxInlinedLength)
                 .add("wantHtml", wantHtml).add("neuterImages", neuterImages).add("wantRecipients", wantRecipients)
                 .add("prefetch", prefetch).add("resultMode", resultMode).add("field", field).add("limit", limit)
                 .add("offset", offset).add("headers", headers).add("calTz", calTz).add("locale", locale)
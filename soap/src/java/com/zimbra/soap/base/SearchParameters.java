@@ -36,6 +36,7 @@ public interface SearchParameters {
     public void setSearchTypes(String searchTypes);
     public void setGroupBy(String groupBy);
     public void setQuick(Boolean quick);
+    public void setProfile(Boolean profile);
     public void setSortBy(String sortBy);
     public void setFetch(String fetch);
     public void setMarkRead(Boolean markRead);
@@ -65,6 +66,7 @@ public interface SearchParameters {
     public String getSearchTypes();
     public String getGroupBy();
     public Boolean getQuick();
+    public Boolean getProfile();
     public String getSortBy();
     public String getFetch();
     public Boolean getMarkRead();
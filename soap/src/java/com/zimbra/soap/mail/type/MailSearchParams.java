@@ -138,6 +138,14 @@ public class MailSearchParams implements SearchParameters {
     @XmlAttribute(name=MailConstants.A_QUICK /* quick */, required=false)
     private ZmBoolean quick;
 
+    /**
+     * @zm-api-field-tag
+     * @zm-api-field-description Set this flag to <b>1 (true)</b> to return a <b>&lt;profile></b> of where the search
+     * spent its time, with the timings, row counts and SQL of each query operation. Only honored for admins.
+     */
+    @XmlAttribute(name=MailConstants.A_PROFILE /* profile */, required=false)
+    private ZmBoolean profile;
+
     // Based on SortBy which is NOT an enum and appears to support runtime construction
     /**
      * @zm-api-field-tag sort-by
@@ -421,6 +429,8 @@ public class MailSearchParams implements SearchParameters {
     @Override
     public void setQuick(Boolean quick) { this.quick = ZmBoolean.fromBool(quick); }
     @Override
+    public void setProfile(Boolean profile) { this.profile = ZmBoolean.fromBool(profile); }
+    @Override
     public void setSortBy(String sortBy) { this.sortBy = sortBy; }
     @Override
     public void setFetch(String fetch) { this.fetch = fetch; }
@@ -487,6 +497,8 @@ public class MailSearchParams implements SearchParameters {
     @Override
     public Boolean getQuick() { return ZmBoolean.toBool(quick); }
     @Override
+    public Boolean getProfile() { return ZmBoolean.toBool(profile); }
+    @Override
     public String getSortBy() { return sortBy; }
     @Override
     public String getFetch() { return fetch; }
@@ -548,6 +560,7 @@ public class MailSearchParams implements SearchParameters {
             .add("searchTypes", searchTypes)
             .add("groupBy", groupBy)
             .add("quick", quick)
+            .add("profile", profile)
             .add("sortBy", sortBy)
             .add("fetch", fetch)
             .add("markRead", markRead)
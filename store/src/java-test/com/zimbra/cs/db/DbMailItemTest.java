@@ -16,6 +16,9 @@
  */
 package com.zimbra.cs.db;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -71,6 +74,59 @@ public final class DbMailItemTest {
         conn.closeQuietly();
     }
 
+    @Test
+    public void batchedUpdates() throws Exception {
+        for (int id = 100; id < 103; id++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, index_id, date, size, flags, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0, 0)", mbox.getId(), id, MailItem.Type.MESSAGE.toByte());
+        }
+        String sql = "UPDATE mboxgroup1.mail_item SET imap_id = ? WHERE mailbox_id = ? AND id = ?";
+        for (int id = 100; id < 103; id++) {
+            PreparedStatement stmt = conn.prepareBatchStatement(sql);
+            stmt.setInt(1, id + 1000);
+            stmt.setInt(2, mbox.getId());
+            stmt.setInt(3, id);
+            conn.addBatch("setting IMAP UID for item " + id);
+        }
+        // preparing any other statement sends the pending updates first
+        Assert.assertEquals(1100, DbUtil.executeQuery(conn,
+                "SELECT imap_id FROM mboxgroup1.mail_item WHERE id = ?", 100).getInt(1));
+        Assert.assertEquals(1102, DbUtil.executeQuery(conn,
+                "SELECT imap_id FROM mboxgroup1.mail_item WHERE id = ?", 102).getInt(1));
+    }
+
+    @Test
+    public void batchFailure() throws Exception {
+        for (int id = 100; id < 103; id++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, index_id, date, size, flags, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0, 0)", mbox.getId(), id, MailItem.Type.MESSAGE.toByte());
+        }
+        String sql = "UPDATE mboxgroup1.mail_item SET type = ? WHERE mailbox_id = ? AND id = ?";
+        for (int id = 100; id < 103; id++) {
+            PreparedStatement stmt = conn.prepareBatchStatement(sql);
+            if (id == 101) {
+                stmt.setNull(1, Types.TINYINT);
+            } else {
+                stmt.setByte(1, MailItem.Type.CONTACT.toByte());
+            }
+            stmt.setInt(2, mbox.getId());
+            stmt.setInt(3, id);
+            conn.addBatch("setting type of item " + id);
+        }
+        // the failure is reported against the update that caused it
+        try {
+            conn.flushBatch();
+            Assert.fail("batched update of item 101 should have failed");
+        } catch (SQLException e) {
+            Assert.assertEquals("setting type of item 101", e.getMessage());
+        }
+        // and the batch is gone
+        conn.flushBatch();
+        conn.rollback();
+    }
+
     @Test
     public void getIndexDeferredIds() throws Exception {
         DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
@@ -0,0 +1,49 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.db.DbPool.Partition;
+
+public final class DbPoolTest {
+
+    @Test
+    public void partitionSizes() {
+        int[] sizes = DbPool.getPartitionSizes(100);
+        Assert.assertEquals(70, sizes[Partition.INTERACTIVE.ordinal()]);
+        Assert.assertEquals(20, sizes[Partition.DELIVERY.ordinal()]);
+        Assert.assertEquals(10, sizes[Partition.MAINTENANCE.ordinal()]);
+
+        // small pools keep most of their connections for interactive requests
+        sizes = DbPool.getPartitionSizes(10);
+        Assert.assertEquals(6, sizes[Partition.INTERACTIVE.ordinal()]);
+        Assert.assertEquals(2, sizes[Partition.DELIVERY.ordinal()]);
+        Assert.assertEquals(2, sizes[Partition.MAINTENANCE.ordinal()]);
+
+        sizes = DbPool.getPartitionSizes(3);
+        Assert.assertEquals(3, sizes[Partition.INTERACTIVE.ordinal()]);
+        Assert.assertEquals(0, sizes[Partition.DELIVERY.ordinal()]);
+    }
+
+    @Test
+    public void setPartition() {
+        Assert.assertNull(DbPool.setPartition(Partition.DELIVERY));
+        Assert.assertEquals(Partition.DELIVERY, DbPool.setPartition(null));
+    }
+}
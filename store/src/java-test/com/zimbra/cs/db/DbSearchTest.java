@@ -205,6 +205,54 @@ public final class DbSearchTest {
         Assert.assertEquals("SUBJECT0000000104", result.get(2).getSortValue());
     }
 
+    @Test
+    public void dateKeysetCursor() throws Exception {
+        int[] dates = new int[] { 100, 200, 200, 200, 300 };
+        for (int i = 0; i < dates.length; i++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, ?, 0, 0, 0, 0)", mbox.getId(), 100 + i, MailItem.Type.MESSAGE.toByte(),
+                    dates[i]);
+        }
+
+        // the page after item 102 starts with its tie 103, and doesn't repeat 101 or 102
+        DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+        constraints.cursorRange = new DbSearchConstraints.CursorRange("200000", false, null, false,
+                SortBy.DATE_ASC, 102);
+        List<DbSearch.Result> result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_ASC, 0, 100,
+                DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(103, result.get(0).getId());
+        Assert.assertEquals(104, result.get(1).getId());
+
+        constraints = new DbSearchConstraints.Leaf();
+        constraints.cursorRange = new DbSearchConstraints.CursorRange(null, false, "200000", false,
+                SortBy.DATE_DESC, 102);
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_DESC, 0, 100, DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(101, result.get(0).getId());
+        Assert.assertEquals(100, result.get(1).getId());
+
+        // with an end sort value
+        constraints = new DbSearchConstraints.Leaf();
+        constraints.cursorRange = new DbSearchConstraints.CursorRange("100000", false, "300000", false,
+                SortBy.DATE_ASC, 100);
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_ASC, 0, 100, DbSearch.FetchMode.ID);
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(101, result.get(0).getId());
+        Assert.assertEquals(103, result.get(2).getId());
+
+        // the cursor offset counts the ties that sort before the cursor hit
+        constraints = new DbSearchConstraints.Leaf();
+        constraints.cursorRange = new DbSearchConstraints.CursorRange(null, false, "200000", false,
+                SortBy.DATE_ASC, 102);
+        Assert.assertEquals(2, new DbSearch(mbox).countResults(conn, constraints));
+        constraints = new DbSearchConstraints.Leaf();
+        constraints.cursorRange = new DbSearchConstraints.CursorRange("200000", false, null, false,
+                SortBy.DATE_DESC, 102);
+        Assert.assertEquals(2, new DbSearch(mbox).countResults(conn, constraints));
+    }
+
     @Test
     public void mdate() throws Exception {
         DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
@@ -393,4 +441,36 @@ public final class DbSearchTest {
         Assert.assertEquals(103, result.get(1).getId());
         Assert.assertEquals(102, result.get(2).getId());
     }
+
+    @Test
+    public void paddedItemIds() throws Exception {
+        for (int id = 100; id < 110; id++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0)", mbox.getId(), id, MailItem.Type.MESSAGE.toByte());
+        }
+        // 3 ids become = comparisons, 4 fill a bucket exactly, 5 are padded to 8
+        for (int count = 3; count <= 5; count++) {
+            DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+            constraints.types.add(MailItem.Type.MESSAGE);
+            for (int id = 100; id < 100 + count; id++) {
+                constraints.itemIds.add(id);
+            }
+            List<DbSearch.Result> result = new DbSearch(mbox).search(conn, constraints, SortBy.ID_ASC, 0, 100,
+                    DbSearch.FetchMode.ID);
+            Assert.assertEquals("IN " + count, count, result.size());
+            Assert.assertEquals(100, result.get(0).getId());
+            Assert.assertEquals(100 + count - 1, result.get(count - 1).getId());
+
+            constraints = new DbSearchConstraints.Leaf();
+            constraints.types.add(MailItem.Type.MESSAGE);
+            for (int id = 100; id < 100 + count; id++) {
+                constraints.prohibitedItemIds.add(id);
+            }
+            result = new DbSearch(mbox).search(conn, constraints, SortBy.ID_ASC, 0, 100, DbSearch.FetchMode.ID);
+            Assert.assertEquals("NOT IN " + count, 10 - count, result.size());
+            Assert.assertEquals(100 + count, result.get(0).getId());
+            Assert.assertEquals(109, result.get(result.size() - 1).getId());
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for the bucketed IN lists of {@link DbUtil}.
+ */
+public final class DbUtilTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    private DbConnection conn = null;
+    private Mailbox mbox = null;
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        conn = DbPool.getConnection(mbox);
+    }
+
+    @After
+    public void tearDown() {
+        conn.closeQuietly();
+    }
+
+    @Test
+    public void inListSize() {
+        int batch = Db.getINClauseBatchSize();
+        Assert.assertEquals(1, DbUtil.inListSize(1));
+        Assert.assertEquals(3, DbUtil.inListSize(3));
+        Assert.assertEquals(4, DbUtil.inListSize(4));
+        Assert.assertEquals(8, DbUtil.inListSize(5));
+        Assert.assertEquals(8, DbUtil.inListSize(8));
+        Assert.assertEquals(16, DbUtil.inListSize(9));
+        // buckets are capped at the batch size, but never shrink a list
+        Assert.assertEquals(batch, DbUtil.inListSize(batch - 1));
+        Assert.assertEquals(batch, DbUtil.inListSize(batch));
+        Assert.assertEquals(batch + 1, DbUtil.inListSize(batch + 1));
+    }
+
+    @Test
+    public void paddedInList() throws Exception {
+        int batch = Db.getINClauseBatchSize();
+        int total = batch + 10;
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < total; i++) {
+            ids.add(100 + i);
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0)", mbox.getId(), 100 + i, MailItem.Type.MESSAGE.toByte());
+        }
+        for (int count : new int[] { 1, 3, 4, 5, batch - 1, batch, batch + 1 }) {
+            Assert.assertEquals("IN " + count, count, countMatches(ids, count, true));
+            Assert.assertEquals("NOT IN " + count, total - count, countMatches(ids, count, false));
+        }
+    }
+
+    private int countMatches(List<Integer> ids, int count, boolean in) throws Exception {
+        PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM mboxgroup1.mail_item" +
+                " WHERE mailbox_id = ? AND id >= 100 AND " + DbUtil.whereIn("id", in, DbUtil.inListSize(count)));
+        try {
+            stmt.setInt(1, mbox.getId());
+            // offset 1 so that the padding repeats an id from the middle of the rows
+            int pos = DbUtil.setInList(stmt, 2, ids, 1, count);
+            Assert.assertEquals(2 + DbUtil.inListSize(count), pos);
+            ResultSet rs = stmt.executeQuery();
+            Assert.assertTrue(rs.next());
+            return rs.getInt(1);
+        } finally {
+            DbPool.quietCloseStatement(stmt);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+
+public final class SQLiteTest {
+
+    @Test
+    public void lockPerMailbox() {
+        Assert.assertFalse(LC.sqlite_serialize_group_writers.booleanValue());
+        Assert.assertEquals(-1, SQLite.getLockKey(-1, false));
+        Assert.assertEquals(1, SQLite.getLockKey(1, false));
+        int mboxId = 1 + DebugConfig.numMailboxGroups;
+        Assert.assertEquals(mboxId, SQLite.getLockKey(mboxId, false));
+    }
+
+    @Test
+    public void lockPerGroup() {
+        int groups = DebugConfig.numMailboxGroups;
+        // the zimbra database keeps its own lock
+        Assert.assertEquals(-1, SQLite.getLockKey(-1, true));
+        // mailboxes of one group share a lock
+        Assert.assertEquals(SQLite.getLockKey(1, true), SQLite.getLockKey(1 + groups, true));
+        Assert.assertEquals(SQLite.getLockKey(groups, true), SQLite.getLockKey(2 * groups, true));
+        Assert.assertFalse(SQLite.getLockKey(1, true) == SQLite.getLockKey(2, true));
+        // group keys don't collide with the zimbra database or with mailbox ids
+        for (int mboxId = 1; mboxId <= groups; mboxId++) {
+            Assert.assertTrue(SQLite.getLockKey(mboxId, true) < -1);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.DebugConfig;
+
+public final class StatementShapesTest {
+
+    @After
+    public void tearDown() {
+        StatementShapes.reset();
+    }
+
+    @Test
+    public void sameShape() {
+        StatementShapes.Shape shape = StatementShapes.getShape(
+                "SELECT id FROM mboxgroup1.mail_item WHERE mailbox_id = ? AND id IN (?, ?, ?, ?)");
+        Assert.assertSame(shape, StatementShapes.getShape(
+                "SELECT id FROM mboxgroup2.mail_item WHERE mailbox_id = ? AND id IN (?, ?, ?, ?, ?, ?, ?, ?)"));
+        Assert.assertSame(shape, StatementShapes.getShape(
+                "SELECT id FROM mboxgroup1.mail_item WHERE mailbox_id = ? AND id IN (?, ?, ?, ?)"));
+        Assert.assertEquals("SELECT id FROM mboxgroupXXX.mail_item WHERE mailbox_id = ? AND id IN (...)", shape.getSql());
+
+        Assert.assertNotSame(shape, StatementShapes.getShape("SELECT id FROM mboxgroup1.mail_item WHERE mailbox_id = ?"));
+        Assert.assertEquals(2, StatementShapes.getShapeCount());
+    }
+
+    @Test
+    public void stripGroupNumbers() {
+        Assert.assertEquals("SELECT 1", StatementShapes.stripGroupNumbers("SELECT 1"));
+        Assert.assertEquals("SELECT id FROM mboxgroupXXX.mail_item mi, mboxgroupXXX.tagged_item ti WHERE id = 10",
+                StatementShapes.stripGroupNumbers(
+                        "SELECT id FROM mboxgroup17.mail_item mi, mboxgroup17.tagged_item ti WHERE id = 10"));
+        Assert.assertEquals("mboxgroupXXX", StatementShapes.stripGroupNumbers("mboxgroup100"));
+        Assert.assertEquals("mboxgroup_id", StatementShapes.stripGroupNumbers("mboxgroup_id"));
+    }
+
+    @Test
+    public void oneAliasPerGroup() {
+        int groups = 2 * DebugConfig.numMailboxGroups;
+        for (int group = 1; group <= groups; group++) {
+            StatementShapes.getShape("SELECT id FROM mboxgroup" + group + ".mail_item WHERE mailbox_id = ?");
+        }
+        Assert.assertEquals(1, StatementShapes.getShapeCount());
+        Assert.assertEquals(1, StatementShapes.getAliasCount());
+    }
+
+    @Test
+    public void topShapes() {
+        StatementShapes.getShape("SELECT 1");
+        StatementShapes.getShape("UPDATE mail_item SET unread = 0");
+        Assert.assertEquals(1, StatementShapes.getTopShapes(1).size());
+        Assert.assertEquals(2, StatementShapes.getTopShapes(10).size());
+        Assert.assertEquals(0, StatementShapes.getTopShapes(10).get(0).getCount());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Unit test for {@link ImapCostTracker}.
+ */
+public final class ImapCostTrackerTest {
+
+    @Before
+    public void setUp() {
+        LC.imap_cost_capacity.setDefault(1000);
+        LC.imap_cost_min_share.setDefault(250);
+        LC.imap_cost_burst.setDefault(1000);
+        LC.imap_cost_throttle_enabled.setDefault(true);
+    }
+
+    @After
+    public void tearDown() {
+        LC.imap_cost_capacity.setDefault(0);
+        LC.imap_cost_min_share.setDefault(250);
+        LC.imap_cost_burst.setDefault(30000);
+        LC.imap_cost_throttle_enabled.setDefault(true);
+    }
+
+    @Test
+    public void cost() {
+        Assert.assertEquals(2.0, ImapCostTracker.getCost(2000000L, 0, 0), 0.001);
+        Assert.assertEquals(5.0, ImapCostTracker.getCost(0, 5, 0), 0.001);
+        Assert.assertEquals(10.0, ImapCostTracker.getCost(0, 0, 10 * ImapCostTracker.BYTES_PER_UNIT), 0.001);
+    }
+
+    @Test
+    public void refuseUntilDebtIsPaid() {
+        ImapCostTracker tracker = new ImapCostTracker();
+        tracker.update(0);
+        Assert.assertEquals(0, tracker.getTimeToRecover("a", 0));
+        // within the burst
+        tracker.charge("a", 0, 800, 0, 0);
+        Assert.assertEquals(0, tracker.getTimeToRecover("a", 0));
+        // 500 units in debt at 1000 units/s
+        tracker.charge("a", 0, 700, 0, 0);
+        Assert.assertEquals(500, tracker.getTimeToRecover("a", 0));
+        Assert.assertEquals(300, tracker.getTimeToRecover("a", 200));
+        Assert.assertEquals(0, tracker.getTimeToRecover("a", 500));
+        // other accounts are not affected
+        tracker.charge("b", 0, 10, 0, 0);
+        Assert.assertEquals(0, tracker.getTimeToRecover("b", 0));
+        tracker.charge("a", 0, 100000, 0, 500);
+        Assert.assertEquals(100000, tracker.getTimeToRecover("a", 500));
+        // accounting only
+        LC.imap_cost_throttle_enabled.setDefault(false);
+        Assert.assertEquals(0, tracker.getTimeToRecover("a", 500));
+        tracker.recordRejection("a");
+        Assert.assertEquals(1, tracker.getRejectedCommands());
+        Assert.assertTrue(tracker.getHeaviestAccounts()[0].contains(" rejected=1 "));
+    }
+
+    @Test
+    public void fairShare() {
+        ImapCostTracker tracker = new ImapCostTracker();
+        tracker.charge("a", 0, 10, 0, 0);
+        tracker.charge("b", 0, 10, 0, 0);
+        tracker.update(1000);
+        Assert.assertEquals(2, tracker.getActiveAccounts());
+        Assert.assertEquals(500.0, tracker.getShareRate(), 0.001);
+        for (int i = 0; i < 10; i++) {
+            tracker.charge("c" + i, 0, 10, 0, 1000);
+        }
+        tracker.update(2000);
+        Assert.assertEquals(250.0, tracker.getShareRate(), 0.001);
+    }
+
+    @Test
+    public void heaviest() {
+        ImapCostTracker tracker = new ImapCostTracker();
+        tracker.charge("light", 0, 10, 0, 0);
+        tracker.charge("heavy", 0, 0, 1000 * ImapCostTracker.BYTES_PER_UNIT, 0);
+        tracker.charge("medium", 100000000L, 0, 0, 0);
+        List<ImapCostTracker.Bucket> heaviest = tracker.getHeaviest(2);
+        Assert.assertEquals(2, heaviest.size());
+        Assert.assertEquals("heavy", heaviest.get(0).accountId);
+        Assert.assertEquals("medium", heaviest.get(1).accountId);
+        Assert.assertTrue(tracker.getHeaviestAccounts()[0].startsWith("heavy "));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.FolderStore;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.imap.ImapSearch.AllSearch;
+import com.zimbra.cs.imap.ImapSearch.AndOperation;
+import com.zimbra.cs.imap.ImapSearch.ContentSearch;
+import com.zimbra.cs.imap.ImapSearch.DateSearch;
+import com.zimbra.cs.imap.ImapSearch.FlagSearch;
+import com.zimbra.cs.imap.ImapSearch.HeaderSearch;
+import com.zimbra.cs.imap.ImapSearch.NotOperation;
+import com.zimbra.cs.imap.ImapSearch.RelativeDateSearch;
+import com.zimbra.cs.imap.ImapSearch.SequenceSearch;
+import com.zimbra.cs.imap.ImapSearch.SizeSearch;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailItem.Type;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.server.ServerThrottle;
+import com.zimbra.qa.unittest.TestUtil;
+
+public class ImapSearchCacheTest {
+    private static final String LOCAL_USER = "localimaptest@zimbra.com";
+    private Account acct = null;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        LC.imap_use_ehcache.setDefault(false);
+        MailboxTestUtil.initServer();
+        String[] hosts = {"localhost", "127.0.0.1"};
+        ServerThrottle.configureThrottle(new ImapConfig(false).getProtocol(), 100, 100, Arrays.asList(hosts), Arrays.asList(hosts));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        HashMap<String,Object> attrs = new HashMap<String,Object>();
+        attrs.put(Provisioning.A_zimbraId, "12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        acct = prov.createAccount(LOCAL_USER, "secret", attrs);
+        MailboxManager.getInstance().getMailboxByAccount(acct);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void keyedBySearchAndSort() {
+        ImapSearchCache cache = new ImapSearchCache(5);
+        ImapMessage i4msg = new ImapMessage(1, Type.MESSAGE, 11, 0, null);
+        cache.put(new FlagSearch("\\Seen"), SortBy.DATE_DESC, Arrays.asList(i4msg), 100);
+
+        ImapSearchCache.CachedResult cached = cache.get(new FlagSearch("\\Seen"), SortBy.DATE_DESC);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(100, cached.modseq);
+        Assert.assertEquals(Arrays.asList(i4msg), cached.hits);
+
+        Assert.assertNull(cache.get(new FlagSearch("\\Seen"), SortBy.DATE_ASC));
+        Assert.assertNull(cache.get(new FlagSearch("\\Flagged"), SortBy.DATE_DESC));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ImapSearchCache cache = new ImapSearchCache(2);
+        FlagSearch seen = new FlagSearch("\\Seen");
+        FlagSearch flagged = new FlagSearch("\\Flagged");
+        FlagSearch draft = new FlagSearch("\\Draft");
+        cache.put(seen, SortBy.NONE, Collections.<ImapMessage>emptyList(), 1);
+        cache.put(flagged, SortBy.NONE, Collections.<ImapMessage>emptyList(), 1);
+        Assert.assertNotNull(cache.get(seen, SortBy.NONE));
+        cache.put(draft, SortBy.NONE, Collections.<ImapMessage>emptyList(), 1);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get(seen, SortBy.NONE));
+        Assert.assertNull(cache.get(flagged, SortBy.NONE));
+        Assert.assertNotNull(cache.get(draft, SortBy.NONE));
+    }
+
+    @Test
+    public void cacheableCriteria() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+
+        Assert.assertTrue(new AllSearch().isCacheable(i4folder));
+        Assert.assertTrue(new NotOperation(new FlagSearch("\\Seen")).isCacheable(i4folder));
+        Assert.assertTrue(new AndOperation(new FlagSearch("\\Flagged"),
+                new DateSearch(DateSearch.Relation.after, new Date(0))).isCacheable(i4folder));
+
+        Assert.assertFalse("\\Recent is session state", new FlagSearch("\\Recent").isCacheable(i4folder));
+        Assert.assertFalse("sequence numbers are session state",
+                new AndOperation(new AllSearch(), new SequenceSearch("A1", "1:5", false)).isCacheable(i4folder));
+        Assert.assertFalse("relative dates depend on the clock",
+                new RelativeDateSearch(DateSearch.Relation.after, 3600).isCacheable(i4folder));
+        Assert.assertFalse("indexing doesn't bump the MODSEQ",
+                new AndOperation(new FlagSearch("\\Flagged"), new ContentSearch("green")).isCacheable(i4folder));
+        Assert.assertFalse("indexing doesn't bump the MODSEQ",
+                new HeaderSearch(HeaderSearch.Header.SUBJECT, "green").isCacheable(i4folder));
+        Assert.assertTrue("an empty TEXT search matches everything", new ContentSearch(" ").isCacheable(i4folder));
+    }
+
+    private static class MockImapPath extends ImapPath {
+        MockImapPath(FolderStore folderStore, ImapCredentials creds) throws ServiceException {
+            super(null, folderStore, creds);
+        }
+
+        @Override
+        protected boolean isSelectable() {
+            return true;
+        }
+
+        @Override
+        protected boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        protected boolean isWritable(short rights) throws ServiceException {
+            return true;
+        }
+    }
+
+    private MockImapHandler select(Mailbox mbox) throws Exception {
+        MockImapHandler handler = new MockImapHandler();
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        handler.setCredentials(creds);
+        handler.setSelectedFolder(new MockImapPath(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX), creds), (byte) 0);
+        Assert.assertNotNull(handler.getSelectedFolder().getSearchCache());
+        return handler;
+    }
+
+    /** Runs a UID SEARCH, or a UID SORT if {@code sort} isn't {@code null}, and returns its result line. */
+    private static String search(MockImapHandler handler, ImapSearch i4search, SortBy sort) throws Exception {
+        ByteArrayOutputStream baos = (ByteArrayOutputStream) handler.output;
+        baos.reset();
+        if (sort == null) {
+            Assert.assertTrue(handler.doSEARCH("tag", i4search, true, null));
+        } else {
+            List<SortBy> order = Arrays.asList(sort);
+            Assert.assertTrue(handler.doSORT("tag", i4search, true, null, order));
+        }
+        for (String line : baos.toString().split("\r\n")) {
+            if (line.startsWith("* SEARCH") || line.startsWith("* SORT")) {
+                return line;
+            }
+        }
+        Assert.fail("no result in " + baos.toString());
+        return null;
+    }
+
+    private static String uids(String command, Message... msgs) {
+        StringBuilder sb = new StringBuilder("* ").append(command);
+        for (Message msg : msgs) {
+            sb.append(' ').append(msg.getImapUid());
+        }
+        return sb.toString();
+    }
+
+    private static void flag(Mailbox mbox, Message msg, boolean flagged) throws Exception {
+        mbox.alterTag(null, msg.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, flagged, null);
+    }
+
+    @Test
+    public void refreshSorted() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Message m1 = TestUtil.addMessage(mbox, "Message 1");
+        Message m2 = TestUtil.addMessage(mbox, "Message 2");
+        Message m3 = TestUtil.addMessage(mbox, "Message 3");
+        flag(mbox, m1, true);
+        flag(mbox, m3, true);
+
+        MockImapHandler handler = select(mbox);
+        ImapSearchCache cache = handler.getSelectedFolder().getSearchCache();
+        FlagSearch flagged = new FlagSearch("\\Flagged");
+        Assert.assertEquals(uids("SORT", m1, m3), search(handler, flagged, SortBy.SUBJ_ASC));
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(uids("SORT", m1, m3), search(handler, flagged, SortBy.SUBJ_ASC));
+        Assert.assertEquals(1, cache.getHitCount());
+
+        // a cached hit that no longer matches is dropped
+        flag(mbox, m1, false);
+        Assert.assertEquals(uids("SORT", m3), search(handler, flagged, SortBy.SUBJ_ASC));
+        Assert.assertEquals(2, cache.getHitCount());
+
+        // a new match has to be sorted in, which takes a full search
+        flag(mbox, m2, true);
+        Assert.assertEquals(uids("SORT", m2, m3), search(handler, flagged, SortBy.SUBJ_ASC));
+
+        // expunged messages drop out
+        mbox.delete(null, m2.getId(), MailItem.Type.MESSAGE);
+        Assert.assertEquals(uids("SORT", m3), search(handler, flagged, SortBy.SUBJ_ASC));
+    }
+
+    @Test
+    public void refreshUnsorted() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Message m1 = TestUtil.addMessage(mbox, "Message 1");
+        Message m2 = TestUtil.addMessage(mbox, "Message 2");
+        Message m3 = TestUtil.addMessage(mbox, "Message 3");
+        flag(mbox, m2, true);
+        flag(mbox, m3, true);
+
+        MockImapHandler handler = select(mbox);
+        ImapSearchCache cache = handler.getSelectedFolder().getSearchCache();
+        // the size criterion keeps the search from being evaluated against the folder in memory
+        ImapSearch flagged = new AndOperation(new FlagSearch("\\Flagged"), new SizeSearch(SizeSearch.Relation.larger, 0));
+        Assert.assertEquals(uids("SEARCH", m2, m3), search(handler, flagged, null));
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // a new match is merged into the cached hits
+        flag(mbox, m1, true);
+        Assert.assertEquals(uids("SEARCH", m1, m2, m3), search(handler, flagged, null));
+        Assert.assertEquals(1, cache.getHitCount());
+
+        // as is a cached hit that no longer matches
+        flag(mbox, m3, false);
+        Assert.assertEquals(uids("SEARCH", m1, m2), search(handler, flagged, null));
+        Assert.assertEquals(2, cache.getHitCount());
+
+        mbox.delete(null, m1.getId(), MailItem.Type.MESSAGE);
+        Assert.assertEquals(uids("SEARCH", m2), search(handler, flagged, null));
+        Assert.assertEquals(3, cache.getHitCount());
+    }
+}
@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.net.SocketAddress;
 import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.service.DefaultTransportMetadata;
@@ -31,6 +32,7 @@ import com.google.common.base.Charsets;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.imap.NioImapDecoder.TooBigLiteralException;
 import com.zimbra.cs.imap.NioImapDecoder.TooLongLineException;
+import com.zimbra.cs.server.NioCodecBenchmark;
 
 /**
  * Unit test for {@link NioImapDecoder}.
@@ -200,4 +202,28 @@ public final class NioImapDecoderTest {
         Assert.assertEquals("A003 APPEND Drafts {0}", session.getDecoderOutputQueue().poll());
         Assert.assertEquals(0, session.getDecoderOutputQueue().size());
     }
+
+    @Test
+    public void largeLiteralAllocation() throws Exception {
+        int size = 1024 * 1024;
+        byte[] literal = new byte[size];
+        Arrays.fill(literal, (byte) 'x');
+        IoBuffer script = IoBuffer.allocate(size + 64).setAutoExpand(true);
+        script.putString("A001 APPEND INBOX {" + size + "}\r\n", CHARSET).put(literal);
+        script.putString("\r\nA002 NOOP\r\n", CHARSET).flip();
+        byte[] bytes = new byte[script.remaining()];
+        script.get(bytes);
+
+        NioCodecBenchmark benchmark = new NioCodecBenchmark("IMAP APPEND", decoder,
+                NioCodecBenchmark.chunk(bytes, 8 * 1024));
+        NioCodecBenchmark.Result result = benchmark.run(5, 20);
+        Assert.assertTrue(result.getMessagesPerIteration() >= size / imapConfig.getWriteChunkSize());
+        // literal bytes are copied once into the chunks handed to the handler; anything much beyond that is a
+        // regression in literal handling (e.g. re-accumulating the literal in the cumulative buffer)
+        long allocated = result.getAllocatedBytesPerIteration();
+        if (allocated >= 0) {
+            Assert.assertTrue("allocated " + allocated + " bytes for a " + size + " byte literal",
+                    allocated < 3L * size);
+        }
+    }
 }
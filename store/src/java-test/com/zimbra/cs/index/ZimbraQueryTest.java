@@ -28,6 +28,8 @@ import org.junit.Test;
 
 import com.zimbra.common.mailbox.ContactConstants;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
@@ -255,6 +257,34 @@ public final class ZimbraQueryTest {
         IOUtil.closeQuietly(result);
     }
 
+    @Test
+    public void profile() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg = mbox.addMessage(null, new ParsedMessage("Subject: profile".getBytes(), false), dopt, null);
+
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox");
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setFetchMode(SearchParams.Fetch.IDS);
+        params.setProfile(new SearchProfile());
+
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        ZimbraQueryResults result = query.execute();
+        Assert.assertEquals(msg.getId(), result.getNext().getItemId());
+        IOUtil.closeQuietly(result);
+
+        Element response = new Element.XMLElement(MailConstants.SEARCH_RESPONSE);
+        params.getProfile().encode(response);
+        Element root = response.getElement(MailConstants.E_PROFILE).getElement(MailConstants.E_PROFILE_OP);
+        Element db = root.getElement(MailConstants.E_PROFILE_OP);
+        Assert.assertEquals("DBQueryOperation", db.getAttribute(MailConstants.A_NAME));
+        Assert.assertEquals(1, db.getAttributeLong(MailConstants.A_PROFILE_ROWS));
+        Assert.assertTrue(db.getAttributeLong(MailConstants.A_PROFILE_CALLS) > 0);
+        Assert.assertTrue(db.getElement(MailConstants.E_PROFILE_SQL).getText().contains("SELECT"));
+    }
+
     @Test
     public void dumpster() throws Exception {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
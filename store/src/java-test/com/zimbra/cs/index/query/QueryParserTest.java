@@ -573,4 +573,17 @@ public final class QueryParserTest {
         Assert.assertEquals("Q(l.content:all,hands,meeting[*])", Query.toString(parser.parse("all hands meeting*")));
     }
 
+    @Test
+    public void cachedTree() throws Exception {
+        String src = "zimbra";
+        Assert.assertEquals("Q(l.content:zimbra)", Query.toString(parser.parse(src)));
+        Assert.assertEquals("Q(l.content:zimbra)", Query.toString(parser.parse(src)));
+
+        // the same tree bound with different search types
+        QueryParser contacts = new QueryParser(null, ZimbraAnalyzer.getInstance());
+        contacts.setTypes(EnumSet.of(MailItem.Type.CONTACT));
+        Assert.assertEquals("(Q(CONTACT:zimbra) || Q(l.content:zimbra))", Query.toString(contacts.parse(src)));
+        Assert.assertEquals("Q(l.content:zimbra)", Query.toString(parser.parse(src)));
+    }
+
 }
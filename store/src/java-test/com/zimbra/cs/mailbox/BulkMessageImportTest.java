@@ -0,0 +1,152 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link BulkMessageImport}.
+ */
+public final class BulkMessageImportTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static byte[] message(String messageId, String inReplyTo, String subject) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("From: Bob Evans <bob@example.com>\r\n");
+        sb.append("To: Jimmy Dean <jdean@example.com>\r\n");
+        sb.append("Subject: ").append(subject).append("\r\n");
+        sb.append("Message-ID: ").append(messageId).append("\r\n");
+        if (inReplyTo != null) {
+            sb.append("In-Reply-To: ").append(inReplyTo).append("\r\n");
+        }
+        sb.append("\r\n").append("body of ").append(messageId).append("\r\n");
+        return sb.toString().getBytes();
+    }
+
+    private static void add(BulkMessageImport bulk, byte[] content, String name) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setNoICal(true);
+        bulk.add(new ByteArrayInputStream(content), content.length, ParsedMessage.DATE_HEADER, dopt, name);
+    }
+
+    @Test
+    public void batches() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        BulkMessageImport bulk = new BulkMessageImport(mbox, null, 2);
+        try {
+            add(bulk, message("<root@example.com>", null, "bulk import"), "1.eml");
+            add(bulk, message("<reply1@example.com>", "<root@example.com>", "Re: bulk import"), "2.eml");
+            add(bulk, message("<other@example.com>", null, "something else"), "3.eml");
+            add(bulk, message("<reply2@example.com>", "<reply1@example.com>", "Re: bulk import"), "4.eml");
+            add(bulk, message("<reply3@example.com>", "<root@example.com>", "Re: bulk import"), "5.eml");
+        } finally {
+            bulk.close();
+        }
+
+        Assert.assertEquals(5, bulk.getAddedCount());
+        Assert.assertTrue(bulk.getFailures().isEmpty());
+
+        List<Integer> ids = mbox.listItemIds(null, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX);
+        Assert.assertEquals(5, ids.size());
+        int convId = 0;
+        int threaded = 0;
+        for (int id : ids) {
+            Message msg = mbox.getMessageById(null, id);
+            if (msg.getSubject().equals("something else")) {
+                continue;
+            }
+            if (convId == 0) {
+                convId = msg.getConversationId();
+            }
+            Assert.assertEquals(convId, msg.getConversationId());
+            threaded++;
+        }
+        Assert.assertEquals(4, threaded);
+        Assert.assertTrue(convId > 0);
+    }
+
+    @Test
+    public void invalidContent() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        StringBuilder subject = new StringBuilder();
+        while (subject.length() <= LC.zimbra_lmtp_max_line_length.longValue()) {
+            subject.append("long subject ");
+        }
+        BulkMessageImport bulk = new BulkMessageImport(mbox, null);
+        try {
+            add(bulk, message("<long@example.com>", null, subject.toString()), "long.eml");
+            add(bulk, message("<short@example.com>", null, "short"), "short.eml");
+        } finally {
+            bulk.close();
+        }
+        Assert.assertEquals(1, bulk.getAddedCount());
+        Assert.assertEquals(1, bulk.getFailures().size());
+        Assert.assertEquals("long.eml", bulk.getFailures().get(0).getFirst());
+    }
+
+    @Test
+    public void callerSuspendedIndexing() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        mbox.suspendIndexing();
+        try {
+            BulkMessageImport bulk = new BulkMessageImport(mbox, null);
+            add(bulk, message("<msg@example.com>", null, "suspended"), "1.eml");
+            bulk.close();
+            Assert.assertTrue("still suspended for the caller", mbox.isIndexingSuspended());
+        } finally {
+            mbox.resumeIndexing();
+        }
+
+        BulkMessageImport bulk = new BulkMessageImport(mbox, null);
+        Assert.assertTrue(mbox.isIndexingSuspended());
+        bulk.close();
+        Assert.assertFalse(mbox.isIndexingSuspended());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closed() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        BulkMessageImport bulk = new BulkMessageImport(mbox, null);
+        bulk.close();
+        add(bulk, message("<late@example.com>", null, "too late"), "late.eml");
+    }
+}
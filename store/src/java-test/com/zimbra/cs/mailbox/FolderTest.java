@@ -16,8 +16,11 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -34,6 +37,7 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbResults;
 import com.zimbra.cs.db.DbUtil;
+import com.zimbra.cs.mailbox.FoldersTagsCache.FoldersTags;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata;
 import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mime.ParsedMessage;
@@ -499,4 +503,63 @@ public final class FolderTest {
         Assert.assertEquals("correct uuid", uuid, folder.getUuid());
 //        Assert.assertEquals("correct url", url, folder.getUrl());
     }
+
+    @Test
+    public void cacheChunks() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder archive = mbox.createFolder(null, "/archive", new Folder.FolderOptions());
+        Folder child = mbox.createFolder(null, "/archive/2017", new Folder.FolderOptions());
+        Folder grandchild = mbox.createFolder(null, "/archive/2017/q1", new Folder.FolderOptions());
+
+        Map<String, List<Folder>> chunks = FoldersTagsCache.getChunks(mbox.listAllFolders());
+        List<Folder> subtree = null;
+        int total = 0;
+        for (List<Folder> chunk : chunks.values()) {
+            if (chunk.contains(archive)) {
+                subtree = chunk;
+            }
+            total += chunk.size();
+        }
+        Assert.assertEquals("each folder in exactly one chunk", mbox.listAllFolders().size(), total);
+        Assert.assertNotNull(subtree);
+        Assert.assertTrue("child chunked with its top-level folder", subtree.contains(child));
+        Assert.assertTrue("grandchild chunked with its top-level folder", subtree.contains(grandchild));
+        Assert.assertFalse("other top-level folders in their own chunks",
+                subtree.contains(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX)));
+    }
+
+    @Test
+    public void cacheIncrementalPut() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder archive = mbox.createFolder(null, "/archive", new Folder.FolderOptions());
+        Collection<Folder> folders = mbox.listAllFolders();
+        Collection<Tag> tags = Collections.emptyList();
+        String archiveChunk = null;
+        for (Map.Entry<String, List<Folder>> entry : FoldersTagsCache.getChunks(folders).entrySet()) {
+            if (entry.getValue().contains(archive)) {
+                archiveChunk = entry.getKey();
+            }
+        }
+        Assert.assertNotNull(archiveChunk);
+
+        FoldersTagsCache cache = FoldersTagsCache.getInstance();
+        FoldersTags full = cache.put(mbox, folders, tags, null, null, true);
+        FoldersTags partial = cache.put(mbox, folders, tags, full, Collections.singleton(archive.getId()), false);
+        Assert.assertEquals(full.getChunks().keySet(), partial.getChunks().keySet());
+        for (String chunk : full.getChunks().keySet()) {
+            if (chunk.equals(archiveChunk)) {
+                Assert.assertFalse("changed chunk restamped",
+                        full.getChunks().get(chunk).equals(partial.getChunks().get(chunk)));
+            } else {
+                Assert.assertEquals("unchanged chunk keeps its stamp", full.getChunks().get(chunk),
+                        partial.getChunks().get(chunk));
+            }
+        }
+
+        // without a previous manifest, every chunk is rewritten
+        FoldersTags again = cache.put(mbox, folders, tags, null, Collections.singleton(archive.getId()), false);
+        for (String chunk : partial.getChunks().keySet()) {
+            Assert.assertFalse(partial.getChunks().get(chunk).equals(again.getChunks().get(chunk)));
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+public class ItemCacheBudgetTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void fairShare() {
+        ItemCacheBudget budget = new ItemCacheBudget(1000, 800);
+        Object owner1 = new Object();
+        Object owner2 = new Object();
+        ItemCacheBudget.Usage usage1 = budget.register(owner1);
+        ItemCacheBudget.Usage usage2 = budget.register(owner2);
+
+        budget.update(usage1, 900);
+        Assert.assertEquals(900, budget.getHeapBytes());
+        Assert.assertEquals("under budget: per-mailbox cap", 800, budget.getTargetBytes());
+
+        budget.update(usage2, 300);
+        Assert.assertEquals(1200, budget.getHeapBytes());
+        Assert.assertEquals("over budget: fair share", 500, budget.getTargetBytes());
+
+        budget.update(usage1, 100);
+        Assert.assertEquals(400, budget.getHeapBytes());
+        Assert.assertEquals(800, budget.getTargetBytes());
+    }
+
+    @Test
+    public void reweighOnModify() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, new ParsedMessage("From: test@zimbra.com\r\nSubject: weigh\r\n\r\nbody"
+                .getBytes(), false), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        long[] weights = mbox.getItemCacheWeights();
+        Assert.assertEquals("after create", weights[1], weights[0]);
+
+        // the cached item is modified in place; its recorded weight has to follow
+        mbox.alterTag(null, msg.getId(), MailItem.Type.MESSAGE,
+                "a-rather-long-tag-name-that-makes-the-cached-item-heavier", true, null);
+        weights = mbox.getItemCacheWeights();
+        Assert.assertEquals("after modify", weights[1], weights[0]);
+    }
+}
@@ -19,6 +19,7 @@ package com.zimbra.cs.mailbox;
 import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -711,6 +712,24 @@ public final class MailboxTest {
         Assert.assertEquals(10L, mbox.getSize());
     }
 
+    @Test
+    public void verifyFolderAndTagCounts() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("one"), STANDARD_DELIVERY_OPTIONS, null);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("two"), STANDARD_DELIVERY_OPTIONS, null);
+        Assert.assertTrue("counts match", mbox.verifyFolderAndTagCounts(false).isEmpty());
+
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        int unread = inbox.getUnreadCount();
+        inbox.mData.unreadCount = unread + 5;
+        Assert.assertEquals(Arrays.asList(Mailbox.ID_FOLDER_INBOX), mbox.verifyFolderAndTagCounts(false));
+        Assert.assertEquals("verify only", unread + 5, inbox.getUnreadCount());
+
+        Assert.assertEquals(Arrays.asList(Mailbox.ID_FOLDER_INBOX), mbox.verifyFolderAndTagCounts(true));
+        Assert.assertEquals("repaired", unread, mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX).getUnreadCount());
+        Assert.assertTrue("counts match after repair", mbox.verifyFolderAndTagCounts(false).isEmpty());
+    }
+
     /**
      * @throws java.lang.Exception
      */
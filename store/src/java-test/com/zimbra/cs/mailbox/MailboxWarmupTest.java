@@ -0,0 +1,75 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Unit test for {@link MailboxWarmup}.
+ */
+public final class MailboxWarmupTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("warm1@zimbra.com", "secret", new HashMap<String, Object>());
+        prov.createAccount("warm2@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void recentMailboxIds() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Account acct1 = prov.getAccountByName("warm1@zimbra.com");
+        Account acct2 = prov.getAccountByName("warm2@zimbra.com");
+        MailboxManager mmgr = MailboxManager.getInstance();
+
+        int id1 = mmgr.getMailboxByAccount(acct1).getId();
+        int id2 = mmgr.getMailboxByAccount(acct2).getId();
+        Assert.assertEquals(Arrays.asList(id2, id1), mmgr.getRecentMailboxIds(10));
+
+        mmgr.getMailboxById(id1);
+        Assert.assertEquals("most recently used first", Arrays.asList(id1, id2), mmgr.getRecentMailboxIds(10));
+        Assert.assertEquals("capped", Arrays.asList(id1), mmgr.getRecentMailboxIds(1));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = File.createTempFile("mailbox-warmup", null);
+        MailboxWarmup.save(file, Arrays.asList(5, 3, 9));
+        List<Integer> ids = MailboxWarmup.load(file);
+        Assert.assertEquals(Arrays.asList(5, 3, 9), ids);
+        Assert.assertFalse("list isn't replayed twice", file.exists());
+        Assert.assertTrue(MailboxWarmup.load(file).isEmpty());
+    }
+}
@@ -302,8 +302,38 @@ public final class ThreaderTest {
         Account acct = getAccount();
         acct.setMailThreadingAlgorithm(MailThreadingAlgorithm.references);
 
+        redelivery(MailboxManager.getInstance().getMailboxByAccount(acct));
+    }
+
+    @Test
+    public void bulkRedelivery() throws Exception {
+        Account acct = getAccount();
+        acct.setMailThreadingAlgorithm(MailThreadingAlgorithm.references);
+
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        mbox.beginBulkThreading();
+        try {
+            Assert.assertNotNull(mbox.getBulkThreading());
+            redelivery(mbox);
+        } finally {
+            mbox.endBulkThreading();
+        }
+        Assert.assertNull(mbox.getBulkThreading());
+    }
+
+    @Test
+    public void bulkThreadingClose() {
+        Threader.BulkThreading bulk = new Threader.BulkThreading();
+        bulk.put("mine", 10);
+        bulk.put("other", 20);
+        // the row goes only if it points at the conversation being closed
+        bulk.close("mine", 10);
+        Assert.assertEquals(Threader.BulkThreading.NONE, bulk.get("mine").intValue());
+        bulk.close("other", 30);
+        Assert.assertNull("row may still point at 20", bulk.get("other"));
+    }
 
+    private void redelivery(Mailbox mbox) throws Exception {
         // add thread starter
         int msgid1 = mbox.addMessage(null, getRootMessage(), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
 
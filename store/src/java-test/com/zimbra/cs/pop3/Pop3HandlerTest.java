@@ -0,0 +1,72 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.pop3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit test for {@link Pop3Handler}.
+ */
+public final class Pop3HandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private boolean isTransparent(String content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(Charsets.ISO_8859_1));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Pop3Handler.isTransparent(channel);
+        }
+    }
+
+    @Test
+    public void transparent() throws Exception {
+        Assert.assertTrue(isTransparent("Subject: test\r\n\r\nbody.\r\n"));
+        Assert.assertTrue(isTransparent("Subject: test\r\n\r\nline 1\r\nline. 2\r\n"));
+        // dot-stuffing needed
+        Assert.assertFalse(isTransparent("Subject: test\r\n\r\n.line 1\r\n"));
+        Assert.assertFalse(isTransparent(".Subject: test\r\n\r\nbody\r\n"));
+        // bare LF, bare CR
+        Assert.assertFalse(isTransparent("Subject: test\n\r\nbody\r\n"));
+        Assert.assertFalse(isTransparent("Subject: test\r\r\nbody\r\n"));
+        // no final line separator
+        Assert.assertFalse(isTransparent("Subject: test\r\n\r\nbody"));
+    }
+
+    @Test
+    public void spansReads() throws Exception {
+        StringBuilder sb = new StringBuilder("Subject: test\r\n\r\n");
+        while (sb.length() < 200 * 1024) {
+            sb.append("The quick brown fox jumps over the lazy dog.\r\n");
+        }
+        Assert.assertTrue(isTransparent(sb.toString()));
+        sb.append(".\r\n");
+        Assert.assertFalse(isTransparent(sb.toString()));
+    }
+}
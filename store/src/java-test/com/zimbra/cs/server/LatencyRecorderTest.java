@@ -0,0 +1,54 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LatencyRecorder}.
+ */
+public final class LatencyRecorderTest {
+
+    @Test
+    public void percentiles() {
+        LatencyRecorder recorder = new LatencyRecorder("test");
+        Assert.assertEquals(0L, recorder.getPercentile(50));
+        // record out of order to make sure the samples get sorted
+        for (int i = 100; i >= 1; i--) {
+            recorder.record(i * 1000L, 10);
+        }
+        Assert.assertEquals(100, recorder.getCount());
+        Assert.assertEquals(1000L, recorder.getTotalBytes());
+        Assert.assertEquals(1000L, recorder.getPercentile(0));
+        Assert.assertEquals(50000L, recorder.getPercentile(50));
+        Assert.assertEquals(99000L, recorder.getPercentile(99));
+        Assert.assertEquals(100000L, recorder.getPercentile(100));
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        LatencyRecorder recorder = new LatencyRecorder("test");
+        for (int i = 0; i < 5000; i++) {
+            recorder.record(1L);
+        }
+        Assert.assertEquals(5000, recorder.getCount());
+        Assert.assertEquals(5000L, recorder.getTotalNanos());
+        Assert.assertEquals(1L, recorder.getPercentile(90));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link NioWorkerPoolSizer}.
+ */
+public final class NioWorkerPoolSizerTest {
+
+    @Test
+    public void targetSize() {
+        // idle pool shrinks to the minimum
+        Assert.assertEquals(4, NioWorkerPoolSizer.targetSize(0.0, 0.0, 4, 100));
+        // 10 busy + 6 queued -> 16 * 1.25 + 1
+        Assert.assertEquals(21, NioWorkerPoolSizer.targetSize(10.0, 6.0, 4, 100));
+        // never above the configured maximum
+        Assert.assertEquals(100, NioWorkerPoolSizer.targetSize(200.0, 50.0, 4, 100));
+    }
+
+    @Test
+    public void shareUnderLimit() {
+        int[] sizes = NioWorkerPoolSizer.share(new int[] {20, 10}, new int[] {4, 4}, 50);
+        Assert.assertArrayEquals(new int[] {20, 10}, sizes);
+        sizes = NioWorkerPoolSizer.share(new int[] {200, 10}, new int[] {4, 4}, 0);
+        Assert.assertArrayEquals(new int[] {200, 10}, sizes);
+    }
+
+    @Test
+    public void shareOverLimit() {
+        // 100 - 8 spare threads split 3:1 by the demand above the minimums
+        int[] sizes = NioWorkerPoolSizer.share(new int[] {304, 104}, new int[] {4, 4}, 100);
+        Assert.assertArrayEquals(new int[] {4 + 69, 4 + 23}, sizes);
+        // minimums are always kept
+        sizes = NioWorkerPoolSizer.share(new int[] {50, 50}, new int[] {4, 4}, 6);
+        Assert.assertArrayEquals(new int[] {4, 4}, sizes);
+    }
+}
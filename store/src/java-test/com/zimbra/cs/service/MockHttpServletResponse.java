@@ -70,7 +70,12 @@ public class MockHttpServletResponse implements HttpServletResponse {
 
         @Override
         public void setWriteListener(WriteListener listener) {
-            //stubbed for now...should implement if we want to support async IO
+            // never blocks, so it can be written right away
+            try {
+                listener.onWritePossible();
+            } catch (IOException e) {
+                listener.onError(e);
+            }
         }
     }
 
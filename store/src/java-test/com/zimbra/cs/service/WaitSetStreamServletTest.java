@@ -0,0 +1,255 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.session.IWaitSet;
+import com.zimbra.cs.session.WaitSetAccount;
+import com.zimbra.cs.session.WaitSetCallback;
+import com.zimbra.cs.session.WaitSetMgr;
+
+/**
+ * Unit test for {@link WaitSetStreamServlet}.
+ */
+public final class WaitSetStreamServletTest {
+    private static Account owner;
+    private static Account other;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        owner = prov.createAccount("owner@zimbra.com", "secret", Maps.<String, Object>newHashMap());
+        other = prov.createAccount("other@zimbra.com", "secret", Maps.<String, Object>newHashMap());
+    }
+
+    /** Runs dispatched work on its own thread, the way the container would. */
+    private static final class MockAsyncContext implements AsyncContext {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        volatile boolean completed;
+
+        String getOutput() {
+            return new String(response.output.toByteArray());
+        }
+
+        @Override
+        public ServletRequest getRequest() {
+            return null;
+        }
+
+        @Override
+        public ServletResponse getResponse() {
+            return response;
+        }
+
+        @Override
+        public boolean hasOriginalRequestAndResponse() {
+            return true;
+        }
+
+        @Override
+        public void dispatch() {
+        }
+
+        @Override
+        public void dispatch(String path) {
+        }
+
+        @Override
+        public void dispatch(ServletContext context, String path) {
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public void start(Runnable run) {
+            new Thread(run).start();
+        }
+
+        @Override
+        public void addListener(AsyncListener listener) {
+        }
+
+        @Override
+        public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+        }
+
+        @Override
+        public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+            throw new ServletException("not supported");
+        }
+
+        @Override
+        public void setTimeout(long timeout) {
+        }
+
+        @Override
+        public long getTimeout() {
+            return 0;
+        }
+    }
+
+    private static IWaitSet createWaitSet(Account acct) throws Exception {
+        List<WaitSetAccount> none = Collections.emptyList();
+        String id = WaitSetMgr.create(acct.getId(), true, EnumSet.of(MailItem.Type.MESSAGE), false, none).getFirst();
+        return WaitSetMgr.lookup(id);
+    }
+
+    private static WaitSetStreamServlet.Stream open(IWaitSet ws, MockAsyncContext async) throws Exception {
+        Assert.assertTrue(WaitSetStreamServlet.reserve());
+        AuthToken authToken = AuthProvider.getAuthToken(owner);
+        WaitSetStreamServlet.Stream stream = new WaitSetStreamServlet.Stream(ws, "0", false, authToken, async);
+        stream.start();
+        return stream;
+    }
+
+    private static void waitFor(WaitSetStreamServlet.Stream stream) throws InterruptedException {
+        for (int i = 0; i < 100 && !stream.isEnded(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(stream.isEnded());
+    }
+
+    @Test
+    public void allAccountsNeedsAdminRight() throws Exception {
+        try {
+            WaitSetStreamServlet.lookupWaitSet(AuthProvider.getAuthToken(owner),
+                    WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX + "test", null, "0");
+            Assert.fail("non-admin streamed an All-accounts waitset");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.PERM_DENIED, e.getCode());
+        }
+    }
+
+    @Test
+    public void ownerOnly() throws Exception {
+        IWaitSet ws = createWaitSet(owner);
+        Assert.assertSame(ws, WaitSetStreamServlet.lookupWaitSet(AuthProvider.getAuthToken(owner),
+                ws.getWaitSetId(), null, "0"));
+        try {
+            WaitSetStreamServlet.lookupWaitSet(AuthProvider.getAuthToken(other), ws.getWaitSetId(), null, "0");
+            Assert.fail("streamed someone else's waitset");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.PERM_DENIED, e.getCode());
+        }
+        Assert.assertNull(WaitSetStreamServlet.lookupWaitSet(AuthProvider.getAuthToken(owner), "WaitSet-none",
+                null, "0"));
+    }
+
+    @Test
+    public void maxStreams() throws Exception {
+        int streams = WaitSetStreamServlet.getStreamCount();
+        LC.zimbra_waitset_stream_max_streams.setDefault(streams + 1);
+        try {
+            MockAsyncContext async = new MockAsyncContext();
+            WaitSetStreamServlet.Stream stream = open(createWaitSet(owner), async);
+            Assert.assertFalse("over the cap", WaitSetStreamServlet.reserve());
+            stream.end();
+            Assert.assertTrue(async.completed);
+            Assert.assertEquals(streams, WaitSetStreamServlet.getStreamCount());
+            Assert.assertTrue(WaitSetStreamServlet.reserve());
+            new WaitSetStreamServlet.Stream(createWaitSet(owner), "0", false, AuthProvider.getAuthToken(owner),
+                    new MockAsyncContext()).end();
+        } finally {
+            LC.zimbra_waitset_stream_max_streams.setDefault(1000);
+        }
+        Assert.assertEquals(streams, WaitSetStreamServlet.getStreamCount());
+    }
+
+    @Test
+    public void heartbeat() throws Exception {
+        LC.zimbra_waitset_stream_heartbeat_interval.setDefault(1);
+        try {
+            IWaitSet ws = createWaitSet(owner);
+            MockAsyncContext async = new MockAsyncContext();
+            WaitSetStreamServlet.Stream stream = open(ws, async);
+            for (int i = 0; i < 100 && !async.getOutput().contains("\n"); i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(async.getOutput(), async.getOutput().contains(ws.getWaitSetId()));
+            Assert.assertFalse(stream.isEnded());
+            stream.end();
+            Assert.assertTrue(async.completed);
+        } finally {
+            LC.zimbra_waitset_stream_heartbeat_interval.setDefault(30);
+        }
+    }
+
+    @Test
+    public void endsWhenCanceled() throws Exception {
+        int streams = WaitSetStreamServlet.getStreamCount();
+        IWaitSet ws = createWaitSet(owner);
+        MockAsyncContext async = new MockAsyncContext();
+        WaitSetStreamServlet.Stream stream = open(ws, async);
+        Assert.assertFalse(stream.isEnded());
+
+        // a WaitSetRequest takes over the callback: the stream must not take it back
+        WaitSetCallback cb = new WaitSetCallback();
+        cb.ws = ws;
+        synchronized (ws) {
+            synchronized (cb) {
+                ws.doWait(cb, "0", null, null);
+            }
+        }
+        waitFor(stream);
+        Assert.assertTrue(async.getOutput(), async.getOutput().contains("canceled"));
+        Assert.assertTrue(async.completed);
+        Assert.assertFalse("callback was taken back", cb.canceled);
+        Assert.assertEquals(streams, WaitSetStreamServlet.getStreamCount());
+        ws.doneWaiting(cb);
+    }
+
+    @Test
+    public void newStreamReplacesOld() throws Exception {
+        int streams = WaitSetStreamServlet.getStreamCount();
+        IWaitSet ws = createWaitSet(owner);
+        MockAsyncContext first = new MockAsyncContext();
+        WaitSetStreamServlet.Stream stream = open(ws, first);
+        MockAsyncContext second = new MockAsyncContext();
+        WaitSetStreamServlet.Stream replacement = open(ws, second);
+        waitFor(stream);
+        Assert.assertTrue(first.completed);
+        Assert.assertFalse(replacement.isEnded());
+        replacement.end();
+        Assert.assertEquals(streams, WaitSetStreamServlet.getStreamCount());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.admin;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link BulkImportMessages}.
+ */
+public final class BulkImportMessagesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void assertDenied(String root, String path) {
+        try {
+            BulkImportMessages.resolveDirectory(root, path);
+            Assert.fail(path);
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.PERM_DENIED, e.getCode());
+        }
+    }
+
+    @Test
+    public void resolveDirectory() throws Exception {
+        File root = tmp.newFolder("import");
+        File dir = new File(root, "batch1");
+        Assert.assertTrue(dir.mkdir());
+        File outside = tmp.newFolder("outside");
+
+        Assert.assertEquals(dir.getCanonicalFile(), BulkImportMessages.resolveDirectory(root.getPath(), "batch1"));
+        Assert.assertEquals(dir.getCanonicalFile(),
+                BulkImportMessages.resolveDirectory(root.getPath(), dir.getAbsolutePath()));
+        Assert.assertEquals(root.getCanonicalFile(), BulkImportMessages.resolveDirectory(root.getPath(), "."));
+
+        assertDenied(root.getPath(), "../outside");
+        assertDenied(root.getPath(), "batch1/../../outside");
+        assertDenied(root.getPath(), outside.getAbsolutePath());
+        assertDenied(root.getPath(), "/etc");
+        assertDenied("", "batch1");
+
+        // symbolic links are followed before the check
+        Files.createSymbolicLink(new File(root, "link").toPath(), outside.toPath());
+        assertDenied(root.getPath(), "link");
+    }
+}
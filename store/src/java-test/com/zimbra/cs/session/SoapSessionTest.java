@@ -0,0 +1,132 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.service.AuthProvider;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.soap.ZimbraSoapContext;
+
+/**
+ * Unit test for {@link SoapSession}.
+ */
+public final class SoapSessionTest {
+    private static final String ACCT = "11111111-1111-1111-1111-111111111111";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", Maps.<String, Object>newHashMap());
+    }
+
+    private static void modify(PendingLocalModifications pms, int id, int why) {
+        if (pms.modified == null) {
+            pms.modified = new HashMap<ModificationKey, Change>();
+        }
+        pms.modified.put(new ModificationKey(ACCT, id), new Change(MailItem.Type.MESSAGE, why, null));
+    }
+
+    private static void create(PendingLocalModifications pms, int id) {
+        if (pms.created == null) {
+            pms.created = new LinkedHashMap<ModificationKey, BaseItemInfo>();
+        }
+        pms.created.put(new ModificationKey(ACCT, id), null);
+    }
+
+    @Test
+    public void countAddedNotifications() {
+        PendingLocalModifications pms = new PendingLocalModifications();
+        create(pms, 300);
+        modify(pms, 300, Change.FLAGS);
+        modify(pms, 301, Change.UNREAD);
+        for (int id = 400; id < 405; id++) {
+            pms.recordDeleted(ACCT, id, 2, MailItem.Type.MESSAGE);
+        }
+        Assert.assertEquals("nothing queued yet", pms.getScaledNotificationCount(),
+                SoapSession.countAddedNotifications(null, pms));
+
+        PendingLocalModifications queued = new PendingLocalModifications();
+        create(queued, 300);
+        modify(queued, 301, Change.TAGS);
+        for (int id = 400; id < 404; id++) {
+            queued.recordDeleted(ACCT, id, 2, MailItem.Type.MESSAGE);
+        }
+        // create 300 and modifies 300/301 merge into queued entries; only delete 404 is new
+        Assert.assertEquals(1, SoapSession.countAddedNotifications(queued, pms));
+
+        modify(pms, 302, Change.UNREAD);
+        create(pms, 303);
+        Assert.assertEquals(3, SoapSession.countAddedNotifications(queued, pms));
+    }
+
+    private static SoapSession.EncodedChanges notify(SoapSession session, Mailbox mbox, ZimbraSoapContext zsc,
+            PendingLocalModifications pms, Element parent) {
+        session.changes.addNotification(pms);
+        session.putQueuedNotifications(mbox, session.changes, parent, zsc);
+        return session.changes.getEncoded(session.getEncodingKey(zsc, parent.getFactory()));
+    }
+
+    @Test
+    public void sharedEncodings() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        ZimbraSoapContext zsc = new ZimbraSoapContext(AuthProvider.getAuthToken(acct), acct.getId(),
+                SoapProtocol.Soap12, SoapProtocol.Soap12);
+        PendingLocalModifications pms = new PendingLocalModifications();
+        pms.recordDeleted(acct.getId(), 500, 2, MailItem.Type.MESSAGE);
+
+        SoapSession first = new SoapSession(zsc);
+        SoapSession second = new SoapSession(zsc);
+        SoapSession json = new SoapSession(zsc);
+        Element xml = new Element.XMLElement("context");
+        Assert.assertEquals(first.getEncodingKey(zsc, xml.getFactory()), second.getEncodingKey(zsc, xml.getFactory()));
+
+        SoapSession.EncodedChanges encoded = notify(first, mbox, zsc, pms, xml);
+        Assert.assertNotNull(encoded);
+        Assert.assertEquals("500", encoded.deletedIds);
+        // same change set, same kind of requester: the second session reuses the first one's encoding
+        Assert.assertSame(encoded, notify(second, mbox, zsc, pms, new Element.XMLElement("context")));
+        // a different encoding key gets an encoding of its own
+        SoapSession.EncodedChanges other = notify(json, mbox, zsc, pms, new Element.JSONElement("context"));
+        Assert.assertNotNull(other);
+        Assert.assertNotSame(encoded, other);
+        Assert.assertEquals("500", other.deletedIds);
+
+        // once a session queues a second change set, it no longer shares
+        PendingLocalModifications more = new PendingLocalModifications();
+        more.recordDeleted(acct.getId(), 501, 2, MailItem.Type.MESSAGE);
+        second.changes.addNotification(more);
+        Assert.assertNull(second.changes.getSource());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link WaitSetMgr} and {@link SomeAccountsWaitSet}.
+ */
+public final class WaitSetMgrTest {
+    private static final Set<MailItem.Type> INTEREST = EnumSet.of(MailItem.Type.MESSAGE);
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static String newAccountId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static SomeAccountsWaitSet create(String owner, boolean allowMultiple, List<WaitSetAccount> accounts)
+            throws Exception {
+        String id = WaitSetMgr.create(owner, allowMultiple, INTEREST, false, accounts).getFirst();
+        return (SomeAccountsWaitSet) WaitSetMgr.lookup(id);
+    }
+
+    @Test
+    public void perOwnerLimit() throws Exception {
+        String owner = newAccountId();
+        int max = LC.zimbra_waitset_max_per_account.intValue();
+        List<WaitSetAccount> none = Collections.emptyList();
+        for (int i = 0; i < max + 2; i++) {
+            create(owner, false, none);
+        }
+        Assert.assertEquals(max, WaitSetMgr.countWaitSets(owner));
+        for (IWaitSet ws : WaitSetMgr.getAll()) {
+            if (owner.equals(ws.getOwnerAccountId())) {
+                WaitSetMgr.destroy(null, owner, ws.getWaitSetId());
+            }
+        }
+        Assert.assertEquals(0, WaitSetMgr.countWaitSets(owner));
+    }
+
+    @Test
+    public void concurrentCreateDestroy() throws Exception {
+        final int threads = 8;
+        final int iterations = 200;
+        final String[] owners = new String[threads / 2];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = newAccountId();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final String owner = owners[t % owners.length];
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<WaitSetAccount> accounts = new ArrayList<WaitSetAccount>();
+                        for (int i = 0; i < iterations; i++) {
+                            accounts.clear();
+                            accounts.add(new WaitSetAccount(newAccountId(), null, INTEREST, null));
+                            SomeAccountsWaitSet ws = create(owner, true, accounts);
+                            WaitSetMgr.destroy(null, owner, ws.getWaitSetId());
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        Assert.assertNull(failure.get());
+        for (String owner : owners) {
+            Assert.assertEquals(0, WaitSetMgr.countWaitSets(owner));
+        }
+    }
+
+    /** Signals every account in a wait set from several threads, then waits for them all. */
+    private static long signalAll(int count, int threads) throws Exception {
+        final List<WaitSetAccount> accounts = new ArrayList<WaitSetAccount>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(new WaitSetAccount(newAccountId(), null, INTEREST, null));
+        }
+        String owner = newAccountId();
+        final SomeAccountsWaitSet ws = create(owner, true, accounts);
+        Assert.assertEquals(count, ws.countSessions());
+
+        long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            final int stride = threads;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < accounts.size(); i += stride) {
+                        WaitSetSession session = new WaitSetSession(ws, accounts.get(i).getAccountId(), INTEREST, null, null);
+                        ws.signalDataReady(session);
+                        // the same account signalled again before being sent is only reported once
+                        ws.signalDataReady(session);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        Assert.assertTrue(done.await(120, TimeUnit.SECONDS));
+
+        WaitSetCallback cb = new WaitSetCallback();
+        ws.doWait(cb, "0", null, null);
+        long elapsed = System.nanoTime() - start;
+        Assert.assertTrue(cb.completed);
+        Assert.assertEquals(count, cb.signalledAccounts.size());
+        Assert.assertEquals(count, cb.signalledSessions.size());
+
+        WaitSetMgr.destroy(null, owner, ws.getWaitSetId());
+        return elapsed;
+    }
+
+    @Test
+    public void signalManyAccounts() throws Exception {
+        signalAll(20000, 8);
+    }
+
+    // Enable for performance comparison @Test
+    public void signalPerformance() throws Exception {
+        for (int threads : new int[] {1, 4, 16}) {
+            long elapsed = signalAll(500000, threads);
+            System.out.println(String.format("500000 accounts, %d signalling threads: %d ms", threads,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        }
+    }
+}
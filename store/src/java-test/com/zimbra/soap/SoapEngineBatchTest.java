@@ -0,0 +1,209 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.QName;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.zimbra.common.auth.ZAuthToken;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.soap.SoapUtil;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.service.AuthProvider;
+import com.zimbra.cs.service.MockHttpServletRequest;
+import com.zimbra.cs.service.MockHttpServletResponse;
+import com.zimbra.cs.service.mail.Search;
+
+/**
+ * Unit test for parallel BatchRequests in {@link SoapEngine}.
+ */
+public final class SoapEngineBatchTest {
+
+    private static final QName PROBE_REQUEST = QName.get("ProbeRequest", MailConstants.NAMESPACE);
+    private static final QName PROBE_RESPONSE = QName.get("ProbeResponse", MailConstants.NAMESPACE);
+    private static final String A_PROXY_TOKEN = "proxyToken";
+
+    /**
+     * Side-effect free handler that sets a proxy auth token of its own, the way handlers do when they proxy, and then
+     * waits for the other probes of the batch, so that a batch of probes only succeeds if they run concurrently.
+     */
+    private static final class ProbeHandler extends DocumentHandler {
+        private final CyclicBarrier barrier;
+
+        ProbeHandler(int parties) {
+            barrier = new CyclicBarrier(parties);
+        }
+
+        @Override
+        public boolean isSideEffectFree(Element request) {
+            return true;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            ZimbraSoapContext zsc = getZimbraSoapContext(context);
+            String name = request.getAttribute(MailConstants.A_NAME);
+            zsc.getAuthToken().setProxyAuthToken(name);
+            try {
+                barrier.await(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw ServiceException.FAILURE("probes did not run concurrently", e);
+            }
+            Element response = zsc.createElement(PROBE_RESPONSE);
+            response.addAttribute(MailConstants.A_NAME, name);
+            response.addAttribute(A_PROXY_TOKEN, zsc.getAuthToken().getProxyAuthToken());
+            return response;
+        }
+    }
+
+    private static final DocumentHandler READER = new DocumentHandler() {
+        @Override
+        public boolean isSideEffectFree(Element request) {
+            return true;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            return null;
+        }
+    };
+
+    private static final DocumentHandler WRITER = new DocumentHandler() {
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            return null;
+        }
+    };
+
+    private static SoapEngine.BatchEntry entry(DocumentHandler handler) {
+        Element request = new Element.XMLElement("TestRequest");
+        return new SoapEngine.BatchEntry(request, handler, handler != null && handler.isSideEffectFree(request));
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void groups() {
+        List<SoapEngine.BatchEntry> batch = Lists.newArrayList(entry(READER), entry(READER), entry(READER),
+                entry(WRITER), entry(READER), entry(null), entry(READER), entry(READER));
+        Assert.assertEquals(3, SoapEngine.nextBatchGroup(batch, 0));
+        Assert.assertEquals(2, SoapEngine.nextBatchGroup(batch, 1));
+        Assert.assertEquals(4, SoapEngine.nextBatchGroup(batch, 3));
+        Assert.assertEquals(5, SoapEngine.nextBatchGroup(batch, 4));
+        Assert.assertEquals(6, SoapEngine.nextBatchGroup(batch, 5));
+        Assert.assertEquals(8, SoapEngine.nextBatchGroup(batch, 6));
+    }
+
+    @Test
+    public void sideEffectFree() {
+        Assert.assertFalse(WRITER.isSideEffectFree(new Element.XMLElement("TestRequest")));
+        Search search = new Search();
+        Element request = new Element.XMLElement(MailConstants.SEARCH_REQUEST);
+        Assert.assertTrue(search.isSideEffectFree(request));
+        request.addAttribute(MailConstants.A_MARK_READ, true);
+        Assert.assertFalse(search.isSideEffectFree(request));
+    }
+
+    @Test
+    public void copyForConcurrentRequest() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        ZimbraSoapContext zsc = new ZimbraSoapContext(AuthProvider.getAuthToken(acct), acct.getId(),
+                SoapProtocol.Soap12, SoapProtocol.Soap12);
+        ZimbraSoapContext copy = zsc.copyForConcurrentRequest();
+        Assert.assertNotSame(zsc.getAuthToken(), copy.getAuthToken());
+        Assert.assertEquals(zsc.getAuthToken().getEncoded(), copy.getAuthToken().getEncoded());
+        Assert.assertEquals(zsc.getRequestedAccountId(), copy.getRequestedAccountId());
+        copy.getAuthToken().setProxyAuthToken("copy");
+        Assert.assertNull(zsc.getAuthToken().getProxyAuthToken());
+        Assert.assertNotSame(zsc.getRawAuthToken(), copy.getRawAuthToken());
+    }
+
+    @Test
+    public void parallelBatch() throws Exception {
+        final int count = 3;
+        final ProbeHandler probe = new ProbeHandler(count);
+        SoapEngine engine = new MockSoapEngine(new DocumentService() {
+            @Override
+            public void registerHandlers(DocumentDispatcher dispatcher) {
+                dispatcher.registerHandler(PROBE_REQUEST, probe);
+            }
+        });
+
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        batch.addAttribute(ZimbraNamespace.A_PARALLEL, true);
+        for (int i = 0; i < count; i++) {
+            batch.addNonUniqueElement(PROBE_REQUEST).addAttribute(MailConstants.A_NAME, "probe" + i)
+                    .addAttribute(SoapEngine.A_REQUEST_CORRELATOR, i);
+        }
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        AuthToken at = AuthProvider.getAuthToken(acct);
+        Element ctxt = SoapUtil.toCtxt(SoapProtocol.Soap12, new ZAuthToken(at.getEncoded()));
+        Element envelope = SoapProtocol.Soap12.soapEnvelope(batch, ctxt);
+
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put(SoapServlet.SERVLET_REQUEST, new MockHttpServletRequest(envelope.toString().getBytes("UTF-8"),
+                new URL("http://localhost:7070/service/soap/BatchRequest"), ""));
+        context.put(SoapServlet.SERVLET_RESPONSE, new MockHttpServletResponse());
+        Element response = engine.dispatch("/service/soap", envelope.toString().getBytes("UTF-8"), context);
+
+        Element body = SoapProtocol.Soap12.getBodyElement(response);
+        Assert.assertEquals(ZimbraNamespace.E_BATCH_RESPONSE.getName(), body.getName());
+        List<Element> responses = body.listElements();
+        Assert.assertEquals(count, responses.size());
+        Set<String> names = Sets.newHashSet();
+        for (int i = 0; i < count; i++) {
+            Element probeResponse = responses.get(i);
+            Assert.assertEquals(probeResponse.prettyPrint(), PROBE_RESPONSE.getName(), probeResponse.getName());
+            Assert.assertEquals(String.valueOf(i), probeResponse.getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+            // each request saw its own proxy auth token
+            String name = probeResponse.getAttribute(MailConstants.A_NAME);
+            Assert.assertEquals(name, probeResponse.getAttribute(A_PROXY_TOKEN));
+            names.add(name);
+        }
+        Assert.assertEquals(count, names.size());
+    }
+}
@@ -95,6 +95,18 @@ public abstract class AuthToken {
         }
     }
 
+    /**
+     * Returns a copy of an auth token whose proxy auth token can be changed without affecting the original, or
+     * {@code null} if this kind of auth token can't be copied.
+     */
+    public static AuthToken copyOf(AuthToken authToken) {
+        try {
+            return (AuthToken) authToken.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
     @Override
     public abstract String toString();
 
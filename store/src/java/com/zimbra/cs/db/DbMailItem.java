@@ -40,6 +40,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.commons.codec.DecoderException;
@@ -54,6 +59,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Constants;
@@ -833,11 +839,9 @@ public class DbMailItem {
             PreparedStatement stmt = null;
             try { // update MAIL_ITEM table
                 stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox, false) +
-                        " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
+                        " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", DbUtil.inListSize(count)));
                 int pos = setMailboxId(stmt, mbox, 1);
-                for (int j = i; j < i + count; j++) {
-                    stmt.setInt(pos++, ids.get(j));
-                }
+                DbUtil.setInList(stmt, pos, ids, i, count);
                 updated = stmt.executeUpdate();
             } catch (SQLException e) {
                 throw ServiceException.FAILURE("Failed to set index_id", e);
@@ -850,11 +854,9 @@ public class DbMailItem {
             if (mbox.dumpsterEnabled()) {
                 try { // also update MAIL_ITEM_DUMPSTER table
                     stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox, true) +
-                            " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
+                            " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", DbUtil.inListSize(count)));
                     int pos = setMailboxId(stmt, mbox, 1);
-                    for (int j = i; j < i + count; j++) {
-                        stmt.setInt(pos++, ids.get(j));
-                    }
+                    DbUtil.setInList(stmt, pos, ids, i, count);
                     stmt.executeUpdate();
                 } catch (SQLException e) {
                     throw ServiceException.FAILURE("Failed to set index_id in dumpster", e);
@@ -971,9 +973,8 @@ public class DbMailItem {
     public static void saveMetadata(MailItem item, String metadata) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(item) +
+            PreparedStatement stmt = conn.prepareBatchStatement("UPDATE " + getMailItemTableName(item) +
                         " SET date = ?, size = ?, metadata = ?, mod_metadata = ?, change_date = ?, mod_content = ?" +
                         " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
             int pos = 1;
@@ -985,20 +986,17 @@ public class DbMailItem {
             stmt.setInt(pos++, item.getSavedSequence());
             pos = setMailboxId(stmt, mbox, pos);
             stmt.setInt(pos++, item.getId());
-            stmt.executeUpdate();
+            conn.addBatch("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId());
         } catch (SQLException e) {
             throw ServiceException.FAILURE("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId(), e);
-        } finally {
-            DbPool.closeStatement(stmt);
         }
     }
 
     public static void persistCounts(MailItem item, Metadata metadata) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(item) +
+            PreparedStatement stmt = conn.prepareBatchStatement("UPDATE " + getMailItemTableName(item) +
                         " SET size = ?, unread = ?, metadata = ?, mod_metadata = ?, change_date = ?, mod_content = ?" +
                         " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
             int pos = 1;
@@ -1014,11 +1012,9 @@ public class DbMailItem {
             stmt.setInt(pos++, item.getSavedSequence());
             pos = setMailboxId(stmt, mbox, pos);
             stmt.setInt(pos++, item.getId());
-            stmt.executeUpdate();
+            conn.addBatch("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId());
         } catch (SQLException e) {
             throw ServiceException.FAILURE("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId(), e);
-        } finally {
-            DbPool.closeStatement(stmt);
         }
     }
 
@@ -1295,9 +1291,8 @@ public class DbMailItem {
     public static void saveDate(MailItem item) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
+            PreparedStatement stmt = conn.prepareBatchStatement("UPDATE " + getMailItemTableName(mbox) +
                         " SET date = ?, mod_metadata = ?, change_date = ? WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
             int pos = 1;
             stmt.setInt(pos++, (int) (item.getDate() / 1000));
@@ -1305,11 +1300,9 @@ public class DbMailItem {
             stmt.setInt(pos++, mbox.getOperationTimestamp());
             pos = setMailboxId(stmt, mbox, pos);
             stmt.setInt(pos++, item.getId());
-            stmt.executeUpdate();
+            conn.addBatch("setting date for item " + item.getId());
         } catch (SQLException e) {
             throw ServiceException.FAILURE("setting IMAP UID for item " + item.getId(), e);
-        } finally {
-            DbPool.closeStatement(stmt);
         }
     }
 
@@ -1337,9 +1330,8 @@ public class DbMailItem {
     public static void saveImapUid(MailItem item) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
+            PreparedStatement stmt = conn.prepareBatchStatement("UPDATE " + getMailItemTableName(mbox) +
                         " SET imap_id = ?, mod_metadata = ?, change_date = ?" +
                         " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
             int pos = 1;
@@ -1348,11 +1340,9 @@ public class DbMailItem {
             stmt.setInt(pos++, mbox.getOperationTimestamp());
             pos = setMailboxId(stmt, mbox, pos);
             stmt.setInt(pos++, item.getId());
-            stmt.executeUpdate();
+            conn.addBatch("setting IMAP UID for item " + item.getId());
         } catch (SQLException e) {
             throw ServiceException.FAILURE("setting IMAP UID for item " + item.getId(), e);
-        } finally {
-            DbPool.closeStatement(stmt);
         }
     }
 
@@ -1370,7 +1360,7 @@ public class DbMailItem {
                 stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
                             " SET unread = ?, mod_metadata = ?, change_date = ?" +
                             " WHERE " + IN_THIS_MAILBOX_AND + "unread = ?" +
-                            "  AND " + DbUtil.whereIn("id", count) +
+                            "  AND " + DbUtil.whereIn("id", DbUtil.inListSize(count)) +
                             "  AND " + typeIn(MailItem.Type.MESSAGE));
                 int pos = 1;
                 stmt.setInt(pos++, unread ? 1 : 0);
@@ -1378,9 +1368,7 @@ public class DbMailItem {
                 stmt.setInt(pos++, mbox.getOperationTimestamp());
                 pos = setMailboxId(stmt, mbox, pos);
                 stmt.setInt(pos++, unread ? 0 : 1);
-                for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, itemIDs.get(index));
-                }
+                DbUtil.setInList(stmt, pos, itemIDs, i, count);
                 stmt.executeUpdate();
                 stmt.close();
                 stmt = null;
@@ -1454,16 +1442,14 @@ public class DbMailItem {
                         int count = Math.min(Db.getINClauseBatchSize(), convIDs.size() - i);
                         stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(folder) +
                                 " SET size = size - ?, metadata = NULL, mod_metadata = ?, change_date = ?" +
-                                " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count) +
+                                " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", DbUtil.inListSize(count)) +
                                 "  AND type = " + MailItem.Type.CONVERSATION.toByte());
                         pos = 1;
                         stmt.setInt(pos++, update.getKey());
                         stmt.setInt(pos++, mbox.getOperationChangeID());
                         stmt.setInt(pos++, mbox.getOperationTimestamp());
                         pos = setMailboxId(stmt, mbox, pos);
-                        for (int index = i; index < i + count; index++) {
-                            stmt.setInt(pos++, convIDs.get(index));
-                        }
+                        DbUtil.setInList(stmt, pos, convIDs, i, count);
                         stmt.executeUpdate();
                         stmt.close();
                     }
@@ -1504,15 +1490,13 @@ public class DbMailItem {
                     int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
                     stmt = conn.prepareStatement("UPDATE " + table + ", " +
                             "(SELECT parent_id pid, COUNT(*) count FROM " + getMailItemTableName(mbox) +
-                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count) +
+                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", DbUtil.inListSize(count)) +
                             " AND parent_id IS NOT NULL GROUP BY parent_id) AS x" +
                             " SET size = size - count, metadata = NULL, mod_metadata = ?, change_date = ?" +
                             " WHERE " + IN_THIS_MAILBOX_AND + "id = pid AND type = " + MailItem.Type.CONVERSATION.toByte());
                     int pos = 1;
                     pos = setMailboxId(stmt, mbox, pos);
-                    for (int index = i; index < i + count; index++) {
-                        stmt.setInt(pos++, ids.get(index));
-                    }
+                    pos = DbUtil.setInList(stmt, pos, ids, i, count);
                     stmt.setInt(pos++, mbox.getOperationChangeID());
                     stmt.setInt(pos++, mbox.getOperationTimestamp());
                     pos = setMailboxId(stmt, mbox, pos);
@@ -1682,12 +1666,10 @@ public class DbMailItem {
                     copyToDumpster(conn, mbox, targets, offset, count, unsetDeletedFlag);
                 }
                 stmt = conn.prepareStatement("DELETE FROM " + getMailItemTableName(mbox, fromDumpster) +
-                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
+                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", DbUtil.inListSize(count)));
                 int pos = 1;
                 pos = setMailboxId(stmt, mbox, pos);
-                for (int i = offset; i < offset + count; ++i) {
-                    stmt.setInt(pos++, targets.get(i));
-                }
+                DbUtil.setInList(stmt, pos, targets, offset, count);
                 stmt.executeUpdate();
             } catch (SQLException e) {
                 throw ServiceException.FAILURE("deleting " + ids.size() + " item(s): " + getIdListForLogging(ids), e);
@@ -2188,25 +2170,101 @@ public class DbMailItem {
                 return null;
             }
 
-            Map<Integer, UnderlyingData> lookup = new HashMap<Integer, UnderlyingData>(folderData.size() + tagData.size());
+            rs.close();
+            stmt.close();
+
+            return recountFoldersAndTags(mbox, folderData, tagData, false);
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching folder data for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    private static final ExecutorService RECOUNT_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Recount-%d").setDaemon(true).build());
 
-            // going to recalculate counts, so discard any existing counts...
-            for (FolderTagMap itemData : new FolderTagMap[] { folderData, tagData }) {
-                for (Map.Entry<UnderlyingData, FolderTagCounts> entry : itemData.entrySet()) {
-                    UnderlyingData data = entry.getKey();
-                    lookup.put(data.id, data);
-                    data.size = data.unreadCount = 0;
-                    entry.setValue(new FolderTagCounts());
+    /**
+     * Recalculates the counts and sizes of the given folders and tags, and the
+     * overall mailbox size, from the items in the mailbox.  Any counts already
+     * set on the {@code UnderlyingData} keys are discarded.
+     * <p>
+     * If {@code parallel} is set and the database has row-level locking, the
+     * tag and revision scans run on their own connections while the folder
+     * scan runs on the operation connection.  Those connections can't see
+     * uncommitted changes, so this is only safe before the current transaction
+     * has written anything.
+     */
+    public static Mailbox.MailboxData recountFoldersAndTags(final Mailbox mbox, FolderTagMap folderData,
+            FolderTagMap tagData, boolean parallel) throws ServiceException {
+        final Map<Integer, UnderlyingData> lookup = new HashMap<Integer, UnderlyingData>(folderData.size() + tagData.size());
+
+        // going to recalculate counts, so discard any existing counts...
+        for (FolderTagMap itemData : new FolderTagMap[] { folderData, tagData }) {
+            for (Map.Entry<UnderlyingData, FolderTagCounts> entry : itemData.entrySet()) {
+                UnderlyingData data = entry.getKey();
+                lookup.put(data.id, data);
+                data.size = data.unreadCount = 0;
+                entry.setValue(new FolderTagCounts());
+            }
+        }
+
+        Future<Void> tags = null;
+        Future<Map<Integer, Long>> revisions = null;
+        if (parallel && Db.supports(Db.Capability.ROW_LEVEL_LOCKING)) {
+            // the tag scan only touches the tags' entries in the lookup, the folder scan only the folders'
+            tags = RECOUNT_EXECUTOR.submit(new RecountTask<Void>(mbox) {
+                @Override
+                Void recount(DbConnection conn) throws ServiceException {
+                    DbTag.recalculateTagCounts(conn, mbox, lookup);
+                    return null;
                 }
-            }
+            });
+            revisions = RECOUNT_EXECUTOR.submit(new RecountTask<Map<Integer, Long>>(mbox) {
+                @Override
+                Map<Integer, Long> recount(DbConnection conn) throws ServiceException {
+                    return getRevisionSizes(conn, mbox);
+                }
+            });
+        }
 
-            rs.close();
-            stmt.close();
+        DbConnection conn = mbox.getOperationConnection();
+        Mailbox.MailboxData mbd = recountFolders(conn, mbox, folderData, lookup);
+        Map<Integer, Long> revisionSizes;
+        if (tags != null) {
+            getRecount(tags);
+            revisionSizes = getRecount(revisions);
+        } else {
+            DbTag.recalculateTagCounts(conn, mbox, lookup);
+            revisionSizes = getRevisionSizes(conn, mbox);
+        }
 
+        for (Map.Entry<Integer, Long> entry : revisionSizes.entrySet()) {
+            int folderId = entry.getKey();
+            long size    = entry.getValue();
+
+            mbd.size += size;
+
+            UnderlyingData data = lookup.get(folderId);
+            if (data != null) {
+                folderData.get(data).totalSize += size;
+            } else {
+                ZimbraLog.mailbox.warn("inconsistent DB state: revisions with no corresponding folder (folder ID " + folderId + ")");
+            }
+        }
+        return mbd;
+    }
+
+    private static Mailbox.MailboxData recountFolders(DbConnection conn, Mailbox mbox, FolderTagMap folderData,
+            Map<Integer, UnderlyingData> lookup) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
             // recalculate the counts for all folders and the overall mailbox size...
             Mailbox.MailboxData mbd = new Mailbox.MailboxData();
             stmt = conn.prepareStatement("SELECT folder_id, type, flags, COUNT(*), SUM(unread), SUM(size)" +
-                        " FROM " + table + " WHERE " + IN_THIS_MAILBOX_AND + "type NOT IN " + NON_SEARCHABLE_TYPES +
+                        " FROM " + getMailItemTableName(mbox, "mi") + " WHERE " + IN_THIS_MAILBOX_AND + "type NOT IN " + NON_SEARCHABLE_TYPES +
                         " GROUP BY folder_id, type, flags");
             setMailboxId(stmt, mbox, 1);
             rs = stmt.executeQuery();
@@ -2239,44 +2297,78 @@ public class DbMailItem {
                     ZimbraLog.mailbox.warn("inconsistent DB state: items with no corresponding folder (folder id %d)", folderId);
                 }
             }
+            return mbd;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("recalculating folder counts for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
 
-            // recalculate the counts for all tags...
-            DbTag.recalculateTagCounts(mbox, lookup);
-
-            rs.close();
-            stmt.close();
-
+    private static Map<Integer, Long> getRevisionSizes(DbConnection conn, Mailbox mbox) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
             stmt = conn.prepareStatement("SELECT mi.folder_id, SUM(rev.size)" +
-                        " FROM " + table + ", " + getRevisionTableName(mbox, "rev") +
+                        " FROM " + getMailItemTableName(mbox, "mi") + ", " + getRevisionTableName(mbox, "rev") +
                         " WHERE mi.id = rev.item_id" +
                         (DebugConfig.disableMailboxGroups ? "" : " AND rev.mailbox_id = ? AND mi.mailbox_id = rev.mailbox_id") +
                         " GROUP BY folder_id");
             setMailboxId(stmt, mbox, 1);
             rs = stmt.executeQuery();
 
+            Map<Integer, Long> sizes = new HashMap<Integer, Long>();
             while (rs.next()) {
-                int folderId = rs.getInt(1);
-                long size    = rs.getLong(2);
-
-                mbd.size += size;
-
-                UnderlyingData data = lookup.get(folderId);
-                if (data != null) {
-                    folderData.get(data).totalSize += size;
-                } else {
-                    ZimbraLog.mailbox.warn("inconsistent DB state: revisions with no corresponding folder (folder ID " + folderId + ")");
-                }
+                sizes.put(rs.getInt(1), rs.getLong(2));
             }
-
-            return mbd;
+            return sizes;
         } catch (SQLException e) {
-            throw ServiceException.FAILURE("fetching folder data for mailbox " + mbox.getId(), e);
+            throw ServiceException.FAILURE("recalculating revision sizes for mailbox " + mbox.getId(), e);
         } finally {
             DbPool.closeResults(rs);
             DbPool.closeStatement(stmt);
         }
     }
 
+    /** Runs one of the recount scans on a connection from the maintenance partition of the pool. */
+    private abstract static class RecountTask<T> implements Callable<T> {
+        private final Mailbox mbox;
+
+        RecountTask(Mailbox mbox) {
+            this.mbox = mbox;
+        }
+
+        abstract T recount(DbConnection conn) throws ServiceException;
+
+        @Override
+        public T call() throws ServiceException {
+            DbPool.Partition partition = DbPool.setPartition(DbPool.Partition.MAINTENANCE);
+            DbConnection conn = null;
+            try {
+                conn = DbPool.getConnection(mbox);
+                return recount(conn);
+            } finally {
+                DbPool.quietClose(conn);
+                DbPool.setPartition(partition);
+            }
+        }
+    }
+
+    private static <T> T getRecount(Future<T> task) throws ServiceException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED("recalculating folder and tag counts");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw ServiceException.FAILURE("recalculating folder and tag counts", e.getCause());
+        }
+    }
+
     public static List<UnderlyingData> getByType(Mailbox mbox, MailItem.Type type, SortBy sort) throws ServiceException {
         if (Mailbox.isCachedType(type)) {
             throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
@@ -2607,12 +2699,14 @@ public class DbMailItem {
                 int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
                 stmt = conn.prepareStatement("SELECT " + DB_FIELDS +
                             " FROM " + getMailItemTableName(mbox, "mi") +
-                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
+                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", DbUtil.inListSize(count)));
                 int pos = 1;
                 pos = setMailboxId(stmt, mbox, pos);
+                int id = 0;
                 for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, it.next());
+                    stmt.setInt(pos++, id = it.next());
                 }
+                DbUtil.padInList(stmt, pos, count, id);
 
                 rs = stmt.executeQuery();
                 while (rs.next()) {
@@ -2730,6 +2824,79 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Returns the targets of all the OPEN_CONVERSATION rows for the mailbox, keyed by hash, or {@code null}
+     * if there are more than {@code limit} of them.  A target is the id of a conversation or, for a
+     * single-message conversation, of its message.
+     */
+    public static Map<String, Integer> getOpenConversationTargets(Mailbox mbox, int limit) throws ServiceException {
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT hash, conv_id FROM " + getConversationTableName(mbox) +
+                    (DebugConfig.disableMailboxGroups ? "" : " WHERE mailbox_id = ?") +
+                    " " + Db.getInstance().limit(limit + 1));
+            setMailboxId(stmt, mbox, 1);
+            rs = stmt.executeQuery();
+
+            Map<String, Integer> targets = new HashMap<String, Integer>();
+            while (rs.next()) {
+                if (targets.size() >= limit) {
+                    return null;
+                }
+                targets.put(rs.getString(1), rs.getInt(2));
+            }
+            return targets;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching open conversations for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Returns the targets of the OPEN_CONVERSATION rows for the given hashes, keyed by hash.  Hashes with
+     * no row are left out.
+     * @see #getOpenConversationTargets(Mailbox, int)
+     */
+    public static Map<String, Integer> getOpenConversationTargets(Mailbox mbox, List<String> hashes)
+    throws ServiceException {
+        Map<String, Integer> targets = new HashMap<String, Integer>();
+        if (ListUtil.isEmpty(hashes)) {
+            return targets;
+        }
+
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            for (int i = 0; i < hashes.size(); i += Db.getINClauseBatchSize()) {
+                int count = Math.min(Db.getINClauseBatchSize(), hashes.size() - i);
+                stmt = conn.prepareStatement("SELECT hash, conv_id FROM " + getConversationTableName(mbox) +
+                        " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("hash", DbUtil.inListSize(count)));
+                int pos = setMailboxId(stmt, mbox, 1);
+                for (int index = i; index < i + count; index++) {
+                    stmt.setString(pos++, hashes.get(index));
+                }
+                DbUtil.padInList(stmt, pos, count, hashes.get(i + count - 1));
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    targets.put(rs.getString(1), rs.getInt(2));
+                }
+                rs.close(); rs = null;
+                stmt.close(); stmt = null;
+            }
+            return targets;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching open conversations for " + hashes.size() + " hashes", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static Pair<List<Integer>,TypedIdList> getModifiedItems(Mailbox mbox, MailItem.Type type, long lastSync,
         int sinceDate, Set<Integer> visible) throws ServiceException {
         return getModifiedItems(mbox, type, lastSync, sinceDate, visible, -1);
@@ -3481,12 +3648,10 @@ public class DbMailItem {
             for (int i = 0; i < indexIDs.size(); i += Db.getINClauseBatchSize()) {
                 int count = Math.min(Db.getINClauseBatchSize(), indexIDs.size() - i);
                 stmt = conn.prepareStatement("SELECT index_id FROM " + getMailItemTableName(mbox) +
-                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("index_id", count));
+                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("index_id", DbUtil.inListSize(count)));
                 int pos = 1;
                 pos = setMailboxId(stmt, mbox, pos);
-                for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, indexIDs.get(index));
-                }
+                DbUtil.setInList(stmt, pos, indexIDs, i, count);
                 rs = stmt.executeQuery();
                 while (rs.next()) {
                     info.sharedIndex.remove(rs.getInt(1));
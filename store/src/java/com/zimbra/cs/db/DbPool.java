@@ -16,24 +16,36 @@
  */
 package com.zimbra.cs.db;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.StopWatch;
 import com.zimbra.common.util.SystemUtil;
-import com.zimbra.common.util.ValueCounter;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.Mailbox;
@@ -53,12 +65,37 @@ public class DbPool {
     private static boolean isShutdown;
     private static boolean isUsageWarningEnabled = true;
 
-    static ValueCounter<String> sConnectionStackCounter = new ValueCounter<String>();
+    /**
+     * Connection pool partitions.  Each partition is admitted separately, so that a purge or reindex storm cannot
+     * take the connections that interactive requests need.  The configured pool size is the total across all
+     * partitions; a partition with no connections of its own shares the interactive one.
+     */
+    public enum Partition {
+        INTERACTIVE, DELIVERY, MAINTENANCE
+    }
+
+    private static final ThreadLocal<Partition> sPartition = new ThreadLocal<Partition>();
+    /** Largest number of updates queued on a connection before they are sent. */
+    private static final int MAX_BATCH_SIZE = Math.max(LC.jdbc_batch_size.intValue(), 1);
+    /** Admission permits by {@link Partition#ordinal()}; {@code null} if the pool is allowed to grow. */
+    private static Semaphore[] sPermits;
+    private static int[] sPartitionSizes;
+
+    /** Pooled connections currently handed out, for leak reporting. */
+    private static final Set<DbConnection> sActive =
+            Collections.newSetFromMap(new ConcurrentHashMap<DbConnection, Boolean>());
 
     public static class DbConnection {
         private final Connection connection;
         private Throwable mStackTrace;
         Integer mboxId;
+        private Semaphore permit;
+        private long acquiredAt;
+        private String owner;
+        private PreparedStatement batch;
+        private String batchSql;
+        /** what each queued update is for, so a failure can be reported against the operation that queued it */
+        private final List<String> batchOps = new ArrayList<String>();
 
         DbConnection(Connection conn) {
             connection = conn;
@@ -89,7 +126,7 @@ public class DbPool {
             PreparedStatement stmt = null;
             try {
                 String sql = "SET FOREIGN_KEY_CHECKS=0";
-                stmt = new StatTrackingPreparedStatement(connection.prepareStatement(sql),sql);
+                stmt = prepareStatement(sql);
                 stmt.execute();
             } catch (SQLException e) {
                 throw ServiceException.FAILURE("disabling foreign key constraints", e);
@@ -102,7 +139,7 @@ public class DbPool {
             String sql = "SET FOREIGN_KEY_CHECKS=1";
             PreparedStatement stmt = null;
             try {
-                stmt = new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql);
+                stmt = prepareStatement(sql);
                 stmt.execute();
             } catch (SQLException e) {
                 throw ServiceException.FAILURE("disabling foreign key constraints", e);
@@ -112,14 +149,110 @@ public class DbPool {
         }
 
         public PreparedStatement prepareStatement(String sql) throws SQLException {
+            flushBatch();
             return new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql);
         }
 
         public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            flushBatch();
             return new StatTrackingPreparedStatement(connection.prepareStatement(sql, autoGeneratedKeys), sql);
         }
 
+        /**
+         * Returns a statement for an update whose row count the caller doesn't need, which may be deferred and sent
+         * to the database together with the following updates of the same shape.  Bind the parameters and call
+         * {@link #addBatch(String)} instead of executing the statement, and don't close it.
+         * <p>
+         * Pending updates are flushed before any other statement is prepared on this connection, so no query on
+         * this connection ever sees the database without them.  The owner of the transaction must call
+         * {@link #flushBatch()} before committing, where a failure can still roll the transaction back.  Pending
+         * updates are discarded on rollback.
+         */
+        public PreparedStatement prepareBatchStatement(String sql) throws SQLException {
+            if (batch != null && batchSql.equals(sql)) {
+                return batch;
+            }
+            flushBatch();
+            batch = new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql);
+            batchSql = sql;
+            return batch;
+        }
+
+        /**
+         * Queues the parameters bound on the statement from {@link #prepareBatchStatement(String)}.
+         *
+         * @param operation what the update is for, e.g. "writing metadata for item 257"; if the update fails,
+         *                  the exception thrown by {@link #flushBatch()} names it
+         */
+        public void addBatch(String operation) throws SQLException {
+            batch.addBatch();
+            batchOps.add(operation);
+            if (batchOps.size() >= MAX_BATCH_SIZE) {
+                flushBatch();
+            }
+        }
+
+        /**
+         * Sends any pending batched updates to the database.  If one fails, the message of the exception is the
+         * operation passed to {@link #addBatch(String)} for it, whichever statement triggered the flush.
+         */
+        public void flushBatch() throws SQLException {
+            if (batch == null) {
+                return;
+            }
+            PreparedStatement stmt = batch;
+            String sql = batchSql;
+            List<String> ops = new ArrayList<String>(batchOps);
+            batch = null;
+            batchSql = null;
+            batchOps.clear();
+            try {
+                if (!ops.isEmpty()) {
+                    stmt.executeBatch();
+                    ZimbraPerf.COUNTER_DB_BATCH_SIZE.increment(ops.size());
+                }
+            } catch (SQLException e) {
+                int row = getFailedRow(e, ops.size());
+                String operation = row >= 0 ? ops.get(row) : ops.get(0) +
+                        (ops.size() > 1 ? " (or one of the " + (ops.size() - 1) + " updates queued after it)" : "");
+                ZimbraLog.sqltrace.warn("deferred update failed: %s: %s", operation, sql, e);
+                throw new SQLException(operation, e.getSQLState(), e.getErrorCode(), e);
+            } finally {
+                quietCloseStatement(stmt);
+            }
+        }
+
+        /** Returns the index of the update in a batch that failed, or -1 if the driver doesn't say. */
+        static int getFailedRow(SQLException e, int size) {
+            if (!(e instanceof BatchUpdateException)) {
+                return -1;
+            }
+            int[] counts = ((BatchUpdateException) e).getUpdateCounts();
+            if (counts == null) {
+                return -1;
+            } else if (counts.length < size) {
+                // the driver stopped at the failed update
+                return counts.length;
+            }
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == Statement.EXECUTE_FAILED) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void discardBatch() {
+            if (batch != null) {
+                quietCloseStatement(batch);
+                batch = null;
+                batchSql = null;
+                batchOps.clear();
+            }
+        }
+
         public void rollback() throws ServiceException {
+            discardBatch();
             try {
                 connection.rollback();
             } catch (SQLException e) {
@@ -128,6 +261,7 @@ public class DbPool {
         }
 
         public void commit() throws ServiceException {
+            assert batch == null : "committing with unsent batched updates: " + batchSql;
             try {
                 connection.commit();
             } catch (SQLException e) {
@@ -136,6 +270,9 @@ public class DbPool {
         }
 
         public void close() throws ServiceException {
+            // an uncommitted batch goes the way of the rest of the transaction
+            discardBatch();
+
             // first, do any pre-closing ops
             try {
                 Db.getInstance().preClose(this);
@@ -149,17 +286,12 @@ public class DbPool {
             } catch (SQLException e) {
                 throw ServiceException.FAILURE("closing database connection", e);
             } finally {
-                // Connection is being returned to the pool.  Decrement its stack
-                // trace counter.  Null check is required for the stack trace in
-                // case this is a maintenance/logger connection, or if dbconn
-                // debug logging was turned on between the getConnection() and
-                // close() calls.
-                if (mStackTrace != null && ZimbraLog.dbconn.isDebugEnabled()) {
-                    String stackTrace = SystemUtil.getStackTrace(mStackTrace);
-                    synchronized(sConnectionStackCounter) {
-                        sConnectionStackCounter.decrement(stackTrace);
-                    }
+                // Connection is being returned to the pool.  Maintenance/logger
+                // connections were never tracked and hold no permit.
+                if (sActive.remove(this) && permit != null) {
+                    permit.release();
                 }
+                permit = null;
             }
         }
 
@@ -168,6 +300,14 @@ public class DbPool {
             mStackTrace = t;
         }
 
+        /** Records a pooled connection as handed out; {@code permit} is released when it is closed. */
+        void track(Semaphore permit) {
+            this.permit = permit;
+            acquiredAt = System.currentTimeMillis();
+            owner = Thread.currentThread().getName();
+            sActive.add(this);
+        }
+
         public void closeQuietly() {
             try {
                 if (!connection.isClosed()) {
@@ -212,6 +352,8 @@ public class DbPool {
         boolean mSupportsStatsCallback;
         Properties mDatabaseProperties;
         byte whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+        /** Number of prepared statements pooled per connection; 0 leaves statement caching to the driver. */
+        int mStatementCacheSize;
     }
 
     /**
@@ -280,10 +422,31 @@ public class DbPool {
 
         PoolConfig pconfig = Db.getInstance().getPoolConfig();
         sConnectionPool = new GenericObjectPool(null, pconfig.mPoolSize, pconfig.whenExhaustedAction, -1, pconfig.mPoolSize);
+        if (pconfig.whenExhaustedAction != GenericObjectPool.WHEN_EXHAUSTED_GROW) {
+            // admission is controlled per partition, so borrowing from the underlying pool never has to wait
+            int[] sizes = getPartitionSizes(pconfig.mPoolSize);
+            Semaphore[] permits = new Semaphore[sizes.length];
+            for (Partition partition : Partition.values()) {
+                int size = sizes[partition.ordinal()];
+                if (size > 0) {
+                    permits[partition.ordinal()] = new Semaphore(size, true);
+                }
+            }
+            ZimbraLog.dbconn.info("connection pool partitions: interactive=%d delivery=%d maintenance=%d",
+                    sizes[Partition.INTERACTIVE.ordinal()], sizes[Partition.DELIVERY.ordinal()],
+                    sizes[Partition.MAINTENANCE.ordinal()]);
+            sPartitionSizes = sizes;
+            sPermits = permits;
+        }
         ConnectionFactory cfac = ZimbraConnectionFactory.getConnectionFactory(pconfig);
 
+        GenericKeyedObjectPoolFactory stmtPoolFactory = null;
+        if (pconfig.mStatementCacheSize > 0) {
+            stmtPoolFactory = new GenericKeyedObjectPoolFactory(null, -1, GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL,
+                    0, 1, pconfig.mStatementCacheSize);
+        }
         boolean defAutoCommit = false, defReadOnly = false;
-        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit);
+        new PoolableConnectionFactory(cfac, sConnectionPool, stmtPoolFactory, null, defReadOnly, defAutoCommit);
 
         try {
             Class.forName(pconfig.mDriverClassName).newInstance(); //derby requires the .newInstance() call
@@ -333,8 +496,10 @@ public class DbPool {
 
             // If the connection pool is overutilized, warn about potential leaks
             PoolingDataSource pool = getPool();
-            checkPoolUsage();
+            Partition partition = getPartition();
+            checkPoolUsage(partition);
 
+            Semaphore permit = acquirePermit(partition);
             Connection dbconn = null;
             DbConnection conn = null;
             try {
@@ -350,6 +515,8 @@ public class DbPool {
 
                 conn = new DbConnection(dbconn, mboxId);
                 Db.getInstance().postOpen(conn);
+                conn.track(permit);
+                permit = null;
             } catch (SQLException e) {
                 try {
                     if (dbconn != null && !dbconn.isClosed())
@@ -358,17 +525,15 @@ public class DbPool {
                     ZimbraLog.sqltrace.warn("DB connection close caught exception", e);
                 }
                 throw ServiceException.FAILURE("getting database connection", e);
+            } finally {
+                if (permit != null) {
+                    permit.release();
+                }
             }
 
-            // If we're debugging, update the counter with the current stack trace
+            // If we're debugging, remember where the connection was allocated
             if (ZimbraLog.dbconn.isDebugEnabled()) {
-                Throwable t = new Throwable();
-                conn.setStackTrace(t);
-
-                String stackTrace = SystemUtil.getStackTrace(t);
-                synchronized (sConnectionStackCounter) {
-                    sConnectionStackCounter.increment(stackTrace);
-                }
+                conn.setStackTrace(new Throwable());
             }
             if (mbox != null)
                 Db.registerDatabaseInterest(conn, mbox);
@@ -382,36 +547,151 @@ public class DbPool {
         }
     }
 
-    private static void checkPoolUsage() {
-        int numActive = sConnectionPool.getNumActive();
-        int maxActive = sConnectionPool.getMaxActive();
+    /**
+     * Sets the pool partition used for connections subsequently obtained by the current thread, and returns the
+     * previous setting so that the caller can restore it when done.
+     */
+    public static Partition setPartition(Partition partition) {
+        Partition previous = sPartition.get();
+        sPartition.set(partition);
+        return previous;
+    }
+
+    private static Partition getPartition() {
+        Partition partition = sPartition.get();
+        return partition == null ? Partition.INTERACTIVE : partition;
+    }
+
+    /** Splits the configured pool size; the delivery and maintenance partitions get at most a quarter each. */
+    static int[] getPartitionSizes(int poolSize) {
+        int[] sizes = new int[Partition.values().length];
+        sizes[Partition.DELIVERY.ordinal()] = Math.max(0, Math.min(LC.jdbc_pool_delivery_size.intValue(), poolSize / 4));
+        sizes[Partition.MAINTENANCE.ordinal()] =
+                Math.max(0, Math.min(LC.jdbc_pool_maintenance_size.intValue(), poolSize / 4));
+        sizes[Partition.INTERACTIVE.ordinal()] =
+                poolSize - sizes[Partition.DELIVERY.ordinal()] - sizes[Partition.MAINTENANCE.ordinal()];
+        return sizes;
+    }
+
+    /** Returns the partition whose permits {@code partition} actually draws from. */
+    private static int getPermitIndex(Semaphore[] permits, Partition partition) {
+        return permits[partition.ordinal()] != null ? partition.ordinal() : Partition.INTERACTIVE.ordinal();
+    }
+
+    /**
+     * Waits, in FIFO order, for a connection slot in the given partition.  Returns {@code null} if the pool is not
+     * partitioned.
+     */
+    private static Semaphore acquirePermit(Partition partition) throws ServiceException {
+        Semaphore[] permits = sPermits;
+        if (permits == null) {
+            return null;
+        }
+        Semaphore permit = permits[getPermitIndex(permits, partition)];
+        StopWatch watch = getWaitStopWatch(partition);
+        long start = watch.start();
+        boolean acquired;
+        try {
+            acquired = permit.tryAcquire(LC.jdbc_pool_wait_timeout_ms.longValue(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw ServiceException.FAILURE("interrupted while waiting for a database connection", e);
+        }
+        long elapsed = watch.stop(start);
+        if (elapsed <= 1) {
+            ZimbraPerf.COUNTER_DB_POOL_WAIT_1MS.increment();
+        } else if (elapsed <= 10) {
+            ZimbraPerf.COUNTER_DB_POOL_WAIT_10MS.increment();
+        } else if (elapsed <= 100) {
+            ZimbraPerf.COUNTER_DB_POOL_WAIT_100MS.increment();
+        } else if (elapsed <= 1000) {
+            ZimbraPerf.COUNTER_DB_POOL_WAIT_1S.increment();
+        } else {
+            ZimbraPerf.COUNTER_DB_POOL_WAIT_SLOW.increment();
+        }
+        if (!acquired) {
+            ZimbraPerf.COUNTER_DB_POOL_TIMEOUT.increment();
+            throw ServiceException.FAILURE("timed out after " + elapsed + "ms waiting for a " +
+                    partition.name().toLowerCase() + " database connection", null);
+        }
+        return permit;
+    }
+
+    private static StopWatch getWaitStopWatch(Partition partition) {
+        switch (partition) {
+            case DELIVERY:
+                return ZimbraPerf.STOPWATCH_DB_POOL_WAIT_DELIVERY;
+            case MAINTENANCE:
+                return ZimbraPerf.STOPWATCH_DB_POOL_WAIT_MAINTENANCE;
+            default:
+                return ZimbraPerf.STOPWATCH_DB_POOL_WAIT_INTERACTIVE;
+        }
+    }
+
+    private static void checkPoolUsage(Partition partition) {
+        int numActive;
+        int maxActive;
+        String name;
+        Semaphore[] permits = sPermits;
+        int[] sizes = sPartitionSizes;
+        if (permits != null && sizes != null) {
+            int index = getPermitIndex(permits, partition);
+            maxActive = sizes[index];
+            numActive = maxActive - permits[index].availablePermits();
+            name = Partition.values()[index].name().toLowerCase() + " connection pool partition";
+        } else {
+            numActive = sConnectionPool.getNumActive();
+            maxActive = sConnectionPool.getMaxActive();
+            name = "Connection pool";
+        }
 
         if (numActive <= maxActive * 0.75)
             return;
 
-        String stackTraceMsg = "Turn on debug logging for zimbra.dbconn to see stack traces of connections not returned to the pool.";
-        if (ZimbraLog.dbconn.isDebugEnabled()) {
-            StringBuilder buf = new StringBuilder();
-            synchronized (sConnectionStackCounter) {
-                Iterator<String> i = sConnectionStackCounter.iterator();
-                while (i.hasNext()) {
-                    String stackTrace = i.next();
-                    int count = sConnectionStackCounter.getCount(stackTrace);
-                    if (count == 0) {
-                        i.remove();
-                    } else {
-                        buf.append(count + " connections allocated at " + stackTrace + "\n");
-                    }
-                }
+        String logMsg = "%s is 75%% utilized (%d connections out of a maximum of %d in use).  %s";
+        if (isUsageWarningEnabled) {
+            ZimbraLog.dbconn.warn(logMsg, name, numActive, maxActive, getLeakReport());
+        } else if (ZimbraLog.dbconn.isDebugEnabled()) {
+            ZimbraLog.dbconn.debug(logMsg, name, numActive, maxActive, getLeakReport());
+        }
+    }
+
+    private static final int LEAK_REPORT_SIZE = 10;
+
+    /**
+     * Lists the longest-held connections.  With debug logging on for zimbra.dbconn, also groups the outstanding
+     * connections by the stack trace that allocated them.
+     */
+    private static String getLeakReport() {
+        List<DbConnection> active = new ArrayList<DbConnection>(sActive);
+        Collections.sort(active, new Comparator<DbConnection>() {
+            @Override
+            public int compare(DbConnection c1, DbConnection c2) {
+                return Long.compare(c1.acquiredAt, c2.acquiredAt);
             }
-            stackTraceMsg = buf.toString();
+        });
+        long now = System.currentTimeMillis();
+        StringBuilder buf = new StringBuilder("Longest held:");
+        for (DbConnection conn : active.subList(0, Math.min(active.size(), LEAK_REPORT_SIZE))) {
+            buf.append(' ').append(conn.owner).append(" (").append(now - conn.acquiredAt).append("ms)");
         }
-        String logMsg = "Connection pool is 75%% utilized (%d connections out of a maximum of %d in use).  %s";
-        if (isUsageWarningEnabled) {
-            ZimbraLog.dbconn.warn(logMsg, numActive, maxActive, stackTraceMsg);
-        } else {
-            ZimbraLog.dbconn.debug(logMsg, numActive, maxActive, stackTraceMsg);
+        if (!ZimbraLog.dbconn.isDebugEnabled()) {
+            buf.append(".  Turn on debug logging for zimbra.dbconn to see stack traces of connections not returned " +
+                    "to the pool.");
+            return buf.toString();
+        }
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (DbConnection conn : active) {
+            if (conn.mStackTrace != null) {
+                String stackTrace = SystemUtil.getStackTrace(conn.mStackTrace);
+                Integer count = counts.get(stackTrace);
+                counts.put(stackTrace, count == null ? 1 : count + 1);
+            }
+        }
+        buf.append('\n');
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            buf.append(entry.getValue() + " connections allocated at " + entry.getKey() + "\n");
         }
+        return buf.toString();
     }
 
     /**
@@ -539,6 +819,8 @@ public class DbPool {
             sConnectionPool = null;
         }
         sPoolingDataSource = null;
+        sPermits = null;
+        sPartitionSizes = null;
         Db.getInstance().shutdown();
     }
 
@@ -84,6 +84,7 @@ public final class DbSearch {
     private final boolean dumpster;
     private final StringBuilder sql = new StringBuilder();
     private final List<Object> params = new ArrayList<Object>();
+    private List<String> statements;
 
     public DbSearch(Mailbox mbox) {
         this.mailbox = mbox;
@@ -95,6 +96,20 @@ public final class DbSearch {
         this.dumpster = dumpster;
     }
 
+    /**
+     * Collects the SQL of every statement this search executes, including the ones of split up sub-searches.
+     *
+     * @param value list to add the statements to, or null to not collect them
+     */
+    public DbSearch setStatementTrace(List<String> value) {
+        statements = value;
+        return this;
+    }
+
+    private DbSearch newChild() {
+        return new DbSearch(mailbox, dumpster).setStatementTrace(statements);
+    }
+
     /**
      * Returns true if this field is case-sensitive for search/sort, i.e. whether or not we need to do an UPPER() on it
      * in places.
@@ -220,6 +235,9 @@ public final class DbSearch {
         ResultSet rs = null;
         try {
             stmt = conn.prepareStatement(sql.toString());
+            if (statements != null) {
+                statements.add(sql.toString());
+            }
             setParameters(stmt);
             //pos = setSearchVars(stmt, node, pos, null, false, dumpster);
             rs = stmt.executeQuery();
@@ -383,10 +401,11 @@ public final class DbSearch {
                 needAnd = true;
             }
         } else {
-            sql.append(DbUtil.whereIn("mi.type", constraint.types.size()));
+            sql.append(DbUtil.whereIn("mi.type", DbUtil.inListSize(constraint.types.size())));
             for (MailItem.Type type : constraint.types) {
                 params.add(type.toByte());
             }
+            padInList(constraint.types.size());
             needAnd = true;
         }
 
@@ -555,14 +574,14 @@ public final class DbSearch {
             // run each toplevel ORed part as a separate SQL query, then merge the results in memory
             if (node instanceof DbSearchConstraints.Union) {
                 for (DbSearchConstraints child : node.getChildren()) {
-                    result.addAll(new DbSearch(mailbox, dumpster).search(conn, child, sort, offset, limit, fetch));
+                    result.addAll(newChild().search(conn, child, sort, offset, limit, fetch));
                 }
                 Collections.sort(result, new ResultComparator(sort));
             } else if (node instanceof DbSearchConstraints.Intersection) {
                 List<List<Result>> resultLists = new ArrayList<List<Result>>();
 
                 for (DbSearchConstraints child : node.getChildren()) {
-                    resultLists.add(new DbSearch(mailbox, dumpster).search(conn, child, sort, offset, limit, fetch));
+                    resultLists.add(newChild().search(conn, child, sort, offset, limit, fetch));
                 }
                 result = intersectSortedLists(result, resultLists);
             } else {
@@ -574,7 +593,7 @@ public final class DbSearch {
             DbSearchConstraints.Leaf leafNode = node.toLeaf();
             final int dbLimit = Db.getInstance().getParamLimit();
             //avoid edge cases
-            int otherConstraintsCount = params.size() - leafNode.folders.size();
+            int otherConstraintsCount = params.size() - DbUtil.inListSize(leafNode.folders.size());
             final int softLimit = dbLimit - otherConstraintsCount - 10;
             if (leafNode.folders.size() > softLimit) {
                 List<Folder> folderList = new ArrayList<Folder>(leafNode.folders);
@@ -585,7 +604,7 @@ public final class DbSearch {
                     DbSearchConstraints.Leaf subsetNode = leafNode.clone();
                     List<Folder> subList = folderList.subList(start, end);
                     subsetNode.folders.addAll(subList);
-                    result.addAll(new DbSearch(mailbox, dumpster).search(conn, subsetNode, sort, offset, limit, fetch));
+                    result.addAll(newChild().search(conn, subsetNode, sort, offset, limit, fetch));
                     end -= softLimit;
                     start -= softLimit;
                 }
@@ -593,7 +612,7 @@ public final class DbSearch {
                 DbSearchConstraints.Leaf subsetNode = leafNode.clone();
                 List<Folder> subList = folderList.subList(0, end);
                 subsetNode.folders.addAll(subList);
-                result.addAll(new DbSearch(mailbox, dumpster).search(conn, subsetNode, sort, offset, limit, fetch));
+                result.addAll(newChild().search(conn, subsetNode, sort, offset, limit, fetch));
                 Collections.sort(result, new ResultComparator(sort));
             } else {
                 throw ServiceException.FAILURE("splitting failed, too many constraints but not caused entirely by folders", null);
@@ -744,6 +763,9 @@ public final class DbSearch {
         try {
             // Create the statement and bind all our parameters!
             stmt = conn.prepareStatement(sql.toString());
+            if (statements != null) {
+                statements.add(sql.toString());
+            }
             setParameters(stmt);
             // Limit query if DB doesn't support LIMIT clause
             if (hasValidLIMIT && !Db.supports(Db.Capability.LIMIT_CLAUSE)) {
@@ -810,7 +832,7 @@ public final class DbSearch {
             FetchMode fetch) throws SQLException, ServiceException {
         //                 node1 results                     node2 results
         // |---------------------------------------|--------------------------------------|
-        List<Result> result1 = new DbSearch(mailbox, dumpster).search(conn, node1, sort, offset, limit, fetch, false);
+        List<Result> result1 = newChild().search(conn, node1, sort, offset, limit, fetch, false);
         if (result1.size() == 0) {
             //                                              |--- somewhere here----|
             // |---------------------------------------|--------------------------------------|
@@ -822,9 +844,9 @@ public final class DbSearch {
             if (node1.toLeaf() != null) {
                 ignoreNoRecipients = !node1.toLeaf().excludeHasRecipients;
             }
-            int offset2 = offset - new DbSearch(mailbox, dumpster).countResults(conn, node1, ignoreNoRecipients);
+            int offset2 = offset - newChild().countResults(conn, node1, ignoreNoRecipients);
             int limit2 = limit;
-            List<Result> result2 = new DbSearch(mailbox, dumpster).search(conn, node2, sort, offset2, limit2, fetch, false);
+            List<Result> result2 = newChild().search(conn, node2, sort, offset2, limit2, fetch, false);
             result1.addAll(result2);
         }
         else if (result1.size() < limit) {
@@ -834,7 +856,7 @@ public final class DbSearch {
             // This means we need to run the second query with offset=0, and limit={remainder from 1st query}
             int offset2 = 0;
             int limit2 = limit - result1.size();
-            List<Result> result2 = new DbSearch(mailbox, dumpster).search(conn, node2, sort, offset2, limit2, fetch, false);
+            List<Result> result2 = newChild().search(conn, node2, sort, offset2, limit2, fetch, false);
             result1.addAll(result2);
             }
         return result1;
@@ -906,10 +928,11 @@ public final class DbSearch {
             return false;
         }
         if (and) { sql.append(" AND ");}
-        sql.append(DbUtil.whereIn("mi.folder_id", bool, folders.size()));
+        sql.append(DbUtil.whereIn("mi.folder_id", bool, DbUtil.inListSize(folders.size())));
         for (Folder folder : folders) {
             params.add(folder.getId());
         }
+        padInList(folders.size());
         return true;
     }
 
@@ -921,10 +944,11 @@ public final class DbSearch {
             return false;
         }
         if (and) {sql.append(" AND "); }
-        sql.append(DbUtil.whereIn("type", bool, types.size()));
+        sql.append(DbUtil.whereIn("type", bool, DbUtil.inListSize(types.size())));
         for (MailItem.Type type : types) {
             params.add(type.toByte());
         }
+        padInList(types.size());
         return true;
     }
 
@@ -937,8 +961,9 @@ public final class DbSearch {
             return false;
         }
         if (and) {sql.append(" AND "); }
-        sql.append(DbUtil.whereIn(column, bool, c.size()));
+        sql.append(DbUtil.whereIn(column, bool, DbUtil.inListSize(c.size())));
         params.addAll(c);
+        padInList(c.size());
         return true;
     }
 
@@ -951,13 +976,25 @@ public final class DbSearch {
             return false;
         }
         if (and) {sql.append(" AND "); }
-        sql.append(DbUtil.whereIn(column, bool, array.length));
+        sql.append(DbUtil.whereIn(column, bool, DbUtil.inListSize(array.length)));
         for (byte b : array) {
             params.add(b);
         }
+        padInList(array.length);
         return true;
     }
 
+    /**
+     * Repeats the last parameter to fill an IN list of <code>count</code> values that was
+     * built with {@link DbUtil#inListSize}.
+     */
+    private void padInList(int count) {
+        Object last = params.get(params.size() - 1);
+        for (int i = count, size = DbUtil.inListSize(count); i < size; i++) {
+            params.add(last);
+        }
+    }
+
     private boolean encodeNoRecipients(boolean excludeHasRecipients) {
         return encodeNoRecipients(excludeHasRecipients, true);
     }
@@ -1047,10 +1084,11 @@ public final class DbSearch {
             if (!DebugConfig.disableMailboxGroups) {
                 sql.append("mi.mailbox_id = ti.mailbox_id AND ");
             }
-            sql.append("mi.id = ti.item_id AND ").append(DbUtil.whereIn("ti.tag_id", tags.size())).append(')');
+            sql.append("mi.id = ti.item_id AND ").append(DbUtil.whereIn("ti.tag_id", DbUtil.inListSize(tags.size()))).append(')');
             for (Tag tag : tags) {
                 params.add(tag.getId());
             }
+            padInList(tags.size());
         }
         return true;
     }
@@ -1153,23 +1191,63 @@ public final class DbSearch {
     private boolean encodeCursorRange(DbSearchConstraints.CursorRange range, boolean and) {
         // Can't use SORT_COLUMN_ALIAS because column aliases in SELECT are illegal to use in WHERE
         String col = toSortField(range.sortBy);
+        boolean desc = range.sortBy.getDirection() == SortBy.Direction.DESC;
+        // the cursor hit sits on the leading bound when seeking past it, or on the only bound when counting the
+        // hits before it
+        boolean keysetMin = range.cursorId > 0 && range.min != null && (!desc || range.max == null);
+        boolean keysetMax = range.cursorId > 0 && range.max != null && (desc || range.min == null);
         if (and) {sql.append(" AND "); }
         sql.append("(");
         if (range.min != null) {
-            sql.append(col).append(range.minInclusive ? " >= ?" : " > ?");
-            params.add(range.min.replace("\\\"", "\""));
+            if (keysetMin) {
+                encodeKeyset(col, range.min, ">", range.cursorId, range.sortBy);
+            } else {
+                sql.append(col).append(range.minInclusive ? " >= ?" : " > ?");
+                params.add(toCursorParam(range.min, range.sortBy));
+            }
         }
         if (range.max != null) {
             if (range.min != null) {
                 sql.append(" AND ");
             }
-            sql.append(col).append(range.maxInclusive ? " <= ?" : " < ?");
-            params.add(range.max.replace("\\\"", "\""));
+            if (keysetMax) {
+                encodeKeyset(col, range.max, "<", range.cursorId, range.sortBy);
+            } else {
+                sql.append(col).append(range.maxInclusive ? " <= ?" : " < ?");
+                params.add(toCursorParam(range.max, range.sortBy));
+            }
         }
         sql.append(')');
         return true;
     }
 
+    /**
+     * Seeks past the cursor hit, or up to it, breaking ties on the sort value by item ID like
+     * {@link #orderBy(SortBy, boolean)} does: {@code col >= ? AND (col > ? OR mi.id > ?)}. The leading inclusive comparison lets the database start
+     * an index range scan right at the cursor.
+     */
+    private void encodeKeyset(String col, String value, String op, int cursorId, SortBy sort) {
+        Object param = toCursorParam(value, sort);
+        sql.append(col).append(' ').append(op).append("= ? AND (");
+        sql.append(col).append(' ').append(op).append(" ? OR mi.id ").append(op).append(" ?)");
+        params.add(param);
+        params.add(param);
+        params.add(cursorId);
+    }
+
+    private static Object toCursorParam(String value, SortBy sort) {
+        switch (sort.getKey()) {
+            case DATE: // sort values are in milliseconds, mi.date in seconds
+                return (int) Math.min(Long.parseLong(value) / 1000, Integer.MAX_VALUE);
+            case SIZE:
+                return Long.valueOf(value);
+            case ID:
+                return Integer.valueOf(value);
+            default:
+                return value.replace("\\\"", "\"");
+        }
+    }
+
     private void setParameters(PreparedStatement stmt) throws SQLException {
         int pos = 0;
         for (Object param : params) {
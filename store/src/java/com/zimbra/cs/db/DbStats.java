@@ -38,12 +38,19 @@ class DbStats implements RealtimeStatsCallback {
 
     private static Log sLog = LogFactory.getLog(DbStats.class);
     private static final Pattern PATTERN_BP_HIT_RATE = Pattern.compile("hit rate (\\d+)");
+    private static final int TOP_SHAPES = 10;
     
     public Map<String, Object> getStatData() {
         Map<String, Object> data = new HashMap<String, Object>();
 
         try {
             data.put(ZimbraPerf.RTS_DB_POOL_SIZE, DbPool.getSize());
+            data.put(ZimbraPerf.RTS_DB_STMT_SHAPES, StatementShapes.getShapeCount());
+            if (ZimbraLog.perf.isDebugEnabled()) {
+                for (StatementShapes.Shape shape : StatementShapes.getTopShapes(TOP_SHAPES)) {
+                    ZimbraLog.perf.debug("SQL shape: %s", shape);
+                }
+            }
             
             // Parse innodb status output
             DbResults results = DbUtil.executeQuery("SHOW ENGINE INNODB STATUS");
@@ -269,8 +269,8 @@ public final class DbTag {
         }
     }
 
-    static void recalculateTagCounts(Mailbox mbox, Map<Integer, UnderlyingData> lookup) throws ServiceException {
-        DbConnection conn = mbox.getOperationConnection();
+    static void recalculateTagCounts(DbConnection conn, Mailbox mbox, Map<Integer, UnderlyingData> lookup)
+    throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
@@ -28,6 +28,7 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -431,6 +432,65 @@ public final class DbUtil {
         return whereIn(column, true, size);
     }
 
+    /**
+     * Rounds the length of an IN list up to one of a few bucketed sizes, so that
+     * statements built for different numbers of ids share a handful of shapes
+     * that the driver and database can cache instead of parsing each one anew.
+     * Lists of up to 3 entries are left alone; {@link #whereIn(String, boolean, int)}
+     * turns those into <code>=</code> comparisons.  The caller binds the extra
+     * placeholders with {@link #padInList}.
+     */
+    public static int inListSize(int size) {
+        if (size <= 3) {
+            return size;
+        }
+        int max = Math.max(Db.getINClauseBatchSize(), size);
+        int bucket = 4;
+        while (bucket < size) {
+            bucket <<= 1;
+        }
+        return Math.min(bucket, max);
+    }
+
+    /**
+     * Binds <code>count</code> ids from <code>values</code> starting at <code>offset</code>
+     * to an IN list built for {@link #inListSize}<code>(count)</code> placeholders, repeating
+     * the last id to fill the remaining ones.
+     *
+     * @return the index of the next parameter
+     */
+    public static int setInList(PreparedStatement stmt, int pos, List<Integer> values, int offset, int count)
+    throws SQLException {
+        for (int i = offset; i < offset + count; i++) {
+            stmt.setInt(pos++, values.get(i));
+        }
+        return padInList(stmt, pos, count, values.get(offset + count - 1));
+    }
+
+    /**
+     * Fills the placeholders that {@link #inListSize} added to an IN list of
+     * <code>count</code> entries by repeating <code>value</code>, which should be one
+     * of the ids already bound.  Duplicates don't change the result of an IN or NOT IN test.
+     *
+     * @return the index of the next parameter
+     */
+    public static int padInList(PreparedStatement stmt, int pos, int count, int value) throws SQLException {
+        for (int i = count, size = inListSize(count); i < size; i++) {
+            stmt.setInt(pos++, value);
+        }
+        return pos;
+    }
+
+    /**
+     * String version of {@link #padInList(PreparedStatement, int, int, int)}.
+     */
+    public static int padInList(PreparedStatement stmt, int pos, int count, String value) throws SQLException {
+        for (int i = count, size = inListSize(count); i < size; i++) {
+            stmt.setString(pos++, value);
+        }
+        return pos;
+    }
+
     public static String whereNotIn(String column, int size) {
         return whereIn(column, false, size);
     }
@@ -180,12 +180,16 @@ public class MySQL extends Db {
             props.put("cacheResultSetMetadata", "true");
             props.put("cachePrepStmts", "true");
             // props.put("cacheCallableStmts", "true");
-            props.put("prepStmtCacheSize", "25");
-            // props.put("prepStmtCacheSqlLmiit", "256");
+            // IN lists are bucketed (see DbUtil.inListSize), so the set of distinct statements is small
+            // enough to cache; most mail_item SELECTs are longer than the driver's 256 character default
+            props.put("prepStmtCacheSize", "250");
+            props.put("prepStmtCacheSqlLimit", "4096");
             props.put("autoReconnect", "true");
             props.put("useUnicode", "true");
             props.put("characterEncoding", "UTF-8");
             props.put("dumpQueriesOnException", "true");
+            // send DbConnection batches in as few round trips as the driver can manage
+            props.put("rewriteBatchedStatements", "true");
 
             // props.put("connectTimeout", "0");    // connect timeout in msecs
             // props.put("initialTimeout", "2");    // time to wait between re-connects
@@ -59,6 +59,9 @@ public final class SQLite extends Db {
     private String journalMode;
     private String pageSize;
     private String syncMode;
+    private String mmapSize;
+    private String walAutocheckpoint;
+    private String busyTimeout;
 
     SQLite() {
         mErrorCodes = new HashMap<Db.Error, String>(6);
@@ -144,10 +147,17 @@ public final class SQLite extends Db {
         if (pageSize.equals("0"))
             pageSize = null;
         syncMode = LC.sqlite_sync_mode.value();
+        mmapSize = LC.sqlite_mmap_size.value();
+        if (mmapSize.equals("0"))
+            mmapSize = null;
+        walAutocheckpoint = "WAL".equalsIgnoreCase(journalMode) ? LC.sqlite_wal_autocheckpoint.value() : null;
+        busyTimeout = LC.sqlite_busy_timeout_ms.value();
         ZimbraLog.dbconn.info("sqlite driver running with " +
             (cacheSize == null ? "default" : cacheSize) + " cache cache, " +
             (pageSize == null ? "default" : pageSize) + " page size, " +
-            journalMode + " journal mode, " + syncMode + " sync mode");
+            journalMode + " journal mode, " + syncMode + " sync mode, " +
+            (mmapSize == null ? "no" : mmapSize) + " mmap size, " +
+            (LOCK_PER_GROUP ? "per-group" : "per-mailbox") + " write serialization");
         super.startup(pool, poolSize);
     }
 
@@ -155,6 +165,8 @@ public final class SQLite extends Db {
     void postCreate(Connection conn) throws SQLException {
         try {
             conn.setAutoCommit(true);
+            // wait for the database write lock inside SQLite rather than failing with SQLITE_BUSY and retrying
+            pragma(conn, null, "busy_timeout", busyTimeout);
             pragmas(conn, null);
         } finally {
             conn.setAutoCommit(false);
@@ -187,6 +199,10 @@ public final class SQLite extends Db {
             pragma(conn, dbname, "cache_size", cacheSize);
         if (pageSize != null)
             pragma(conn, dbname, "page_size", pageSize);
+        if (mmapSize != null)
+            pragma(conn, dbname, "mmap_size", mmapSize);
+        if (walAutocheckpoint != null)
+            pragma(conn, dbname, "wal_autocheckpoint", walAutocheckpoint);
     }
 
     private static final int DEFAULT_CONNECTION_POOL_SIZE = 6;
@@ -336,10 +352,28 @@ public final class SQLite extends Db {
         }
     }
 
+    /**
+     * SQLite allows a single writer per database file, and all the mailboxes of a mailbox group share one file.
+     * If enabled, connections are serialized per mailbox group instead of per mailbox, so that writers queue fairly
+     * here instead of colliding on SQLITE_BUSY. The lock is held for as long as the connection is, by readers too,
+     * so this also gives up WAL's concurrent reads within a group; it is off by default, which leaves concurrent
+     * writers to the busy timeout.
+     */
+    private static final boolean LOCK_PER_GROUP = LC.sqlite_serialize_group_writers.booleanValue();
+
+    private static int getLockKey(int mboxId) {
+        return getLockKey(mboxId, LOCK_PER_GROUP);
+    }
+
+    static int getLockKey(int mboxId, boolean perGroup) {
+        // -1 is the zimbra database; group keys go below it so that they can't collide with mailbox ids
+        return perGroup && mboxId > 0 ? -1 - DbMailbox.calculateMailboxGroupId(mboxId) : mboxId;
+    }
+
     private void releaseMboxDbLock(Integer mboxId) {
         if (mboxId != null) {
             ReentrantLock lock = null;
-            lock = lockMap.get(mboxId);
+            lock = lockMap.get(getLockKey(mboxId));
             if (lock != null && lock.isHeldByCurrentThread()) {
                 lock.unlock();
                 ZimbraLog.dbconn.trace("unlocked mbox %d",mboxId);
@@ -370,11 +404,12 @@ public final class SQLite extends Db {
     @Override
     void preOpen(Integer mboxId) {
         ZimbraLog.dbconn.trace("trying to lock mbox %d",mboxId);
-        assert(checkLockMap(mboxId));
-        ReentrantLock lock = lockMap.get(mboxId);
+        int key = getLockKey(mboxId);
+        assert(checkLockMap(key));
+        ReentrantLock lock = lockMap.get(key);
         if (lock == null) {
-            lock = new ReentrantLock();
-            ReentrantLock added = lockMap.putIfAbsent(mboxId, lock);
+            lock = new ReentrantLock(LOCK_PER_GROUP);
+            ReentrantLock added = lockMap.putIfAbsent(key, lock);
             if (added != null) {
                 lock = added;
             }
@@ -453,6 +488,8 @@ public final class SQLite extends Db {
         ZimbraLog.dbconn.info("deleting database file for DB '" + dbname + "'");
         new File(getDatabaseFilename(dbname)).delete();
         new File(getDatabaseFilename(dbname) + "-journal").delete();
+        new File(getDatabaseFilename(dbname) + "-wal").delete();
+        new File(getDatabaseFilename(dbname) + "-shm").delete();
     }
 
 
@@ -469,6 +506,8 @@ public final class SQLite extends Db {
             mLoggerUrl = null;
             mSupportsStatsCallback = false;
             mDatabaseProperties = getSQLiteProperties();
+            // the JDBC driver doesn't cache statements itself; have the pool keep them per connection
+            mStatementCacheSize = LC.sqlite_statement_cache_size.intValue();
             whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_GROW; //we use a small pool. we can easily starve when any code requires more than one connection to complete a single operation
 
             // override pool size if specified in prefs
@@ -58,6 +58,13 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     private String queryString;
     private ActivityTracker tracker = ZimbraPerf.SQL_TRACKER;
 
+    private static final ThreadLocal<long[]> threadQueryTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
     public StatTrackingPreparedStatement(PreparedStatement stmt) {
         this.stmt = stmt;
         ZimbraPerf.incrementPrepareCount();
@@ -105,9 +112,19 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
         }
     }
 
+    /* Total time in milliseconds the calling thread has spent executing statements.
+     * Callers take the difference between two readings to attribute database
+     * time to a unit of work, e.g. an IMAP command.
+     */
+    public static long getThreadQueryTime() {
+        return threadQueryTime.get()[0];
+    }
+
     private void trackQueryStats(String sql, long startTime) {
+        threadQueryTime.get()[0] += System.currentTimeMillis() - startTime;
         if (sql != null) {
             tracker.addStat(getQueryType(sql), startTime);
+            StatementShapes.record(sql, startTime);
         }
     }
     @Override
@@ -253,7 +270,10 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int[] executeBatch() throws SQLException {
-        return stmt.executeBatch();
+        long startTime = System.currentTimeMillis();
+        int[] results = stmt.executeBatch();
+        trackQueryStats(queryString, startTime);
+        return results;
     }
 
     @Override
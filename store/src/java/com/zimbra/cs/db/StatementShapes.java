@@ -0,0 +1,175 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.zimbra.common.stats.Counter;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Registry of the distinct shapes of the SQL statements the server executes.
+ * A shape is the statement with its constants, table name suffixes and IN list
+ * contents normalized away (see {@link DbUtil#normalizeSql}), so e.g. the same
+ * SELECT against two mailbox groups counts as one shape.  Execution counts and
+ * times are kept per shape, dumped every stats period to <tt>sql_shape.csv</tt>
+ * and reported by {@link DbStats}.
+ */
+public final class StatementShapes {
+
+    /** Execution statistics for one statement shape. */
+    public static final class Shape {
+        private final String sql;
+        private final String csvKey;
+        private final Counter counter = new Counter();
+
+        Shape(String sql) {
+            this.sql = sql;
+            this.csvKey = '"' + sql.replace("\"", "\"\"") + '"';
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getCount() {
+            return counter.getCount();
+        }
+
+        /** Total execution time in milliseconds. */
+        public long getTotalTime() {
+            return counter.getTotal();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d executions, %d ms: %s", getCount(), getTotalTime(), sql);
+        }
+    }
+
+    /**
+     * Caps the number of SQL strings remembered.  Past that, statements are
+     * normalized on every execution rather than growing the map without bound.
+     * Mailbox group numbers are taken out before the lookup, so the same
+     * statement against each of the groups only takes up one entry.
+     */
+    private static final int MAX_ALIASES = 10000;
+
+    private static final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+    private static final ConcurrentMap<String, Shape> aliases = new ConcurrentHashMap<String, Shape>();
+
+    private StatementShapes() {
+    }
+
+    static Shape getShape(String sql) {
+        sql = stripGroupNumbers(sql);
+        Shape shape = aliases.get(sql);
+        if (shape != null) {
+            return shape;
+        }
+        String normalized = DbUtil.normalizeSql(sql);
+        shape = shapes.get(normalized);
+        if (shape == null) {
+            shape = new Shape(normalized);
+            Shape previous = shapes.putIfAbsent(normalized, shape);
+            if (previous != null) {
+                shape = previous;
+            }
+        }
+        if (aliases.size() < MAX_ALIASES) {
+            aliases.put(sql, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * Replaces the number of each mailbox group database named in <tt>sql</tt>
+     * with the <tt>XXX</tt> that {@link DbUtil#normalizeSql} would put there.
+     */
+    static String stripGroupNumbers(String sql) {
+        String prefix = DbMailbox.DB_PREFIX_MAILBOX_GROUP;
+        int idx = sql.indexOf(prefix);
+        if (idx < 0) {
+            return sql;
+        }
+        StringBuilder sb = new StringBuilder(sql.length());
+        int start = 0;
+        while (idx >= 0) {
+            int end = idx + prefix.length();
+            int digits = end;
+            while (digits < sql.length() && Character.isDigit(sql.charAt(digits))) {
+                digits++;
+            }
+            sb.append(sql, start, end);
+            if (digits > end) {
+                sb.append("XXX");
+            }
+            start = digits;
+            idx = sql.indexOf(prefix, digits);
+        }
+        return sb.append(sql, start, sql.length()).toString();
+    }
+
+    /**
+     * Records one execution of <tt>sql</tt> that started at <tt>startTime</tt>.
+     */
+    static void record(String sql, long startTime) {
+        Shape shape = getShape(sql);
+        shape.counter.increment(System.currentTimeMillis() - startTime);
+        ZimbraPerf.SQL_SHAPE_TRACKER.addStat(shape.csvKey, startTime);
+    }
+
+    /** Returns the number of distinct shapes executed since startup. */
+    public static int getShapeCount() {
+        return shapes.size();
+    }
+
+    /**
+     * Returns up to <tt>max</tt> shapes, most total execution time first.
+     */
+    public static List<Shape> getTopShapes(int max) {
+        // snapshot the totals; they keep moving while we sort
+        final Map<Shape, Long> totals = new IdentityHashMap<Shape, Long>();
+        for (Shape shape : shapes.values()) {
+            totals.put(shape, shape.getTotalTime());
+        }
+        List<Shape> list = new ArrayList<Shape>(totals.keySet());
+        Collections.sort(list, new Comparator<Shape>() {
+            @Override
+            public int compare(Shape s1, Shape s2) {
+                return totals.get(s2).compareTo(totals.get(s1));
+            }
+        });
+        return list.size() > max ? list.subList(0, max) : list;
+    }
+
+    static int getAliasCount() {
+        return aliases.size();
+    }
+
+    static void reset() {
+        shapes.clear();
+        aliases.clear();
+    }
+}
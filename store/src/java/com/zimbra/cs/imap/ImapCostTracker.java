@@ -0,0 +1,283 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Per-account accounting of what IMAP commands cost the server, and a fair-share throttle on top of it.
+ * <p>
+ * The cost of a command is the CPU time and SQL time spent by the thread executing it, plus one unit per
+ * {@link #BYTES_PER_UNIT} bytes of message content it streamed; one unit is roughly a millisecond of server time.
+ * Each account has a token bucket holding up to {@code imap_cost_burst} units that refills at the account's fair
+ * share of {@code imap_cost_capacity}, i.e. the capacity divided by the number of recently active accounts but never
+ * less than {@code imap_cost_min_share}. Commands are always charged after they complete; an expensive command
+ * issued while the account's bucket is in debt is refused with {@code NO [LIMIT]} until the debt is paid off.
+ * Accounts that stay within their share are never refused. Setting {@code imap_cost_throttle_enabled} to false
+ * turns the throttle off and only keeps the accounting.
+ */
+final class ImapCostTracker implements ImapCostTrackerMBean {
+    /** message bytes streamed to the client that count as one cost unit */
+    static final long BYTES_PER_UNIT = 100 * 1024;
+    private static final long UPDATE_INTERVAL = 10 * Constants.MILLIS_PER_SECOND;
+    private static final long ACTIVE_WINDOW = Constants.MILLIS_PER_MINUTE;
+    private static final long IDLE_TIMEOUT = Constants.MILLIS_PER_HOUR;
+    /** weight of the previous interval in the recent cost used to rank accounts */
+    private static final double DECAY = 0.8;
+    private static final int HEAVIEST = 10;
+
+    private static ImapCostTracker instance;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicLong rejectedCommands = new AtomicLong();
+    private volatile double shareRate;
+    private volatile int activeAccounts = 0;
+
+    ImapCostTracker() {
+        shareRate = computeShareRate(0);
+    }
+
+    static synchronized ImapCostTracker getInstance() {
+        if (instance == null) {
+            instance = new ImapCostTracker();
+            instance.start();
+        }
+        return instance;
+    }
+
+    private void start() {
+        Zimbra.sTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    update(System.currentTimeMillis());
+                } catch (Throwable t) {
+                    ZimbraLog.imap.warn("error updating IMAP account costs", t);
+                }
+            }
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL);
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbs.registerMBean(this, new ObjectName("ZimbraCollaborationSuite:type=ImapAccountCost"));
+        } catch (Exception e) {
+            ZimbraLog.imap.warn("Unable to register ImapCostTracker mbean", e);
+        }
+    }
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or 0 if the JVM doesn't measure it.
+     */
+    static long getThreadCpuTime() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        return mx.isCurrentThreadCpuTimeSupported() ? Math.max(mx.getCurrentThreadCpuTime(), 0L) : 0L;
+    }
+
+    static double getCost(long cpuNanos, long dbMillis, long bytes) {
+        return cpuNanos / 1000000.0 + dbMillis + bytes / (double) BYTES_PER_UNIT;
+    }
+
+    private static double computeShareRate(int active) {
+        long capacity = LC.imap_cost_capacity.longValue();
+        if (capacity <= 0) {
+            capacity = Runtime.getRuntime().availableProcessors() * Constants.MILLIS_PER_SECOND;
+        }
+        return Math.max(LC.imap_cost_min_share.longValue(), capacity / (double) Math.max(active, 1));
+    }
+
+    static final class Bucket {
+        final String accountId;
+        double tokens;
+        long lastRefill;
+        long lastUsed;
+        double recentCost = 0;
+        long commands = 0;
+        long cpuMillis = 0;
+        long dbMillis = 0;
+        long bytes = 0;
+        long rejected = 0;
+
+        Bucket(String accountId, double tokens, long now) {
+            this.accountId = accountId;
+            this.tokens = tokens;
+            this.lastRefill = now;
+            this.lastUsed = now;
+        }
+
+        void refill(long now, double rate) {
+            if (now > lastRefill) {
+                tokens = Math.min(LC.imap_cost_burst.longValue(), tokens + (now - lastRefill) * rate / 1000.0);
+                lastRefill = now;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s recent=%.0f commands=%d cpu=%dms db=%dms bytes=%d rejected=%d balance=%.0f",
+                    accountId, recentCost, commands, cpuMillis, dbMillis, bytes, rejected, tokens);
+        }
+    }
+
+    void charge(String accountId, long cpuNanos, long dbMillis, long bytes) {
+        charge(accountId, cpuNanos, dbMillis, bytes, System.currentTimeMillis());
+    }
+
+    void charge(String accountId, long cpuNanos, long dbMillis, long bytes, long now) {
+        Bucket bucket = buckets.get(accountId);
+        if (bucket == null) {
+            Bucket newBucket = new Bucket(accountId, LC.imap_cost_burst.longValue(), now);
+            bucket = buckets.putIfAbsent(accountId, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        double cost = getCost(cpuNanos, dbMillis, bytes);
+        synchronized (bucket) {
+            bucket.refill(now, shareRate);
+            bucket.tokens -= cost;
+            bucket.recentCost += cost;
+            bucket.lastUsed = now;
+            bucket.commands++;
+            bucket.cpuMillis += cpuNanos / 1000000;
+            bucket.dbMillis += dbMillis;
+            bucket.bytes += bytes;
+        }
+    }
+
+    /**
+     * Returns how many milliseconds it will take until the account is back within its share, 0 if it's within its
+     * share now or the throttle is off ({@code imap_cost_throttle_enabled}).
+     */
+    long getTimeToRecover(String accountId) {
+        return getTimeToRecover(accountId, System.currentTimeMillis());
+    }
+
+    long getTimeToRecover(String accountId, long now) {
+        Bucket bucket = buckets.get(accountId);
+        if (!LC.imap_cost_throttle_enabled.booleanValue() || bucket == null) {
+            return 0;
+        }
+        double rate = shareRate;
+        synchronized (bucket) {
+            bucket.refill(now, rate);
+            if (bucket.tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-bucket.tokens * 1000 / rate);
+        }
+    }
+
+    void recordRejection(String accountId) {
+        rejectedCommands.incrementAndGet();
+        Bucket bucket = buckets.get(accountId);
+        if (bucket != null) {
+            synchronized (bucket) {
+                bucket.rejected++;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the fair share from the number of active accounts, ages the recent costs and drops accounts that
+     * have been idle long enough to have a full bucket again.
+     */
+    void update(long now) {
+        int active = 0;
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            Bucket bucket = it.next();
+            synchronized (bucket) {
+                if (now - bucket.lastUsed > IDLE_TIMEOUT) {
+                    it.remove();
+                    continue;
+                }
+                if (now - bucket.lastUsed <= ACTIVE_WINDOW) {
+                    active++;
+                }
+                bucket.recentCost *= DECAY;
+            }
+        }
+        activeAccounts = active;
+        shareRate = computeShareRate(active);
+        if (ZimbraLog.imap.isDebugEnabled() && active > 0) {
+            ZimbraLog.imap.debug("IMAP cost: %d active accounts, share %.0f/s, heaviest %s", active, shareRate,
+                    getHeaviest(1));
+        }
+    }
+
+    List<Bucket> getHeaviest(int count) {
+        // snapshot the recent costs; charge() and update() keep changing them while we sort
+        final Map<Bucket, Double> costs = new IdentityHashMap<Bucket, Double>();
+        for (Bucket bucket : buckets.values()) {
+            synchronized (bucket) {
+                costs.put(bucket, bucket.recentCost);
+            }
+        }
+        List<Bucket> list = new ArrayList<Bucket>(costs.keySet());
+        Collections.sort(list, new Comparator<Bucket>() {
+            @Override
+            public int compare(Bucket b1, Bucket b2) {
+                return costs.get(b2).compareTo(costs.get(b1));
+            }
+        });
+        return list.subList(0, Math.min(count, list.size()));
+    }
+
+    @Override
+    public int getActiveAccounts() {
+        return activeAccounts;
+    }
+
+    @Override
+    public double getShareRate() {
+        return shareRate;
+    }
+
+    @Override
+    public long getRejectedCommands() {
+        return rejectedCommands.get();
+    }
+
+    @Override
+    public String[] getHeaviestAccounts() {
+        List<Bucket> heaviest = getHeaviest(HEAVIEST);
+        String[] result = new String[heaviest.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = heaviest.get(i).toString();
+        }
+        return result;
+    }
+}
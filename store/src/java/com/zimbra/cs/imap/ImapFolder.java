@@ -33,6 +33,7 @@ import java.util.concurrent.ConcurrentSkipListMap;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.BaseFolderInfo;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.FolderStore;
@@ -90,10 +91,13 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         protected boolean notificationsSuspended;
         protected ImapMessageSet savedSearchResults;
         protected final Map<Integer, DirtyMessage> dirtyMessages = new ConcurrentSkipListMap<Integer, DirtyMessage>();
+        protected final ImapSearchCache searchCache;
 
         protected SessionData(ImapPath path, byte params, ImapHandler handler) throws ServiceException {
             this.credentials = handler.getCredentials();
             this.writable = (params & SELECT_READONLY) == 0 && path.isWritable();
+            int cacheSize = LC.imap_search_cache_size.intValue();
+            this.searchCache = cacheSize > 0 ? new ImapSearchCache(cacheSize) : null;
         }
         protected boolean hasNotifications() {
             return tagsAreDirty || !dirtyMessages.isEmpty() || expungedCount > 0;
@@ -677,6 +681,20 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
+    /** Returns the cache of index-backed SEARCH/SORT results for the current SELECT, or
+     *  {@code null} if search result caching is disabled. */
+    protected ImapSearchCache getSearchCache() {
+        SessionData sdata = sessionData;
+        return sdata == null ? null : sdata.searchCache;
+    }
+
+    private void clearSearchCache() {
+        ImapSearchCache cache = getSearchCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     protected void saveSearchResults(ImapMessageSet i4set) {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -1132,12 +1150,15 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     @Override
     public void handleTagDelete(int changeId, int tagId, Change chg) {
         dirtyTag(tags.uncache(tagId), changeId, null);
+        // KEYWORD searches resolve tags by name, which doesn't bump the folder's MODSEQ
+        clearSearchCache();
     }
 
     @Override
     public void handleTagRename(int changeId, ZimbraTag tag, Change chg) {
         dirtyTag(tags.uncache(tag.getTagId()), changeId, tag.getTagName());
         cacheTag(tag);
+        clearSearchCache();
     }
 
     @Override
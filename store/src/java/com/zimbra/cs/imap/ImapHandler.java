@@ -92,6 +92,7 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 import com.zimbra.cs.account.accesscontrol.Rights.Admin;
 import com.zimbra.cs.account.auth.AuthContext;
+import com.zimbra.cs.db.StatTrackingPreparedStatement;
 import com.zimbra.cs.imap.ImapCredentials.EnabledHack;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
@@ -234,6 +235,8 @@ public abstract class ImapHandler {
     private Set<ImapExtension> activeExtensions;
     private final ServerThrottle reqThrottle;
     private final ImapCommandThrottle commandThrottle;
+    /** message bytes streamed by the current command, for {@link ImapCostTracker} */
+    private long costBytes;
 
     private static final Set<String> THROTTLED_COMMANDS = ImmutableSet.of(
             "APPEND", "COPY", "CREATE", "EXAMINE", "FETCH", "LIST",
@@ -452,6 +455,42 @@ public abstract class ImapHandler {
     }
 
     protected boolean executeRequest(ImapRequest req) throws IOException, ImapException {
+        String accountId = credentials == null ? null : credentials.getAccountId();
+        if (accountId == null) {
+            return dispatchRequest(req);
+        }
+        long cpuStart = ImapCostTracker.getThreadCpuTime();
+        long dbStart = StatTrackingPreparedStatement.getThreadQueryTime();
+        costBytes = 0;
+        try {
+            return dispatchRequest(req);
+        } finally {
+            ImapCostTracker.getInstance().charge(accountId, ImapCostTracker.getThreadCpuTime() - cpuStart,
+                    StatTrackingPreparedStatement.getThreadQueryTime() - dbStart, costBytes);
+        }
+    }
+
+    /**
+     * Returns true if an expensive command should be refused because the account has used up more than its share of
+     * the server recently. The command is refused rather than delayed so the worker thread is free for other users.
+     */
+    private boolean isOverBudget(String command) {
+        if (credentials == null || !THROTTLED_COMMANDS.contains(command) ||
+                reqThrottle.isIpWhitelisted(getOrigRemoteIp()) || reqThrottle.isIpWhitelisted(getRemoteIp())) {
+            return false;
+        }
+        ImapCostTracker tracker = ImapCostTracker.getInstance();
+        String accountId = credentials.getAccountId();
+        long wait = tracker.getTimeToRecover(accountId);
+        if (wait > 0) {
+            ZimbraLog.imap.debug("account over its IMAP cost share for another %dms; refusing %s", wait, command);
+            tracker.recordRejection(accountId);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean dispatchRequest(ImapRequest req) throws IOException, ImapException {
         boolean isProxied = imapProxy != null;
 
         if (getCredentials() != null) {
@@ -481,6 +520,10 @@ public abstract class ImapHandler {
         boolean byUID = false;
         req.skipSpace();
         String command = lastCommand = req.readATOM();
+        if (isOverBudget(command)) {
+            sendNO(tag, "[LIMIT] account is using more than its share of the server, try again later");
+            return true;
+        }
         do {
             if (!THROTTLED_COMMANDS.contains(command)) {
                 commandThrottle.reset(); //we received a command that isn't throttle-aware; reset throttle counter for next pass
@@ -3473,7 +3516,7 @@ public abstract class ImapHandler {
         return search(tag, "SEARCH", i4search, byUID, options, null);
     }
 
-    private boolean doSORT(String tag, ImapSearch i4search, boolean byUID, Integer options,
+    protected boolean doSORT(String tag, ImapSearch i4search, boolean byUID, Integer options,
             List<SortBy> order) throws IOException, ImapException {
         checkCommandThrottle(new SortCommand(i4search, options));
         return search(tag, "SORT", i4search, byUID, options, order);
@@ -3527,6 +3570,10 @@ public abstract class ImapHandler {
                 } finally {
                     mboxStore.unlock();
                 }
+            } else if (!requiresMODSEQ && !i4folder.isVirtual() && i4folder.getSearchCache() != null &&
+                    i4search.isCacheable(i4folder)) {
+                hits = unsorted ? new ImapMessageSet() : new ArrayList<ImapMessage>();
+                searchCached(i4search, i4folder, sort, hits);
             } else {
                 hits = unsorted ? new ImapMessageSet() : new ArrayList<ImapMessage>();
                 try (ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, sort,
@@ -3624,8 +3671,109 @@ public abstract class ImapHandler {
         return byUID ? i4msg.imapUid : i4msg.sequence;
     }
 
+    /**
+     * Runs an index-backed search against the folder's result cache.  If the folder's MODSEQ hasn't
+     * moved since the cached search was run, the cached hits are returned as-is; otherwise only the
+     * messages modified since the cached MODSEQ are re-run against the criteria and merged in.  A
+     * full search is run when there is no usable cached result.
+     */
+    private void searchCached(ImapSearch i4search, ImapFolder i4folder, SortBy sort, Collection<ImapMessage> hits)
+            throws ImapParseException, ServiceException {
+        ImapSearchCache cache = i4folder.getSearchCache();
+        // read the MODSEQ before searching so that anything changed mid-search is picked up next time
+        int modseq = i4folder.getCurrentMODSEQ();
+        ImapSearchCache.CachedResult cached = cache.get(i4search, sort);
+        List<ImapMessage> results = null;
+        if (cached != null) {
+            results = cached.modseq == modseq ? cached.hits : refreshCachedSearch(i4search, i4folder, sort, cached);
+        }
+        boolean complete = true;
+        if (results == null) {
+            results = new ArrayList<ImapMessage>();
+            try (ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, sort, SearchParams.Fetch.IDS)) {
+                for (ZimbraQueryHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
+                    ImapMessage i4msg = i4folder.getById(hit.getItemId());
+                    if (i4msg == null) {
+                        // the session hasn't been notified about this message yet
+                        complete = false;
+                    } else if (!i4msg.isExpunged()) {
+                        results.add(i4msg);
+                    }
+                }
+            }
+        }
+        for (ImapMessage i4msg : results) {
+            if (!i4msg.isExpunged()) {
+                hits.add(i4msg);
+            }
+        }
+        if (complete) {
+            cache.put(i4search, sort, results, modseq);
+        } else {
+            cache.remove(i4search, sort);
+        }
+    }
+
+    /**
+     * Brings a cached search result up to date by re-running the search over just the messages
+     * modified since the cached MODSEQ.
+     * @return the refreshed hits, or {@code null} if a full search is required instead
+     */
+    private List<ImapMessage> refreshCachedSearch(ImapSearch i4search, ImapFolder i4folder, SortBy sort,
+            ImapSearchCache.CachedResult cached) throws ImapParseException, ServiceException {
+        MailboxStore mbox = i4folder.getMailbox();
+        if (mbox == null) {
+            throw ServiceException.FAILURE("unexpected session close during search", null);
+        }
+        List<Integer> modified = mbox.getIdsOfModifiedItemsInFolder(getContext(), cached.modseq, i4folder.getId());
+        if (modified.size() > LARGEST_FOLDER_BATCH) {
+            return null;
+        }
+        Set<Integer> changed = new HashSet<Integer>(modified);
+        Set<Integer> matched = new HashSet<Integer>();
+        if (!changed.isEmpty()) {
+            try (ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, SortBy.NONE, SearchParams.Fetch.IDS, changed)) {
+                for (ZimbraQueryHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
+                    matched.add(hit.getItemId());
+                }
+            }
+        }
+
+        List<ImapMessage> refreshed = new ArrayList<ImapMessage>(cached.hits.size() + matched.size());
+        for (ImapMessage i4msg : cached.hits) {
+            if (i4msg.isExpunged()) {
+                continue;
+            }
+            if (!changed.contains(i4msg.msgId) || matched.remove(i4msg.msgId)) {
+                refreshed.add(i4msg);
+            }
+        }
+        if (!matched.isEmpty()) {
+            // newly-matching messages can't be slotted into a sorted result without their sort keys
+            if (sort != SortBy.NONE) {
+                return null;
+            }
+            for (int id : matched) {
+                ImapMessage i4msg = i4folder.getById(id);
+                if (i4msg == null) {
+                    return null;
+                } else if (!i4msg.isExpunged()) {
+                    refreshed.add(i4msg);
+                }
+            }
+        }
+        ZimbraLog.imap.debug("refreshed cached search from MODSEQ %d (%d changed, %d hits)",
+                cached.modseq, changed.size(), refreshed.size());
+        return refreshed;
+    }
+
     private ZimbraQueryHitResults runSearch(ImapSearch i4search, ImapFolder i4folder, SortBy sort,
             SearchParams.Fetch fetch) throws ImapParseException, ServiceException {
+        return runSearch(i4search, i4folder, sort, fetch, null);
+    }
+
+    private ZimbraQueryHitResults runSearch(ImapSearch i4search, ImapFolder i4folder, SortBy sort,
+            SearchParams.Fetch fetch, Collection<Integer> restrictTo) throws ImapParseException, ServiceException {
         MailboxStore mbox = i4folder.getMailbox();
         if (mbox == null) {
             throw ServiceException.FAILURE("unexpected session close during search", null);
@@ -3638,6 +3786,9 @@ public abstract class ImapHandler {
         mbox.lock(false);
         try {
             search = i4search.toZimbraSearch(i4folder);
+            if (restrictTo != null) {
+                search = "item:{" + Joiner.on(',').join(restrictTo) + "} " + search;
+            }
             if (!i4folder.isVirtual()) {
                 search = "in:" + i4folder.getQuotedPath() + ' ' + search;
             } else if (i4folder.getSize() <= LARGEST_FOLDER_BATCH) {
@@ -3938,7 +4089,7 @@ public abstract class ImapHandler {
                     if (!fullMessage.isEmpty()) {
                         for (ImapPartSpecifier pspec : fullMessage) {
                             result.print(empty ? "" : " ");
-                            pspec.write(result, output, item);
+                            costBytes += pspec.write(result, output, item);
                             empty = false;
                         }
                     }
@@ -3966,7 +4117,7 @@ public abstract class ImapHandler {
                         if (parts != null) {
                             for (ImapPartSpecifier pspec : parts) {
                                 result.print(empty ? "" : " ");
-                                pspec.write(result, output, mm);
+                                costBytes += pspec.write(result, output, mm);
                                 empty = false;
                             }
                         }
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -30,6 +31,7 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.ZimbraMailItem;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -37,7 +39,11 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.FileRegionOutput;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.util.IOUtil;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -134,7 +140,11 @@ class ImapPartSpecifier {
         return sb.toString();
     }
 
-    private void write(PrintStream ps, OutputStream os, GettableInputStreamWithSize gisws)
+    /**
+     * Writes the part to the response and returns the number of content octets sent (not counting the part
+     * specifier and literal length).
+     */
+    private long write(PrintStream ps, OutputStream os, GettableInputStreamWithSize gisws)
     throws IOException, BinaryDecodingException, ServiceException {
         InputStream is = null;
         try {
@@ -147,8 +157,10 @@ class ImapPartSpecifier {
 
             if (is == null) {
                 ps.print("NIL");
+                return 0;
             } else if (command.equals("BINARY.SIZE")) {
                 ps.print(length >= 0 ? length : NULCheck.getLength(is));
+                return 0;
             } else {
                 boolean binary = false;
                 if (command.startsWith("BINARY")) {
@@ -169,25 +181,70 @@ class ImapPartSpecifier {
                 ps.print(binary ? "~{" : "{");
                 ps.print(length);
                 ps.write('}');   /* } added to fix vim buggy brace matching code */
-                if (os != null) {
-                    os.write(ImapHandler.LINE_SEPARATOR_BYTES);
-                    long written = ByteUtil.copy(is, false, os, false);
-                    assert written == length;
+                if (os == null) {
+                    return 0;
                 }
+                os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+                long written = ByteUtil.copy(is, false, os, false);
+                assert written == length;
+                return written;
             }
         } finally {
             ByteUtil.closeStream(is);
         }
     }
 
-    void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
+    long write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
-        write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        if (os instanceof FileRegionOutput) {
+            long transferred = transfer(ps, os, zmi);
+            if (transferred >= 0) {
+                return transferred;
+            }
+        }
+        return write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+    }
+
+    /**
+     * Sends a (possibly partial) BODY[] or RFC822 of a local message straight from its blob file, if the blob is
+     * stored uncompressed and the output can transfer files, and returns the number of octets sent. Returns -1
+     * without writing anything otherwise.
+     */
+    private long transfer(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
+    throws IOException, ServiceException {
+        FileRegionOutput out = (FileRegionOutput) os;
+        int minSize = LC.zimbra_zero_copy_min_size.intValue();
+        if (minSize <= 0 || !isEntireMessage() || command.startsWith("BINARY") || !(zmi instanceof Message) ||
+                !out.isTransferSupported()) {
+            return -1;
+        }
+        Message msg = (Message) zmi;
+        long size = msg.getSize();
+        long start = octetStart >= 0 ? octetStart : 0;
+        long length = octetStart >= 0 ? Math.max(0, Math.min(size, octetEnd) - octetStart) : size;
+        if (length < minSize) {
+            return -1;
+        }
+        FileChannel channel = StoreManager.getInstance().getContentChannel(msg.getBlob());
+        if (channel == null) {
+            return -1;
+        }
+        if (channel.size() != size) {
+            IOUtil.closeQuietly(channel);
+            return -1;
+        }
+        ps.print(this);
+        ps.print(" {");
+        ps.print(length);
+        ps.write('}');   /* } added to fix vim buggy brace matching code */
+        os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+        out.transferFrom(channel, start, length);
+        return length;
     }
 
-    void write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
+    long write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
     throws IOException, BinaryDecodingException, ServiceException {
-        write(ps, os, new MimeMessageGettableInputStreamWithSize(mimeMsg));
+        return write(ps, os, new MimeMessageGettableInputStreamWithSize(mimeMsg));
     }
 
     private interface GettableInputStreamWithSize {
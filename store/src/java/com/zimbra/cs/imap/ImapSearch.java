@@ -33,6 +33,10 @@ abstract class ImapSearch {
     protected abstract String toZimbraSearch(ImapFolder i4folder) throws ImapParseException;
     protected abstract ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException;
     protected boolean requiresMODSEQ()  { return false; }
+    /** Whether the results of this search depend only on the contents of the folder and not on
+     *  session state (sequence numbers, session flags, the current time) or on the state of the
+     *  index, so that they can be cached against the folder's MODSEQ. */
+    protected boolean isCacheable(ImapFolder i4folder)  { return true; }
 
     protected static boolean isAllMessages(ImapFolder i4folder, Set<ImapMessage> i4set) {
         int size = i4set.size() - (i4set.contains(null) ? 1 : 0);
@@ -130,6 +134,16 @@ abstract class ImapSearch {
             return false;
         }
 
+        @Override
+        protected boolean isCacheable(ImapFolder i4folder) {
+            for (ImapSearch i4search : mChildren) {
+                if (!i4search.isCacheable(i4folder)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -283,6 +297,9 @@ abstract class ImapSearch {
         @Override
         protected boolean canBeRunLocally()  { return true; }
 
+        @Override
+        protected boolean isCacheable(ImapFolder i4folder)  { return false; }
+
         @Override
         protected String toZimbraSearch(ImapFolder i4folder) throws ImapParseException {
             return sequenceAsSearchTerm(i4folder, evaluate(i4folder), true);
@@ -335,6 +352,12 @@ abstract class ImapSearch {
         @Override
         protected boolean canBeRunLocally()  { return true; }
 
+        @Override
+        protected boolean isCacheable(ImapFolder i4folder) {
+            ImapFlag i4flag = i4folder.getFlagByName(mFlagName);
+            return i4flag == null || i4flag.mPermanent;
+        }
+
         @Override
         protected String toZimbraSearch(ImapFolder i4folder) {
             ImapFlag i4flag = i4folder.getFlagByName(mFlagName);
@@ -482,6 +505,8 @@ abstract class ImapSearch {
         @Override
         protected boolean canBeRunLocally()                   { return false; }
         @Override
+        protected boolean isCacheable(ImapFolder i4folder)    { return false; }
+        @Override
         protected String toZimbraSearch(ImapFolder i4folder)  {
             return mRelation.toString() + (System.currentTimeMillis() - mOffset * Constants.MILLIS_PER_SECOND);
         }
@@ -618,6 +643,10 @@ abstract class ImapSearch {
 
         @Override
         protected boolean canBeRunLocally()                   { return mValue.trim().equals(""); }
+        /** Index-backed: a message that hadn't been indexed yet would never be rechecked, since
+         *  indexing doesn't bump the MODSEQ. */
+        @Override
+        protected boolean isCacheable(ImapFolder i4folder)    { return canBeRunLocally(); }
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return stringAsSearchTerm(mValue); }
         @Override
@@ -749,6 +778,10 @@ abstract class ImapSearch {
         @Override
         protected boolean canBeRunLocally()  { return false; }
 
+        /** Index-backed, like {@link ContentSearch}. */
+        @Override
+        protected boolean isCacheable(ImapFolder i4folder)  { return false; }
+
         @Override
         protected String toZimbraSearch(ImapFolder i4folder) {
             String value = stringAsSearchTerm(mValue, mPrefixSearch);
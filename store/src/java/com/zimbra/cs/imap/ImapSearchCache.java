@@ -0,0 +1,124 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.zimbra.cs.index.SortBy;
+
+/**
+ * Per-SELECT cache of index-backed SEARCH and SORT results.
+ * <p>
+ * Entries are keyed by the search criteria and sort order and remember the folder MODSEQ at the
+ * time the search was run, so that a repeated search can either be answered as-is (nothing in the
+ * folder has changed) or be brought up to date by re-evaluating only the messages modified since
+ * that MODSEQ.  The cache is bounded and evicts the least recently used entry.
+ */
+final class ImapSearchCache {
+
+    static final class CachedResult {
+        final List<ImapMessage> hits;
+        final int modseq;
+
+        CachedResult(Collection<ImapMessage> hits, int modseq) {
+            this.hits = new ArrayList<ImapMessage>(hits);
+            this.modseq = modseq;
+        }
+    }
+
+    private static final class Key {
+        private final ImapSearch search;
+        private final SortBy sort;
+
+        Key(ImapSearch search, SortBy sort) {
+            this.search = search;
+            this.sort = sort;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(search, sort);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return sort == other.sort && Objects.equal(search, other.search);
+        }
+    }
+
+    private final Map<Key, CachedResult> entries;
+    private int hits = 0;
+    private int misses = 0;
+
+    ImapSearchCache(final int maxSize) {
+        this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = -4209151372458315717L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized CachedResult get(ImapSearch search, SortBy sort) {
+        CachedResult result = entries.get(new Key(search, sort));
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    synchronized void put(ImapSearch search, SortBy sort, Collection<ImapMessage> results, int modseq) {
+        entries.put(new Key(search, sort), new CachedResult(results, modseq));
+    }
+
+    synchronized void remove(ImapSearch search, SortBy sort) {
+        entries.remove(new Key(search, sort));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int getHitCount() {
+        return hits;
+    }
+
+    synchronized int getMissCount() {
+        return misses;
+    }
+}
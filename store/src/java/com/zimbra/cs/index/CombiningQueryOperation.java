@@ -30,4 +30,9 @@ abstract class CombiningQueryOperation extends QueryOperation {
         return operations.size();
     }
 
+    @Override
+    List<QueryOperation> getSubOps() {
+        return operations;
+    }
+
 }
@@ -18,6 +18,7 @@ package com.zimbra.cs.index;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,6 +33,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -46,6 +48,7 @@ import com.zimbra.cs.mailbox.Mountpoint;
 import com.zimbra.cs.mailbox.SearchFolder;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 
 /**
@@ -663,10 +666,18 @@ public class DBQueryOperation extends QueryOperation {
     }
 
     private void dbSearch(List<DbSearch.Result> results, SortBy sort, int offset, int size) throws ServiceException {
-        long start = System.currentTimeMillis();
-        results.addAll(context.getMailbox().index.search(constraints, fetch, sort, offset, size,
-                context.getParams().inDumpster()));
-        ZimbraLog.search.debug("DBSearch elapsed=%d", System.currentTimeMillis() - start);
+        SearchProfile.Node profile = getProfileNode();
+        List<String> statements = profile != null ? new ArrayList<String>() : null;
+        long nanoStart = System.nanoTime();
+        long start = ZimbraPerf.STOPWATCH_SEARCH_DB.start();
+        List<DbSearch.Result> hits = context.getMailbox().index.search(constraints, fetch, sort, offset, size,
+                context.getParams().inDumpster(), statements);
+        results.addAll(hits);
+        ZimbraLog.search.debug("DBSearch elapsed=%d", ZimbraPerf.STOPWATCH_SEARCH_DB.stop(start));
+        if (profile != null) {
+            profile.record(nanoStart, hits.size());
+            profile.addStatements(statements);
+        }
     }
 
     private boolean shouldExecuteDbFirst() throws ServiceException {
@@ -884,6 +895,24 @@ public class DBQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Returns the item ID of the cursor hit if the search can seek straight past it (keyset pagination), otherwise 0.
+     * That takes a cursor on a local item; hits of other mailboxes (cross-mailbox search) don't share our item IDs.
+     * Only date and size sorts make use of it: ID sorts seek by ID anyway, and the string sort columns already end
+     * in the item ID.
+     */
+    static int getKeysetCursorId(QueryContext ctx) {
+        SearchParams.Cursor cursor = ctx.getParams().getCursor();
+        if (cursor == null || cursor.getItemId() == null || !LC.zimbra_search_keyset_pagination_enabled.booleanValue()) {
+            return 0;
+        }
+        if (ctx.getParams().getTypes().contains(MailItem.Type.CONVERSATION)) {
+            return 0;
+        }
+        int id = cursor.getItemId().getId();
+        return id > 0 && cursor.getItemId().belongsTo(ctx.getMailbox()) ? id : 0;
+    }
+
     private void addCursorConstraint() throws ServiceException {
         SearchParams.Cursor cursor = context.getParams().getCursor();
         if (cursor == null) {
@@ -894,6 +923,7 @@ public class DBQueryOperation extends QueryOperation {
             return;
         }
         boolean calcOffset = cursor.isIncludeOffset();
+        int keysetId = getKeysetCursorId(context);
         DbSearchConstraints.Leaf offsetConstraints = null; // to calculate the cursor offset
         SortBy sort = context.getParams().getSortBy();
         // in some cases we cannot use cursors, even if they are requested.
@@ -944,9 +974,19 @@ public class DBQueryOperation extends QueryOperation {
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addDateRange(-1, false, low, false, true);
+                    if (keysetId > 0) {
+                        // the pager no longer walks the ties ahead of the cursor, so count them here too
+                        offsetConstraints.setCursorRange(null, false, String.valueOf(low), false, sort, keysetId);
+                    } else {
+                        offsetConstraints.addDateRange(-1, false, low, false, true);
+                    }
+                }
+                if (keysetId > 0) {
+                    top.setCursorRange(String.valueOf(low), false, high >= 0 ? String.valueOf(high) : null, false,
+                            sort, keysetId);
+                } else {
+                    top.addDateRange(low, true, high, false, true);
                 }
-                top.addDateRange(low, true, high, false, true);
                 break;
             }
             case DATE_DESC: {
@@ -955,9 +995,18 @@ public class DBQueryOperation extends QueryOperation {
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addDateRange(high, false, -1, false, true);
+                    if (keysetId > 0) {
+                        offsetConstraints.setCursorRange(String.valueOf(high), false, null, false, sort, keysetId);
+                    } else {
+                        offsetConstraints.addDateRange(high, false, -1, false, true);
+                    }
+                }
+                if (keysetId > 0) {
+                    top.setCursorRange(low >= 0 ? String.valueOf(low) : null, false, String.valueOf(high), false,
+                            sort, keysetId);
+                } else {
+                    top.addDateRange(low, false, high, true, true);
                 }
-                top.addDateRange(low, false, high, true, true);
                 break;
             }
             case SIZE_ASC: {
@@ -966,9 +1015,18 @@ public class DBQueryOperation extends QueryOperation {
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addSizeRange(-1, false, low, false, true);
+                    if (keysetId > 0) {
+                        offsetConstraints.setCursorRange(null, false, String.valueOf(low), false, sort, keysetId);
+                    } else {
+                        offsetConstraints.addSizeRange(-1, false, low, false, true);
+                    }
+                }
+                if (keysetId > 0) {
+                    top.setCursorRange(String.valueOf(low), false, high >= 0 ? String.valueOf(high) : null, false,
+                            sort, keysetId);
+                } else {
+                    top.addSizeRange(low, true, high, false, true);
                 }
-                top.addSizeRange(low, true, high, false, true);
                 break;
             }
             case SIZE_DESC: {
@@ -977,9 +1035,18 @@ public class DBQueryOperation extends QueryOperation {
                 DbSearchConstraints.Leaf top = getTopLeafConstraint();
                 if (calcOffset) {
                     offsetConstraints = top.clone();
-                    offsetConstraints.addSizeRange(high, false, -1, false, true);
+                    if (keysetId > 0) {
+                        offsetConstraints.setCursorRange(String.valueOf(high), false, null, false, sort, keysetId);
+                    } else {
+                        offsetConstraints.addSizeRange(high, false, -1, false, true);
+                    }
+                }
+                if (keysetId > 0) {
+                    top.setCursorRange(low >= 0 ? String.valueOf(low) : null, false, String.valueOf(high), false,
+                            sort, keysetId);
+                } else {
+                    top.addSizeRange(low, false, high, true, true);
                 }
-                top.addSizeRange(low, false, high, true, true);
                 break;
             }
             case READ_ASC:
@@ -1249,6 +1316,12 @@ public class DBQueryOperation extends QueryOperation {
         cb.recurseCallback(this);
     }
 
+    @Override
+    List<QueryOperation> getSubOps() {
+        return luceneOp != null ? Collections.<QueryOperation>singletonList(luceneOp) :
+            Collections.<QueryOperation>emptyList();
+    }
+
     int getDbHitCount() throws ServiceException {
         if (dbHitCount < 0) {
             Mailbox mbox = context.getMailbox();
@@ -806,8 +806,17 @@ public interface DbSearchConstraints extends Cloneable {
         }
 
         void setCursorRange(String min, boolean minInclusive, String max, boolean maxInclusive, SortBy sort) {
+            setCursorRange(min, minInclusive, max, maxInclusive, sort, 0);
+        }
+
+        /**
+         * @param cursorId if non-zero, the item ID of the cursor hit; the range then starts right after that hit
+         *  (keyset pagination), or ends right before it if only that end is set, see {@link CursorRange#cursorId}
+         */
+        void setCursorRange(String min, boolean minInclusive, String max, boolean maxInclusive, SortBy sort,
+                int cursorId) {
             assert cursorRange == null : cursorRange;
-            cursorRange = new CursorRange(min, minInclusive, max, maxInclusive, sort);
+            cursorRange = new CursorRange(min, minInclusive, max, maxInclusive, sort, cursorId);
         }
 
         public void addItemIdRange(int min, boolean minInclusive, int max, boolean maxInclusive, boolean bool) {
@@ -1525,18 +1534,32 @@ public interface DbSearchConstraints extends Cloneable {
         public final String max;
         public final boolean maxInclusive;
         public final SortBy sortBy;
+        /**
+         * Item ID of the cursor hit, or 0. If set, the cursor end of the range ({@link #min} for ascending,
+         * {@link #max} for descending sorts, or the only end that is set) is exclusive and hits with the same sort
+         * value are told apart by item ID, the secondary sort key, so that the query seeks straight past the cursor
+         * instead of returning its ties, or counts exactly the hits that sort before it.
+         */
+        public final int cursorId;
 
         public CursorRange(String min, boolean minInclusive, String max, boolean maxInclusive, SortBy sort) {
+            this(min, minInclusive, max, maxInclusive, sort, 0);
+        }
+
+        public CursorRange(String min, boolean minInclusive, String max, boolean maxInclusive, SortBy sort,
+                int cursorId) {
             this.min = min;
             this.minInclusive = minInclusive;
             this.max = max;
             this.maxInclusive = maxInclusive;
             this.sortBy = sort;
+            this.cursorId = cursorId;
         }
 
         @Override
         public String toString() {
-            return MoreObjects.toStringHelper(this).add("min", min).add("max", max).add("sort", sortBy).toString();
+            return MoreObjects.toStringHelper(this).add("min", min).add("max", max).add("sort", sortBy)
+                    .add("cursorId", cursorId).toString();
         }
     }
 
@@ -17,6 +17,7 @@
 package com.zimbra.cs.index;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -45,6 +46,11 @@ abstract class FilterQueryOperation extends QueryOperation {
         cb.recurseCallback(this);
     }
 
+    @Override
+    List<QueryOperation> getSubOps() {
+        return Collections.singletonList(operation);
+    }
+
     @Override
     QueryOperation expandLocalRemotePart(Mailbox mbox) throws ServiceException {
         operation.expandLocalRemotePart(mbox);
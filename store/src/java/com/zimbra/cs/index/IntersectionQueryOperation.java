@@ -58,16 +58,27 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         return bufferedNext.remove(0);
     }
 
+    void bufferNextHits() throws ServiceException {
+        if (bufferedNext.size() > 0) {
+            return;
+        }
+        SearchProfile.Node profile = getProfileNode();
+        if (profile == null) {
+            intersectNextHits();
+        } else {
+            long start = System.nanoTime();
+            intersectNextHits();
+            profile.record(start, bufferedNext.size());
+        }
+    }
+
     /**
      * There can be multiple Hits with the same exact sort-field. This function does a complete N^2 intersection of all
      * of the hits for a particular sort field.
      *
      * FIXME: this function is hideous, do _something_ with it.
      */
-    void bufferNextHits() throws ServiceException {
-        if (bufferedNext.size() > 0) {
-            return;
-        }
+    private void intersectNextHits() throws ServiceException {
         TryAgain: while (true) {
             if (!messageGrouper[0].bufferNextHits()) {
                 return;
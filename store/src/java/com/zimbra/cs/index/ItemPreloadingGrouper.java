@@ -21,6 +21,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.stats.ZimbraPerf;
 import java.util.*;
 
 /**
@@ -36,13 +37,16 @@ final class ItemPreloadingGrouper extends BufferingResultsGrouper {
     private final int chunkSize;
     private final boolean inDumpster;
     private final OperationContext opContext;
+    private final SearchProfile profile;
 
-    ItemPreloadingGrouper(ZimbraQueryResults results, int chunkSize, Mailbox mbox, boolean inDumpster) {
+    ItemPreloadingGrouper(ZimbraQueryResults results, int chunkSize, Mailbox mbox, boolean inDumpster,
+            SearchProfile profile) {
         super(results);
         assert(chunkSize > 0);
         this.chunkSize = chunkSize;
         opContext = mbox.getOperationContext();
         this.inDumpster = inDumpster;
+        this.profile = profile;
     }
 
     @Override
@@ -95,12 +99,18 @@ final class ItemPreloadingGrouper extends BufferingResultsGrouper {
         }
 
         if (numToLoad > 0) {
+            long start = ZimbraPerf.STOPWATCH_SEARCH_PRELOAD.start();
+            long nanoStart = System.nanoTime();
             MailItem[] items = mbox.getItemById(opContext, unloadedIds, MailItem.Type.UNKNOWN, inDumpster);
             for (int i = 0; i < hits.size(); ++i) {
                 if (items[i] != null) {
                     hits.get(i).setItem(items[i]);
                 }
             }
+            ZimbraPerf.STOPWATCH_SEARCH_PRELOAD.stop(start);
+            if (profile != null) {
+                profile.getNode("ItemPreloadingGrouper").record(nanoStart, numToLoad);
+            }
         }
     }
 }
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
 
+import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
@@ -34,6 +35,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
@@ -47,6 +49,7 @@ import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 
 /**
@@ -90,6 +93,7 @@ public final class LuceneQueryOperation extends QueryOperation {
     private int topDocsChunkSize = 2000; // how many hits to fetch per step in Lucene
     private ZimbraIndexSearcher searcher;
     private Sort sort;
+    private Query cursorQuery; // restricts hits to the cursor's sort range, see toLuceneCursorRange()
 
     /**
      * Adds the specified text clause at the top level.
@@ -394,14 +398,27 @@ public final class LuceneQueryOperation extends QueryOperation {
                 return;
             }
             ZimbraTermsFilter filter = (filterTerms != null) ? new ZimbraTermsFilter(filterTerms) : null;
-            long start = System.currentTimeMillis();
+            Query query = luceneQuery;
+            if (cursorQuery != null) {
+                BooleanQuery bq = new BooleanQuery();
+                bq.add(luceneQuery, Occur.MUST);
+                bq.add(cursorQuery, Occur.MUST);
+                query = bq;
+            }
+            long nanoStart = System.nanoTime();
+            long start = ZimbraPerf.STOPWATCH_SEARCH_LUCENE.start();
             if (sort == null) {
-                hits = searcher.search(luceneQuery, filter, topDocsLen);
+                hits = searcher.search(query, filter, topDocsLen);
             } else {
-                hits = searcher.search(luceneQuery, filter, topDocsLen, sort);
+                hits = searcher.search(query, filter, topDocsLen, sort);
             }
+            long elapsed = ZimbraPerf.STOPWATCH_SEARCH_LUCENE.stop(start);
             ZimbraLog.search.debug("LuceneSearch query=%s,n=%d,total=%d,elapsed=%d",
-                    luceneQuery, topDocsLen, hits.getTotalHits(), System.currentTimeMillis() - start);
+                    query, topDocsLen, hits.getTotalHits(), elapsed);
+            SearchProfile.Node profile = getProfileNode();
+            if (profile != null) {
+                profile.record(nanoStart, hits.getTotalHits());
+            }
         } catch (IOException e) {
             ZimbraLog.search.error("Failed to search query=%s", luceneQuery, e);
             IOUtil.closeQuietly(searcher);
@@ -764,9 +781,39 @@ public final class LuceneQueryOperation extends QueryOperation {
                 throw ServiceException.FAILURE("Failed to open searcher", e);
             }
             sort = toLuceneSort(ctx.getResults().getSortBy());
+            cursorQuery = toLuceneCursorRange(ctx);
+        }
+    }
+
+    /**
+     * The Lucene counterpart of keyset pagination in {@link DBQueryOperation}: rather than sorting every hit from the
+     * top of the index and letting the DB throw away everything up to the cursor, only ask Lucene for hits at or past
+     * the cursor's sort value. Ties are kept; the DB breaks them by item ID. Only date sorts qualify, as the sort
+     * size field isn't indexed in an order preserving format.
+     */
+    private Query toLuceneCursorRange(QueryContext ctx) {
+        SortBy sortBy = ctx.getResults().getSortBy();
+        if (sortBy == null || sortBy.getKey() != SortBy.Key.DATE || DBQueryOperation.getKeysetCursorId(ctx) == 0) {
+            return null;
+        }
+        SearchParams.Cursor cursor = ctx.getParams().getCursor();
+        try {
+            String from = toLuceneDate(cursor.getSortValue());
+            String to = cursor.getEndSortValue() != null ? toLuceneDate(cursor.getEndSortValue()) : null;
+            if (sortBy.getDirection() == SortBy.Direction.DESC) {
+                return new TermRangeQuery(LuceneFields.L_SORT_DATE, to, from, true, true);
+            } else {
+                return new TermRangeQuery(LuceneFields.L_SORT_DATE, from, to, true, true);
+            }
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
+    private static String toLuceneDate(String value) {
+        return DateTools.timeToString(Long.parseLong(value), DateTools.Resolution.MILLISECOND);
+    }
+
     private Sort toLuceneSort(SortBy sortBy) {
         if (sortBy == null) {
             return null;
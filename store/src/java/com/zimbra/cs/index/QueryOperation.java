@@ -17,6 +17,8 @@
 
 package com.zimbra.cs.index;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import com.zimbra.common.service.ServiceException;
@@ -122,7 +124,8 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
                 if (params.getPrefetch() && usePreloadingGrouper) {
                     chunkSize+= 2; // one for the ConvQueryResults, one for the Grouper
                     results = new ConvQueryResults(new ItemPreloadingGrouper(this, chunkSize, mbox,
-                            params.inDumpster()), types, params.getSortBy(), params.getFetchMode());
+                            params.inDumpster(), params.getProfile()),
+                            types, params.getSortBy(), params.getFetchMode());
                     chunkSize *= MESSAGES_PER_CONV_ESTIMATE; // guess 2 msgs per conv
                 } else {
                     chunkSize++; // one for the ConvQueryResults
@@ -134,8 +137,8 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
             case MESSAGE:
                 if (params.getPrefetch()  && usePreloadingGrouper) {
                     chunkSize += 2; // one for the MsgQueryResults, one for the Grouper
-                    results = new MsgQueryResults(new ItemPreloadingGrouper(this, chunkSize, mbox, params.inDumpster()),
-                            types, params.getSortBy(), params.getFetchMode());
+                    results = new MsgQueryResults(new ItemPreloadingGrouper(this, chunkSize, mbox, params.inDumpster(),
+                            params.getProfile()), types, params.getSortBy(), params.getFetchMode());
                 } else {
                     chunkSize++; // one for the MsgQueryResults
                     results = new MsgQueryResults(this, types, params.getSortBy(), params.getFetchMode());
@@ -145,7 +148,8 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
                 if (params.getPrefetch() && usePreloadingGrouper) {
                     chunkSize++; // one for the grouper
                     results = new UngroupedQueryResults(new ItemPreloadingGrouper(this, chunkSize, mbox,
-                            params.inDumpster()), types, params.getSortBy(), params.getFetchMode());
+                            params.inDumpster(), params.getProfile()),
+                            types, params.getSortBy(), params.getFetchMode());
                 } else {
                     results = new UngroupedQueryResults(this, types, params.getSortBy(), params.getFetchMode());
                 }
@@ -157,7 +161,7 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
         begin(new QueryContext(mbox, results, params, chunkSize));
 
         if (usePreloadingGrouper && preloadOuterResults && params.getPrefetch()) {
-            return new ItemPreloadingGrouper(results, outerChunkSize, mbox, params.inDumpster());
+            return new ItemPreloadingGrouper(results, outerChunkSize, mbox, params.inDumpster(), params.getProfile());
         } else {
             return results;
         }
@@ -195,6 +199,21 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
 
     abstract Set<QueryTarget> getQueryTargets();
 
+    /**
+     * Returns the operations this one combines or wraps, used to lay out the {@link SearchProfile}.
+     */
+    List<QueryOperation> getSubOps() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the profile node of this operation, or null unless the search is being profiled.
+     */
+    final SearchProfile.Node getProfileNode() {
+        SearchProfile profile = context != null ? context.getParams().getProfile() : null;
+        return profile != null ? profile.getNode(this) : null;
+    }
+
     @Override
     public Object clone() {
         try {
@@ -119,6 +119,7 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
     private boolean prefetch = true;
     private Fetch fetch = Fetch.NORMAL;
     private boolean quick = false; // whether or not to skip the catch-up index prior to search
+    private SearchProfile profile; // null unless profiling
 
     public boolean isQuick() {
         return quick;
@@ -128,6 +129,17 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
         quick = value;
     }
 
+    /**
+     * Returns the profile this search records its timings into, or null if the search isn't being profiled.
+     */
+    public SearchProfile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(SearchProfile value) {
+        profile = value;
+    }
+
     public ZimbraSoapContext getRequestContext() {
         return requestContext;
     }
@@ -550,6 +562,9 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
         params.setQueryString(query);
         params.setInDumpster(MoreObjects.firstNonNull(soapParams.getInDumpster(), false));
         params.setQuick(MoreObjects.firstNonNull(soapParams.getQuick(), false));
+        if (MoreObjects.firstNonNull(soapParams.getProfile(), false) && isAdminRequest(zsc)) {
+            params.setProfile(new SearchProfile());
+        }
         String types = soapParams.getSearchTypes() == null ? soapParams.getGroupBy() : soapParams.getSearchTypes();
         if (Strings.isNullOrEmpty(types)) {
             params.setTypes(EnumSet.of(params.isQuick() ? MailItem.Type.MESSAGE : MailItem.Type.CONVERSATION));
@@ -670,6 +685,9 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
         params.setQueryString(query);
         params.setInDumpster(request.getAttributeBool(MailConstants.A_IN_DUMPSTER, false));
         params.setQuick(request.getAttributeBool(MailConstants.A_QUICK, false));
+        if (request.getAttributeBool(MailConstants.A_PROFILE, false) && isAdminRequest(zsc)) {
+            params.setProfile(new SearchProfile());
+        }
         String types = request.getAttribute(MailConstants.A_SEARCH_TYPES, request.getAttribute(MailConstants.A_GROUPBY, null));
         if (Strings.isNullOrEmpty(types)) {
             params.setTypes(EnumSet.of(params.isQuick() ? MailItem.Type.MESSAGE : MailItem.Type.CONVERSATION));
@@ -860,6 +878,10 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
         return limit;
     }
 
+    private static boolean isAdminRequest(ZimbraSoapContext zsc) {
+        return zsc.getAuthToken() != null && zsc.getAuthToken().isAdmin();
+    }
+
     private static int parseLimit(Element request) throws ServiceException {
         return parseLimit(request.getAttributeInt(MailConstants.A_QUERY_LIMIT, -1));
     }
@@ -898,6 +920,7 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
             result.cursor = new Cursor(cursor);
         }
         result.inDumpster = inDumpster;
+        result.profile = profile;
         return result;
     }
 
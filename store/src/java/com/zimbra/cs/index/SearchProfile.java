@@ -0,0 +1,152 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+
+/**
+ * Records where a search spent its time, for admins who ask for it with {@code profile="1"} on a search request.
+ * <p>
+ * The compiled {@link QueryOperation} tree is mirrored by a tree of {@link Node}s, each accumulating the time, number
+ * of calls, number of rows and (for DB operations) the SQL statements of its operation. Phases that run on top of the
+ * operation tree, such as item preloading and response encoding, get their own nodes under the root. The time of a
+ * combining operation (intersection, union) includes the time of its sub-operations.
+ */
+public final class SearchProfile {
+    private static final int MAX_STATEMENTS = 100; // per node
+
+    private final Node root = new Node("Search", null);
+    private final Map<Object, Node> nodes = new IdentityHashMap<Object, Node>();
+
+    /**
+     * Adds the node tree for a compiled query operation.
+     */
+    synchronized void attach(QueryOperation op) {
+        attach(root, op);
+    }
+
+    private void attach(Node parent, QueryOperation op) {
+        Node node = nodes.get(op);
+        if (node == null) {
+            node = new Node(op.getClass().getSimpleName(),
+                    op instanceof CombiningQueryOperation ? null : op.toQueryString());
+            nodes.put(op, node);
+            parent.children.add(node);
+        }
+        for (QueryOperation sub : op.getSubOps()) {
+            attach(node, sub);
+        }
+    }
+
+    /**
+     * Returns the node of a query operation, adding it under the root if it wasn't part of the attached tree.
+     */
+    synchronized Node getNode(QueryOperation op) {
+        Node node = nodes.get(op);
+        if (node == null) {
+            attach(root, op);
+            node = nodes.get(op);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node of a search phase, adding it under the root on first use.
+     */
+    public synchronized Node getNode(String phase) {
+        Node node = nodes.get(phase);
+        if (node == null) {
+            node = new Node(phase, null);
+            nodes.put(phase, node);
+            root.children.add(node);
+        }
+        return node;
+    }
+
+    public synchronized void encode(Element parent) {
+        encode(parent.addNonUniqueElement(MailConstants.E_PROFILE), root);
+    }
+
+    private void encode(Element parent, Node node) {
+        Element el = parent.addNonUniqueElement(MailConstants.E_PROFILE_OP);
+        el.addAttribute(MailConstants.A_NAME, node.name);
+        el.addAttribute(MailConstants.A_QUERY, node.query);
+        if (node.calls > 0) {
+            el.addAttribute(MailConstants.A_PROFILE_MS, node.nanos / 1000 / 1000.0);
+            el.addAttribute(MailConstants.A_PROFILE_CALLS, node.calls);
+            el.addAttribute(MailConstants.A_PROFILE_ROWS, node.rows);
+        }
+        for (String sql : node.statements) {
+            el.addNonUniqueElement(MailConstants.E_PROFILE_SQL).setText(sql);
+        }
+        for (Node child : node.children) {
+            encode(el, child);
+        }
+    }
+
+    public final class Node {
+        private final String name;
+        private final String query;
+        private final List<Node> children = new ArrayList<Node>();
+        private final List<String> statements = new ArrayList<String>();
+        private long nanos = 0;
+        private int calls = 0;
+        private long rows = 0;
+
+        private Node(String name, String query) {
+            this.name = name;
+            this.query = query;
+        }
+
+        /**
+         * Records one call that started at {@code start} (from {@link System#nanoTime()}) and produced {@code count}
+         * rows.
+         */
+        public void record(long start, int count) {
+            add(System.nanoTime() - start, count);
+        }
+
+        /**
+         * Records one call that took {@code elapsed} nanoseconds and produced {@code count} rows.
+         */
+        public void add(long elapsed, int count) {
+            synchronized (SearchProfile.this) {
+                nanos += elapsed;
+                calls++;
+                rows += count;
+            }
+        }
+
+        public void addStatements(List<String> sql) {
+            synchronized (SearchProfile.this) {
+                for (String stmt : sql) {
+                    if (statements.size() >= MAX_STATEMENTS) {
+                        break;
+                    }
+                    statements.add(stmt);
+                }
+            }
+        }
+    }
+
+}
@@ -84,40 +84,51 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
 
     private void internalGetNext() throws ServiceException {
         if (cachedNextHit == null) {
-            if (context.getResults().getSortBy() == SortBy.NONE) {
-                for (QueryOperation op : operations) {
-                    cachedNextHit = op.getNext();
-                    if (cachedNextHit != null) {
-                        return;
-                    }
+            SearchProfile.Node profile = getProfileNode();
+            if (profile == null) {
+                mergeNext();
+            } else {
+                long start = System.nanoTime();
+                mergeNext();
+                profile.record(start, cachedNextHit != null ? 1 : 0);
+            }
+        }
+    }
+
+    private void mergeNext() throws ServiceException {
+        if (context.getResults().getSortBy() == SortBy.NONE) {
+            for (QueryOperation op : operations) {
+                cachedNextHit = op.getNext();
+                if (cachedNextHit != null) {
+                    return;
                 }
-                // no more results!
+            }
+            // no more results!
 
-            } else {
-                // mergesort: loop through QueryOperations and find the "best" hit
-                int currentBestHitOffset = -1;
-                ZimbraHit currentBestHit = null;
-                for (int i = 0; i < operations.size(); i++) {
-                    QueryOperation op = operations.get(i);
-                    if (op.hasNext()) {
-                        if (currentBestHitOffset == -1) {
+        } else {
+            // mergesort: loop through QueryOperations and find the "best" hit
+            int currentBestHitOffset = -1;
+            ZimbraHit currentBestHit = null;
+            for (int i = 0; i < operations.size(); i++) {
+                QueryOperation op = operations.get(i);
+                if (op.hasNext()) {
+                    if (currentBestHitOffset == -1) {
+                        currentBestHitOffset = i;
+                        currentBestHit = op.peekNext();
+                    } else {
+                        ZimbraHit opNext = op.peekNext();
+                        int result = opNext.compareTo(context.getResults().getSortBy(), currentBestHit);
+                        if (result < 0) {
+                            // "before"
                             currentBestHitOffset = i;
-                            currentBestHit = op.peekNext();
-                        } else {
-                            ZimbraHit opNext = op.peekNext();
-                            int result = opNext.compareTo(context.getResults().getSortBy(), currentBestHit);
-                            if (result < 0) {
-                                // "before"
-                                currentBestHitOffset = i;
-                                currentBestHit = opNext;
-                            }
+                            currentBestHit = opNext;
                         }
                     }
                 }
-                if (currentBestHitOffset > -1) {
-                    cachedNextHit = operations.get(currentBestHitOffset).getNext();
-                    assert(cachedNextHit == currentBestHit);
-                }
+            }
+            if (currentBestHitOffset > -1) {
+                cachedNextHit = operations.get(currentBestHitOffset).getNext();
+                assert(cachedNextHit == currentBestHit);
             }
         }
     }
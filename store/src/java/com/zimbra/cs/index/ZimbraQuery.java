@@ -45,6 +45,7 @@ import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.Mountpoint;
 import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 
 /**
@@ -758,7 +759,11 @@ public final class ZimbraQuery {
      * WARNING: You **MUST** call {@link ZimbraQueryResults#close()} when you are done with them!
      */
     public ZimbraQueryResults execute() throws ServiceException {
+        long start = ZimbraPerf.STOPWATCH_SEARCH_EXECUTE.start();
         compile();
+        if (params.getProfile() != null) {
+            params.getProfile().attach(operation);
+        }
 
         Set<QueryTarget> targets = operation.getQueryTargets();
         assert(operation instanceof UnionQueryOperation || QueryTarget.getExplicitTargetCount(targets) <= 1);
@@ -791,6 +796,8 @@ public final class ZimbraQuery {
             IOUtil.closeQuietly(results);
             IOUtil.closeQuietly(operation);
             throw e;
+        } finally {
+            ZimbraPerf.STOPWATCH_SEARCH_EXECUTE.stop(start);
         }
     }
 
@@ -109,7 +109,10 @@ import org.apache.lucene.analysis.Analyzer;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.index.LuceneFields;
@@ -142,6 +145,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Parser for search query.
@@ -215,6 +219,15 @@ public final class QueryParser {
 
     private static Pattern FIELD_REGEX = Pattern.compile("field\\[(.+)\\]:|#(.+):", Pattern.CASE_INSENSITIVE);
 
+    /**
+     * Syntax trees of recently parsed query strings. The tree only depends on the query string, everything that
+     * depends on the mailbox, locale, time zone or search types is resolved when the tree is translated into
+     * {@link Query} clauses, so a cached tree can be shared across mailboxes. Trees are read-only once parsed.
+     */
+    private static final Cache<String, SimpleNode> PARSE_CACHE = LC.zimbra_search_parse_cache_size.intValue() > 0 ?
+            CacheBuilder.newBuilder().maximumSize(LC.zimbra_search_parse_cache_size.intValue())
+            .<String, SimpleNode>build() : null;
+
     private final Mailbox mailbox;
     private final Analyzer analyzer;
     private TimeZone timezone = TimeZone.getTimeZone("UTC");
@@ -297,11 +310,8 @@ public final class QueryParser {
         if (Strings.isNullOrEmpty(src)) {
             throw MailServiceException.QUERY_PARSE_ERROR(src, null, "", 0, "Empty query string not allowed");
         }
-        Parser parser = new Parser(new StringReader(src));
         try {
-            SimpleNode node = parser.parse();
-            assert(node.id == JJTROOT);
-            assert(node.jjtGetNumChildren() == 1);
+            SimpleNode node = parseTree(src);
             return toQuery((SimpleNode) node.jjtGetChild(0));
         } catch (TokenMgrError e) {
             if (quick) {
@@ -319,6 +329,43 @@ public final class QueryParser {
         }
     }
 
+    private static SimpleNode parseTree(String src) throws ParseException {
+        boolean cacheable = PARSE_CACHE != null &&
+                src.length() <= LC.zimbra_search_parse_cache_max_query_length.intValue();
+        if (cacheable) {
+            SimpleNode node = PARSE_CACHE.getIfPresent(src);
+            if (node != null) {
+                ZimbraPerf.COUNTER_SEARCH_PARSE_CACHE.increment(100);
+                return node;
+            }
+            ZimbraPerf.COUNTER_SEARCH_PARSE_CACHE.increment(0);
+        }
+        long start = ZimbraPerf.STOPWATCH_SEARCH_PARSE.start();
+        SimpleNode node;
+        try {
+            node = new Parser(new StringReader(src)).parse();
+        } finally {
+            ZimbraPerf.STOPWATCH_SEARCH_PARSE.stop(start);
+        }
+        assert(node.id == JJTROOT);
+        assert(node.jjtGetNumChildren() == 1);
+        if (cacheable) {
+            detach(node);
+            PARSE_CACHE.put(src, node);
+        }
+        return node;
+    }
+
+    /**
+     * Drops the back references to the {@link Parser} so that a cached tree doesn't pin its input buffers.
+     */
+    private static void detach(SimpleNode node) {
+        node.parser = null;
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            detach((SimpleNode) node.jjtGetChild(i));
+        }
+    }
+
     private List<Query> toQuery(SimpleNode node) throws ParseException, ServiceException {
         assert(node.id == JJTQUERY);
 
@@ -60,6 +60,7 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Config;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.filter.RuleManager;
 import com.zimbra.cs.mailbox.DeliveryContext;
 import com.zimbra.cs.mailbox.DeliveryOptions;
@@ -385,11 +386,14 @@ public class ZimbraLmtpBackend implements LmtpBackend {
 //                mm = new ZMimeMessage(mpis.getMessage(null));
 //            }
 
+            DbPool.Partition partition = DbPool.setPartition(DbPool.Partition.DELIVERY);
             try {
                 deliverMessageToLocalMailboxes(blob, bis, data, mm, env);
             } catch (Exception e) {
                 ZimbraLog.lmtp.warn("Exception delivering mail (temporary failure)", e);
                 setDeliveryStatuses(env.getLocalRecipients(), LmtpReply.TEMPORARY_FAILURE);
+            } finally {
+                DbPool.setPartition(partition);
             }
 
             try {
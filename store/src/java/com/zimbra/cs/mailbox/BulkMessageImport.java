@@ -0,0 +1,250 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.Rfc822ValidationInputStream;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.mime.ParsedMessageOptions;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.StoreManager;
+
+/**
+ * Adds a large number of messages to a mailbox.  Message content is written to
+ * incoming blobs as it is read and MIME parsing is done on a shared pool of
+ * threads.  Messages are queued in batches so that the conversation hashes of
+ * a whole batch can be resolved with one query (see
+ * {@link Mailbox#prefetchThreading(List)}), but each message is still added
+ * with {@link Mailbox#addMessage} in its own transaction, with the usual redo
+ * logging and notifications.  Indexing is deferred until the import is
+ * closed.
+ * <p>
+ * Messages that fail to import don't stop the import; they are reported by
+ * {@link #getFailures()}.  Running out of quota does stop it.
+ * <pre>
+ * BulkMessageImport bulk = new BulkMessageImport(mbox, octxt);
+ * try {
+ *     bulk.add(in, size, null, dopt, name);
+ *     ...
+ * } finally {
+ *     bulk.close();
+ * }
+ * </pre>
+ */
+public final class BulkMessageImport {
+    private static final ExecutorService PARSE_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(LC.bulk_import_parse_threads.intValue(), 1),
+            new ThreadFactoryBuilder().setNameFormat("BulkImport-%d").setDaemon(true).build());
+
+    private final Mailbox mbox;
+    private final OperationContext octxt;
+    private final int batchSize;
+    private final List<Pending> pending = new ArrayList<Pending>();
+    private final List<Pair<String, Exception>> failures = new ArrayList<Pair<String, Exception>>();
+    private int added = 0;
+    private boolean closed = false;
+    /** whether indexing was suspended by this import, rather than by the caller */
+    private final boolean suspendedIndexing;
+
+    private static final class Pending {
+        final String name;
+        final Blob blob;
+        final DeliveryOptions dopt;
+        final Future<ParsedMessage> parsed;
+
+        Pending(String name, Blob blob, DeliveryOptions dopt, Future<ParsedMessage> parsed) {
+            this.name = name;
+            this.blob = blob;
+            this.dopt = dopt;
+            this.parsed = parsed;
+        }
+    }
+
+    public BulkMessageImport(Mailbox mbox, OperationContext octxt) throws ServiceException {
+        this(mbox, octxt, LC.bulk_import_batch_size.intValue());
+    }
+
+    public BulkMessageImport(Mailbox mbox, OperationContext octxt, int batchSize) throws ServiceException {
+        this.mbox = mbox;
+        this.octxt = octxt;
+        this.batchSize = Math.max(batchSize, 1);
+        mbox.beginBulkThreading();
+        suspendedIndexing = !mbox.isIndexingSuspended();
+        if (suspendedIndexing) {
+            mbox.suspendIndexing();
+        }
+    }
+
+    /**
+     * Queues a message for import.  The stream is consumed before this method
+     * returns, but the message may not be added to the mailbox until the
+     * current batch is full or {@link #flush()} is called.
+     *
+     * @param name identifies the message in {@link #getFailures()}
+     */
+    public void add(InputStream in, long sizeHint, Long receivedDate, DeliveryOptions dopt, String name)
+    throws IOException, ServiceException {
+        if (closed) {
+            throw new IllegalStateException("bulk import is closed");
+        }
+        // the same check Mailbox.addMessage(InputStream, ...) applies
+        Rfc822ValidationInputStream validator = null;
+        if (LC.zimbra_lmtp_validate_messages.booleanValue()) {
+            validator = new Rfc822ValidationInputStream(in, LC.zimbra_lmtp_max_line_length.longValue());
+            in = validator;
+        }
+        Blob blob;
+        try {
+            blob = StoreManager.getInstance().storeIncoming(in);
+        } catch (IOException e) {
+            failures.add(new Pair<String, Exception>(name, e));
+            return;
+        }
+        if (validator != null && !validator.isValid()) {
+            StoreManager.getInstance().quietDelete(blob);
+            failures.add(new Pair<String, Exception>(name,
+                    ServiceException.INVALID_REQUEST("Message content is invalid.", null)));
+            return;
+        }
+        final ParsedMessageOptions opt = new ParsedMessageOptions(blob, null, receivedDate,
+                mbox.attachmentsIndexingEnabled());
+        Future<ParsedMessage> parsed = PARSE_EXECUTOR.submit(new Callable<ParsedMessage>() {
+            @Override
+            public ParsedMessage call() throws ServiceException {
+                ParsedMessage pm = new ParsedMessage(opt);
+                pm.getMessageParts();
+                return pm;
+            }
+        });
+        pending.add(new Pending(name, blob, dopt, parsed));
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds all queued messages to the mailbox, one transaction per message.
+     */
+    public void flush() throws ServiceException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Pending> batch = new ArrayList<Pending>(pending);
+        pending.clear();
+        try {
+            List<ParsedMessage> pms = new ArrayList<ParsedMessage>(batch.size());
+            for (Pending p : batch) {
+                pms.add(getParsed(p));
+            }
+            List<ParsedMessage> parsed = new ArrayList<ParsedMessage>(pms.size());
+            for (ParsedMessage pm : pms) {
+                if (pm != null) {
+                    parsed.add(pm);
+                }
+            }
+            mbox.prefetchThreading(parsed);
+
+            for (int i = 0; i < batch.size(); i++) {
+                Pending p = batch.get(i);
+                ParsedMessage pm = pms.get(i);
+                if (pm == null) {
+                    continue;
+                }
+                try {
+                    DeliveryContext dctxt = new DeliveryContext();
+                    dctxt.setIncomingBlob(p.blob);
+                    mbox.addMessage(octxt, pm, p.dopt, dctxt);
+                    added++;
+                } catch (MailServiceException e) {
+                    if (e.getCode() == MailServiceException.QUOTA_EXCEEDED) {
+                        throw e;
+                    }
+                    failures.add(new Pair<String, Exception>(p.name, e));
+                } catch (Exception e) {
+                    failures.add(new Pair<String, Exception>(p.name, e));
+                }
+            }
+        } finally {
+            StoreManager sm = StoreManager.getInstance();
+            for (Pending p : batch) {
+                p.parsed.cancel(false);
+                sm.quietDelete(p.blob);
+            }
+        }
+    }
+
+    private ParsedMessage getParsed(Pending p) {
+        try {
+            return p.parsed.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            failures.add(new Pair<String, Exception>(p.name,
+                    cause instanceof Exception ? (Exception) cause : ServiceException.FAILURE("parse failed", cause)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add(new Pair<String, Exception>(p.name, e));
+        }
+        return null;
+    }
+
+    /** Returns the number of messages that have been added to the mailbox. */
+    public int getAddedCount() {
+        return added;
+    }
+
+    /** Returns the name and cause of each message that couldn't be imported. */
+    public List<Pair<String, Exception>> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Adds any queued messages, then leaves bulk threading and indexes the
+     * imported messages, unless the caller had already suspended indexing.
+     */
+    public void close() throws ServiceException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            mbox.endBulkThreading();
+            if (suspendedIndexing) {
+                mbox.resumeIndexingAndDrainDeferred();
+            }
+            if (!failures.isEmpty()) {
+                ZimbraLog.mailbox.info("bulk import into mailbox %d added %d messages, %d failed",
+                        mbox.getId(), added, failures.size());
+            }
+        }
+    }
+}
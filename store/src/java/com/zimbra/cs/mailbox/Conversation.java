@@ -308,10 +308,12 @@ public class Conversation extends MailItem {
 
     void open(String hash) throws ServiceException {
         DbMailItem.openConversation(hash, this);
+        mMailbox.recordThreadingTarget(hash, mId);
     }
 
     void close(String hash) throws ServiceException {
         DbMailItem.closeConversation(hash, this);
+        mMailbox.recordThreadingClosed(hash, mId);
     }
 
     @Override
@@ -17,9 +17,15 @@
 package com.zimbra.cs.mailbox;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.memcached.MemcachedMap;
@@ -32,51 +38,60 @@ import com.zimbra.cs.memcached.MemcachedConnector;
  * so we cache them in memcached.  The cached data must be kept up to date as changes occur to a folder or
  * a tag.  Folder changes occur very frequently because creating/deleting an item in a folder updates the
  * folder state.
+ * <p>
+ * The folders are stored in chunks, one or more per top-level subtree, with a manifest entry holding the tags
+ * and the names of the chunks.  When only the state of existing folders changes, just the chunks holding those
+ * folders and the manifest are rewritten, so a mailbox with a very large folder tree doesn't reserialize all of
+ * it each time a message is delivered.  Writes aren't acknowledged, so each chunk carries a stamp that is
+ * recorded in the manifest; a chunk whose stamp doesn't match is treated as a cache miss.  The mailbox keeps
+ * the manifest it last read or wrote, so an incremental update doesn't have to read it back from memcached.
+ * <p>
+ * Only the memcached copy is chunked.  {@link Mailbox} still loads the whole folder tree when it is opened.
  */
 public class FoldersTagsCache {
     private static FoldersTagsCache sTheInstance = new FoldersTagsCache();
 
+    private static final int CHUNK_SIZE = Math.max(LC.zimbra_folder_cache_chunk_size.intValue(), 1);
+
+    /** source of chunk stamps; seeded from the clock so stamps aren't reused after a restart */
+    private static final AtomicLong sStamp = new AtomicLong(System.currentTimeMillis() * 1000);
+
     private MemcachedMap<FoldersTagsCacheKey, FoldersTags> mMemcachedLookup;
+    private MemcachedMap<FoldersTagsCacheKey, Metadata> mChunkLookup;
 
     public static FoldersTagsCache getInstance() { return sTheInstance; }
 
     FoldersTagsCache() {
         ZimbraMemcachedClient memcachedClient = MemcachedConnector.getClient();
-        FoldersTagsSerializer serializer = new FoldersTagsSerializer();
-        mMemcachedLookup = new MemcachedMap<FoldersTagsCacheKey, FoldersTags>(memcachedClient, serializer, false);
+        mMemcachedLookup = new MemcachedMap<FoldersTagsCacheKey, FoldersTags>(memcachedClient, new FoldersTagsSerializer(), false);
+        mChunkLookup = new MemcachedMap<FoldersTagsCacheKey, Metadata>(memcachedClient, new ChunkSerializer(), false);
     }
 
     static class FoldersTags {
-        private static final int DATA_VERSION = 1;
+        private static final int DATA_VERSION = 3;
 
-        private MetadataList mFolders;
+        private List<Metadata> mFolders;
         private MetadataList mTags;
+        private Map<String, Long> mChunks;
 
-        public FoldersTags(List<Folder> folders, List<Tag> tags) {
-            mFolders = new MetadataList();
-            for (Folder f : folders) {
-                mFolders.add(f.serializeUnderlyingData());
-            }
-            mTags = new MetadataList();
-            for (Tag t : tags) {
-                mTags.add(t.serializeUnderlyingData());
-            }
-        }
-
-        private FoldersTags(MetadataList folders, MetadataList tags) {
-            mFolders = folders;
+        private FoldersTags(MetadataList tags, Map<String, Long> chunks) {
             mTags = tags;
+            mChunks = chunks;
         }
 
         private static final String FN_DATA_VERSION = "dv";
-        private static final String FN_FOLDERS = "folders";
         private static final String FN_TAGS = "tags";
+        private static final String FN_CHUNKS = "chunks";
 
         public Metadata encode() {
             Metadata meta = new Metadata();
             meta.put(FN_DATA_VERSION, DATA_VERSION);
-            meta.put(FN_FOLDERS, mFolders);
             meta.put(FN_TAGS, mTags);
+            Metadata chunks = new Metadata();
+            for (Map.Entry<String, Long> entry : mChunks.entrySet()) {
+                chunks.put(entry.getKey(), entry.getValue().longValue());
+            }
+            meta.put(FN_CHUNKS, chunks);
             return meta;
         }
 
@@ -86,24 +101,32 @@ public class FoldersTagsCache {
                 ZimbraLog.mailbox.info("Ignoring cached folders/tags with stale data version");
                 return null;
             }
-            MetadataList folders = meta.getList(FN_FOLDERS);
             MetadataList tags = meta.getList(FN_TAGS);
-            return new FoldersTags(folders, tags);
+            Metadata chunkMeta = meta.getMap(FN_CHUNKS);
+            Map<String, Long> chunks = new HashMap<String, Long>();
+            for (String chunk : chunkMeta.asMap().keySet()) {
+                chunks.put(chunk, chunkMeta.getLong(chunk));
+            }
+            return new FoldersTags(tags, chunks);
+        }
+
+        /** Returns the stamp of each chunk, by chunk name. */
+        Map<String, Long> getChunks() {
+            return mChunks;
+        }
+
+        /** Returns the manifest alone, without the folders read from the chunks. */
+        FoldersTags getManifest() {
+            return new FoldersTags(mTags, mChunks);
         }
 
         public List<Metadata> getFolders() {
-            List<Metadata> toRet = new ArrayList<Metadata>();
-            List list = mFolders.asList();
-            for (Object obj : list) {
-                if (obj instanceof Metadata)
-                    toRet.add((Metadata) obj);
-            }
-            return toRet;
+            return mFolders;
         }
 
         public List<Metadata> getTags() {
             List<Metadata> toRet = new ArrayList<Metadata>();
-            List list = mTags.asList();
+            List<Object> list = mTags.asList();
             for (Object obj : list) {
                 if (obj instanceof Metadata)
                     toRet.add((Metadata) obj);
@@ -127,17 +150,173 @@ public class FoldersTagsCache {
         }
     }
 
+    private static final String FN_STAMP = "st";
+    private static final String FN_FOLDERS = "folders";
+
+    private static class ChunkSerializer implements MemcachedSerializer<Metadata> {
+        ChunkSerializer() { }
+
+        @Override
+        public Object serialize(Metadata value) {
+            return value.toString();
+        }
+
+        @Override
+        public Metadata deserialize(Object obj) throws ServiceException {
+            return new Metadata((String) obj);
+        }
+    }
+
     public FoldersTags get(Mailbox mbox) throws ServiceException {
         FoldersTagsCacheKey key = new FoldersTagsCacheKey(mbox.getAccountId());
-        return mMemcachedLookup.get(key);
+        FoldersTags foldersTags = mMemcachedLookup.get(key);
+        if (foldersTags == null) {
+            return null;
+        }
+        Map<FoldersTagsCacheKey, Long> stamps = new HashMap<FoldersTagsCacheKey, Long>();
+        for (Map.Entry<String, Long> entry : foldersTags.getChunks().entrySet()) {
+            stamps.put(new FoldersTagsCacheKey(mbox.getAccountId(), entry.getKey()), entry.getValue());
+        }
+        Map<FoldersTagsCacheKey, Metadata> chunks = mChunkLookup.getMulti(stamps.keySet());
+        List<Metadata> folders = new ArrayList<Metadata>();
+        for (Map.Entry<FoldersTagsCacheKey, Long> entry : stamps.entrySet()) {
+            Metadata chunk = chunks.get(entry.getKey());
+            // an evicted chunk, or a lost write, means we can't trust any of it
+            if (chunk == null) {
+                ZimbraLog.cache.debug("folder chunk %s missing from memcached", entry.getKey().getKeyValue());
+                return null;
+            } else if (chunk.getLong(FN_STAMP, 0) != entry.getValue()) {
+                ZimbraLog.cache.debug("folder chunk %s doesn't match the manifest", entry.getKey().getKeyValue());
+                return null;
+            }
+            List<Object> list = chunk.getList(FN_FOLDERS).asList();
+            for (Object obj : list) {
+                if (obj instanceof Metadata) {
+                    folders.add((Metadata) obj);
+                }
+            }
+        }
+        foldersTags.mFolders = folders;
+        return foldersTags;
     }
 
-    public void put(Mailbox mbox, FoldersTags foldersTags) throws ServiceException {
+    /**
+     * Caches the mailbox's folders and tags.
+     *
+     * @param previous  the manifest last read or written for the mailbox, or {@code null} if not known
+     * @param changed  if not {@code null}, the only folders whose state has changed since {@code previous}
+     *                 was written; only their chunks and the manifest are rewritten.  Must be {@code null} if
+     *                 folders have been created, deleted or moved.
+     * @param tagsChanged  whether the tags need to be reserialized; ignored when {@code changed} is {@code null}
+     * @return the manifest written, or {@code null} if the cache is disabled
+     */
+    public FoldersTags put(Mailbox mbox, Collection<Folder> folders, Collection<Tag> tags, FoldersTags previous,
+            Set<Integer> changed, boolean tagsChanged) throws ServiceException {
         if (DebugConfig.disableFoldersTagsCache)
-            return;
+            return null;
 
+        Map<String, List<Folder>> chunks = getChunks(folders);
         FoldersTagsCacheKey key = new FoldersTagsCacheKey(mbox.getAccountId());
-        mMemcachedLookup.put(key, foldersTags);
+        // the unchanged chunks keep the stamps the previous manifest has for them
+        if (changed == null || previous == null || !previous.getChunks().keySet().equals(chunks.keySet())) {
+            previous = null;
+            changed = null;
+        }
+
+        Map<String, Long> stamps = new HashMap<String, Long>();
+        Map<FoldersTagsCacheKey, Metadata> values = new HashMap<FoldersTagsCacheKey, Metadata>();
+        for (Map.Entry<String, List<Folder>> entry : chunks.entrySet()) {
+            if (changed != null && !containsAny(entry.getValue(), changed)) {
+                stamps.put(entry.getKey(), previous.getChunks().get(entry.getKey()));
+                continue;
+            }
+            MetadataList list = new MetadataList();
+            for (Folder f : entry.getValue()) {
+                list.add(f.serializeUnderlyingData());
+            }
+            long stamp = sStamp.incrementAndGet();
+            Metadata chunk = new Metadata();
+            chunk.put(FN_STAMP, stamp);
+            chunk.put(FN_FOLDERS, list);
+            values.put(new FoldersTagsCacheKey(mbox.getAccountId(), entry.getKey()), chunk);
+            stamps.put(entry.getKey(), stamp);
+        }
+        // write the chunks before the manifest that points at them
+        if (!values.isEmpty()) {
+            mChunkLookup.putMulti(values);
+        }
+
+        MetadataList tagList;
+        if (previous != null && !tagsChanged) {
+            tagList = previous.mTags;
+        } else {
+            tagList = new MetadataList();
+            for (Tag t : tags) {
+                tagList.add(t.serializeUnderlyingData());
+            }
+        }
+        FoldersTags manifest = new FoldersTags(tagList, stamps);
+        mMemcachedLookup.put(key, manifest);
+        return manifest;
+    }
+
+    private static boolean containsAny(List<Folder> folders, Set<Integer> ids) {
+        for (Folder f : folders) {
+            if (ids.contains(f.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Groups the folders by top-level subtree.  A subtree with more than {@link #CHUNK_SIZE} folders is
+     * spread over several chunks by folder ID, so a folder's chunk only changes when the tree does.
+     */
+    static Map<String, List<Folder>> getChunks(Collection<Folder> folders) {
+        Map<Integer, Folder> byId = new HashMap<Integer, Folder>(folders.size() * 2);
+        for (Folder f : folders) {
+            byId.put(f.getId(), f);
+        }
+        Map<Integer, List<Folder>> subtrees = new HashMap<Integer, List<Folder>>();
+        for (Folder f : folders) {
+            int top = getTopLevelId(f, byId);
+            List<Folder> subtree = subtrees.get(top);
+            if (subtree == null) {
+                subtree = new ArrayList<Folder>();
+                subtrees.put(top, subtree);
+            }
+            subtree.add(f);
+        }
+        Map<String, List<Folder>> chunks = new HashMap<String, List<Folder>>();
+        for (Map.Entry<Integer, List<Folder>> entry : subtrees.entrySet()) {
+            List<Folder> subtree = entry.getValue();
+            int count = (subtree.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            for (Folder f : subtree) {
+                String name = entry.getKey() + "-" + (f.getId() % count);
+                List<Folder> chunk = chunks.get(name);
+                if (chunk == null) {
+                    chunk = new ArrayList<Folder>();
+                    chunks.put(name, chunk);
+                }
+                chunk.add(f);
+            }
+        }
+        return chunks;
+    }
+
+    private static int getTopLevelId(Folder folder, Map<Integer, Folder> byId) {
+        Folder f = folder;
+        for (int depth = 0; depth < byId.size(); depth++) {
+            Folder parent = byId.get(f.getFolderId());
+            // the roots are their own parents
+            if (parent == null || parent == f || parent.getId() == Mailbox.ID_FOLDER_USER_ROOT ||
+                    parent.getId() == parent.getFolderId()) {
+                return f.getId();
+            }
+            f = parent;
+        }
+        return f.getId();
     }
 
     public void purgeMailbox(Mailbox mbox) throws ServiceException {
@@ -145,6 +324,14 @@ public class FoldersTagsCache {
             return;
 
         FoldersTagsCacheKey key = new FoldersTagsCacheKey(mbox.getAccountId());
+        FoldersTags foldersTags = mMemcachedLookup.get(key);
         mMemcachedLookup.remove(key);
+        if (foldersTags != null) {
+            List<FoldersTagsCacheKey> keys = new ArrayList<FoldersTagsCacheKey>();
+            for (String chunk : foldersTags.getChunks().keySet()) {
+                keys.add(new FoldersTagsCacheKey(mbox.getAccountId(), chunk));
+            }
+            mChunkLookup.removeMulti(keys);
+        }
     }
 }
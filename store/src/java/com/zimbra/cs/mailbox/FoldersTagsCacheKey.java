@@ -27,6 +27,11 @@ public class FoldersTagsCacheKey implements MemcachedKey {
         mKeyStr = accountId;
     }
 
+    /** Key for one chunk of the account's folders. */
+    public FoldersTagsCacheKey(String accountId, String chunk) {
+        mKeyStr = accountId + ":" + chunk;
+    }
+
     public boolean equals(Object other) {
         if (other instanceof FoldersTagsCacheKey) {
             FoldersTagsCacheKey otherKey = (FoldersTagsCacheKey) other;
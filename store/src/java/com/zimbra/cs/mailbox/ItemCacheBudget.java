@@ -0,0 +1,149 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Server-wide accounting for the per-mailbox {@link MailItem} caches.
+ * <p>
+ * Each mailbox keeps its own LRU of live {@link MailItem}s weighed by {@link #estimateSize(MailItem)}.  This class
+ * tracks the sum of those weights against {@code zimbra_item_cache_max_bytes} and hands out a per-mailbox trim
+ * target: never more than {@code zimbra_item_cache_mailbox_max_bytes}, and only a fair share of the global budget
+ * once the budget is exhausted.  Caches are registered weakly, so the bytes of a mailbox that has been dropped by
+ * {@link MailboxManager} are released once it is collected.
+ * <p>
+ * Entries are weighed when they are put.  Items are modified in place, so the mailbox re-weighs the items a
+ * transaction created or modified when it commits.
+ */
+public final class ItemCacheBudget {
+
+    /** Rough fixed cost of a cached item: the MailItem, its UnderlyingData and the cache entry. */
+    private static final int ITEM_OVERHEAD = 512;
+
+    /** Largest weighted capacity we hand to {@link ConcurrentLinkedHashMap}. */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE;
+
+    static final Weigher<MailItem> ITEM_WEIGHER = new Weigher<MailItem>() {
+        @Override
+        public int weightOf(MailItem item) {
+            return estimateSize(item);
+        }
+    };
+
+    private static final ItemCacheBudget INSTANCE = new ItemCacheBudget(LC.zimbra_item_cache_max_bytes.longValue(),
+            LC.zimbra_item_cache_mailbox_max_bytes.longValue());
+
+    private final long maxBytes;
+    private final long mailboxMaxBytes;
+    private final AtomicLong heapBytes = new AtomicLong();
+    private final Set<Usage> usages = Collections.newSetFromMap(new ConcurrentHashMap<Usage, Boolean>());
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    @VisibleForTesting
+    ItemCacheBudget(long maxBytes, long mailboxMaxBytes) {
+        this.maxBytes = maxBytes;
+        this.mailboxMaxBytes = mailboxMaxBytes;
+    }
+
+    public static ItemCacheBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a rough estimate of the heap retained by a cached item, based on the strings held by its
+     * {@link MailItem.UnderlyingData}.
+     */
+    static int estimateSize(MailItem item) {
+        MailItem.UnderlyingData data = item.mData;
+        long chars = length(data.getSubject()) + length(data.name) + length(data.metadata) + length(data.locator) +
+                length(data.uuid) + length(data.getBlobDigest()) + length(data.getPrevFolders());
+        for (String tag : data.getTags()) {
+            chars += length(tag);
+        }
+        return (int) Math.min(ITEM_OVERHEAD + chars * 2, MAX_CAPACITY);
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length();
+    }
+
+    /** Hard capacity, in estimated bytes, of a single mailbox's item cache. */
+    int getMailboxCapacity() {
+        return (int) Math.min(mailboxMaxBytes > 0 ? mailboxMaxBytes : MAX_CAPACITY, MAX_CAPACITY);
+    }
+
+    /**
+     * Returns the number of estimated bytes a mailbox cache should be trimmed down to at the end of a transaction.
+     */
+    long getTargetBytes() {
+        expunge();
+        long target = mailboxMaxBytes > 0 ? mailboxMaxBytes : Long.MAX_VALUE;
+        if (maxBytes > 0 && heapBytes.get() > maxBytes) {
+            target = Math.min(target, maxBytes / Math.max(usages.size(), 1));
+        }
+        return target;
+    }
+
+    /** Returns the estimated number of bytes held by all registered mailbox caches. */
+    public long getHeapBytes() {
+        expunge();
+        return heapBytes.get();
+    }
+
+    /** Starts tracking the weight of a mailbox cache for as long as {@code owner} is reachable. */
+    Usage register(Object owner) {
+        expunge();
+        Usage usage = new Usage(owner, collected);
+        usages.add(usage);
+        return usage;
+    }
+
+    /** Records the current weight of a registered mailbox cache. */
+    void update(Usage usage, long bytes) {
+        heapBytes.addAndGet(bytes - usage.bytes.getAndSet(bytes));
+    }
+
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            Usage usage = (Usage) ref;
+            if (usages.remove(usage)) {
+                heapBytes.addAndGet(-usage.bytes.getAndSet(0));
+            }
+        }
+    }
+
+    static final class Usage extends WeakReference<Object> {
+        private final AtomicLong bytes = new AtomicLong();
+
+        Usage(Object owner, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+        }
+    }
+}
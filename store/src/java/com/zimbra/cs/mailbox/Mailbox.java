@@ -21,7 +21,7 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -57,6 +57,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -598,17 +599,31 @@ public class Mailbox implements MailboxStore {
     }
 
     private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
+        private final ConcurrentLinkedHashMap<Integer /* id */, MailItem> mapById;
         private final Map<String /* uuid */, Integer /* id */> uuid2id;
         private final Mailbox mbox;
+        private final ItemCacheBudget budget = ItemCacheBudget.getInstance();
+        private final ItemCacheBudget.Usage usage;
         private boolean isAlwaysOn = false;
 
         public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
             uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
+            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>()
+                            .maximumWeightedCapacity(budget.getMailboxCapacity())
+                            .weigher(ItemCacheBudget.ITEM_WEIGHER)
+                            .listener(new EvictionListener<Integer, MailItem>() {
+                                @Override
+                                public void onEviction(Integer id, MailItem item) {
+                                    String uuid = item.getUuid();
+                                    if (uuid != null) {
+                                        uuid2id.remove(uuid);
+                                    }
+                                    ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICT.increment();
+                                }
+                            }).build();
             this.mbox = mbox;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
+            usage = budget.register(this);
         }
 
         public void put(MailItem item) {
@@ -625,6 +640,17 @@ public class Mailbox implements MailboxStore {
                 if (uuid != null) {
                     uuid2id.put(uuid, id);
                 }
+                budget.update(usage, mapById.weightedSize());
+            }
+        }
+
+        /**
+         * Recomputes the weight of an item that is still cached.  Entries are weighed when they are put, and items
+         * are modified in place after that.
+         */
+        public void reweigh(MailItem item) {
+            if (!isAlwaysOn && mapById.replace(item.getId(), item, item)) {
+                budget.update(usage, mapById.weightedSize());
             }
         }
 
@@ -678,6 +704,7 @@ public class Mailbox implements MailboxStore {
                     if (uuid != null) {
                         uuid2id.remove(uuid);
                     }
+                    budget.update(usage, mapById.weightedSize());
                 }
                 return removed;
             }
@@ -713,9 +740,15 @@ public class Mailbox implements MailboxStore {
             }
         }
 
+        /** Returns the estimated heap footprint of the cached items, in bytes. */
+        public long weightedSize() {
+            return isAlwaysOn ? 0 : mapById.weightedSize();
+        }
+
         public void clear() {
             mapById.clear();
             uuid2id.clear();
+            budget.update(usage, 0);
         }
     }
 
@@ -743,11 +776,15 @@ public class Mailbox implements MailboxStore {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    /** the folders/tags manifest last read from or written to memcached, for incremental updates */
+    private FoldersTags mFoldersTagsManifest;
+    private ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
+    private Threader.BulkThreading mBulkThreading;
+    private int mBulkThreadingDepth;
 
     private MailboxMaintenance maintenance;
     private volatile boolean open = false;
@@ -1829,11 +1866,10 @@ public class Mailbox implements MailboxStore {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        // the item cache is sized by ItemCacheBudget rather than left to the GC; see trimItemCache()
+        ItemCache cache = mItemCache;
         if (cache == null) {
-            cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            cache = mItemCache = new ItemCache(this);
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -1987,6 +2023,18 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /** Returns the weight the item cache has recorded for its items and what they weigh now; for tests. */
+    long[] getItemCacheWeights() {
+        ItemCache cache = mItemCache;
+        long current = 0;
+        if (cache != null) {
+            for (MailItem item : cache.values()) {
+                current += ItemCacheBudget.estimateSize(item);
+            }
+        }
+        return new long[] { cache == null ? 0 : cache.weightedSize(), current };
+    }
+
     private ItemCache getItemCache() throws ServiceException {
         if (!currentChange().isActive()) {
             throw ServiceException.FAILURE("cannot access item cache outside a transaction active="
@@ -1998,7 +2046,7 @@ public class Mailbox implements MailboxStore {
     private void clearItemCache() {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
-        } else {
+        } else if (mItemCache != null) {
             mItemCache.clear();
         }
         try {
@@ -2109,6 +2157,7 @@ public class Mailbox implements MailboxStore {
 
     private void clearFolderCache() {
         mFolderCache = null;
+        mFoldersTagsManifest = null;
         requiresWriteLock = true;
         // Remove from memcached cache
         try {
@@ -2120,6 +2169,7 @@ public class Mailbox implements MailboxStore {
 
     private void clearTagCache() {
         mTagCache = null;
+        mFoldersTagsManifest = null;
         requiresWriteLock = true;
         // Remove from memcached cache
         try {
@@ -2303,6 +2353,7 @@ public class Mailbox implements MailboxStore {
                         ud.deserialize(meta);
                         tagData.put(ud, null);
                     }
+                    mFoldersTagsManifest = ftData.getManifest();
                     loadedFromMemcached = true;
                 }
             }
@@ -2381,6 +2432,14 @@ public class Mailbox implements MailboxStore {
     }
 
     void cacheFoldersTagsToMemcached() throws ServiceException {
+        cacheFoldersTagsToMemcached(null, true);
+    }
+
+    /**
+     * @param changedFolders  the folders whose state changed, if no folders were created, deleted or moved;
+     *                        otherwise {@code null}, and the whole tree is recached
+     */
+    private void cacheFoldersTagsToMemcached(Set<Integer> changedFolders, boolean tagsChanged) throws ServiceException {
         lock.lock();
         try {
             List<Folder> folderList = new ArrayList<Folder>(mFolderCache.values());
@@ -2391,9 +2450,9 @@ public class Mailbox implements MailboxStore {
                     tagList.add(entry.getValue());
                 }
             }
-            FoldersTags ftData = new FoldersTags(folderList, tagList);
             FoldersTagsCache ftCache = FoldersTagsCache.getInstance();
-            ftCache.put(this, ftData);
+            mFoldersTagsManifest = ftCache.put(this, folderList, tagList, mFoldersTagsManifest, changedFolders,
+                    tagsChanged);
         } finally {
             lock.release();
         }
@@ -2416,6 +2475,107 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Checks the persisted folder and tag counts, the mailbox size and the
+     * contact count against the items in the mailbox.  Unlike
+     * {@link #recalculateFolderAndTagCounts()}, only the counts that are wrong
+     * get rewritten and the folder and tag caches aren't reloaded, and the
+     * scans run in parallel where the database allows it.
+     *
+     * @param repair  whether to correct the counts that are wrong
+     * @return the IDs of the folders and tags whose counts were wrong
+     */
+    public List<Integer> verifyFolderAndTagCounts(boolean repair) throws ServiceException {
+        List<Integer> drifted = new ArrayList<Integer>();
+        lock.lock();
+        try {
+            boolean success = false;
+            try {
+                if (repair) {
+                    beginTransaction("repairFolderAndTagCounts", null);
+                } else {
+                    beginReadTransaction("verifyFolderAndTagCounts", null);
+                }
+
+                Map<Integer, MailItem> items = new HashMap<Integer, MailItem>();
+                DbMailItem.FolderTagMap folderData = new DbMailItem.FolderTagMap();
+                DbMailItem.FolderTagMap tagData = new DbMailItem.FolderTagMap();
+                for (Folder folder : listAllFolders()) {
+                    if (folder.trackSize() && folder.trackUnread()) {
+                        MailItem.UnderlyingData data = new MailItem.UnderlyingData();
+                        data.id = folder.getId();
+                        folderData.put(data, null);
+                        items.put(data.id, folder);
+                    }
+                }
+                for (Tag tag : mTagCache.values()) {
+                    if (tag.getId() > 0 && !items.containsKey(tag.getId())) {
+                        MailItem.UnderlyingData data = new MailItem.UnderlyingData();
+                        data.id = tag.getId();
+                        tagData.put(data, null);
+                        items.put(data.id, tag);
+                    }
+                }
+
+                MailboxData stats = DbMailItem.recountFoldersAndTags(this, folderData, tagData, true);
+
+                for (Map.Entry<MailItem.UnderlyingData, DbMailItem.FolderTagCounts> entry : folderData.entrySet()) {
+                    MailItem.UnderlyingData data = entry.getKey();
+                    DbMailItem.FolderTagCounts fcounts = entry.getValue();
+                    Folder folder = (Folder) items.get(data.id);
+                    if (folder.getItemCount() == data.size && folder.getUnreadCount() == data.unreadCount &&
+                            folder.getTotalSize() == fcounts.totalSize && folder.getDeletedCount() == fcounts.deletedCount &&
+                            folder.getDeletedUnreadCount() == fcounts.deletedUnreadCount) {
+                        continue;
+                    }
+                    ZimbraLog.mailbox.info("folder %d counts are c%d/d%d/u%d/du%d/s%d, should be c%d/d%d/u%d/du%d/s%d",
+                            data.id, folder.getItemCount(), folder.getDeletedCount(), folder.getUnreadCount(),
+                            folder.getDeletedUnreadCount(), folder.getTotalSize(), data.size, fcounts.deletedCount,
+                            data.unreadCount, fcounts.deletedUnreadCount, fcounts.totalSize);
+                    drifted.add(data.id);
+                    if (repair) {
+                        markItemModified(folder, Change.UNREAD);
+                        folder.mData.unreadCount = data.unreadCount;
+                        folder.setSize(data.size, fcounts.deletedCount, fcounts.totalSize, fcounts.deletedUnreadCount);
+                    }
+                }
+                for (MailItem.UnderlyingData data : tagData.keySet()) {
+                    Tag tag = (Tag) items.get(data.id);
+                    if (tag.getItemCount() == data.size && tag.getUnreadCount() == data.unreadCount) {
+                        continue;
+                    }
+                    ZimbraLog.mailbox.info("tag %d counts are c%d/u%d, should be c%d/u%d",
+                            data.id, tag.getItemCount(), tag.getUnreadCount(), data.size, data.unreadCount);
+                    drifted.add(data.id);
+                    if (repair) {
+                        markItemModified(tag, Change.SIZE | Change.UNREAD);
+                        tag.mData.size = data.size;
+                        tag.mData.unreadCount = data.unreadCount;
+                    }
+                }
+
+                if (mData.size != stats.size || mData.contacts != stats.contacts) {
+                    ZimbraLog.mailbox.info("mailbox %d size is %d with %d contacts, should be %d with %d contacts",
+                            mId, mData.size, mData.contacts, stats.size, stats.contacts);
+                    if (repair) {
+                        if (mData.size != stats.size) {
+                            currentChange().dirty.recordModified(this, Change.SIZE);
+                        }
+                        mData.size = stats.size;
+                        mData.contacts = stats.contacts;
+                        DbMailbox.updateMailboxStats(this);
+                    }
+                }
+                success = true;
+            } finally {
+                endTransaction(success);
+            }
+        } finally {
+            lock.release();
+        }
+        return drifted;
+    }
+
     public void deleteMailbox() throws ServiceException {
         deleteMailbox(DeleteBlobs.ALWAYS);
     }
@@ -2801,7 +2961,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -3745,6 +3905,110 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Switches conversation threading to bulk mode for an import.  The
+     * mailbox's open-conversation hashes are loaded with a single query (if
+     * there aren't too many of them) and kept in memory, so that threading the
+     * imported messages doesn't query the database once per message.  Calls
+     * nest; each must be matched by {@link #endBulkThreading()}.
+     *
+     * @see #prefetchThreading(List)
+     */
+    public void beginBulkThreading() throws ServiceException {
+        lock.lock();
+        try {
+            if (mBulkThreadingDepth > 0) {
+                mBulkThreadingDepth++;
+                return;
+            }
+            Threader.BulkThreading bulk = new Threader.BulkThreading();
+            boolean success = false;
+            try {
+                beginReadTransaction("beginBulkThreading", null);
+                bulk.load(this);
+                success = true;
+            } finally {
+                endTransaction(success);
+            }
+            mBulkThreading = bulk;
+            mBulkThreadingDepth = 1;
+        } finally {
+            lock.release();
+        }
+    }
+
+    public void endBulkThreading() {
+        lock.lock();
+        try {
+            if (mBulkThreadingDepth > 0 && --mBulkThreadingDepth == 0) {
+                mBulkThreading = null;
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Resolves the threading hashes of a batch of messages that are about to be
+     * added with one query, rather than one per message.  The hashes are
+     * computed before the mailbox lock is taken.  Does nothing unless
+     * {@link #beginBulkThreading()} is in effect.
+     */
+    public void prefetchThreading(List<ParsedMessage> pms) throws ServiceException {
+        if (mBulkThreading == null || pms.isEmpty()) {
+            return;
+        }
+        String charset = getAccount().getPrefMailDefaultCharset();
+        for (ParsedMessage pm : pms) {
+            pm.setDefaultCharset(charset);
+            pm.getThreader(this);
+        }
+        lock.lock();
+        try {
+            if (mBulkThreading == null) {
+                return;
+            }
+            boolean success = false;
+            try {
+                beginReadTransaction("prefetchThreading", null);
+                mBulkThreading.prefetch(this, pms);
+                success = true;
+            } finally {
+                endTransaction(success);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    Threader.BulkThreading getBulkThreading() {
+        return mBulkThreading;
+    }
+
+    /**
+     * Keeps the bulk threading cache in step with a write to the
+     * OPEN_CONVERSATION table.
+     */
+    void recordThreadingTarget(String hash, int target) {
+        if (mBulkThreading != null) {
+            mBulkThreading.put(hash, target);
+            // roll the cache entry back along with the transaction
+            markOtherItemDirty(hash);
+        }
+    }
+
+    /**
+     * Keeps the bulk threading cache in step with the removal of the
+     * OPEN_CONVERSATION row of {@code hash}, which only goes if it points
+     * at {@code target}.
+     */
+    void recordThreadingClosed(String hash, int target) {
+        if (mBulkThreading != null) {
+            mBulkThreading.close(hash, target);
+            markOtherItemDirty(hash);
+        }
+    }
+
     /**
      * Record that an IMAP client has seen all the messages in this folder as they are at this time.
      * This is used to determine which messages are considered by IMAP to be RECENT
@@ -4637,6 +4901,9 @@ public class Mailbox implements MailboxStore {
         if (conv != null) {
             return conv;
         }
+        if (mBulkThreading != null && mBulkThreading.isClosed(hash)) {
+            return null;
+        }
 
         // XXX: why not just do a "getConversationById()" if convId != null?
         MailItem.UnderlyingData data = DbMailItem.getByHash(this, hash);
@@ -6155,6 +6422,9 @@ public class Mailbox implements MailboxStore {
             localMsgMarkedRead = true;
         }
 
+        // hash the threading headers before taking the lock (addMessageInternal sets the same charset again)
+        pm.setDefaultCharset(account.getPrefMailDefaultCharset());
+        pm.getThreader(this);
 
         lock.lock();
         try {
@@ -9058,6 +9328,9 @@ public class Mailbox implements MailboxStore {
             if (Threader.isHashPurgeAllowed(acct)) {
                 int convTimeoutSecs = (int) (LC.conversation_max_age_ms.longValue() / Constants.MILLIS_PER_SECOND);
                 DbMailItem.closeOldConversations(this, getOperationTimestamp() - convTimeoutSecs);
+                if (mBulkThreading != null) {
+                    mBulkThreading.clear();
+                }
             }
 
             if (isTrackingSync()) {
@@ -9612,6 +9885,17 @@ public class Mailbox implements MailboxStore {
 
             DbConnection conn = currentChange().conn;
 
+            // Send the updates deferred on the connection while a failure can
+            // still roll the transaction back; a failed commit halts the server.
+            if (success && conn != null) {
+                try {
+                    conn.flushBatch();
+                } catch (SQLException e) {
+                    exception = ServiceException.FAILURE(e.getMessage(), e);
+                    success = false;
+                }
+            }
+
             // Failure case is very simple.  Just rollback the database and cache
             // and return.  We haven't logged anything to the redo log for this
             // transaction, so no redo cleanup is necessary.
@@ -9736,6 +10020,10 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    public boolean isIndexingSuspended() {
+        return index != null && index.indexingSuspended;
+    }
+
     public void resumeIndexing() {
         if (null != index) {
             index.resumeIndexing();
@@ -9808,6 +10096,9 @@ public class Mailbox implements MailboxStore {
         }
 
         boolean foldersTagsDirty = false;
+        // recache only the changed folders' chunks unless the shape of the tree changed
+        boolean folderTreeChanged = false, tagsChanged = false;
+        Set<Integer> changedFolders = new HashSet<Integer>();
         if (currentChange().dirty != null && currentChange().dirty.hasNotifications()) {
             assert(currentChange().writeChange);
             if (currentChange().dirty.created != null) {
@@ -9815,15 +10106,20 @@ public class Mailbox implements MailboxStore {
                     if (item instanceof Folder) {
                         Folder folder = (Folder) item;
                         foldersTagsDirty = true;
+                        folderTreeChanged = true;
                         if (folder.getSize() != 0) {
                             folder.saveFolderCounts(false);
                         }
                     } else if (item instanceof Tag) {
                         Tag tag = (Tag) item;
                         foldersTagsDirty = true;
+                        tagsChanged = true;
                         if (tag.isUnread()) {
                             tag.saveTagCounts();
                         }
+                    } else if (item instanceof MailItem && currentChange().itemCache != null) {
+                        // new items are cached as soon as they're created, and often filled in after that
+                        currentChange().itemCache.reweigh((MailItem) item);
                     }
                 }
             }
@@ -9832,11 +10128,16 @@ public class Mailbox implements MailboxStore {
                 for (Change change : currentChange().dirty.modified.values()) {
                     if (change.what instanceof Folder) {
                         foldersTagsDirty = true;
+                        changedFolders.add(((Folder) change.what).getId());
+                        if ((change.why & (Change.FOLDER | Change.PARENT)) != 0) {
+                            folderTreeChanged = true;
+                        }
                         if ((change.why & (Change.UNREAD | Change.SIZE)) != 0) {
                             ((Folder) change.what).saveFolderCounts(false);
                         }
                     } else if (change.what instanceof Tag) {
                         foldersTagsDirty = true;
+                        tagsChanged = true;
                         if ((change.why & Change.UNREAD | Change.SIZE) != 0) {
                             ((Tag) change.what).saveTagCounts();
                         }
@@ -9852,15 +10153,18 @@ public class Mailbox implements MailboxStore {
 
             if (currentChange().dirty.deleted != null) {
                 for (Change change : currentChange().dirty.deleted.values()) {
-                    if (change.what instanceof Folder || change.what instanceof Tag) {
+                    if (change.what instanceof Folder) {
                         foldersTagsDirty = true;
-                        break;
+                        folderTreeChanged = true;
+                    } else if (change.what instanceof Tag) {
+                        foldersTagsDirty = true;
+                        tagsChanged = true;
                     }
                 }
             }
 
             if (foldersTagsDirty) {
-                cacheFoldersTagsToMemcached();
+                cacheFoldersTagsToMemcached(folderTreeChanged ? null : changedFolders, tagsChanged);
             }
         }
 
@@ -10017,6 +10321,9 @@ public class Mailbox implements MailboxStore {
                     deletes.add(obj);
                 } else if (obj instanceof String) {
                     mConvHashes.remove(obj);
+                    if (mBulkThreading != null) {
+                        mBulkThreading.forget((String) obj);
+                    }
                 }
             }
             return deletes;
@@ -10043,28 +10350,37 @@ public class Mailbox implements MailboxStore {
                 return;
             }
 
+            // besides the item count, stay within this mailbox's share of the server-wide byte budget
+            long byteTarget = ItemCacheBudget.getInstance().getTargetBytes();
             int excess = cache.size() - sizeTarget;
-            if (excess <= 0) {
+            long byteExcess = cache.weightedSize() - byteTarget;
+            if (excess <= 0 && byteExcess <= 0) {
                 return;
             }
 
             // cache the overflow to avoid the Iterator's ConcurrentModificationException
-            MailItem[] overflow = new MailItem[excess];
-            int i = 0;
+            List<MailItem> overflow = new ArrayList<MailItem>();
             for (MailItem item : cache.values()) {
-                overflow[i++] = item;
-                if (i >= excess) {
+                if (excess <= 0 && byteExcess <= 0) {
                     break;
                 }
+                overflow.add(item);
+                excess--;
+                byteExcess -= ItemCacheBudget.estimateSize(item);
             }
             // trim the excess; note that "uncache" can cascade and take out child items
-            while (--i >= 0) {
-                if (cache.size() <= sizeTarget) {
+            for (int i = overflow.size() - 1; i >= 0; i--) {
+                if (cache.size() <= sizeTarget && cache.weightedSize() <= byteTarget) {
                     return;
                 }
 
+                MailItem item = overflow.get(i);
+                if (!cache.contains(item)) {
+                    continue;
+                }
                 try {
-                    uncache(overflow[i]);
+                    uncache(item);
+                    ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICT.increment();
                 } catch (ServiceException e) {
                 }
             }
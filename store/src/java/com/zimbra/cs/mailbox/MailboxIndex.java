@@ -1067,12 +1067,21 @@ public final class MailboxIndex {
      */
     public List<DbSearch.Result> search(DbSearchConstraints constraints,
             DbSearch.FetchMode fetch, SortBy sort, int offset, int size, boolean inDumpster) throws ServiceException {
+        return search(constraints, fetch, sort, offset, size, inDumpster, null);
+    }
+
+    /**
+     * Executes a DB search in a mailbox transaction, adding the SQL of the executed statements to {@code statements}
+     * unless it's null.
+     */
+    public List<DbSearch.Result> search(DbSearchConstraints constraints, DbSearch.FetchMode fetch, SortBy sort,
+            int offset, int size, boolean inDumpster, List<String> statements) throws ServiceException {
         List<DbSearch.Result> result;
         boolean success = false;
         try {
             mailbox.beginReadTransaction("search", null);
-            result = new DbSearch(mailbox, inDumpster).search(mailbox.getOperationConnection(),
-                    constraints, sort, offset, size, fetch);
+            result = new DbSearch(mailbox, inDumpster).setStatementTrace(statements).search(
+                    mailbox.getOperationConnection(), constraints, sort, offset, size, fetch);
             if (fetch == DbSearch.FetchMode.MAIL_ITEM) {
                 // Convert UnderlyingData to MailItem
                 ListIterator<DbSearch.Result> itr = result.listIterator();
@@ -1407,6 +1416,7 @@ public final class MailboxIndex {
 
         @Override
         public final void run() {
+            DbPool.Partition partition = DbPool.setPartition(DbPool.Partition.MAINTENANCE);
             try {
                 ZimbraLog.addMboxToContext(mailbox.getId());
                 ZimbraLog.addAccountNameToContext(mailbox.getAccount().getName());
@@ -1416,6 +1426,7 @@ public final class MailboxIndex {
             } catch (Throwable t) {
                 ZimbraLog.index.error(t.getMessage(), t);
             } finally {
+                DbPool.setPartition(partition);
                 ZimbraLog.clearContext();
             }
         }
@@ -19,6 +19,7 @@ package com.zimbra.cs.mailbox;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -224,6 +225,17 @@ public class MailboxManager {
 
     public void shutdown() {}
 
+    /**
+     * Returns the IDs of the mailboxes currently in memory, most recently used first.  {@link MailboxWarmup}
+     * saves these at shutdown and reopens them after the next restart.
+     */
+    public List<Integer> getRecentMailboxIds(int max) {
+        synchronized (this) {
+            List<Integer> ids = cache.getRecentKeys();
+            return new ArrayList<Integer>(ids.subList(0, Math.min(max, ids.size())));
+        }
+    }
+
     /** Returns the mailbox for the given account.  Creates a new mailbox
      *  if one doesn't already exist.
      *
@@ -1049,6 +1061,29 @@ public class MailboxManager {
             mSoftMap = null;
         }
 
+        /** Returns the keys of the loaded mailboxes, most recently used first. */
+        List<Integer> getRecentKeys() {
+            List<Integer> keys = new ArrayList<Integer>();
+            if (mHardSize > 0) {
+                for (Entry<Integer, Object> entry : mHardMap.entrySet()) {
+                    if (entry.getValue() instanceof Mailbox) {
+                        keys.add(entry.getKey());
+                    }
+                }
+                // the hard map is in access order, least recently used first
+                Collections.reverse(keys);
+            }
+            if (mSoftMap != null) {
+                for (Entry<Integer, Object> entry : mSoftMap.entrySet()) {
+                    Object obj = entry.getValue();
+                    if (obj instanceof SoftReference && ((SoftReference<?>) obj).get() instanceof Mailbox) {
+                        keys.add(entry.getKey());
+                    }
+                }
+            }
+            return keys;
+        }
+
         @Override public void clear() {
             mHardMap.clear();
             mSoftMap.clear();
@@ -0,0 +1,190 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbPool;
+
+/**
+ * Reopens the mailboxes that were in use when the server was last shut down,
+ * so that the first wave of logins after a restart doesn't have to wait for
+ * cold mailbox loads.  At shutdown the IDs of the mailboxes in memory are
+ * written to a file, most recently used first; at startup they are opened in
+ * that order by a small pool of threads, loading the folders and tags (and
+ * repopulating {@link FoldersTagsCache}) and priming the index.  The pool
+ * uses the maintenance partition of the connection pool, so it doesn't hold
+ * up the requests it's trying to speed up.  Progress is reported in the
+ * realtime stats of {@link com.zimbra.cs.stats.ZimbraPerf}.
+ */
+public final class MailboxWarmup {
+
+    private static ExecutorService sExecutor;
+    private static final AtomicInteger sTotal = new AtomicInteger();
+    private static final AtomicInteger sOpened = new AtomicInteger();
+    private static final AtomicInteger sFailed = new AtomicInteger();
+    private static long sStartTime;
+
+    private MailboxWarmup() {
+    }
+
+    private static File getFile() {
+        return new File(LC.zimbra_mailbox_warmup_file.value());
+    }
+
+    /**
+     * Starts reopening the mailboxes saved by the last {@link #shutdown()}.
+     */
+    public static synchronized void startup() {
+        int threads = LC.zimbra_mailbox_warmup_threads.intValue();
+        if (threads <= 0 || sExecutor != null) {
+            return;
+        }
+        List<Integer> ids = load(getFile());
+        if (ids.isEmpty()) {
+            return;
+        }
+        ZimbraLog.mailbox.info("warming up %d mailboxes with %d threads", ids.size(), threads);
+        sTotal.set(ids.size());
+        sOpened.set(0);
+        sFailed.set(0);
+        sStartTime = System.currentTimeMillis();
+        // the queue is FIFO, so the most recently used mailboxes are opened first
+        sExecutor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("MailboxWarmup-%d").setDaemon(true).build());
+        for (final Integer id : ids) {
+            sExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    warmup(id);
+                }
+            });
+        }
+        sExecutor.shutdown();
+    }
+
+    /**
+     * Stops any warmup in progress and saves the IDs of the mailboxes in
+     * memory for the next startup.
+     */
+    public static synchronized void shutdown() {
+        if (sExecutor != null) {
+            sExecutor.shutdownNow();
+            sExecutor = null;
+        }
+        int max = LC.zimbra_mailbox_warmup_max.intValue();
+        if (max <= 0 || LC.zimbra_mailbox_warmup_threads.intValue() <= 0) {
+            return;
+        }
+        try {
+            save(getFile(), MailboxManager.getInstance().getRecentMailboxIds(max));
+        } catch (ServiceException e) {
+            ZimbraLog.mailbox.warn("unable to save mailboxes for warmup", e);
+        }
+    }
+
+    private static void warmup(int mailboxId) {
+        DbPool.setPartition(DbPool.Partition.MAINTENANCE);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxById(mailboxId);
+            if (mbox.index.getIndexStore() != null) {
+                mbox.index.getIndexStore().warmup();
+            }
+            sOpened.incrementAndGet();
+        } catch (Exception e) {
+            ZimbraLog.mailbox.debug("unable to warm up mailbox %d", mailboxId, e);
+            sFailed.incrementAndGet();
+        }
+        int done = sOpened.get() + sFailed.get();
+        int total = sTotal.get();
+        if (done == total || done % Math.max(total / 10, 1) == 0) {
+            ZimbraLog.mailbox.info("mailbox warmup: %d of %d done (%d failed) in %dms",
+                    done, total, sFailed.get(), System.currentTimeMillis() - sStartTime);
+        }
+    }
+
+    /** Returns the number of mailboxes the current warmup will open. */
+    public static int getTotal() {
+        return sTotal.get();
+    }
+
+    /** Returns the number of mailboxes opened so far. */
+    public static int getOpened() {
+        return sOpened.get();
+    }
+
+    /** Returns the number of mailboxes that couldn't be opened. */
+    public static int getFailed() {
+        return sFailed.get();
+    }
+
+    static void save(File file, List<Integer> ids) {
+        Writer out = null;
+        try {
+            out = new FileWriter(file);
+            for (Integer id : ids) {
+                out.write(id + "\n");
+            }
+            ZimbraLog.mailbox.info("saved %d mailboxes for warmup to %s", ids.size(), file);
+        } catch (IOException e) {
+            ZimbraLog.mailbox.warn("unable to save mailboxes for warmup to %s", file, e);
+        } finally {
+            ByteUtil.closeWriter(out);
+        }
+    }
+
+    static List<Integer> load(File file) {
+        List<Integer> ids = new ArrayList<Integer>();
+        if (!file.exists()) {
+            return ids;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    ids.add(Integer.parseInt(line.trim()));
+                } catch (NumberFormatException e) {
+                    ZimbraLog.mailbox.debug("ignoring bad mailbox id in %s: %s", file, line);
+                }
+            }
+        } catch (IOException e) {
+            ZimbraLog.mailbox.warn("unable to read mailboxes for warmup from %s", file, e);
+        } finally {
+            ByteUtil.closeReader(in);
+        }
+        // a crash shouldn't replay a stale list on the next start
+        file.delete();
+        return ids;
+    }
+}
@@ -28,6 +28,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.callback.CallbackUtil;
+import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.util.Config;
 import com.zimbra.cs.util.Zimbra;
 
@@ -108,6 +109,9 @@ extends Thread {
      * between purges.
      */
     @Override public void run() {
+        // purges must not take connections away from interactive requests
+        DbPool.setPartition(DbPool.Partition.MAINTENANCE);
+
         // Sleep before doing work, to give the server time to warm up.  Also limits the amount
         // of random effect when determining the next mailbox id.
         long sleepTime = LC.purge_initial_sleep_ms.longValue();
@@ -21,8 +21,12 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import javax.mail.internet.MimeMessage;
 
@@ -31,6 +35,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.zimbra.common.account.ZAttrProvisioning.MailThreadingAlgorithm;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.HeaderUtils;
 import com.zimbra.common.mime.MimeHeader;
 import com.zimbra.common.service.ServiceException;
@@ -345,19 +350,26 @@ public final class Threader {
             return Collections.emptyList();
         }
         ZimbraLog.mailbox.debug("  lookup by references (%s): %s", mode, refHashes);
-        List<MailItem.UnderlyingData> dlist = DbMailItem.getByHashes(mbox, refHashes);
-        if (dlist == null || dlist.isEmpty()) {
-            ZimbraLog.mailbox.debug("  no reference matches found");
-            return Collections.emptyList();
-        }
+        BulkThreading bulk = mbox.getBulkThreading();
+        List<Conversation> matches = bulk == null ? null : bulk.resolve(mbox, refHashes);
+        if (matches == null) {
+            List<MailItem.UnderlyingData> dlist = DbMailItem.getByHashes(mbox, refHashes);
+            if (dlist == null || dlist.isEmpty()) {
+                ZimbraLog.mailbox.debug("  no reference matches found");
+                return Collections.emptyList();
+            }
 
-        List<Conversation> matches = new ArrayList<Conversation>(dlist.size());
-        for (MailItem.UnderlyingData data : dlist) {
-            if (data.type == MailItem.Type.CONVERSATION.toByte()) {
-                matches.add(mbox.getConversation(data));
-            } else {
-                matches.add((Conversation) mbox.getMessage(data).getParent());
+            matches = new ArrayList<Conversation>(dlist.size());
+            for (MailItem.UnderlyingData data : dlist) {
+                if (data.type == MailItem.Type.CONVERSATION.toByte()) {
+                    matches.add(mbox.getConversation(data));
+                } else {
+                    matches.add((Conversation) mbox.getMessage(data).getParent());
+                }
             }
+        } else if (matches.isEmpty()) {
+            ZimbraLog.mailbox.debug("  no reference matches found");
+            return matches;
         }
         ZimbraLog.mailbox.debug("  found %d reference match(es)", matches.size());
 
@@ -392,6 +404,12 @@ public final class Threader {
         return hashes;
     }
 
+    /** Returns every hash this message will be threaded on, for {@link
+     *  BulkThreading#prefetch}. */
+    List<String> getThreadingHashes() {
+        return getCurrentHashes();
+    }
+
     public void storePurgedConversationHashes(Integer convId, String dsId) throws ServiceException {
         for (String hash: getCurrentHashes()) {
             DbDataSource.storePurgedConversationHash(mbox, dsId, convId, hash);
@@ -491,6 +509,131 @@ public final class Threader {
         }
     }
 
+    /** Where the {@code OPEN_CONVERSATION} hashes of a {@code Mailbox} point
+     *  during a bulk import, so that threading each imported message doesn't
+     *  take its own trip to the database.  The cache is filled with one bulk
+     *  query, either for the whole mailbox when its table is small enough or
+     *  for the hashes of a batch of messages about to be added, and is kept
+     *  in step by {@link Mailbox#recordThreadingTarget} as the import opens
+     *  and closes conversations.  Hashes it knows nothing about, and targets
+     *  that have since gone away (e.g. merged conversations), fall back to
+     *  the normal per-message lookup.
+     *  <p>
+     *  Only accessed with the {@code Mailbox} lock held.
+     * @see Mailbox#beginBulkThreading() */
+    static final class BulkThreading {
+        /** Target recorded for a hash known to have no {@code OPEN_CONVERSATION} row. */
+        static final int NONE = 0;
+
+        private final Map<String, Integer> targets = new HashMap<String, Integer>();
+        /** Whether the whole table was loaded, so that unknown hashes can't have rows either. */
+        private boolean complete;
+
+        void load(Mailbox mbox) throws ServiceException {
+            Map<String, Integer> all = DbMailItem.getOpenConversationTargets(mbox, LC.conversation_bulk_prefetch_limit.intValue());
+            if (all != null) {
+                targets.putAll(all);
+                complete = true;
+            }
+            ZimbraLog.mailbox.debug("bulk threading for mailbox %d starts with %s", mbox.getId(),
+                    complete ? targets.size() + " hashes" : "an empty cache");
+        }
+
+        /** Loads the targets of all the hashes of {@code pms} that aren't cached yet with a single query. */
+        void prefetch(Mailbox mbox, List<ParsedMessage> pms) throws ServiceException {
+            if (complete) {
+                return;
+            }
+            Set<String> missing = new LinkedHashSet<String>();
+            for (ParsedMessage pm : pms) {
+                for (String hash : pm.getThreader(mbox).getThreadingHashes()) {
+                    if (!targets.containsKey(hash)) {
+                        missing.add(hash);
+                    }
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            Map<String, Integer> found = DbMailItem.getOpenConversationTargets(mbox, new ArrayList<String>(missing));
+            for (String hash : missing) {
+                Integer target = found.get(hash);
+                targets.put(hash, target == null ? NONE : target);
+            }
+        }
+
+        /** Returns the cached target for {@code hash}, {@link #NONE} if it has
+         *  no row, or {@code null} if it isn't known. */
+        Integer get(String hash) {
+            Integer target = targets.get(hash);
+            return target == null && complete ? NONE : target;
+        }
+
+        /** Returns whether {@code hash} is known to have no row. */
+        boolean isClosed(String hash) {
+            Integer target = get(hash);
+            return target != null && target == NONE;
+        }
+
+        void put(String hash, int target) {
+            targets.put(hash, target);
+        }
+
+        /** Records that the row of {@code hash} was deleted if it pointed at {@code target}.  The cache can't
+         *  tell whether it did when it has the hash pointing elsewhere, so then it drops the hash. */
+        void close(String hash, int target) {
+            Integer cached = targets.get(hash);
+            if (cached != null && cached == target) {
+                targets.put(hash, NONE);
+            } else {
+                forget(hash);
+            }
+        }
+
+        /** Drops a hash whose row may no longer match the cache, e.g. after a rollback. */
+        void forget(String hash) {
+            targets.remove(hash);
+            complete = false;
+        }
+
+        void clear() {
+            targets.clear();
+            complete = false;
+        }
+
+        /** Returns the conversations the given hashes point at, or {@code null}
+         *  if that can't be answered from the cache. */
+        List<Conversation> resolve(Mailbox mbox, List<String> hashes) throws ServiceException {
+            Set<Integer> ids = new LinkedHashSet<Integer>();
+            for (String hash : hashes) {
+                Integer target = get(hash);
+                if (target == null) {
+                    return null;
+                } else if (target != NONE) {
+                    ids.add(target);
+                }
+            }
+
+            List<Conversation> matches = new ArrayList<Conversation>(ids.size());
+            for (int id : ids) {
+                MailItem item;
+                try {
+                    item = mbox.getItemById(id, MailItem.Type.UNKNOWN);
+                } catch (MailServiceException.NoSuchItemException e) {
+                    return null;
+                }
+                if (item instanceof Conversation) {
+                    matches.add((Conversation) item);
+                } else if (item instanceof Message) {
+                    matches.add((Conversation) ((Message) item).getParent());
+                } else {
+                    return null;
+                }
+            }
+            return matches;
+        }
+    }
+
     @Override
     public String toString() {
         MoreObjects.ToStringHelper tostr = MoreObjects.toStringHelper(this);
@@ -101,11 +101,13 @@ public class VirtualConversation extends Conversation {
     @Override
     void open(String hash) throws ServiceException {
         DbMailItem.openConversation(hash, getMessage());
+        mMailbox.recordThreadingTarget(hash, getMessage().getId());
     }
 
     @Override
     void close(String hash) throws ServiceException {
         DbMailItem.closeConversation(hash, getMessage());
+        mMailbox.recordThreadingClosed(hash, getMessage().getId());
     }
 
     @Override
@@ -23,9 +23,14 @@ import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.codec.binary.Base64;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
@@ -42,8 +47,11 @@ import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.security.sasl.Authenticator;
 import com.zimbra.cs.security.sasl.AuthenticatorUser;
 import com.zimbra.cs.security.sasl.PlainAuthenticator;
+import com.zimbra.cs.server.FileRegionOutput;
 import com.zimbra.cs.server.ServerThrottle;
 import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.util.IOUtil;
 
 /**
  * @since Nov 25, 2004
@@ -58,6 +66,13 @@ abstract class Pop3Handler {
     private static final int TERMINATOR_C = '.';
     private static final byte[] TERMINATOR_BYTE = {'.'};
 
+    /**
+     * Whether a blob can be sent by RETR as is, keyed by blob digest. The answer only depends on the content, so it
+     * is shared by every mailbox and every copy of the message, and a blob is scanned once rather than on every RETR.
+     */
+    private static final Cache<String, Boolean> TRANSPARENT_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(LC.zimbra_pop3_transparent_cache_size.intValue()).<String, Boolean>build();
+
     // Connection specific data
     final Pop3Config config;
     OutputStream output;
@@ -681,17 +696,91 @@ abstract class Pop3Handler {
             throw new Pop3CmdException("please specify a message");
         }
         Message m = mailbox.getMessage(msg);
+        FileChannel channel = getTransferableContent(m);
         InputStream is = null;
         try {
-            is = m.getContentStream();
+            if (channel == null) {
+                is = m.getContentStream();
+            }
             sendOK("message follows", false);
-            sendMessage(is, Integer.MAX_VALUE);
+            if (channel != null) {
+                FileChannel region = channel;
+                channel = null; // the output closes it
+                ((FileRegionOutput) output).transferFrom(region, 0, m.getSize());
+                output.write(TERMINATOR_BYTE);
+                output.write(LINE_SEPARATOR);
+                output.flush();
+            } else {
+                sendMessage(is, Integer.MAX_VALUE);
+            }
         } finally {
             ByteUtil.closeStream(is);
+            IOUtil.closeQuietly(channel);
         }
         mailbox.getPop3Msg(msg).setRetrieved(true);
     }
 
+    /**
+     * Returns a channel on the message's blob file if RETR can send the file as is, i.e. the output can transfer
+     * files and the content needs neither dot-stuffing nor line ending conversion. Returns null otherwise.
+     */
+    private FileChannel getTransferableContent(Message msg) throws IOException, ServiceException {
+        int minSize = LC.zimbra_zero_copy_min_size.intValue();
+        if (minSize <= 0 || msg.getSize() < minSize || !(output instanceof FileRegionOutput) ||
+                !((FileRegionOutput) output).isTransferSupported()) {
+            return null;
+        }
+        FileChannel channel = StoreManager.getInstance().getContentChannel(msg.getBlob());
+        if (channel == null) {
+            return null;
+        }
+        boolean ok = false;
+        try {
+            ok = channel.size() == msg.getSize() && isTransparent(msg.getDigest(), channel);
+            return ok ? channel : null;
+        } finally {
+            if (!ok) {
+                IOUtil.closeQuietly(channel);
+            }
+        }
+    }
+
+    private static boolean isTransparent(String digest, FileChannel channel) throws IOException {
+        if (digest == null) {
+            return isTransparent(channel);
+        }
+        Boolean cached = TRANSPARENT_CACHE.getIfPresent(digest);
+        if (cached == null) {
+            cached = isTransparent(channel);
+            TRANSPARENT_CACHE.put(digest, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Returns true if every line of the content ends with CRLF and no line starts with a dot, in which case
+     * {@link #sendMessage(InputStream, int)} would send it unchanged.
+     */
+    static boolean isTransparent(FileChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        int prev = '\n';
+        long position = 0;
+        while (channel.read(buf, position) > 0) {
+            buf.flip();
+            position += buf.remaining();
+            while (buf.hasRemaining()) {
+                int c = buf.get();
+                if ((prev == '\n' && c == TERMINATOR_C) || (c == '\n' && prev != '\r') ||
+                        (prev == '\r' && c != '\n')) {
+                    return false;
+                }
+                prev = c;
+            }
+            buf.clear();
+        }
+        return prev == '\n';
+    }
+
     private void doTOP(String arg) throws Pop3CmdException, IOException, ServiceException {
         if (state != STATE_TRANSACTION) {
             throw new Pop3CmdException("this command is only valid after a login");
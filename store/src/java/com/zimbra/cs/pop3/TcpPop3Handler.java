@@ -29,6 +29,7 @@ import com.zimbra.common.io.TcpServerInputStream;
 import com.zimbra.common.util.NetUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.server.ProtocolHandler;
+import com.zimbra.cs.server.TcpServerOutputStream;
 
 final class TcpPop3Handler extends ProtocolHandler {
     private TcpServerInputStream input;
@@ -44,7 +45,7 @@ final class TcpPop3Handler extends ProtocolHandler {
     protected boolean setupConnection(Socket connection) throws IOException {
         remoteAddress = connection.getInetAddress().getHostAddress();
         input = new TcpServerInputStream(connection.getInputStream());
-        delegate.output = new BufferedOutputStream(connection.getOutputStream());
+        delegate.output = new TcpServerOutputStream(connection);
         if (delegate.startConnection(connection.getInetAddress())) {
             return true;
         } else {
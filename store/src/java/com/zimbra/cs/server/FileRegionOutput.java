@@ -0,0 +1,40 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An output stream that can send a region of a file to the client without copying it through the Java heap, using
+ * {@link FileChannel#transferTo} or a MINA {@code FileRegion}.
+ */
+public interface FileRegionOutput {
+
+    /**
+     * Returns true if {@link #transferFrom} can be used right now. Returns false once the connection is encrypted
+     * by TLS or a SASL security layer, as the bytes have to go through the encoder then.
+     */
+    boolean isTransferSupported();
+
+    /**
+     * Flushes any buffered output and then sends {@code count} bytes of the file starting at {@code position}.
+     * The output takes over the channel and closes it once the region has been written, even on failure.
+     */
+    void transferFrom(FileChannel channel, long position, long count) throws IOException;
+}
@@ -0,0 +1,105 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe collector of latency samples for the NIO benchmark and load tools. Keeps every sample so that exact
+ * percentiles can be reported at the end of a run.
+ */
+public final class LatencyRecorder {
+    private final String name;
+    private long[] samples = new long[1024];
+    private int count = 0;
+    private long totalNanos = 0;
+    private long totalBytes = 0;
+
+    public LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records one operation.
+     *
+     * @param nanos how long the operation took
+     * @param bytes number of payload bytes the operation moved, for throughput reporting
+     */
+    public synchronized void record(long nanos, long bytes) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        totalNanos += nanos;
+        totalBytes += bytes;
+    }
+
+    public void record(long nanos) {
+        record(nanos, 0L);
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Returns the latency (in nanoseconds) at the given percentile using the nearest-rank method, or 0 if nothing
+     * has been recorded.
+     *
+     * @param percentile between 0 and 100
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0L;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * Formats a one-line summary of this recorder.
+     *
+     * @param elapsedNanos wall clock duration of the run, used to compute operation and byte throughput
+     */
+    public String format(long elapsedNanos) {
+        double secs = Math.max(elapsedNanos, 1L) / (double) TimeUnit.SECONDS.toNanos(1);
+        int n = getCount();
+        return String.format("%-12s n=%-8d p50=%8.3fms p90=%8.3fms p99=%8.3fms max=%8.3fms %10.1f ops/s %9.2f MB/s",
+                name, n, millis(getPercentile(50)), millis(getPercentile(90)), millis(getPercentile(99)),
+                millis(getPercentile(100)), n / secs, getTotalBytes() / secs / (1024 * 1024));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
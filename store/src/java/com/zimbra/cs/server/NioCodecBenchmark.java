@@ -0,0 +1,157 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.DefaultTransportMetadata;
+import org.apache.mina.core.session.IoSessionConfig;
+import org.apache.mina.filter.codec.ProtocolCodecSession;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+
+/**
+ * In-process benchmark for the MINA protocol decoders used by the {@link NioServer} implementations
+ * (NioImapDecoder, NioMilterDecoder and the POP3 text line decoder).
+ * <p>
+ * A scripted session is a list of byte chunks exactly as they would arrive from the socket, so fragmentation of
+ * literals and packets across reads is exercised as well. Each iteration decodes the whole script through a fresh
+ * {@link ProtocolCodecSession} and records its latency, throughput and the bytes allocated by the decoding thread.
+ */
+public final class NioCodecBenchmark {
+    private final String name;
+    private final ProtocolDecoder decoder;
+    private final List<byte[]> script;
+    private final long scriptBytes;
+
+    public NioCodecBenchmark(String name, ProtocolDecoder decoder, List<byte[]> script) {
+        this.name = name;
+        this.decoder = decoder;
+        this.script = script;
+        long len = 0;
+        for (byte[] chunk : script) {
+            len += chunk.length;
+        }
+        this.scriptBytes = len;
+    }
+
+    /**
+     * Splits a byte stream into socket-read sized chunks.
+     */
+    public static List<byte[]> chunk(byte[] data, int chunkSize) {
+        List<byte[]> chunks = new ArrayList<byte[]>(data.length / chunkSize + 1);
+        for (int off = 0; off < data.length; off += chunkSize) {
+            int len = Math.min(chunkSize, data.length - off);
+            byte[] chunk = new byte[len];
+            System.arraycopy(data, off, chunk, 0, len);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    public Result run(int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            decode();
+        }
+        LatencyRecorder latency = new LatencyRecorder(name);
+        long allocatedBefore = getAllocatedBytes();
+        long messages = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            messages += decode();
+            latency.record(System.nanoTime() - t0, scriptBytes);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1L : allocatedAfter - allocatedBefore;
+        return new Result(latency, iterations, messages, elapsed, allocated);
+    }
+
+    private int decode() throws Exception {
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        session.setTransportMetadata(new DefaultTransportMetadata("benchmark", "benchmark", false, true,
+                SocketAddress.class, IoSessionConfig.class, Object.class));
+        for (byte[] chunk : script) {
+            decoder.decode(session, IoBuffer.wrap(chunk), session.getDecoderOutput());
+        }
+        int decoded = session.getDecoderOutputQueue().size();
+        session.getDecoderOutputQueue().clear();
+        decoder.dispose(session);
+        return decoded;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or -1 if the JVM can't tell us.
+     */
+    static long getAllocatedBytes() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hsmx = (com.sun.management.ThreadMXBean) mx;
+            if (hsmx.isThreadAllocatedMemorySupported() && hsmx.isThreadAllocatedMemoryEnabled()) {
+                return hsmx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1L;
+    }
+
+    public static final class Result {
+        private final LatencyRecorder latency;
+        private final int iterations;
+        private final long messages;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+
+        Result(LatencyRecorder latency, int iterations, long messages, long elapsedNanos, long allocatedBytes) {
+            this.latency = latency;
+            this.iterations = iterations;
+            this.messages = messages;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public LatencyRecorder getLatency() {
+            return latency;
+        }
+
+        /** Number of protocol messages (lines, literal chunks, packets) the decoder emitted per iteration. */
+        public long getMessagesPerIteration() {
+            return iterations == 0 ? 0 : messages / iterations;
+        }
+
+        /** Bytes allocated by the decoding thread per iteration, or -1 if allocation tracking is unsupported. */
+        public long getAllocatedBytesPerIteration() {
+            return allocatedBytes < 0 || iterations == 0 ? -1L : allocatedBytes / iterations;
+        }
+
+        /** Allocation rate in MB per second of decoding, or -1 if allocation tracking is unsupported. */
+        public double getAllocationRate() {
+            return allocatedBytes < 0 ? -1.0 : allocatedBytes / (Math.max(elapsedNanos, 1L) / 1e9) / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s msgs/iter=%d alloc/iter=%d alloc=%.2f MB/s", latency.format(elapsedNanos),
+                    getMessagesPerIteration(), getAllocatedBytesPerIteration(), getAllocationRate());
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.CliUtil;
+
+/**
+ * Load generator for the IMAP, POP3 and milter servers.
+ * <p>
+ * Runs a number of concurrent scripted client sessions against a server port (normally over loopback) and reports
+ * per-command latency percentiles and throughput, plus the client side allocation rate. The same scripts work
+ * against both the TCP and the NIO (MINA) implementations, so the two modes can be compared by flipping
+ * {@code nio_imap_enabled}/{@code nio_pop3_enabled} and re-running.
+ * <ul>
+ *  <li>imap: LOGIN, SELECT, APPEND with a large synchronizing literal, then a storm of FETCH 1:* commands and
+ *      optionally full-body fetches of the appended message
+ *  <li>pop3: USER/PASS, STAT, then RETR of the first messages
+ *  <li>milter: option negotiation, connect, MAIL/RCPT macros and a run of header callbacks per message
+ * </ul>
+ * For the decoders alone, see {@link NioCodecBenchmark}.
+ */
+public final class NioLoadGenerator {
+
+    private static final Options OPTIONS = new Options();
+
+    static {
+        OPTIONS.addOption("h", "help", false, "show help text");
+        OPTIONS.addOption("p", "protocol", true, "imap, pop3 or milter (default imap)");
+        OPTIONS.addOption("s", "server", true, "server host (default localhost)");
+        OPTIONS.addOption("P", "port", true, "server port (default 7143, 7110 or 7026 for imap, pop3, milter)");
+        OPTIONS.addOption("u", "user", true, "account name (imap and pop3)");
+        OPTIONS.addOption("w", "password", true, "account password (imap and pop3)");
+        OPTIONS.addOption("c", "clients", true, "number of concurrent client connections (default 10)");
+        OPTIONS.addOption("n", "sessions", true, "number of sessions run by each client (default 10)");
+        OPTIONS.addOption("l", "literal-size", true, "size in bytes of the IMAP APPEND literal (default 1048576)");
+        OPTIONS.addOption("f", "fetches", true, "IMAP FETCH / POP3 RETR / milter messages per session (default 20)");
+        OPTIONS.addOption("b", "bodies", true, "IMAP FETCH BODY.PEEK[] of the appended message per session (default 0)");
+    }
+
+    private final Script script;
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int sessions;
+    private final Map<String, LatencyRecorder> recorders = new TreeMap<String, LatencyRecorder>();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    NioLoadGenerator(Script script, String host, int port, int clients, int sessions) {
+        this.script = script;
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.sessions = sessions;
+    }
+
+    LatencyRecorder getRecorder(String command) {
+        synchronized (recorders) {
+            LatencyRecorder recorder = recorders.get(command);
+            if (recorder == null) {
+                recorder = new LatencyRecorder(command);
+                recorders.put(command, recorder);
+            }
+            return recorder;
+        }
+    }
+
+    /**
+     * Runs all the client sessions and returns the wall clock time taken, in nanoseconds.
+     */
+    long run() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(clients,
+                new ThreadFactoryBuilder().setNameFormat("LoadClient-%d").build());
+        List<Future<?>> futures = new ArrayList<Future<?>>(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long allocated = NioCodecBenchmark.getAllocatedBytes();
+                    for (int s = 0; s < sessions; s++) {
+                        long t0 = System.nanoTime();
+                        try (Connection conn = new Connection(host, port)) {
+                            script.run(conn, NioLoadGenerator.this);
+                            getRecorder("SESSION").record(System.nanoTime() - t0);
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                            System.err.println("session failed: " + e);
+                        }
+                    }
+                    if (allocated >= 0) {
+                        allocatedBytes.addAndGet(NioCodecBenchmark.getAllocatedBytes() - allocated);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                failures.incrementAndGet();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        return elapsed;
+    }
+
+    void report(long elapsedNanos) {
+        System.out.printf("%s against %s:%d, %d clients x %d sessions, %.1fs, %d failed sessions%n",
+                script.getName(), host, port, clients, sessions, elapsedNanos / 1e9, failures.get());
+        synchronized (recorders) {
+            for (LatencyRecorder recorder : recorders.values()) {
+                System.out.println(recorder.format(elapsedNanos));
+            }
+        }
+        System.out.printf("client allocation: %.2f MB/s%n",
+                allocatedBytes.get() / (elapsedNanos / 1e9) / (1024 * 1024));
+    }
+
+    /**
+     * A blocking client connection with just enough framing support for the scripts.
+     */
+    static final class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        }
+
+        void writeLine(String line) throws IOException {
+            out.write(line.getBytes(Charsets.ISO_8859_1));
+            out.write('\r');
+            out.write('\n');
+            out.flush();
+        }
+
+        void write(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        /** Reads a CRLF terminated line, without the terminator. */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("connection closed by server");
+                }
+                line.write(b);
+            }
+            byte[] bytes = line.toByteArray();
+            int len = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+            return new String(bytes, 0, len, Charsets.ISO_8859_1);
+        }
+
+        void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("connection closed by server");
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        byte[] readFully(int count) throws IOException {
+            byte[] data = new byte[count];
+            int off = 0;
+            while (off < count) {
+                int n = in.read(data, off, count - off);
+                if (n < 0) {
+                    throw new IOException("connection closed by server");
+                }
+                off += n;
+            }
+            return data;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    abstract static class Script {
+        abstract String getName();
+
+        abstract void run(Connection conn, NioLoadGenerator load) throws IOException;
+    }
+
+    static final class ImapScript extends Script {
+        private final String user;
+        private final String password;
+        private final byte[] literal;
+        private final int fetches;
+        private final int bodies;
+        private int tag = 0;
+
+        ImapScript(String user, String password, int literalSize, int fetches, int bodies) {
+            this.user = user;
+            this.password = password;
+            this.fetches = fetches;
+            this.bodies = bodies;
+            StringBuilder msg = new StringBuilder(literalSize + 100);
+            msg.append("From: load@example.com\r\nTo: ").append(user).append("\r\nSubject: load test\r\n\r\n");
+            while (msg.length() < literalSize) {
+                msg.append("The quick brown fox jumps over the lazy dog 0123456789.\r\n");
+            }
+            msg.setLength(literalSize);
+            if (literalSize >= 2) { // end on a line boundary so POP3 can send the blob unchanged
+                msg.setCharAt(literalSize - 2, '\r');
+                msg.setCharAt(literalSize - 1, '\n');
+            }
+            this.literal = msg.toString().getBytes(Charsets.ISO_8859_1);
+        }
+
+        @Override
+        String getName() {
+            return "IMAP";
+        }
+
+        @Override
+        void run(Connection conn, NioLoadGenerator load) throws IOException {
+            conn.readLine(); // greeting
+            command(conn, load, "LOGIN", "LOGIN " + user + " " + password);
+            command(conn, load, "SELECT", "SELECT INBOX");
+
+            String t = nextTag();
+            long t0 = System.nanoTime();
+            conn.writeLine(t + " APPEND INBOX {" + literal.length + "}");
+            String cont = conn.readLine();
+            if (!cont.startsWith("+")) {
+                throw new IOException("APPEND rejected: " + cont);
+            }
+            conn.write(literal);
+            conn.writeLine("");
+            readResponse(conn, t);
+            load.getRecorder("APPEND").record(System.nanoTime() - t0, literal.length);
+
+            for (int i = 0; i < fetches; i++) {
+                command(conn, load, "FETCH", "FETCH 1:* (FLAGS UID RFC822.SIZE INTERNALDATE)");
+            }
+            for (int i = 0; i < bodies; i++) {
+                command(conn, load, "FETCH BODY[]", "FETCH * BODY.PEEK[]");
+            }
+            command(conn, load, "LOGOUT", "LOGOUT");
+        }
+
+        private synchronized String nextTag() {
+            return "a" + (++tag);
+        }
+
+        private void command(Connection conn, NioLoadGenerator load, String name, String command)
+                throws IOException {
+            String t = nextTag();
+            long t0 = System.nanoTime();
+            conn.writeLine(t + ' ' + command);
+            long bytes = readResponse(conn, t);
+            load.getRecorder(name).record(System.nanoTime() - t0, bytes);
+        }
+
+        /** Reads untagged responses (skipping any literals) up to the tagged completion; returns bytes read. */
+        private long readResponse(Connection conn, String t) throws IOException {
+            long bytes = 0;
+            while (true) {
+                String line = conn.readLine();
+                bytes += line.length() + 2;
+                if (line.startsWith(t + ' ')) {
+                    if (!line.startsWith(t + " OK")) {
+                        throw new IOException(line);
+                    }
+                    return bytes;
+                }
+                if (line.endsWith("}")) {
+                    int open = line.lastIndexOf('{');
+                    if (open >= 0) {
+                        long count = Long.parseLong(line.substring(open + 1, line.length() - 1).replace("+", ""));
+                        conn.skip(count);
+                        bytes += count;
+                    }
+                }
+            }
+        }
+    }
+
+    static final class Pop3Script extends Script {
+        private final String user;
+        private final String password;
+        private final int retrs;
+
+        Pop3Script(String user, String password, int retrs) {
+            this.user = user;
+            this.password = password;
+            this.retrs = retrs;
+        }
+
+        @Override
+        String getName() {
+            return "POP3";
+        }
+
+        @Override
+        void run(Connection conn, NioLoadGenerator load) throws IOException {
+            conn.readLine(); // greeting
+            command(conn, load, "USER", "USER " + user);
+            command(conn, load, "PASS", "PASS " + password);
+            String stat = command(conn, load, "STAT", "STAT");
+            int count = Integer.parseInt(stat.split(" ")[1]);
+            for (int i = 1; i <= Math.min(count, retrs); i++) {
+                long t0 = System.nanoTime();
+                conn.writeLine("RETR " + i);
+                String status = conn.readLine();
+                if (!status.startsWith("+OK")) {
+                    throw new IOException(status);
+                }
+                long bytes = 0;
+                for (String line = conn.readLine(); !line.equals("."); line = conn.readLine()) {
+                    bytes += line.length() + 2;
+                }
+                load.getRecorder("RETR").record(System.nanoTime() - t0, bytes);
+            }
+            command(conn, load, "QUIT", "QUIT");
+        }
+
+        private String command(Connection conn, NioLoadGenerator load, String name, String command)
+                throws IOException {
+            long t0 = System.nanoTime();
+            conn.writeLine(command);
+            String response = conn.readLine();
+            load.getRecorder(name).record(System.nanoTime() - t0, response.length() + 2);
+            if (!response.startsWith("+OK")) {
+                throw new IOException(response);
+            }
+            return response;
+        }
+    }
+
+    static final class MilterScript extends Script {
+        private static final byte SMFIC_OPTNEG = 'O';
+        private static final byte SMFIC_MACRO = 'D';
+        private static final byte SMFIC_CONNECT = 'C';
+        private static final byte SMFIC_MAIL = 'M';
+        private static final byte SMFIC_RCPT = 'R';
+        private static final byte SMFIC_HEADER = 'L';
+        private static final byte SMFIC_BODYEOB = 'E';
+        private static final byte SMFIC_QUIT = 'Q';
+        private static final int HEADERS_PER_MESSAGE = 20;
+
+        private final int messages;
+
+        MilterScript(int messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        String getName() {
+            return "MILTER";
+        }
+
+        @Override
+        void run(Connection conn, NioLoadGenerator load) throws IOException {
+            byte[] optneg = new byte[12];
+            optneg[3] = 2; // version 2, no actions or protocol flags
+            call(conn, load, "OPTNEG", SMFIC_OPTNEG, optneg);
+            // hostname, protocol family, port 25, address
+            call(conn, load, "CONNECT", SMFIC_CONNECT,
+                    concat(cstrings("localhost"), concat(new byte[] { '4', 0, 25 }, cstrings("127.0.0.1"))));
+            for (int m = 0; m < messages; m++) {
+                send(conn, SMFIC_MACRO, concat(new byte[] { SMFIC_MAIL },
+                        cstrings("{mail_addr}", "sender@example.com")));
+                call(conn, load, "MAIL", SMFIC_MAIL, cstrings("<sender@example.com>"));
+                send(conn, SMFIC_MACRO, concat(new byte[] { SMFIC_RCPT },
+                        cstrings("{rcpt_addr}", "rcpt@example.com")));
+                call(conn, load, "RCPT", SMFIC_RCPT, cstrings("<rcpt@example.com>"));
+                call(conn, load, "HEADER", SMFIC_HEADER, cstrings("To", "rcpt@example.com"));
+                for (int h = 1; h < HEADERS_PER_MESSAGE; h++) {
+                    call(conn, load, "HEADER", SMFIC_HEADER, cstrings("X-Load-" + h, "value " + h));
+                }
+                call(conn, load, "BODYEOB", SMFIC_BODYEOB, null);
+            }
+            send(conn, SMFIC_QUIT, null);
+        }
+
+        private void call(Connection conn, NioLoadGenerator load, String name, byte cmd, byte[] data)
+                throws IOException {
+            long t0 = System.nanoTime();
+            send(conn, cmd, data);
+            // read replies until one that isn't a modification action
+            long bytes = 0;
+            byte reply;
+            do {
+                byte[] len = conn.readFully(4);
+                int n = ((len[0] & 0xFF) << 24) | ((len[1] & 0xFF) << 16) | ((len[2] & 0xFF) << 8) | (len[3] & 0xFF);
+                reply = conn.readFully(n)[0];
+                bytes += n + 4;
+            } while (reply == 'm' || reply == 'h');
+            load.getRecorder(name).record(System.nanoTime() - t0, bytes);
+        }
+
+        private static void send(Connection conn, byte cmd, byte[] data) throws IOException {
+            int len = 1 + (data == null ? 0 : data.length);
+            byte[] packet = new byte[4 + len];
+            packet[0] = (byte) (len >>> 24);
+            packet[1] = (byte) (len >>> 16);
+            packet[2] = (byte) (len >>> 8);
+            packet[3] = (byte) len;
+            packet[4] = cmd;
+            if (data != null) {
+                System.arraycopy(data, 0, packet, 5, data.length);
+            }
+            conn.write(packet);
+        }
+
+        private static byte[] cstrings(String... values) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (String value : values) {
+                byte[] bytes = value.getBytes(Charsets.ISO_8859_1);
+                buf.write(bytes, 0, bytes.length);
+                buf.write(0);
+            }
+            return buf.toByteArray();
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] result = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
+        }
+    }
+
+    private static void usage(String errmsg) {
+        if (errmsg != null) {
+            System.err.println(errmsg);
+        }
+        new HelpFormatter().printHelp("NioLoadGenerator [options]", OPTIONS);
+        System.exit(errmsg == null ? 0 : 1);
+    }
+
+    private static int intOption(CommandLine cl, String opt, int defaultValue) {
+        try {
+            return cl.hasOption(opt) ? Integer.parseInt(cl.getOptionValue(opt)) : defaultValue;
+        } catch (NumberFormatException e) {
+            usage("invalid value for -" + opt + ": " + cl.getOptionValue(opt));
+            return defaultValue;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CliUtil.toolSetup();
+        CommandLineParser parser = new GnuParser();
+        CommandLine cl = null;
+        try {
+            cl = parser.parse(OPTIONS, args);
+        } catch (ParseException e) {
+            usage(e.getMessage());
+        }
+        if (cl.hasOption("h")) {
+            usage(null);
+        }
+        String protocol = cl.getOptionValue("p", "imap");
+        int fetches = intOption(cl, "f", 20);
+        Script script;
+        int defaultPort;
+        if (protocol.equals("milter")) {
+            script = new MilterScript(fetches);
+            defaultPort = 7026;
+        } else {
+            if (!cl.hasOption("u") || !cl.hasOption("w")) {
+                usage("user and password are required for " + protocol);
+            }
+            if (protocol.equals("imap")) {
+                script = new ImapScript(cl.getOptionValue("u"), cl.getOptionValue("w"),
+                        intOption(cl, "l", 1024 * 1024), fetches, intOption(cl, "b", 0));
+                defaultPort = 7143;
+            } else if (protocol.equals("pop3")) {
+                script = new Pop3Script(cl.getOptionValue("u"), cl.getOptionValue("w"), fetches);
+                defaultPort = 7110;
+            } else {
+                usage("unknown protocol: " + protocol);
+                return;
+            }
+        }
+        NioLoadGenerator load = new NioLoadGenerator(script, cl.getOptionValue("s", "localhost"),
+                intOption(cl, "P", defaultPort), intOption(cl, "c", 10), intOption(cl, "n", 10));
+        load.report(load.run());
+    }
+}
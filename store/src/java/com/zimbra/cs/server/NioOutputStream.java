@@ -19,15 +19,20 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 
 import com.google.common.base.Charsets;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.IOUtil;
 
-public final class NioOutputStream extends OutputStream {
+public final class NioOutputStream extends OutputStream implements FileRegionOutput {
     private final IoSession session;
     private IoBuffer buf;
     private int maxScheduledBytes;
@@ -88,9 +93,44 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public boolean isTransferSupported() {
+        IoFilterChain chain = session.getFilterChain();
+        return !chain.contains("ssl") && !chain.contains("sasl");
+    }
+
+    /**
+     * Writes the file region to the session as a MINA {@code FileRegion}, which the I/O processor sends with
+     * {@link FileChannel#transferTo}. The channel is closed once the write has completed or failed.
+     */
+    @Override
+    public synchronized void transferFrom(final FileChannel channel, long position, long count) throws IOException {
+        long writeBytes;
+        WriteFuture future;
+        try {
+            flush();
+            writeBytes = session.getScheduledWriteBytes();
+            future = session.write(new DefaultFileRegion(channel, position, count));
+        } catch (IOException | RuntimeException e) {
+            IOUtil.closeQuietly(channel);
+            throw e;
+        }
+        future.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture f) {
+                IOUtil.closeQuietly(channel);
+            }
+        });
+        awaitScheduledWrites(writeBytes, future);
+    }
+
     private synchronized void writeToSession(Object output) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        awaitScheduledWrites(writeBytes, future);
+    }
+
+    private void awaitScheduledWrites(long writeBytes, WriteFuture future) throws IOException {
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
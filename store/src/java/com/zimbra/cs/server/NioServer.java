@@ -75,6 +75,7 @@ public abstract class NioServer implements Server {
     private static final Multimap<Class<? extends NioServer>, IoFilter> FILTERS = ArrayListMultimap.create();
     protected static final ProtocolEncoder DEFAULT_ENCODER = new DefaultEncoder();
     protected final ExecutorFilter executorFilter;
+    protected final NioWorkerStats workerStats = new NioWorkerStats();
     protected final ZimbraSocketAcceptor acceptor;
     protected final ServerConfig config;
 
@@ -208,7 +209,8 @@ public abstract class NioServer implements Server {
         acceptor = new ZimbraSocketAcceptor(config.getServerSocketChannel(), IO_PROCESSOR_POOL);
         executorFilter = new ExecutorFilter(1, config.getMaxThreads(),
                 config.getThreadKeepAliveTime(), TimeUnit.SECONDS,
-                new ThreadFactoryBuilder().setNameFormat(getName() + "-%d").build(), IoEventType.EXCEPTION_CAUGHT,
+                new ThreadFactoryBuilder().setNameFormat(getName() + "-%d").build(), workerStats,
+                IoEventType.EXCEPTION_CAUGHT,
                 IoEventType.MESSAGE_RECEIVED, IoEventType.SESSION_CLOSED,
                 IoEventType.SESSION_IDLE, IoEventType.SESSION_OPENED);
 
@@ -252,6 +254,7 @@ public abstract class NioServer implements Server {
             Zimbra.halt(getName() + " failed to start", e);
         }
         getLog().info("Starting %s on %s", getName(), acceptor.getLocalAddress());
+        NioWorkerPoolSizer.getInstance().register(this);
     }
 
     /**
@@ -263,6 +266,7 @@ public abstract class NioServer implements Server {
     @Override
     public void stop(int timeout) {
         getLog().info("Initiating shutdown");
+        NioWorkerPoolSizer.getInstance().unregister(this);
         // Would prefer to unbind first then cleanly close active connections, but mina unbind seems to automatically
         // close the active sessions so we must close connections then unbind, which does expose us to a potential race
         // condition.
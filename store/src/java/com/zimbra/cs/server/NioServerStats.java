@@ -16,6 +16,9 @@
  */
 package com.zimbra.cs.server;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
 import org.apache.mina.core.service.IoAcceptor;
 import org.apache.mina.core.service.IoServiceStatistics;
 
@@ -27,10 +30,14 @@ import org.apache.mina.core.service.IoServiceStatistics;
 final class NioServerStats implements NioServerStatsMBean {
     private final IoAcceptor acceptor;
     private final IoServiceStatistics stats;
+    private final NioWorkerStats workerStats;
+    private final Executor executor;
 
     NioServerStats(NioServer server) {
         acceptor = server.acceptor;
         stats = acceptor.getStatistics();
+        workerStats = server.workerStats;
+        executor = server.executorFilter.getExecutor();
     }
 
     @Override
@@ -72,4 +79,34 @@ final class NioServerStats implements NioServerStatsMBean {
     public long getScheduledWriteMessages() {
         return stats.getScheduledWriteMessages();
     }
+
+    @Override
+    public long getQueuedEvents() {
+        return workerStats.getQueueDepth();
+    }
+
+    @Override
+    public long getTotalEvents() {
+        return workerStats.getTotalEvents();
+    }
+
+    @Override
+    public double getAverageQueueWaitMillis() {
+        return workerStats.getAverageWaitMillis();
+    }
+
+    @Override
+    public int getWorkerPoolSize() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getPoolSize() : 0;
+    }
+
+    @Override
+    public int getWorkerPoolMaxSize() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getMaximumPoolSize() : 0;
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getActiveCount() : 0;
+    }
 }
@@ -25,4 +25,10 @@ public interface NioServerStatsMBean {
     long getWrittenMessages();
     long getScheduledWriteBytes();
     long getScheduledWriteMessages();
+    long getQueuedEvents();
+    long getTotalEvents();
+    double getAverageQueueWaitMillis();
+    int getWorkerPoolSize();
+    int getWorkerPoolMaxSize();
+    int getActiveWorkers();
 }
@@ -0,0 +1,213 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Periodically resizes the worker pools of all running {@link NioServer} instances.
+ * <p>
+ * Every second the number of busy workers of each pool is sampled. At the end of each adjustment interval the
+ * concurrency a protocol needs is estimated with Little's law: the average number of busy workers plus the average
+ * number of events waiting in the queue (arrival rate times average queue wait), plus some headroom, never below the
+ * per-protocol minimum nor above the configured {@link ServerConfig#getMaxThreads()}.
+ * <p>
+ * Without {@code nio_worker_pool_total_max_threads} the estimate only sets the core size, i.e. how many workers are
+ * kept warm; the maximum stays at the configured value so a burst after a quiet period still gets every worker right
+ * away. If {@code nio_worker_pool_total_max_threads} is set, the estimate becomes the pool's maximum size, and when
+ * the protocols together want more than the total the threads above the minimums are shared out in proportion to
+ * demand, so a login storm on one protocol cannot take every worker on the box. A pool whose events waited longer
+ * than {@code nio_worker_pool_target_wait_ms} on average is then allowed to double.
+ */
+final class NioWorkerPoolSizer {
+    private static final NioWorkerPoolSizer INSTANCE = new NioWorkerPoolSizer();
+    private static final double HEADROOM = 1.25;
+
+    private final Map<NioServer, Pool> pools = new LinkedHashMap<NioServer, Pool>();
+    private TimerTask task;
+    private int ticks = 0;
+
+    static NioWorkerPoolSizer getInstance() {
+        return INSTANCE;
+    }
+
+    private static final class Pool {
+        final NioServer server;
+        final ThreadPoolExecutor executor;
+        final int configuredMax;
+        long busySamples = 0;
+        int samples = 0;
+        long lastCompleted = 0;
+
+        Pool(NioServer server, ThreadPoolExecutor executor) {
+            this.server = server;
+            this.executor = executor;
+            this.configuredMax = server.getConfig().getMaxThreads();
+            this.lastCompleted = executor.getCompletedTaskCount();
+        }
+    }
+
+    synchronized void register(NioServer server) {
+        int interval = LC.nio_worker_pool_adjust_interval.intValue();
+        if (interval <= 0) {
+            return;
+        }
+        Executor executor = server.executorFilter.getExecutor();
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            server.getLog().warn("Unexpected Executor type %s, worker pool will not be resized",
+                    executor.getClass().getName());
+            return;
+        }
+        pools.put(server, new Pool(server, (ThreadPoolExecutor) executor));
+        if (task == null) {
+            task = new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        tick();
+                    } catch (Throwable t) {
+                        ZimbraLog.perf.warn("error resizing NIO worker pools", t);
+                    }
+                }
+            };
+            Zimbra.sTimer.schedule(task, Constants.MILLIS_PER_SECOND, Constants.MILLIS_PER_SECOND);
+        }
+    }
+
+    synchronized void unregister(NioServer server) {
+        pools.remove(server);
+        if (pools.isEmpty() && task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    synchronized void tick() {
+        for (Pool pool : pools.values()) {
+            pool.busySamples += pool.executor.getActiveCount();
+            pool.samples++;
+        }
+        if (++ticks >= LC.nio_worker_pool_adjust_interval.intValue()) {
+            ticks = 0;
+            adjust();
+        }
+    }
+
+    private void adjust() {
+        int minThreads = LC.nio_worker_pool_min_threads.intValue();
+        double targetWait = LC.nio_worker_pool_target_wait_ms.intValue() / (double) Constants.MILLIS_PER_SECOND;
+        List<Pool> list = new ArrayList<Pool>(pools.values());
+        int[] mins = new int[list.size()];
+        int[] demands = new int[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            Pool pool = list.get(i);
+            NioWorkerStats.Window window = pool.server.workerStats.nextWindow();
+            long completed = pool.executor.getCompletedTaskCount();
+            double seconds = Math.max(pool.samples, 1);
+            double arrivalRate = window.offered / seconds;
+            double avgBusy = pool.busySamples / seconds;
+            // Little's law: mean queue length = arrival rate x mean time spent waiting in the queue
+            double avgQueued = arrivalRate * window.getAverageWaitSeconds();
+            mins[i] = Math.min(minThreads, pool.configuredMax);
+            demands[i] = targetSize(avgBusy, avgQueued, mins[i], pool.configuredMax);
+            if (window.getAverageWaitSeconds() > targetWait) {
+                // events are waiting too long; grow faster than the estimate so the backlog drains
+                demands[i] = Math.max(demands[i], Math.min(pool.configuredMax, pool.executor.getMaximumPoolSize() * 2));
+            }
+            ZimbraLog.perf.debug("%s workers: busy=%.1f queued=%.1f rate=%.1f/s done=%d depth=%d maxWait=%dms target=%d",
+                    pool.server.getName(), avgBusy, avgQueued, arrivalRate, completed - pool.lastCompleted,
+                    window.queueDepth, window.maxWaitNanos / 1000000, demands[i]);
+            pool.busySamples = 0;
+            pool.samples = 0;
+            pool.lastCompleted = completed;
+        }
+        int total = LC.nio_worker_pool_total_max_threads.intValue();
+        if (total <= 0) {
+            // nothing to share out, only decide how many workers to keep warm
+            for (int i = 0; i < list.size(); i++) {
+                resize(list.get(i), demands[i], list.get(i).configuredMax);
+            }
+            return;
+        }
+        int[] sizes = share(demands, mins, total);
+        for (int i = 0; i < list.size(); i++) {
+            resize(list.get(i), mins[i], sizes[i]);
+        }
+    }
+
+    /**
+     * Returns the pool size needed to serve the observed load without queueing, plus headroom.
+     */
+    static int targetSize(double avgBusy, double avgQueued, int min, int max) {
+        int target = (int) Math.ceil((avgBusy + avgQueued) * HEADROOM) + 1;
+        return Math.max(min, Math.min(max, target));
+    }
+
+    /**
+     * Caps the sum of the pool sizes at {@code total} (if positive). Every pool keeps its minimum; the threads
+     * left over are shared out in proportion to how much each pool wants above its minimum.
+     */
+    static int[] share(int[] demands, int[] mins, int total) {
+        int[] sizes = demands.clone();
+        long sum = 0;
+        long sumMins = 0;
+        long sumExtra = 0;
+        for (int i = 0; i < demands.length; i++) {
+            sum += demands[i];
+            sumMins += mins[i];
+            sumExtra += demands[i] - mins[i];
+        }
+        if (total <= 0 || sum <= total || sumExtra == 0) {
+            return sizes;
+        }
+        long spare = Math.max(0, total - sumMins);
+        for (int i = 0; i < demands.length; i++) {
+            sizes[i] = mins[i] + (int) ((demands[i] - mins[i]) * spare / sumExtra);
+        }
+        return sizes;
+    }
+
+    private static void resize(Pool pool, int core, int max) {
+        ThreadPoolExecutor executor = pool.executor;
+        max = Math.max(max, 1);
+        core = Math.min(core, max);
+        if (executor.getMaximumPoolSize() == max && executor.getCorePoolSize() == core) {
+            return;
+        }
+        // keep core <= max at every step
+        if (max < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(core);
+            executor.setMaximumPoolSize(max);
+        } else {
+            executor.setMaximumPoolSize(max);
+            executor.setCorePoolSize(core);
+        }
+        pool.server.getLog().debug("resized worker pool to core=%d max=%d", core, max);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.filter.executor.IoEventQueueHandler;
+
+/**
+ * Tracks how long I/O events wait in the {@link org.apache.mina.filter.executor.ExecutorFilter} queue of a
+ * {@link NioServer} before a worker thread picks them up.
+ * <p>
+ * Counters are kept both cumulatively (for JMX) and per sampling window (for {@link NioWorkerPoolSizer}).
+ */
+final class NioWorkerStats implements IoEventQueueHandler {
+    private final Map<IoEvent, Long> queued = Collections.synchronizedMap(new IdentityHashMap<IoEvent, Long>());
+
+    private long totalOffered = 0;
+    private long totalPolled = 0;
+    private long totalWaitNanos = 0;
+
+    private long windowOffered = 0;
+    private long windowPolled = 0;
+    private long windowWaitNanos = 0;
+    private long windowMaxWaitNanos = 0;
+
+    @Override
+    public boolean accept(Object source, IoEvent event) {
+        return true;
+    }
+
+    @Override
+    public void offered(Object source, IoEvent event) {
+        queued.put(event, System.nanoTime());
+        synchronized (this) {
+            totalOffered++;
+            windowOffered++;
+        }
+    }
+
+    @Override
+    public void polled(Object source, IoEvent event) {
+        Long offered = queued.remove(event);
+        long wait = offered == null ? 0L : System.nanoTime() - offered;
+        synchronized (this) {
+            totalPolled++;
+            totalWaitNanos += wait;
+            windowPolled++;
+            windowWaitNanos += wait;
+            windowMaxWaitNanos = Math.max(windowMaxWaitNanos, wait);
+        }
+    }
+
+    /** Number of events currently waiting for a worker thread. */
+    int getQueueDepth() {
+        return queued.size();
+    }
+
+    synchronized long getTotalEvents() {
+        return totalPolled;
+    }
+
+    /** Average queue wait in milliseconds over the lifetime of the server. */
+    synchronized double getAverageWaitMillis() {
+        return totalPolled == 0 ? 0.0 : totalWaitNanos / (double) totalPolled / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the counters accumulated since the previous call and starts a new window.
+     */
+    synchronized Window nextWindow() {
+        Window window = new Window(windowOffered, windowPolled, windowWaitNanos, windowMaxWaitNanos, getQueueDepth());
+        windowOffered = 0;
+        windowPolled = 0;
+        windowWaitNanos = 0;
+        windowMaxWaitNanos = 0;
+        return window;
+    }
+
+    static final class Window {
+        final long offered;
+        final long polled;
+        final long waitNanos;
+        final long maxWaitNanos;
+        final int queueDepth;
+
+        Window(long offered, long polled, long waitNanos, long maxWaitNanos, int queueDepth) {
+            this.offered = offered;
+            this.polled = polled;
+            this.waitNanos = waitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.queueDepth = queueDepth;
+        }
+
+        double getAverageWaitSeconds() {
+            return polled == 0 ? 0.0 : waitNanos / (double) polled / TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+}
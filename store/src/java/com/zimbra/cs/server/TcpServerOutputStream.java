@@ -0,0 +1,68 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLSocket;
+
+import com.zimbra.cs.util.IOUtil;
+
+/**
+ * Buffered output stream for a plain TCP server connection that can also send file regions straight to the socket.
+ * <p>
+ * Sockets accepted by {@link TcpServer} are not channel based, so the transfer goes through
+ * {@link Channels#newChannel(java.io.OutputStream)} unless the socket has a channel of its own. Either way the file
+ * is read in large blocks rather than a byte at a time through the buffer.
+ */
+public final class TcpServerOutputStream extends BufferedOutputStream implements FileRegionOutput {
+    private final Socket socket;
+
+    public TcpServerOutputStream(Socket socket) throws IOException {
+        super(socket.getOutputStream());
+        this.socket = socket;
+    }
+
+    @Override
+    public boolean isTransferSupported() {
+        return !(socket instanceof SSLSocket);
+    }
+
+    @Override
+    public synchronized void transferFrom(FileChannel channel, long position, long count) throws IOException {
+        try {
+            flush();
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            while (count > 0) {
+                long sent = channel.transferTo(position, count, target);
+                if (sent <= 0) {
+                    throw new IOException("unexpected end of file at position " + position);
+                }
+                position += sent;
+                count -= sent;
+            }
+        } finally {
+            IOUtil.closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.service.mail.WaitSetRequest;
+import com.zimbra.cs.servlet.ZimbraServlet;
+import com.zimbra.cs.session.IWaitSet;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.WaitSetCallback;
+import com.zimbra.cs.session.WaitSetError;
+import com.zimbra.cs.session.WaitSetMgr;
+import com.zimbra.cs.session.WaitSetSession;
+import com.zimbra.cs.util.Zimbra;
+import com.zimbra.soap.JaxbUtil;
+import com.zimbra.soap.ZimbraSoapContext;
+import com.zimbra.soap.mail.message.WaitSetResponse;
+
+/**
+ * Streams the signals of a WaitSet over a single long-lived HTTP response, as an alternative to
+ * re-issuing a blocking <tt>WaitSetRequest</tt> after every wake-up.
+ * <p>
+ * <tt>GET /service/waitset?waitSet=ID&amp;seq=N[&amp;expand=1][&amp;defTypes=...]</tt>
+ * <p>
+ * The response is a sequence of newline-separated JSON <tt>WaitSetResponse</tt> objects, exactly as
+ * <tt>WaitSetRequest</tt> would have returned them.  A frame without signalled accounts is sent every
+ * <tt>zimbra_waitset_stream_heartbeat_interval</tt> seconds.  Each frame acknowledges the previous one, the same
+ * way the <tt>seq</tt> of the next <tt>WaitSetRequest</tt> would: a client that reconnects with the last
+ * <tt>seq</tt> it received gets anything it may have missed again.
+ * <p>
+ * The request is put in async mode and holds no thread while it waits: the WaitSet callback and the heartbeat
+ * timer dispatch the next frame, which is written with non-blocking I/O.  At most
+ * <tt>zimbra_waitset_stream_max_streams</tt> streams are open at a time; beyond that the request fails with 503.
+ * <p>
+ * Flow control: the next frame isn't collected until the previous one has been written to a client that is
+ * keeping up, and frames are at least <tt>zimbra_waitset_stream_min_frame_interval</tt> ms apart.  Signals that
+ * arrive in the meantime are merged by the WaitSet into the next frame.
+ * <p>
+ * There is at most one stream per WaitSet; opening a new one ends the old one.  Accounts are still added to and
+ * removed from the WaitSet with <tt>WaitSetRequest</tt>s, but any such request takes over the WaitSet's
+ * callback: the stream then sends a <tt>canceled</tt> frame and ends, and the client reconnects with its last
+ * <tt>seq</tt>.
+ */
+public class WaitSetStreamServlet extends ZimbraServlet {
+    private static final long serialVersionUID = 1487227319404652311L;
+
+    private static final String QP_WAITSET = "waitSet";
+    private static final String QP_SEQ = "seq";
+    private static final String QP_EXPAND = "expand";
+    private static final String QP_DEFAULT_TYPES = "defTypes";
+
+    private static final String CONTENT_TYPE = "application/x-ndjson; charset=utf-8";
+
+    /** the stream currently attached to each WaitSet */
+    private static final ConcurrentMap<String, Stream> sStreams = new ConcurrentHashMap<String, Stream>();
+    /** number of streams open on this server, see {@link LC#zimbra_waitset_stream_max_streams} */
+    private static final AtomicInteger sStreamCount = new AtomicInteger();
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        ZimbraLog.clearContext();
+        try {
+            AuthToken authToken = cookieAuthRequest(req, resp);
+            if (authToken == null) {
+                resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "no valid authtoken");
+                return;
+            }
+            ZimbraLog.addAccountNameToContext(authToken.getAccount().getName());
+
+            String waitSetId = req.getParameter(QP_WAITSET);
+            if (waitSetId == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "missing " + QP_WAITSET);
+                return;
+            }
+            String seq = req.getParameter(QP_SEQ);
+            seq = seq == null ? "0" : Long.toString(Long.parseLong(seq));
+            boolean expand = "1".equals(req.getParameter(QP_EXPAND)) || "true".equals(req.getParameter(QP_EXPAND));
+
+            IWaitSet ws = lookupWaitSet(authToken, waitSetId, req.getParameter(QP_DEFAULT_TYPES), seq);
+            if (ws == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, "no such waitset");
+                return;
+            }
+            if (!reserve()) {
+                ZimbraLog.session.info("too many waitset streams, refusing stream for WaitSet %s", waitSetId);
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many waitset streams");
+                return;
+            }
+            Stream stream;
+            try {
+                resp.setContentType(CONTENT_TYPE);
+                resp.setStatus(HttpServletResponse.SC_OK);
+                AsyncContext async = req.startAsync();
+                async.setTimeout(0); // the stream ends itself, see Stream#arm()
+                stream = new Stream(ws, seq, expand, authToken, async);
+            } catch (RuntimeException e) {
+                sStreamCount.decrementAndGet();
+                throw e;
+            }
+            stream.start();
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid " + QP_SEQ);
+        } catch (ServiceException e) {
+            ZimbraLog.session.info("unable to stream waitset", e);
+            if (!resp.isCommitted()) {
+                int status = ServiceException.PERM_DENIED.equals(e.getCode()) ?
+                        HttpServletResponse.SC_FORBIDDEN : HttpServletResponse.SC_BAD_REQUEST;
+                resp.sendError(status, e.getMessage());
+            }
+        } finally {
+            ZimbraLog.clearContext();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (Stream stream : sStreams.values()) {
+            stream.end();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Returns the WaitSet the authenticated account may stream, creating it in the case of an "All accounts"
+     * WaitSet, or <tt>null</tt> if there is no such WaitSet.  Applies the same access checks as
+     * <tt>WaitSetRequest</tt>.
+     */
+    static IWaitSet lookupWaitSet(AuthToken authToken, String waitSetId, String defaultTypes, String seq)
+            throws ServiceException {
+        IWaitSet ws;
+        if (waitSetId.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
+            WaitSetMgr.checkRightForAllAccounts(new ZimbraSoapContext(authToken, authToken.getAccountId(),
+                    SoapProtocol.SoapJS, SoapProtocol.SoapJS));
+            Set<MailItem.Type> defaultInterests = WaitSetRequest.parseInterestStr(defaultTypes,
+                    EnumSet.noneOf(MailItem.Type.class));
+            ws = WaitSetMgr.lookupOrCreateForAllAccts(authToken.getAccountId(), waitSetId, defaultInterests, seq);
+        } else {
+            ws = WaitSetMgr.lookup(waitSetId);
+        }
+        if (ws != null) {
+            WaitSetMgr.checkRightForOwnerAccount(ws, authToken.getAccountId());
+        }
+        return ws;
+    }
+
+    /** Takes one of the {@link LC#zimbra_waitset_stream_max_streams} stream slots, if there is one left. */
+    static boolean reserve() {
+        int max = LC.zimbra_waitset_stream_max_streams.intValue();
+        if (sStreamCount.incrementAndGet() > max) {
+            sStreamCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    static int getStreamCount() {
+        return sStreamCount.get();
+    }
+
+    /**
+     * One open stream.  Only one frame is in flight at a time: a frame is collected when the callback armed for it
+     * fires (or the heartbeat times out), written out, and the next callback is armed once the write completed.
+     */
+    static final class Stream implements WriteListener, AsyncListener {
+        private final IWaitSet ws;
+        private final String waitSetId;
+        private final boolean expand;
+        private final AuthToken authToken;
+        private final AsyncContext async;
+        private final long heartbeat;
+        private final long minInterval;
+        /** the callback the WaitSet will signal next, if any */
+        private final AtomicReference<WaitSetCallback> armed = new AtomicReference<WaitSetCallback>();
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private ServletOutputStream out;
+        private volatile String seq;
+        /** whether the frame just written carried data, and the next one is to wait for minInterval */
+        private volatile boolean pace;
+        private volatile TimerTask timer;
+        private volatile long frames;
+
+        /** @param async a request the caller {@link #reserve()}d a stream slot for, ended with the stream */
+        Stream(IWaitSet ws, String seq, boolean expand, AuthToken authToken, AsyncContext async) {
+            this.ws = ws;
+            this.waitSetId = ws.getWaitSetId();
+            this.seq = seq;
+            this.expand = expand;
+            this.authToken = authToken;
+            this.async = async;
+            this.heartbeat = LC.zimbra_waitset_stream_heartbeat_interval.longValueWithinRange(1,
+                    Constants.SECONDS_PER_HOUR) * Constants.MILLIS_PER_SECOND;
+            this.minInterval = LC.zimbra_waitset_stream_min_frame_interval.longValueWithinRange(0,
+                    Constants.MILLIS_PER_MINUTE);
+        }
+
+        void start() throws IOException {
+            Stream previous = sStreams.put(waitSetId, this);
+            if (previous != null) {
+                ZimbraLog.session.info("replacing existing stream for WaitSet %s", waitSetId);
+                previous.end();
+            }
+            async.addListener(this);
+            out = async.getResponse().getOutputStream();
+            // the container calls onWritePossible() as soon as the response can be written, which arms the first
+            // callback
+            out.setWriteListener(this);
+        }
+
+        boolean isEnded() {
+            return ended.get();
+        }
+
+        /** Registers a fresh callback with the WaitSet, acknowledging everything up to {@link #seq}. */
+        private void arm() {
+            if (ended.get()) {
+                return;
+            }
+            if (sStreams.get(waitSetId) != this || authToken.isExpired()) {
+                end();
+                return;
+            }
+            final WaitSetCallback cb = new WaitSetCallback() {
+                @Override
+                public void dataReady(IWaitSet wset, String seqNum, boolean setCanceled, List<WaitSetError> errors,
+                        Set<WaitSetSession> sessions, Set<String> accounts, Map<String, PendingModifications> pms) {
+                    super.dataReady(wset, seqNum, setCanceled, errors, sessions, accounts, pms);
+                    fire(this);
+                }
+            };
+            cb.ws = ws;
+            armed.set(cb);
+            schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    fire(cb);
+                }
+            }, heartbeat);
+            synchronized (ws) { // bug 28190: always grab the WS lock before the CB lock.
+                synchronized (cb) {
+                    cb.errors.addAll(ws.doWait(cb, seq, null, null));
+                }
+            }
+        }
+
+        /** Called when <tt>cb</tt> completed, was canceled or timed out; the first of those dispatches the frame. */
+        void fire(final WaitSetCallback cb) {
+            if (!armed.compareAndSet(cb, null)) {
+                return;
+            }
+            try {
+                // never collect the frame here: the WaitSet may be calling us with its lock held
+                async.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(cb);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                ws.doneWaiting(cb);
+                end();
+            }
+        }
+
+        private void deliver(WaitSetCallback cb) {
+            cancelTimer();
+            try {
+                WaitSetResponse frame = new WaitSetResponse();
+                // releases the callback, so nothing can complete it while it's being encoded
+                WaitSetRequest.processCallback(frame, cb, waitSetId, seq, expand);
+                if (cb.canceled) {
+                    // the WaitSet was destroyed, or a WaitSetRequest took over the callback.  Either way, re-arming
+                    // would just take it back from that request, so tell the client and stop.
+                    write(frame);
+                    end();
+                    return;
+                }
+                pace = cb.completed && minInterval > 0;
+                if (cb.completed) {
+                    seq = cb.seqNo;
+                }
+                write(frame);
+                frames++;
+                if (out.isReady()) {
+                    next();
+                } // else onWritePossible() follows once the client has taken the frame
+            } catch (IOException e) {
+                ZimbraLog.session.debug("client closed stream for WaitSet %s", waitSetId, e);
+                end();
+            } catch (ServiceException | RuntimeException e) {
+                ZimbraLog.session.warn("error streaming WaitSet %s", waitSetId, e);
+                end();
+            }
+        }
+
+        private void write(WaitSetResponse frame) throws IOException, ServiceException {
+            Element elt = JaxbUtil.jaxbToElement(frame, Element.JSONElement.mFactory);
+            byte[] bytes = (elt.toString() + '\n').getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            if (out.isReady()) {
+                out.flush();
+            }
+        }
+
+        /** Arms the next callback, after {@link #minInterval} if the last frame carried data. */
+        private void next() {
+            if (!pace) {
+                arm();
+                return;
+            }
+            pace = false;
+            schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        async.start(new Runnable() {
+                            @Override
+                            public void run() {
+                                arm();
+                            }
+                        });
+                    } catch (IllegalStateException e) {
+                        end();
+                    }
+                }
+            }, minInterval);
+        }
+
+        private void schedule(TimerTask task, long delay) {
+            cancelTimer();
+            timer = task;
+            Zimbra.sTimer.schedule(task, delay);
+        }
+
+        private void cancelTimer() {
+            TimerTask task = timer;
+            if (task != null) {
+                task.cancel();
+            }
+        }
+
+        /** Ends the stream and completes the response; safe to call more than once and from any thread. */
+        void end() {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            sStreamCount.decrementAndGet();
+            sStreams.remove(waitSetId, this);
+            cancelTimer();
+            WaitSetCallback cb = armed.getAndSet(null);
+            if (cb != null) {
+                ws.doneWaiting(cb);
+            }
+            try {
+                async.complete();
+            } catch (IllegalStateException e) {
+                ZimbraLog.session.debug("stream for WaitSet %s already completed", waitSetId);
+            }
+            ZimbraLog.session.debug("stream for WaitSet %s ended after %d frames", waitSetId, frames);
+        }
+
+        @Override
+        public void onWritePossible() {
+            if (!ended.get()) {
+                next();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            ZimbraLog.session.debug("error writing stream for WaitSet %s", waitSetId, t);
+            end();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            end();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            end();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            end();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
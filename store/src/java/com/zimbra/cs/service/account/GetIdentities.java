@@ -32,6 +32,11 @@ import com.zimbra.soap.ZimbraSoapContext;
  */
 public final class GetIdentities extends AccountDocumentHandler  {
 
+    @Override
+    public boolean isSideEffectFree(Element request) {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
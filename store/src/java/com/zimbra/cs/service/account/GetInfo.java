@@ -101,6 +101,11 @@ public class GetInfo extends AccountDocumentHandler  {
         }
     }
 
+    @Override
+    public boolean isSideEffectFree(Element request) {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -293,6 +293,9 @@ public class AdminService implements DocumentService {
         // store manager verifier
         dispatcher.registerHandler(AdminConstants.VERIFY_STORE_MANAGER_REQUEST, new VerifyStoreManager());
 
+        // bulk message import
+        dispatcher.registerHandler(AdminConstants.BULK_IMPORT_MESSAGES_REQUEST, new BulkImportMessages());
+
         // Skins
         dispatcher.registerHandler(AdminConstants.GET_ALL_SKINS_REQUEST, new GetAllSkins());
 
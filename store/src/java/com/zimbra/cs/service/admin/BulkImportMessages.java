@@ -0,0 +1,233 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.admin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.account.Key.AccountBy;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AccountServiceException;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.accesscontrol.AdminRight;
+import com.zimbra.cs.account.accesscontrol.AdminRightCheckPoint;
+import com.zimbra.cs.mailbox.BulkMessageImport;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.soap.ZimbraSoapContext;
+import com.zimbra.soap.admin.message.BulkImportMessagesRequest;
+import com.zimbra.soap.admin.message.BulkImportMessagesResponse;
+
+/**
+ * Imports a server-side directory of message files into a mailbox with
+ * {@link BulkMessageImport}.  The directory has to be under
+ * {@code bulk_import_directory}, and the import runs in the background; a
+ * {@code status} request reports its progress.  The request isn't proxied,
+ * since the directory has to be on the account's home server.
+ */
+public final class BulkImportMessages extends AdminDocumentHandler {
+
+    private static final String ACTION_START = "start";
+    private static final String ACTION_STATUS = "status";
+
+    private static final String STATUS_STARTED = "started";
+    private static final String STATUS_RUNNING = "running";
+    private static final String STATUS_IDLE = "idle";
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("BulkImportMessages-%d").setDaemon(true).build());
+
+    /** the running or most recent import of each mailbox, by mailbox ID */
+    private static final Map<Integer, ImportTask> TASKS = new HashMap<Integer, ImportTask>();
+
+    @Override
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+        checkRight(zsc, context, null, AdminRight.PR_SYSTEM_ADMIN_ONLY);
+        BulkImportMessagesRequest req = zsc.elementToJaxb(request);
+        String action = req.getAction() == null ? ACTION_START : req.getAction();
+
+        Account account = Provisioning.getInstance().get(AccountBy.id, req.getId(), zsc.getAuthToken());
+        if (account == null) {
+            throw AccountServiceException.NO_SUCH_ACCOUNT(req.getId());
+        }
+        if (!Provisioning.onLocalServer(account)) {
+            throw ServiceException.WRONG_HOST(account.getMailHost(), null);
+        }
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+
+        if (ACTION_STATUS.equalsIgnoreCase(action)) {
+            synchronized (TASKS) {
+                ImportTask task = TASKS.get(mbox.getId());
+                if (task == null) {
+                    return zsc.jaxbToElement(new BulkImportMessagesResponse(STATUS_IDLE, 0, 0));
+                }
+                return zsc.jaxbToElement(new BulkImportMessagesResponse(task.done ? STATUS_IDLE : STATUS_RUNNING,
+                        task.succeeded, task.failed));
+            }
+        } else if (!ACTION_START.equalsIgnoreCase(action)) {
+            throw ServiceException.INVALID_REQUEST("unknown action: " + action, null);
+        }
+
+        File dir = resolveDirectory(LC.bulk_import_directory.value(), req.getPath());
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw ServiceException.INVALID_REQUEST("not a directory: " + req.getPath(), null);
+        }
+        Arrays.sort(files);
+
+        int folderId = Mailbox.ID_FOLDER_INBOX;
+        if (req.getFolderId() != null) {
+            try {
+                folderId = Integer.parseInt(req.getFolderId());
+            } catch (NumberFormatException e) {
+                throw ServiceException.INVALID_REQUEST("invalid folder id: " + req.getFolderId(), e);
+            }
+        }
+        // fail early if the folder doesn't exist
+        OperationContext octxt = getOperationContext(zsc, context);
+        mbox.getFolderById(octxt, folderId);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId).setNoICal(true);
+
+        synchronized (TASKS) {
+            ImportTask task = TASKS.get(mbox.getId());
+            if (task != null && !task.done) {
+                return zsc.jaxbToElement(new BulkImportMessagesResponse(STATUS_RUNNING,
+                        task.succeeded, task.failed));
+            }
+            task = new ImportTask(mbox, octxt, files, dopt);
+            TASKS.put(mbox.getId(), task);
+            EXECUTOR.execute(task);
+        }
+        return zsc.jaxbToElement(new BulkImportMessagesResponse(STATUS_STARTED, 0, 0));
+    }
+
+    /**
+     * Resolves the requested directory against the import root.  Relative
+     * paths are taken to be relative to the root, and the canonical path,
+     * with any symbolic links followed, must be inside the root.
+     *
+     * @param root the import root, or empty if bulk import is disabled
+     */
+    static File resolveDirectory(String root, String path) throws ServiceException {
+        if (Strings.isNullOrEmpty(root)) {
+            throw ServiceException.PERM_DENIED("bulk import is disabled");
+        }
+        if (Strings.isNullOrEmpty(path)) {
+            throw ServiceException.INVALID_REQUEST("missing path", null);
+        }
+        for (String part : path.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                throw ServiceException.PERM_DENIED("path may not contain '..': " + path);
+            }
+        }
+        try {
+            File rootDir = new File(root).getCanonicalFile();
+            File dir = new File(path);
+            dir = (dir.isAbsolute() ? dir : new File(rootDir, path)).getCanonicalFile();
+            if (!dir.toPath().startsWith(rootDir.toPath())) {
+                throw ServiceException.PERM_DENIED("path is not under " + root + ": " + path);
+            }
+            return dir;
+        } catch (IOException e) {
+            throw ServiceException.INVALID_REQUEST("invalid path: " + path, e);
+        }
+    }
+
+    private static final class ImportTask implements Runnable {
+        private final Mailbox mbox;
+        private final OperationContext octxt;
+        private final File[] files;
+        private final DeliveryOptions dopt;
+        volatile int succeeded = 0;
+        volatile int failed = 0;
+        volatile boolean done = false;
+
+        ImportTask(Mailbox mbox, OperationContext octxt, File[] files, DeliveryOptions dopt) {
+            this.mbox = mbox;
+            this.octxt = octxt;
+            this.files = files;
+            this.dopt = dopt;
+        }
+
+        @Override
+        public void run() {
+            int unreadable = 0;
+            BulkMessageImport bulk = null;
+            try {
+                bulk = new BulkMessageImport(mbox, octxt);
+                try {
+                    for (File file : files) {
+                        if (!file.isFile()) {
+                            continue;
+                        }
+                        InputStream in = null;
+                        try {
+                            in = new FileInputStream(file);
+                            bulk.add(in, file.length(), ParsedMessage.DATE_HEADER, dopt, file.getName());
+                        } catch (IOException e) {
+                            ZimbraLog.mailbox.warn("unable to import %s", file.getPath(), e);
+                            unreadable++;
+                        } finally {
+                            ByteUtil.closeStream(in);
+                        }
+                        succeeded = bulk.getAddedCount();
+                        failed = bulk.getFailures().size() + unreadable;
+                    }
+                } finally {
+                    bulk.close();
+                }
+            } catch (ServiceException e) {
+                ZimbraLog.mailbox.warn("bulk import into mailbox %d stopped", mbox.getId(), e);
+            } finally {
+                if (bulk != null) {
+                    List<Pair<String, Exception>> failures = bulk.getFailures();
+                    for (Pair<String, Exception> failure : failures) {
+                        ZimbraLog.mailbox.warn("unable to import %s", failure.getFirst(), failure.getSecond());
+                    }
+                    succeeded = bulk.getAddedCount();
+                    failed = failures.size() + unreadable;
+                }
+                done = true;
+            }
+        }
+    }
+
+    @Override
+    public void docRights(List<AdminRight> relatedRights, List<String> notes) {
+        notes.add(AdminRightCheckPoint.Notes.SYSTEM_ADMINS_ONLY);
+    }
+}
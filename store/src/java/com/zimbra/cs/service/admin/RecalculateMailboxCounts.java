@@ -89,7 +89,8 @@ public final class RecalculateMailboxCounts extends AdminDocumentHandler {
             throw MailServiceException.NO_SUCH_MBOX(accountId);
         }
 
-        mbox.recalculateFolderAndTagCounts();
+        // only the counts that have drifted are rewritten
+        mbox.verifyFolderAndTagCounts(true);
 
         Element response = zsc.createElement(AdminConstants.RECALCULATE_MAILBOX_COUNTS_RESPONSE);
         response.addElement(AdminConstants.E_MAILBOX)
@@ -71,6 +71,7 @@ import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.HttpUtil;
 import com.zimbra.common.util.HttpUtil.Browser;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -78,6 +79,7 @@ import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.mailbox.ACL;
 import com.zimbra.cs.mailbox.Appointment;
+import com.zimbra.cs.mailbox.BulkMessageImport;
 import com.zimbra.cs.mailbox.CalendarItem;
 import com.zimbra.cs.mailbox.CalendarItem.Instance;
 import com.zimbra.cs.mailbox.Chat;
@@ -942,6 +944,9 @@ public abstract class ArchiveFormatter extends Formatter {
                 fmap.put(f.getId(), f);
                 fmap.put(f.getPath(), f);
             }
+            // raw messages are parsed in parallel and threaded against an in-memory copy of
+            // the conversation hashes, a batch at a time
+            BulkMessageImport bulk = new BulkMessageImport(context.targetMailbox, context.opContext);
             try {
                 ArchiveInputEntry aie;
                 Boolean meta = false;
@@ -975,7 +980,7 @@ public abstract class ArchiveFormatter extends Formatter {
                             addError(errs, FormatterServiceException.MISSING_META(aie.getName()));
                         } else {
                             addData(context, fldr, fmap, searchTypes, r, timestamp == null || !timestamp.equals("0"),
-                                    ais, aie, errs);
+                                    ais, aie, bulk, errs);
                         }
                     } else if ((aie.getType() != 0 && id.ud.type != aie.getType()) || (id.ud.getBlobDigest() != null && aie.getSize() != -1 && id.ud.size != aie.getSize())) {
                         addError(errs, FormatterServiceException.MISMATCHED_META(aie.getName()));
@@ -995,6 +1000,14 @@ public abstract class ArchiveFormatter extends Formatter {
                 }
                 id = null;
             } finally {
+                try {
+                    bulk.close();
+                } catch (ServiceException e) {
+                    addError(errs, e);
+                }
+                for (Pair<String, Exception> failure : bulk.getFailures()) {
+                    addError(errs, FormatterServiceException.UNKNOWN_ERROR(failure.getFirst(), failure.getSecond()));
+                }
                 if (ais != null) {
                     ais.close();
                 }
@@ -1576,7 +1589,8 @@ public abstract class ArchiveFormatter extends Formatter {
     }
 
     private void addData(UserServletContext context, Folder fldr, Map<Object, Folder> fmap, Set<MailItem.Type> types, Resolve r,
-            boolean timestamp, ArchiveInputStream ais, ArchiveInputEntry aie, List<ServiceException> errs)
+            boolean timestamp, ArchiveInputStream ais, ArchiveInputEntry aie, BulkMessageImport bulk,
+            List<ServiceException> errs)
     throws ServiceException {
         try {
             int defaultFldr;
@@ -1731,8 +1745,8 @@ public abstract class ArchiveFormatter extends Formatter {
                 DeliveryOptions opt = new DeliveryOptions().
                     setFolderId(fldr.getId()).setNoICal(true).setFlags(flags);
 
-                mbox.addMessage(oc, ais.getInputStream(), (int)aie.getSize(),
-                    timestamp ? aie.getModTime() : ParsedMessage.DATE_HEADER, opt, null);
+                bulk.add(ais.getInputStream(), aie.getSize(),
+                    timestamp ? aie.getModTime() : ParsedMessage.DATE_HEADER, opt, name);
                 break;
             }
         } catch (Exception e) {
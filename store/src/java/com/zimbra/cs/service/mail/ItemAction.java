@@ -60,6 +60,7 @@ import com.zimbra.cs.mailbox.util.TagUtil;
 import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.session.Session;
 import com.zimbra.cs.session.SoapSession;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.soap.SoapEngine;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -167,6 +168,7 @@ public class ItemAction extends MailDocumentHandler {
 
         // handle referenced items living on this server
         if (!local.isEmpty()) {
+            long start = ZimbraPerf.STOPWATCH_ITEM_ACTION.start();
             String constraint = action.getAttribute(MailConstants.A_TARGET_CONSTRAINT, null);
             TargetConstraint tcon = TargetConstraint.parseConstraint(mbox, constraint);
 
@@ -251,6 +253,9 @@ public class ItemAction extends MailDocumentHandler {
                 throw ServiceException.INVALID_REQUEST("unknown operation: " + opStr, null);
             }
 
+            ZimbraPerf.STOPWATCH_ITEM_ACTION.stop(start);
+            ZimbraPerf.COUNTER_ITEM_ACTION_SIZE.increment(local.size());
+
             result.appendSuccessIds(localResults.getSuccessIds());
             if (opStr.equals(MailConstants.OP_HARD_DELETE)) {
                 ((DeleteActionResult)result).appendNonExistentIds(localResults);
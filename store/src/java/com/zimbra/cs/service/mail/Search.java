@@ -24,6 +24,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
@@ -41,6 +42,8 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AuthToken;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.index.ContactHit;
+import com.zimbra.cs.index.ConversationHit;
 import com.zimbra.cs.index.MessageHit;
 import com.zimbra.cs.index.QueryInfo;
 import com.zimbra.cs.index.ResultsPager;
@@ -63,7 +66,9 @@ import com.zimbra.cs.mailbox.calendar.cache.CalendarData;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
 import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.service.util.ItemIdFormatter;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.AccountUtil;
+import com.zimbra.soap.SoapEngine;
 import com.zimbra.soap.ZimbraSoapContext;
 import com.zimbra.soap.mail.message.SearchRequest;
 
@@ -72,6 +77,16 @@ import com.zimbra.soap.mail.message.SearchRequest;
  */
 public class Search extends MailDocumentHandler  {
 
+    /** Searches are side-effect free unless expanded hits are to be marked read. */
+    @Override
+    public boolean isSideEffectFree(Element request) {
+        try {
+            return !request.getAttributeBool(MailConstants.A_MARK_READ, false);
+        } catch (ServiceException e) {
+            return false;
+        }
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -114,9 +129,13 @@ public class Search extends MailDocumentHandler  {
             // must use results.getSortBy() because the results might have ignored our sortBy
             // request and used something else...
             response.addAttribute(MailConstants.A_SORTBY, results.getSortBy().toString());
-            putHits(zsc, octxt, response, results, params, memberOfMap);
+            putHits(zsc, octxt, response, results, params, memberOfMap,
+                    Boolean.TRUE.equals(context.get(SoapEngine.RESPONSE_STREAMING)));
         } catch (IOException e) {
         } 
+        if (params.getProfile() != null) {
+            params.getProfile().encode(response);
+        }
         return response;
     }
 
@@ -131,7 +150,8 @@ public class Search extends MailDocumentHandler  {
     }
 
     private void putHits(ZimbraSoapContext zsc, OperationContext octxt, Element el, ZimbraQueryResults results,
-            SearchParams params, Map<String,Set<String>> memberOfMap) throws ServiceException {
+            SearchParams params, Map<String,Set<String>> memberOfMap, boolean streamingAllowed)
+            throws ServiceException {
 
         if (params.getInlineRule() == ExpandResults.HITS ||
             params.getInlineRule() == ExpandResults.FIRST_MSG ||
@@ -162,9 +182,42 @@ public class Search extends MailDocumentHandler  {
         boolean expand;
         ExpandResults expandValue = params.getInlineRule();
         int hitNum = 0;
+        long encodeNanos = 0;
+        // a profile must cover the encoding too, which streamed hits only do after the handler returned
+        String streamedName = streamingAllowed && params.getProfile() == null ? getStreamedHitName(params) : null;
+        if (streamedName != null) {
+            // only the hits are collected here; they are encoded while the response is written to the client
+            List<ZimbraHit> hits = new ArrayList<ZimbraHit>();
+            boolean streamable = true;
+            while (streamable && pager.hasNext() && hits.size() < params.getLimit()) {
+                ZimbraHit hit = pager.getNextHit();
+                streamable = isStreamedHit(hit, streamedName);
+                if (params.getFetchMode() != SearchParams.Fetch.IDS) {
+                    hit.getMailItem(); // load the item while the query results are still open
+                }
+                hits.add(hit);
+            }
+            if (streamable) {
+                if (!hits.isEmpty()) {
+                    el.addStreamedElements(streamedName, new StreamedHits(zsc, octxt, params, memberOfMap,
+                            pager.getSortOrder(), hits));
+                }
+                resp.addHasMore(pager.hasNext());
+                resp.add(results.getResultInfo());
+                return;
+            }
+            // a hit that encodes to a different element turned up, build the response the usual way
+            long start = System.nanoTime();
+            for (ZimbraHit hit : hits) {
+                hitNum++;
+                resp.add(hit);
+            }
+            encodeNanos += System.nanoTime() - start;
+        }
         while (pager.hasNext() && resp.size() < params.getLimit()) {
             hitNum ++;
             ZimbraHit hit = pager.getNextHit();
+            long start = System.nanoTime();
             if (hit instanceof MessageHit) {
                 /*
                  * Determine whether or not to expand MessageHits.
@@ -186,9 +239,95 @@ public class Search extends MailDocumentHandler  {
             } else {
                 resp.add(hit);
             }
+            encodeNanos += System.nanoTime() - start;
         }
         resp.addHasMore(pager.hasNext());
         resp.add(results.getResultInfo());
+        ZimbraPerf.STOPWATCH_SEARCH_ENCODE.increment(TimeUnit.NANOSECONDS.toMillis(encodeNanos));
+        if (params.getProfile() != null) {
+            params.getProfile().getNode("ToXML").add(encodeNanos, resp.size());
+        }
+    }
+
+    /**
+     * Returns the name of the element every hit will be encoded to if the hits can be streamed to the client (see
+     * {@link Element#addStreamedElements}), otherwise null. Streamed hits are encoded after the handler returned, so
+     * encoding them must not change the mailbox; that rules out inlined messages, which may get marked read.
+     */
+    private static String getStreamedHitName(SearchParams params) {
+        if (params.getInlineRule() != ExpandResults.NONE || params.getTypes().size() != 1) {
+            return null;
+        }
+        if (params.getFetchMode() == SearchParams.Fetch.IDS) {
+            return MailConstants.E_HIT;
+        }
+        switch (Iterables.getOnlyElement(params.getTypes())) {
+            case MESSAGE:
+                return MailConstants.E_MSG;
+            case CONVERSATION:
+                return MailConstants.E_CONV;
+            case CONTACT:
+                return MailConstants.E_CONTACT;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isStreamedHit(ZimbraHit hit, String name) {
+        if (MailConstants.E_HIT.equals(name)) {
+            return true;
+        } else if (MailConstants.E_MSG.equals(name)) {
+            return hit instanceof MessageHit;
+        } else if (MailConstants.E_CONV.equals(name)) {
+            return hit instanceof ConversationHit;
+        } else {
+            return hit instanceof ContactHit;
+        }
+    }
+
+    /**
+     * Encodes the collected hits one at a time while the response is being serialized. A hit that fails to encode
+     * is logged and left out rather than cutting the response short.
+     */
+    private static final class StreamedHits implements Element.StreamSource {
+        private final ZimbraSoapContext zsc;
+        private final OperationContext octxt;
+        private final SearchParams params;
+        private final Map<String,Set<String>> memberOfMap;
+        private final SortBy sortOrder;
+        private final Iterator<ZimbraHit> hits;
+        private SearchResponse resp;
+
+        StreamedHits(ZimbraSoapContext zsc, OperationContext octxt, SearchParams params,
+                Map<String,Set<String>> memberOfMap, SortBy sortOrder, List<ZimbraHit> hits) {
+            this.zsc = zsc;
+            this.octxt = octxt;
+            this.params = params;
+            this.memberOfMap = memberOfMap;
+            this.sortOrder = sortOrder;
+            this.hits = hits.iterator();
+        }
+
+        @Override
+        public boolean next(Element parent) throws ServiceException {
+            if (!hits.hasNext()) {
+                return false;
+            }
+            if (resp == null) {
+                resp = new SearchResponse(zsc, octxt, parent, params, memberOfMap);
+                resp.setIncludeMailbox(false);
+                resp.setSortOrder(sortOrder);
+            }
+            ZimbraHit hit = hits.next();
+            try {
+                resp.add(hit);
+            } catch (ServiceException e) {
+                // the status line has gone out already, so a fault can't be returned any more; leaving the hit out
+                // keeps the rest of the response intact
+                ZimbraLog.search.warn("unable to encode streamed search hit %s", hit, e);
+            }
+            return true;
+        }
     }
     // Calendar summary cache stuff
 
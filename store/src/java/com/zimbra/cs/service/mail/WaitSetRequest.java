@@ -277,7 +277,9 @@ public class WaitSetRequest extends MailDocumentHandler {
         }
     }
 
-    private static void processCallback(WaitSetResp resp, WaitSetCallback cb, String waitSetId,
+    /** Fills in <tt>resp</tt> from a callback that has completed, been canceled or timed out.  Also used to build
+     *  the frames of {@link com.zimbra.cs.service.WaitSetStreamServlet}. */
+    public static void processCallback(WaitSetResp resp, WaitSetCallback cb, String waitSetId,
             String lastKnownSeqNo, boolean expand)
                     throws ServiceException {
         cb.ws.doneWaiting(cb);
@@ -25,6 +25,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.zimbra.common.account.Key;
 import com.zimbra.common.account.Key.AccountBy;
@@ -35,6 +37,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.Element.ContainerException;
+import com.zimbra.common.soap.Element.ElementFactory;
 import com.zimbra.common.soap.HeaderConstants;
 import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.soap.SoapProtocol;
@@ -397,6 +400,10 @@ public class SoapSession extends Session {
         PendingLocalModifications mMailboxChanges;
         RemoteNotifications mRemoteChanges;
         boolean mHasLocalChanges;
+        /** the change set delivered to this session, as long as mMailboxChanges holds only that one */
+        private PendingLocalModifications mSource;
+        /** mMailboxChanges as already encoded for a given kind of response, see {@link #getEncodingKey} */
+        private Map<String, EncodedChanges> mEncoded;
 
         /** used by the Session object to ensure that notifications are reliably
          *  received by the listener */
@@ -424,6 +431,12 @@ public class SoapSession extends Session {
                    (mRemoteChanges == null  ? 0 : mRemoteChanges.getScaledNotificationCount());
         }
 
+        /** Returns how much the scaled notification count would grow if <tt>pms</tt> were added.  Items
+         *  that are already queued are merged rather than appended, so they don't count again. */
+        int getAddedNotificationCount(PendingLocalModifications pms) {
+            return countAddedNotifications(mMailboxChanges, pms);
+        }
+
         void addNotification(ExternalEventNotification extra) {
             if (mExternalNotifications == null)
                 mExternalNotifications = new LinkedList<ExternalEventNotification>();
@@ -433,6 +446,11 @@ public class SoapSession extends Session {
         void addNotification(PendingLocalModifications pms) {
             if (pms == null || !pms.hasNotifications())
                 return;
+            synchronized (this) {
+                // as long as we hold a single change set, its encoding can be shared with other sessions
+                mSource = mMailboxChanges == null ? pms : null;
+                mEncoded = null;
+            }
             if (mMailboxChanges == null)
                 mMailboxChanges = new PendingLocalModifications();
             mMailboxChanges.add(pms);
@@ -440,6 +458,20 @@ public class SoapSession extends Session {
                 mHasLocalChanges |= pms.overlapsWithAccount(mAuthenticatedAccountId);
         }
 
+        synchronized PendingLocalModifications getSource() {
+            return mSource;
+        }
+
+        synchronized EncodedChanges getEncoded(String key) {
+            return mEncoded == null ? null : mEncoded.get(key);
+        }
+
+        synchronized void putEncoded(String key, EncodedChanges encoded) {
+            if (mEncoded == null)
+                mEncoded = new HashMap<String, EncodedChanges>(2);
+            mEncoded.put(key, encoded);
+        }
+
         void addNotification(RemoteNotifications rns) {
             if (mRemoteChanges == null)
                 mRemoteChanges = rns;
@@ -448,12 +480,70 @@ public class SoapSession extends Session {
         }
 
         void clearMailboxChanges() {
+            synchronized (this) {
+                mSource = null;
+                mEncoded = null;
+            }
             mMailboxChanges = null;
             mRemoteChanges = null;
             // note that mHasLocalChanges does *not* get reset when we trigger a <refresh> condition...
         }
     }
 
+    static int countAddedNotifications(PendingLocalModifications queued, PendingLocalModifications pms) {
+        if (queued == null) {
+            return pms.getScaledNotificationCount();
+        }
+        int count = 0;
+        if (pms.created != null) {
+            for (ModificationKey mkey : pms.created.keySet()) {
+                if (queued.created == null || !queued.created.containsKey(mkey))
+                    count++;
+            }
+        }
+        if (pms.modified != null) {
+            for (ModificationKey mkey : pms.modified.keySet()) {
+                // a modify to a queued create or modify just updates the queued entry
+                if ((queued.created == null || !queued.created.containsKey(mkey)) &&
+                        (queued.modified == null || !queued.modified.containsKey(mkey)))
+                    count++;
+            }
+        }
+        if (pms.deleted != null) {
+            int deletes = 0;
+            for (ModificationKey mkey : pms.deleted.keySet()) {
+                if (queued.deleted == null || !queued.deleted.containsKey(mkey))
+                    deletes++;
+            }
+            count += (deletes + 3) / 4;
+        }
+        return count;
+    }
+
+    /** The local mailbox part of a <tt>&lt;notify></tt> block, encoded once and copied into every
+     *  response that carries it. */
+    static final class EncodedChanges {
+        final String deletedIds;
+        final Element created;
+        final Element modified;
+        /** false when the encoding depends on more than the change set and the requester, e.g. expanded mountpoints */
+        final boolean shareable;
+
+        EncodedChanges(String deletedIds, Element created, Element modified, boolean shareable) {
+            this.deletedIds = deletedIds;
+            this.created = created;
+            this.modified = modified;
+            this.shareable = shareable;
+        }
+    }
+
+    /** Encodings of the change sets handed to the sessions on a mailbox.  All those sessions get the same
+     *  PendingLocalModifications instance, so any of them that still holds just that one change set can
+     *  reuse the fragments another session encoded for the same kind of requester.  Keyed by identity;
+     *  entries go away once no session holds on to the change set. */
+    private static final Map<PendingLocalModifications, Map<String, EncodedChanges>> SHARED_ENCODINGS =
+            Collections.synchronizedMap(new WeakHashMap<PendingLocalModifications, Map<String, EncodedChanges>>());
+
     static final long SOAP_SESSION_TIMEOUT_MSEC = Math.max(5, LC.zimbra_session_timeout_soap.intValue()) * Constants.MILLIS_PER_SECOND;
     // if a keepalive request to a remote session failed, how long to wait before a new ping is permitted
     private static final long MINIMUM_PING_RETRY_TIME = 30 * Constants.MILLIS_PER_SECOND;
@@ -944,7 +1034,7 @@ public class SoapSession extends Session {
         // XXX: should constrain to folders, tags, and stuff relevant to the current query?
 
         synchronized (sentChanges) {
-            if (!skipNotifications(pms.getScaledNotificationCount(), fromThisSession)) {
+            if (!skipNotifications(changes.getAddedNotificationCount(pms), fromThisSession)) {
                 // if we're here, these changes either
                 //   a) do not cause the session's notification cache to overflow, or
                 //   b) originate from this session and hence must be notified back to the session
@@ -961,7 +1051,6 @@ public class SoapSession extends Session {
         }
         // determine whether this set of notifications would cause the cached set to overflow
         if (forceRefresh != currentSequence && MAX_QUEUED_NOTIFICATIONS > 0) {
-            // XXX: more accurate would be to combine pms and mChanges and take the count...
             int count = notificationCount + changes.getScaledNotificationCount();
             if (count > MAX_QUEUED_NOTIFICATIONS) {
                 // if we've overflowed, jettison the pending change set
@@ -1456,18 +1545,22 @@ public class SoapSession extends Session {
 
         Element eDeleted = eNotify.addUniqueElement(ZimbraNamespace.E_DELETED);
         StringBuilder deletedIds = new StringBuilder();
-        if (pms != null && pms.deleted != null && pms.deleted.size() > 0) {
-            for (ModificationKey mkey : pms.deleted.keySet()) {
-                addDeletedNotification(mkey, deletedIds);
+        boolean hasLocalCreates = pms != null && pms.created != null && !pms.created.isEmpty();
+        boolean hasRemoteCreates = rns != null && rns.created != null && !rns.created.isEmpty();
+        boolean hasLocalModifies = pms != null && pms.modified != null && !pms.modified.isEmpty();
+        boolean hasRemoteModifies = rns != null && rns.modified != null && !rns.modified.isEmpty();
+        ItemIdFormatter ifmt = new ItemIdFormatter(zsc);
+        EncodedChanges local = null;
+        if (pms != null) {
+            local = getEncodedChanges(mbox, ntfn, pms, eNotify.getFactory(), octxt, zsc, ifmt);
+            if (local == null) {
+                return;
             }
+            deletedIds.append(local.deletedIds);
         }
         if (rns != null && rns.deleted != null) {
             deletedIds.append(deletedIds.length() == 0 ? "" : ",").append(rns.deleted);
         }
-        boolean hasLocalCreates = pms != null && pms.created != null && !pms.created.isEmpty();
-        boolean hasRemoteCreates = rns != null && rns.created != null && !rns.created.isEmpty();
-        boolean hasLocalModifies = pms != null && pms.modified != null && !pms.modified.isEmpty();
-        boolean hasRemoteModifies = rns != null && rns.modified != null && !rns.modified.isEmpty();
         if(SoapTransport.NotificationFormat.valueOf(zsc.getNotificationFormat()) == SoapTransport.NotificationFormat.IMAP) {
             try {
                 AccountWithModifications info = new AccountWithModifications(zsc.getAuthtokenAccountId(), mbox.getLastChangeID());
@@ -1481,28 +1574,8 @@ public class SoapSession extends Session {
         if (hasLocalCreates || hasRemoteCreates) {
             Element eCreated = eNotify.addUniqueElement(ZimbraNamespace.E_CREATED);
             if (hasLocalCreates) {
-                for (BaseItemInfo item : pms.created.values()) {
-                    if (item instanceof MailItem) {
-                        MailItem mi = (MailItem) item;
-                        ItemIdFormatter ifmt = new ItemIdFormatter(mAuthenticatedAccountId, mi.getMailbox(), false);
-                        try {
-                            Element elem = ToXML.encodeItem(eCreated, ifmt, octxt, mi, ToXML.NOTIFY_FIELDS);
-                            // special-case notifications for new mountpoints in the authenticated user's mailbox
-                            if (item instanceof Mountpoint && mbox == mi.getMailbox()) {
-                                Map<ItemId, Pair<Boolean, Element>> mountpoints = new HashMap<ItemId, Pair<Boolean, Element>>(2);
-                                expandLocalMountpoint(octxt, (Mountpoint) mi, eCreated.getFactory(), mountpoints);
-                                expandRemoteMountpoints(octxt, zsc, mountpoints);
-                                transferMountpointContents(elem, octxt, mountpoints);
-                            }
-                        } catch (ServiceException e) {
-                            ZimbraLog.session.warn("error encoding item " + mi.getId(), e);
-                            return;
-                        }
-                    }
-                }
-                // sanity-check the returned element
-                if (!eCreated.hasChildren() && debug) {
-                    ZimbraLog.session.debug("no serialied creates for item set: %s", pms.created.keySet());
+                for (Element elt : local.created.listElements()) {
+                    eCreated.addElement(elt.clone());
                 }
             }
             if (hasRemoteCreates) {
@@ -1519,34 +1592,11 @@ public class SoapSession extends Session {
             }
         }
 
-        ItemIdFormatter ifmt = new ItemIdFormatter(zsc);
         if (hasLocalModifies || hasRemoteModifies) {
             Element eModified = eNotify.addUniqueElement(ZimbraNamespace.E_MODIFIED);
             if (hasLocalModifies) {
-                for (Change chg : pms.modified.values()) {
-                    if (chg.why != 0 && chg.what instanceof MailItem) {
-                        MailItem item = (MailItem) chg.what;
-
-                        try {
-                            Element elt = ToXML.encodeItem(eModified, ifmt, octxt, item, chg.why);
-                            if (elt == null) {
-                                ModificationKey mkey = new PendingLocalModifications.ModificationKey(item);
-                                addDeletedNotification(mkey, deletedIds);
-                                if (debug) {
-                                    ZimbraLog.session.debug("marking nonserialized item as a delete: %s", mkey);
-                                }
-                            }
-                        } catch (ServiceException e) {
-                            ZimbraLog.session.warn("error encoding item " + item.getId(), e);
-                            return;
-                        }
-                    } else if (chg.why != 0 && chg.what instanceof Mailbox) {
-                        ToXML.encodeMailbox(eModified, octxt, (Mailbox) chg.what, chg.why);
-                    }
-                }
-                // sanity-check the returned element
-                if (!eModified.hasChildren() && debug) {
-                    ZimbraLog.session.debug("no serialied modifies for item set: %s", pms.modified.keySet());
+                for (Element elt : local.modified.listElements()) {
+                    eModified.addElement(elt.clone());
                 }
             }
             if (hasRemoteModifies) {
@@ -1582,6 +1632,118 @@ public class SoapSession extends Session {
         }
     }
 
+    /** Identifies everything other than the change set itself that goes into encoding it. */
+    String getEncodingKey(ZimbraSoapContext zsc, ElementFactory factory) {
+        return factory.getClass().getName() + ':' + mAuthenticatedAccountId + ':' + zsc.getAuthtokenAccountId() + ':' +
+                zsc.getRequestedAccountId() + ':' + zsc.isUsingAdminPrivileges();
+    }
+
+    /** Returns the local mailbox changes in <tt>ntfn</tt> encoded for this requester, reusing an earlier encoding
+     *  by this or another session where possible.  Returns <tt>null</tt> if an item could not be encoded. */
+    private EncodedChanges getEncodedChanges(Mailbox mbox, QueuedNotifications ntfn, PendingLocalModifications pms,
+            ElementFactory factory, OperationContext octxt, ZimbraSoapContext zsc, ItemIdFormatter ifmt) {
+        String key = getEncodingKey(zsc, factory);
+        EncodedChanges encoded = ntfn.getEncoded(key);
+        if (encoded != null) {
+            return encoded;
+        }
+        Map<String, EncodedChanges> shared = null;
+        PendingLocalModifications source = ntfn.getSource();
+        if (source != null) {
+            synchronized (SHARED_ENCODINGS) {
+                shared = SHARED_ENCODINGS.get(source);
+                if (shared == null) {
+                    SHARED_ENCODINGS.put(source, shared = new ConcurrentHashMap<String, EncodedChanges>(2));
+                }
+            }
+            encoded = shared.get(key);
+        }
+        if (encoded == null) {
+            encoded = encodeLocalChanges(mbox, pms, factory, octxt, zsc, ifmt);
+            if (encoded == null) {
+                return null;
+            }
+            if (shared != null && encoded.shareable) {
+                shared.put(key, encoded);
+            }
+        } else {
+            ZimbraLog.session.debug("reusing shared encoding of change set for %s", key);
+        }
+        ntfn.putEncoded(key, encoded);
+        return encoded;
+    }
+
+    private EncodedChanges encodeLocalChanges(Mailbox mbox, PendingLocalModifications pms, ElementFactory factory,
+            OperationContext octxt, ZimbraSoapContext zsc, ItemIdFormatter ifmt) {
+        boolean debug = ZimbraLog.session.isDebugEnabled();
+        boolean shareable = true;
+
+        StringBuilder deletedIds = new StringBuilder();
+        if (pms.deleted != null && pms.deleted.size() > 0) {
+            for (ModificationKey mkey : pms.deleted.keySet()) {
+                addDeletedNotification(mkey, deletedIds);
+            }
+        }
+
+        Element eCreated = factory.createElement(ZimbraNamespace.E_CREATED);
+        if (pms.created != null && !pms.created.isEmpty()) {
+            for (BaseItemInfo item : pms.created.values()) {
+                if (item instanceof MailItem) {
+                    MailItem mi = (MailItem) item;
+                    ItemIdFormatter createdIfmt = new ItemIdFormatter(mAuthenticatedAccountId, mi.getMailbox(), false);
+                    try {
+                        Element elem = ToXML.encodeItem(eCreated, createdIfmt, octxt, mi, ToXML.NOTIFY_FIELDS);
+                        // special-case notifications for new mountpoints in the authenticated user's mailbox
+                        if (item instanceof Mountpoint && mbox == mi.getMailbox()) {
+                            Map<ItemId, Pair<Boolean, Element>> mountpoints = new HashMap<ItemId, Pair<Boolean, Element>>(2);
+                            expandLocalMountpoint(octxt, (Mountpoint) mi, eCreated.getFactory(), mountpoints);
+                            expandRemoteMountpoints(octxt, zsc, mountpoints);
+                            transferMountpointContents(elem, octxt, mountpoints);
+                            shareable = false;
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.session.warn("error encoding item " + mi.getId(), e);
+                        return null;
+                    }
+                }
+            }
+            // sanity-check the returned element
+            if (!eCreated.hasChildren() && debug) {
+                ZimbraLog.session.debug("no serialied creates for item set: %s", pms.created.keySet());
+            }
+        }
+
+        Element eModified = factory.createElement(ZimbraNamespace.E_MODIFIED);
+        if (pms.modified != null && !pms.modified.isEmpty()) {
+            for (Change chg : pms.modified.values()) {
+                if (chg.why != 0 && chg.what instanceof MailItem) {
+                    MailItem item = (MailItem) chg.what;
+
+                    try {
+                        Element elt = ToXML.encodeItem(eModified, ifmt, octxt, item, chg.why);
+                        if (elt == null) {
+                            ModificationKey mkey = new PendingLocalModifications.ModificationKey(item);
+                            addDeletedNotification(mkey, deletedIds);
+                            if (debug) {
+                                ZimbraLog.session.debug("marking nonserialized item as a delete: %s", mkey);
+                            }
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.session.warn("error encoding item " + item.getId(), e);
+                        return null;
+                    }
+                } else if (chg.why != 0 && chg.what instanceof Mailbox) {
+                    ToXML.encodeMailbox(eModified, octxt, (Mailbox) chg.what, chg.why);
+                }
+            }
+            // sanity-check the returned element
+            if (!eModified.hasChildren() && debug) {
+                ZimbraLog.session.debug("no serialied modifies for item set: %s", pms.modified.keySet());
+            }
+        }
+        return new EncodedChanges(deletedIds.toString(), eCreated, eModified, shareable);
+    }
+
     /*
      * Octopus should be eventually merged to ZCS so we don't have to use
      * callbacks as much
@@ -17,13 +17,15 @@
 package com.zimbra.cs.session;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.AccountServiceException;
 import com.zimbra.cs.mailbox.MailItem;
@@ -48,7 +50,15 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
     private long mCurrentSeqNo; // current sequence number
 
     /** these are the accounts we are listening to.  Stores EITHER a WaitSetSession or an AccountID  */
-    private HashMap<String, WaitSetAccount> mSessions = new HashMap<String, WaitSetAccount>();
+    private volatile ConcurrentMap<String, WaitSetAccount> mSessions = new ConcurrentHashMap<String, WaitSetAccount>();
+
+    /**
+     * Signals from our sessions that haven't been moved into the current signalled set yet.  Mailbox threads
+     * only add to this map, so a commit doesn't have to wait on the WaitSet's lock unless a callback is
+     * waiting; the map is drained under the lock before anything is sent or reported.
+     */
+    private final ConcurrentMap<String /*accountId*/, Pair<WaitSetSession, PendingModifications>> mPendingSignals =
+            new ConcurrentHashMap<String, Pair<WaitSetSession, PendingModifications>>();
 
     /** Constructor */
     SomeAccountsWaitSet(String ownerAccountId, String id, Set<MailItem.Type> defaultInterest) {
@@ -220,7 +230,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
                     } else {
                         errors.add(new WaitSetError(wsa.getAccountId(), WaitSetError.Type.ERROR_LOADING_MAILBOX));
                     }
-                    mSessions.remove(wsa);
+                    mSessions.remove(wsa.getAccountId());
                 }
 
             } else {
@@ -246,15 +256,16 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * Cleanup and remove all the sessions referenced by this WaitSet
      */
     @Override
-    synchronized protected HashMap<String, WaitSetAccount> destroy() {
+    synchronized protected Map<String, WaitSetAccount> destroy() {
         try {
             MailboxManager.getInstance().removeListener(this);
         } catch (ServiceException e) {
             ZimbraLog.session.warn("Caught unexpected ServiceException while destroying WaitSet: "+e, e);
         }
         cancelExistingCB();
-        HashMap<String, WaitSetAccount> toRet = mSessions;
-        mSessions = new HashMap<String, WaitSetAccount>();
+        Map<String, WaitSetAccount> toRet = mSessions;
+        mSessions = new ConcurrentHashMap<String, WaitSetAccount>();
+        mPendingSignals.clear();
         mCurrentSignalledSessions.clear();
         mSentSignalledSessions.clear();
         mSentSignalledAccounts.clear();
@@ -276,6 +287,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * @param session
      */
     synchronized protected void unsignalDataReady(WaitSetSession session) {
+        mPendingSignals.remove(session.getTargetAccountId());
         if (mSessions.containsKey(session.getTargetAccountId())) { // ...false if waitset is shutting down...
             mCurrentSignalledAccounts.remove(session.getTargetAccountId());
             mCurrentSignalledSessions.remove(session.getTargetAccountId());
@@ -286,32 +298,56 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * Called by the WaitSetSession when there is data to be signalled by this session
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session) {
+    protected void signalDataReady(WaitSetSession session) {
         signalDataReady(session, null);
     }
 
     /**
-     * Called by the WaitSetSession when there is data to be signalled by this session
+     * Called by the WaitSetSession when there is data to be signalled by this session.  Only takes the
+     * WaitSet's lock if there is a callback waiting for the signal.
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
+    protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
         boolean trace = ZimbraLog.session.isTraceEnabled();
         if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 1");
         String targetAccId = session.getTargetAccountId();
         if (mSessions.containsKey(targetAccId)) { // ...false if waitset is shutting down...
             if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 2");
-            if (mCurrentSignalledAccounts.add(targetAccId)) {
-                mCurrentSignalledSessions.add(session);
+            // the first signal for an account wins until it has been sent, same as for mCurrentSignalledAccounts
+            if (mPendingSignals.putIfAbsent(targetAccId, new Pair<WaitSetSession, PendingModifications>(session, pms)) == null
+                    && mCb != null) {
                 if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 3");
-                addMods(currentPendingModifications, targetAccId, pms);
                 trySendData();
             }
         }
         if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady done");
     }
 
+    /** Moves the pending signals into the current signalled set.  Caller must hold the WaitSet's lock. */
+    private void drainSignals() {
+        for (Map.Entry<String, Pair<WaitSetSession, PendingModifications>> entry : mPendingSignals.entrySet()) {
+            String targetAccId = entry.getKey();
+            Pair<WaitSetSession, PendingModifications> signal = entry.getValue();
+            // a new signal may have replaced this one after it was removed; that one is picked up next time
+            if (!mPendingSignals.remove(targetAccId, signal)) {
+                continue;
+            }
+            if (mSessions.containsKey(targetAccId) && mCurrentSignalledAccounts.add(targetAccId)) {
+                mCurrentSignalledSessions.add(signal.getFirst());
+                addMods(currentPendingModifications, targetAccId, signal.getSecond());
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void trySendData() {
+        drainSignals();
+        super.trySendData();
+    }
+
     @Override
     public synchronized WaitSetInfo handleQuery() {
+        drainSignals();
         WaitSetInfo info = super.handleQuery();
         info.setCbSeqNo(Long.toString(mCbSeqNo));
         info.setCurrentSeqNo(Long.toString(mCurrentSeqNo));
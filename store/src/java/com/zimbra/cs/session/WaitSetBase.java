@@ -40,8 +40,9 @@ public abstract class WaitSetBase implements IWaitSet {
     protected final String mOwnerAccountId;
     protected final Set<MailItem.Type> defaultInterest;
 
-    protected long mLastAccessedTime = -1;
-    protected WaitSetCallback mCb = null;
+    /** read without holding the WaitSet's lock by {@link WaitSetMgr} and by signalling sessions */
+    protected volatile long mLastAccessedTime = -1;
+    protected volatile WaitSetCallback mCb = null;
 
     /**
      * List of errors (right now, only mailbox deletion notifications) to be sent
@@ -61,8 +61,9 @@ public class WaitSetCallback {
                 }
             }
 
+            // not a CopyOnWriteArraySet: building one checks every element against all the others
             this.signalledAccounts = (signalledAccounts == null) ? Sets.newHashSetWithExpectedSize(0)
-                    : Sets.newCopyOnWriteArraySet(signalledAccounts);
+                    : Sets.newConcurrentHashSet(signalledAccounts);
             if(pms != null) {
                 this.pendingModifications = Maps.newHashMapWithExpectedSize(pms.size());
                 this.pendingModifications.putAll(pms);
@@ -17,12 +17,12 @@
 package com.zimbra.cs.session;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.account.Key;
 import com.zimbra.common.localconfig.LC;
@@ -64,9 +64,25 @@ public class WaitSetMgr {
         }
     };
 
-    private static final HashMap<String, WaitSetBase> sWaitSets = new HashMap<String, WaitSetBase>();
+    private static final ConcurrentMap<String, WaitSetBase> sWaitSets = new ConcurrentHashMap<String, WaitSetBase>();
 
-    private static final HashMap<String /*AccountId*/, List<String /*WaitSetId*/>> sWaitSetsByAccountId = new HashMap<String, List<String>>();
+    /** each owner's list is only read or written while holding that owner's shard lock */
+    private static final ConcurrentMap<String /*AccountId*/, List<String /*WaitSetId*/>> sWaitSetsByAccountId =
+            new ConcurrentHashMap<String, List<String>>();
+
+    /**
+     * Creating and destroying WaitSets is serialized per owner account rather than server-wide, so that gateways
+     * managing many wait sets don't all queue up behind one lock.  Lock order is: all-accounts lock, then owner
+     * shard, then the WaitSet itself.
+     */
+    private static final int OWNER_SHARDS = 64;
+    private static final Object[] sOwnerLocks = new Object[OWNER_SHARDS];
+    static {
+        for (int i = 0; i < OWNER_SHARDS; i++) {
+            sOwnerLocks[i] = new Object();
+        }
+    }
+    private static final Object sAllAccountsLock = new Object();
 
     private static final int WAITSET_SWEEP_DELAY = 1000 * 60; // once every minute
 
@@ -113,7 +129,7 @@ public class WaitSetMgr {
             ws = sws;
         }
 
-        synchronized(sWaitSets) {
+        synchronized(ownerLock(ownerAccountId)) {
             if (!allowMultiple) {
                 List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
                 if (list != null) {
@@ -123,7 +139,7 @@ public class WaitSetMgr {
                         String oldestId = null;
                         for (String wsid : list) {
                             WaitSetBase existingWs = lookupInternal(wsid);
-                            long time = existingWs.getLastAccessedTime();
+                            long time = existingWs == null ? Long.MIN_VALUE : existingWs.getLastAccessedTime();
                             if (time < oldestTime) {
                                 oldestTime = time;
                                 oldestId = wsid;
@@ -135,14 +151,7 @@ public class WaitSetMgr {
             }
 
             // bookkeeping: update access time, add to static wait set maps
-            ws.setLastAccessedTime(System.currentTimeMillis());
-            sWaitSets.put(id, ws);
-            List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-            if (list == null) {
-                list = new ArrayList<String>();
-                sWaitSetsByAccountId.put(ownerAccountId, list);
-            }
-            list.add(id);
+            register(ws);
 
             // return!
             return new Pair<String, List<WaitSetError>>(id, errors);
@@ -159,39 +168,35 @@ public class WaitSetMgr {
      * @throws ServiceException
      */
     public static void destroy(ZimbraSoapContext zsc, String requestingAcctId, String id) throws ServiceException {
-        synchronized(sWaitSets) {
-            WaitSetBase ws = lookupInternal(id);
-            if (ws == null) {
-                throw MailServiceException.NO_SUCH_WAITSET(id);
-            }
-            assert(!Thread.holdsLock(ws));
-
-            // skip permission checking if zsc is null
-            if (zsc != null) {
-                if (id.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
-                    checkRightForAllAccounts(zsc);
-                } else {
-                    checkRightForOwnerAccount(ws, requestingAcctId);
-                }
+        WaitSetBase ws = lookupInternal(id);
+        if (ws == null) {
+            throw MailServiceException.NO_SUCH_WAITSET(id);
+        }
+        assert(!Thread.holdsLock(ws));
+
+        // skip permission checking if zsc is null
+        if (zsc != null) {
+            if (id.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
+                checkRightForAllAccounts(zsc);
+            } else {
+                checkRightForOwnerAccount(ws, requestingAcctId);
             }
+        }
 
-            //remove from the by-id map
-            List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
-            assert(list != null);
-            list.remove(id);
-            if (list.size() == 0) {
-                sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
+        synchronized(ownerLock(ws.getOwnerAccountId())) {
+            // remove the wait set, unless someone else got to it first
+            if (!sWaitSets.remove(id, ws)) {
+                throw MailServiceException.NO_SUCH_WAITSET(id);
             }
+            unregister(ws);
+        }
 
-            // remove the wait set
-            sWaitSets.remove(id);
-
-            Map<String, WaitSetAccount> toCleanup = ws.destroy();
-            if (toCleanup != null) {
-                assert(!Thread.holdsLock(ws));
-                for (WaitSetAccount wsa: toCleanup.values()) {
-                    wsa.cleanupSession();
-                }
+        // cleanup w/o any lock held
+        Map<String, WaitSetAccount> toCleanup = ws.destroy();
+        if (toCleanup != null) {
+            assert(!Thread.holdsLock(ws));
+            for (WaitSetAccount wsa: toCleanup.values()) {
+                wsa.cleanupSession();
             }
         }
     }
@@ -218,27 +223,25 @@ public class WaitSetMgr {
      */
     public static IWaitSet lookupOrCreateForAllAccts(String ownerAccountId, String id,
             Set<MailItem.Type> defaultInterests, String lastKnownSeqNo) throws ServiceException {
-        synchronized(sWaitSets) {
-            if (!id.startsWith(ALL_ACCOUNTS_ID_PREFIX)) {
-                throw ServiceException.INVALID_REQUEST("Called WaitSetMgr.lookupOrCreate but wasn't an 'All-' waitset ID", null);
-            }
-
-            IWaitSet toRet = lookup(id);
+        if (!id.startsWith(ALL_ACCOUNTS_ID_PREFIX)) {
+            throw ServiceException.INVALID_REQUEST("Called WaitSetMgr.lookupOrCreate but wasn't an 'All-' waitset ID", null);
+        }
+        IWaitSet toRet = lookup(id);
+        if (toRet != null) {
+            assert(toRet instanceof AllAccountsWaitSet);
+            return toRet;
+        }
+        synchronized(sAllAccountsLock) {
+            toRet = lookup(id);
             if (toRet == null) {
                 // oops, it's gone!  Try to re-create it given the last known sequence number
                 AllAccountsWaitSet ws = AllAccountsWaitSet.createWithSeqNo(ownerAccountId, id, defaultInterests, lastKnownSeqNo);
                 toRet = ws;
-                ws.setLastAccessedTime(System.currentTimeMillis());
 
-                // add the set to the two hashmaps
-                sWaitSets.put(id, ws);
-                List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-                if (list == null) {
-                    list = new ArrayList<String>();
-                    sWaitSetsByAccountId.put(ownerAccountId, list);
+                // add the set to the two maps
+                synchronized(ownerLock(ownerAccountId)) {
+                    register(ws);
                 }
-                list.add(id);
-
             }
             assert(toRet instanceof AllAccountsWaitSet);
             return toRet;
@@ -255,27 +258,53 @@ public class WaitSetMgr {
     }
 
     public static List<IWaitSet> getAll() {
-        synchronized(sWaitSets) {
-            List<IWaitSet> toRet = new ArrayList<IWaitSet>(sWaitSets.size());
-            toRet.addAll(sWaitSets.values());
-            return toRet;
+        return new ArrayList<IWaitSet>(sWaitSets.values());
+    }
+
+    static int countWaitSets(String ownerAccountId) {
+        synchronized(ownerLock(ownerAccountId)) {
+            List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
+            return list == null ? 0 : list.size();
         }
     }
 
+    private static Object ownerLock(String ownerAccountId) {
+        int hash = ownerAccountId == null ? 0 : ownerAccountId.hashCode();
+        return sOwnerLocks[(hash & 0x7fffffff) % OWNER_SHARDS];
+    }
 
-    private static WaitSetBase lookupInternal(String id) {
-        synchronized(sWaitSets) {
-            WaitSetBase toRet = sWaitSets.get(id);
-            if (toRet != null) {
-                assert(!Thread.holdsLock(toRet));
-                synchronized(toRet) {
-                    toRet.setLastAccessedTime(System.currentTimeMillis());
-                }
+    /** Adds the WaitSet to the two maps.  Caller must hold the owner's shard lock. */
+    private static void register(WaitSetBase ws) {
+        ws.setLastAccessedTime(System.currentTimeMillis());
+        sWaitSets.put(ws.getWaitSetId(), ws);
+        List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
+        if (list == null) {
+            list = new ArrayList<String>();
+            sWaitSetsByAccountId.put(ws.getOwnerAccountId(), list);
+        }
+        list.add(ws.getWaitSetId());
+    }
+
+    /** Removes the WaitSet from the by-owner map.  Caller must hold the owner's shard lock. */
+    private static void unregister(WaitSetBase ws) {
+        List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
+        assert(list != null);
+        if (list != null) {
+            list.remove(ws.getWaitSetId());
+            if (list.size() == 0) {
+                sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
             }
-            return toRet;
         }
     }
 
+    private static WaitSetBase lookupInternal(String id) {
+        WaitSetBase toRet = sWaitSets.get(id);
+        if (toRet != null) {
+            toRet.setLastAccessedTime(System.currentTimeMillis());
+        }
+        return toRet;
+    }
+
     /**
 
      /** Called by timer in order to timeout unused WaitSets */
@@ -284,31 +313,24 @@ public class WaitSetMgr {
         int activeSessions = 0;
         int removed = 0;
         int withCallback = 0;
-        synchronized(sWaitSets) {
-            ZimbraLog.session.debug("active waitset timeout = %d ms", WAITSET_TIMEOUT);
-            long cutoffTime = System.currentTimeMillis() - WAITSET_TIMEOUT;
+        ZimbraLog.session.debug("active waitset timeout = %d ms", WAITSET_TIMEOUT);
+        long cutoffTime = System.currentTimeMillis() - WAITSET_TIMEOUT;
 
-            for (Iterator<WaitSetBase> iter = sWaitSets.values().iterator(); iter.hasNext();) {
-                WaitSetBase ws = iter.next();
-                assert(!Thread.holdsLock(ws)); // must never lock WS before sWaitSets or deadlock
+        for (WaitSetBase ws : sWaitSets.values()) {
+            assert(!Thread.holdsLock(ws)); // must never lock WS before its owner's shard or deadlock
 
-                Map<String, WaitSetAccount> toCleanup = null;
+            Map<String, WaitSetAccount> toCleanup = null;
 
+            synchronized(ownerLock(ws.getOwnerAccountId())) {
                 synchronized(ws) {
                     // only timeout if no cb AND if not accessed for a timeout
                     if (ws.getCb() == null && ws.getLastAccessedTime() < cutoffTime) {
-                        //remove from the by-id map
-                        List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
-                        assert(list != null);
-                        list.remove(ws.getWaitSetId());
-                        if (list.size() == 0) {
-                            sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
+                        // remove, unless it was destroyed in the meantime
+                        if (sWaitSets.remove(ws.getWaitSetId(), ws)) {
+                            unregister(ws);
+                            toCleanup = ws.destroy();
+                            removed++;
                         }
-
-                        // remove
-                        iter.remove();
-                        toCleanup = ws.destroy();
-                        removed++;
                     } else {
                         if (ws.getCb() != null) {
                             withCallback++;
@@ -317,13 +339,13 @@ public class WaitSetMgr {
                         activeSessions+=ws.countSessions();
                     }
                 }
+            }
 
-                // cleanup w/o WaitSet lock held
-                if (toCleanup != null) {
-                    assert(!Thread.holdsLock(ws));
-                    for (WaitSetAccount wsa : toCleanup.values()) {
-                        wsa.cleanupSession();
-                    }
+            // cleanup w/o WaitSet lock held
+            if (toCleanup != null) {
+                assert(!Thread.holdsLock(ws));
+                for (WaitSetAccount wsa : toCleanup.values()) {
+                    wsa.cleanupSession();
                 }
             }
         }
@@ -338,13 +360,11 @@ public class WaitSetMgr {
     }
 
     public static boolean isMonitoringFolderForImap(String accountId, int folderId) {
-        synchronized(sWaitSets) {
-            for (IWaitSet ws : sWaitSets.values()) {
-                if (ws instanceof SomeAccountsWaitSet) {
-                    SomeAccountsWaitSet saWs = (SomeAccountsWaitSet) ws;
-                    if (saWs.isMonitoringFolder(accountId, folderId)) {
-                        return true;
-                    }
+        for (IWaitSet ws : sWaitSets.values()) {
+            if (ws instanceof SomeAccountsWaitSet) {
+                SomeAccountsWaitSet saWs = (SomeAccountsWaitSet) ws;
+                if (saWs.isMonitoringFolder(accountId, folderId)) {
+                    return true;
                 }
             }
         }
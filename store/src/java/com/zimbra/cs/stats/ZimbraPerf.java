@@ -67,6 +67,9 @@ public class ZimbraPerf {
     @Description("InnoDB buffer pool hit rate")
     public static final String RTS_INNODB_BP_HIT_RATE = "innodb_bp_hit_rate";
 
+    @Description("Number of distinct SQL statement shapes executed")
+    public static final String RTS_DB_STMT_SHAPES = "db_stmt_shapes";
+
     @Description("Number of LMTP connections")
     public static final String RTS_LMTP_CONN = "lmtp_conn";
 
@@ -118,6 +121,18 @@ public class ZimbraPerf {
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Estimated bytes of mail items cached on the heap across all mailboxes")
+    public static final String RTS_ITEM_CACHE_BYTES = "item_cache_bytes";
+
+    @Description("Number of mailboxes to reopen after the last restart")
+    public static final String RTS_MBOX_WARMUP_TOTAL = "mbox_warmup_total";
+
+    @Description("Number of mailboxes reopened since the last restart")
+    public static final String RTS_MBOX_WARMUP_OPENED = "mbox_warmup_opened";
+
+    @Description("Number of mailboxes that couldn't be reopened since the last restart")
+    public static final String RTS_MBOX_WARMUP_FAILED = "mbox_warmup_failed";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -178,12 +193,26 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
     public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
+    public static final StopWatch STOPWATCH_DB_POOL_WAIT_INTERACTIVE = new StopWatch();
+    public static final StopWatch STOPWATCH_DB_POOL_WAIT_DELIVERY = new StopWatch();
+    public static final StopWatch STOPWATCH_DB_POOL_WAIT_MAINTENANCE = new StopWatch();
+    public static final Counter COUNTER_DB_POOL_TIMEOUT = new Counter();
+    public static final Counter COUNTER_DB_BATCH_SIZE = new Counter();
+    public static final StopWatch STOPWATCH_ITEM_ACTION = new StopWatch();
+    public static final Counter COUNTER_ITEM_ACTION_SIZE = new Counter();
+    // DB pool wait time histogram
+    public static final Counter COUNTER_DB_POOL_WAIT_1MS = new Counter();
+    public static final Counter COUNTER_DB_POOL_WAIT_10MS = new Counter();
+    public static final Counter COUNTER_DB_POOL_WAIT_100MS = new Counter();
+    public static final Counter COUNTER_DB_POOL_WAIT_1S = new Counter();
+    public static final Counter COUNTER_DB_POOL_WAIT_SLOW = new Counter();
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_CACHE_EVICT = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -198,6 +227,13 @@ public class ZimbraPerf {
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final StopWatch STOPWATCH_SEARCH_PARSE = new StopWatch();   // Search query parse time
+    public static final StopWatch STOPWATCH_SEARCH_EXECUTE = new StopWatch(); // Search query compile and run time
+    public static final Counter COUNTER_SEARCH_PARSE_CACHE = new Counter();   // Search query parse cache hit rate
+    public static final StopWatch STOPWATCH_SEARCH_DB = new StopWatch();      // SQL part of a search
+    public static final StopWatch STOPWATCH_SEARCH_LUCENE = new StopWatch();  // Lucene part of a search
+    public static final StopWatch STOPWATCH_SEARCH_PRELOAD = new StopWatch(); // Loading the items of search hits
+    public static final StopWatch STOPWATCH_SEARCH_ENCODE = new StopWatch();  // Encoding search hits
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
@@ -206,6 +242,7 @@ public class ZimbraPerf {
     public static final ActivityTracker LDAP_TRACKER = new ActivityTracker("ldap.csv");
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
     public static final ActivityTracker SQL_TRACKER  = new ActivityTracker("sql.csv");
+    public static final ActivityTracker SQL_SHAPE_TRACKER = new ActivityTracker("sql_shape.csv");
 
     private static int mailboxCacheSize;
     private static long mailboxCacheSizeTimestamp = 0;
@@ -214,13 +251,15 @@ public class ZimbraPerf {
     private static Map<String, String> descriptions = Maps.newTreeMap(String.CASE_INSENSITIVE_ORDER);
 
     private static String[] mboxRealtimeStatsNames = new String[] {
-            RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE,
+            RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE, RTS_DB_STMT_SHAPES,
             RTS_LMTP_CONN, RTS_LMTP_THREADS,
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
             RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_ITEM_CACHE_BYTES,
+            RTS_MBOX_WARMUP_TOTAL, RTS_MBOX_WARMUP_OPENED, RTS_MBOX_WARMUP_FAILED,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -258,6 +297,57 @@ public class ZimbraPerf {
     @Description("Average latency (ms) of getting a database connection from the pool")
     private static final String DC_DB_CONN_MS_AVG = "db_conn_ms_avg";
 
+    @Description("Number of interactive DB connection pool admissions")
+    private static final String DC_DB_POOL_WAIT_INTERACTIVE_COUNT = "db_pool_wait_interactive_count";
+
+    @Description("Average time (ms) spent waiting for an interactive DB connection")
+    private static final String DC_DB_POOL_WAIT_INTERACTIVE_MS_AVG = "db_pool_wait_interactive_ms_avg";
+
+    @Description("Number of delivery DB connection pool admissions")
+    private static final String DC_DB_POOL_WAIT_DELIVERY_COUNT = "db_pool_wait_delivery_count";
+
+    @Description("Average time (ms) spent waiting for a delivery DB connection")
+    private static final String DC_DB_POOL_WAIT_DELIVERY_MS_AVG = "db_pool_wait_delivery_ms_avg";
+
+    @Description("Number of maintenance DB connection pool admissions")
+    private static final String DC_DB_POOL_WAIT_MAINTENANCE_COUNT = "db_pool_wait_maintenance_count";
+
+    @Description("Average time (ms) spent waiting for a maintenance DB connection")
+    private static final String DC_DB_POOL_WAIT_MAINTENANCE_MS_AVG = "db_pool_wait_maintenance_ms_avg";
+
+    @Description("Number of DB connection requests that timed out waiting for the pool")
+    private static final String DC_DB_POOL_TIMEOUT = "db_pool_timeout";
+
+    @Description("Number of JDBC batches of per-item updates sent to the database")
+    private static final String DC_DB_BATCH_COUNT = "db_batch_count";
+
+    @Description("Average number of updates per JDBC batch")
+    private static final String DC_DB_BATCH_SIZE_AVG = "db_batch_size_avg";
+
+    @Description("Number of local item actions (ItemAction, MsgAction, ...) performed")
+    private static final String DC_ITEM_ACTION_COUNT = "item_action_count";
+
+    @Description("Average time (ms) to perform a local item action")
+    private static final String DC_ITEM_ACTION_MS_AVG = "item_action_ms_avg";
+
+    @Description("Average number of items per local item action")
+    private static final String DC_ITEM_ACTION_SIZE_AVG = "item_action_size_avg";
+
+    @Description("Number of DB connection pool waits of at most 1ms")
+    private static final String DC_DB_POOL_WAIT_1MS = "db_pool_wait_le_1ms";
+
+    @Description("Number of DB connection pool waits between 1ms and 10ms")
+    private static final String DC_DB_POOL_WAIT_10MS = "db_pool_wait_le_10ms";
+
+    @Description("Number of DB connection pool waits between 10ms and 100ms")
+    private static final String DC_DB_POOL_WAIT_100MS = "db_pool_wait_le_100ms";
+
+    @Description("Number of DB connection pool waits between 100ms and 1s")
+    private static final String DC_DB_POOL_WAIT_1S = "db_pool_wait_le_1s";
+
+    @Description("Number of DB connection pool waits longer than 1s")
+    private static final String DC_DB_POOL_WAIT_SLOW = "db_pool_wait_gt_1s";
+
     @Description("Number of times that the server got an LDAP directory context")
     private static final String DC_LDAP_DC_COUNT = "ldap_dc_count";
 
@@ -285,6 +375,9 @@ public class ZimbraPerf {
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Number of items evicted from the heap item cache")
+    private static final String DC_MBOX_ITEM_CACHE_EVICT = "mbox_item_cache_evict";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -339,6 +432,45 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Number of search query strings that were parsed")
+    private static final String DC_SEARCH_PARSE_COUNT = "search_parse_count";
+
+    @Description("Average latency (ms) of parsing a search query string")
+    private static final String DC_SEARCH_PARSE_MS_AVG = "search_parse_ms_avg";
+
+    @Description("Number of search queries that were executed")
+    private static final String DC_SEARCH_EXEC_COUNT = "search_exec_count";
+
+    @Description("Average latency (ms) of compiling and running a search query")
+    private static final String DC_SEARCH_EXEC_MS_AVG = "search_exec_ms_avg";
+
+    @Description("Search query parse cache hit rate")
+    private static final String DC_SEARCH_PARSE_CACHE = "search_parse_cache";
+
+    @Description("Number of SQL queries run for searches")
+    private static final String DC_SEARCH_DB_COUNT = "search_db_count";
+
+    @Description("Average latency (ms) of the SQL queries run for searches")
+    private static final String DC_SEARCH_DB_MS_AVG = "search_db_ms_avg";
+
+    @Description("Number of Lucene queries run for searches")
+    private static final String DC_SEARCH_LUCENE_COUNT = "search_lucene_count";
+
+    @Description("Average latency (ms) of the Lucene queries run for searches")
+    private static final String DC_SEARCH_LUCENE_MS_AVG = "search_lucene_ms_avg";
+
+    @Description("Number of batches of search hit items that were loaded")
+    private static final String DC_SEARCH_PRELOAD_COUNT = "search_preload_count";
+
+    @Description("Average latency (ms) of loading a batch of search hit items")
+    private static final String DC_SEARCH_PRELOAD_MS_AVG = "search_preload_ms_avg";
+
+    @Description("Number of search responses that were encoded")
+    private static final String DC_SEARCH_ENCODE_COUNT = "search_encode_count";
+
+    @Description("Average latency (ms) of encoding the hits of a search response")
+    private static final String DC_SEARCH_ENCODE_MS_AVG = "search_encode_ms_avg";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
     private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
@@ -471,6 +603,26 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
                             new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT)
                                     .setAverageName(DC_DB_CONN_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_DB_POOL_WAIT_INTERACTIVE)
+                                    .setCountName(DC_DB_POOL_WAIT_INTERACTIVE_COUNT)
+                                    .setAverageName(DC_DB_POOL_WAIT_INTERACTIVE_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_DB_POOL_WAIT_DELIVERY)
+                                    .setCountName(DC_DB_POOL_WAIT_DELIVERY_COUNT)
+                                    .setAverageName(DC_DB_POOL_WAIT_DELIVERY_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_DB_POOL_WAIT_MAINTENANCE)
+                                    .setCountName(DC_DB_POOL_WAIT_MAINTENANCE_COUNT)
+                                    .setAverageName(DC_DB_POOL_WAIT_MAINTENANCE_MS_AVG),
+                            new DeltaCalculator(COUNTER_DB_POOL_TIMEOUT).setTotalName(DC_DB_POOL_TIMEOUT),
+                            new DeltaCalculator(COUNTER_DB_BATCH_SIZE).setCountName(DC_DB_BATCH_COUNT)
+                                    .setAverageName(DC_DB_BATCH_SIZE_AVG),
+                            new DeltaCalculator(STOPWATCH_ITEM_ACTION).setCountName(DC_ITEM_ACTION_COUNT)
+                                    .setAverageName(DC_ITEM_ACTION_MS_AVG),
+                            new DeltaCalculator(COUNTER_ITEM_ACTION_SIZE).setAverageName(DC_ITEM_ACTION_SIZE_AVG),
+                            new DeltaCalculator(COUNTER_DB_POOL_WAIT_1MS).setTotalName(DC_DB_POOL_WAIT_1MS),
+                            new DeltaCalculator(COUNTER_DB_POOL_WAIT_10MS).setTotalName(DC_DB_POOL_WAIT_10MS),
+                            new DeltaCalculator(COUNTER_DB_POOL_WAIT_100MS).setTotalName(DC_DB_POOL_WAIT_100MS),
+                            new DeltaCalculator(COUNTER_DB_POOL_WAIT_1S).setTotalName(DC_DB_POOL_WAIT_1S),
+                            new DeltaCalculator(COUNTER_DB_POOL_WAIT_SLOW).setTotalName(DC_DB_POOL_WAIT_SLOW),
                             new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT)
                                     .setAverageName(DC_LDAP_DC_MS_AVG),
                             new DeltaCalculator(STOPWATCH_MBOX_ADD_MSG).setCountName(DC_MBOX_ADD_MSG_COUNT)
@@ -480,6 +632,8 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE_EVICT)
+                                    .setTotalName(DC_MBOX_ITEM_CACHE_EVICT),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
@@ -503,6 +657,19 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
+                            new DeltaCalculator(STOPWATCH_SEARCH_PARSE).setCountName(DC_SEARCH_PARSE_COUNT)
+                                    .setAverageName(DC_SEARCH_PARSE_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_SEARCH_EXECUTE).setCountName(DC_SEARCH_EXEC_COUNT)
+                                    .setAverageName(DC_SEARCH_EXEC_MS_AVG),
+                            new DeltaCalculator(COUNTER_SEARCH_PARSE_CACHE).setAverageName(DC_SEARCH_PARSE_CACHE),
+                            new DeltaCalculator(STOPWATCH_SEARCH_DB).setCountName(DC_SEARCH_DB_COUNT)
+                                    .setAverageName(DC_SEARCH_DB_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_SEARCH_LUCENE).setCountName(DC_SEARCH_LUCENE_COUNT)
+                                    .setAverageName(DC_SEARCH_LUCENE_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_SEARCH_PRELOAD).setCountName(DC_SEARCH_PRELOAD_COUNT)
+                                    .setAverageName(DC_SEARCH_PRELOAD_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_SEARCH_ENCODE).setCountName(DC_SEARCH_ENCODE_COUNT)
+                                    .setAverageName(DC_SEARCH_ENCODE_MS_AVG),
                             realtimeStats
                     }
                 );
@@ -562,6 +729,7 @@ public class ZimbraPerf {
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SYNC_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SQL_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(SQL_SHAPE_TRACKER, CSV_DUMP_FREQUENCY);
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
     }
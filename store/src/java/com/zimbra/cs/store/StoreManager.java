@@ -18,6 +18,7 @@ package com.zimbra.cs.store;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
@@ -400,6 +401,21 @@ public abstract class StoreManager {
      */
     public abstract InputStream getContent(Blob blob) throws IOException;
 
+    /**
+     * Return a read-only channel on the blob's file if the file holds the
+     * blob's content as is, so that it can be sent to a client with
+     * {@link FileChannel#transferTo}.  Returns null if the content has to be
+     * read through {@link #getContent(MailboxBlob)}, e.g. because the blob is
+     * compressed or not stored in a local file.  Caller should close the
+     * channel when done.
+     * @param mboxBlob
+     * @return
+     * @throws IOException
+     */
+    public FileChannel getContentChannel(MailboxBlob mboxBlob) throws IOException {
+        return null;
+    }
+
     /**
      * Deletes a user's entire store.  SHOULD BE CALLED CAREFULLY.  No going back.
      * @param mbox
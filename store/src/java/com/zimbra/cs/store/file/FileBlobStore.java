@@ -19,6 +19,8 @@ package com.zimbra.cs.store.file;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -379,6 +381,18 @@ public final class FileBlobStore extends StoreManager {
         return new BlobInputStream(blob);
     }
 
+    @Override
+    public FileChannel getContentChannel(MailboxBlob mboxBlob) throws IOException {
+        if (mboxBlob == null) {
+            return null;
+        }
+        Blob blob = mboxBlob.getLocalBlob();
+        if (!(blob instanceof VolumeBlob) || blob.isCompressed()) {
+            return null;
+        }
+        return FileChannel.open(blob.getFile().toPath(), StandardOpenOption.READ);
+    }
+
     @Override
     public boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> blobs) throws IOException, ServiceException {
         assert blobs == null : "should not be passed a blob list since we support bulk blob delete";
@@ -52,6 +52,7 @@ import com.zimbra.cs.ephemeral.LdapEphemeralStore;
 import com.zimbra.cs.extension.ExtensionUtil;
 import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxWarmup;
 import com.zimbra.cs.mailbox.PurgeThread;
 import com.zimbra.cs.mailbox.ScheduledTaskManager;
 import com.zimbra.cs.mailbox.acl.AclPushTask;
@@ -327,6 +328,10 @@ public final class Zimbra {
                 PurgeThread.startup();
             }
 
+            if (app.supports(MailboxWarmup.class.getName())) {
+                MailboxWarmup.startup();
+            }
+
             if (app.supports(AutoProvisionThread.class.getName())) {
                 AutoProvisionThread.switchAutoProvThreadIfNecessary();
             }
@@ -396,6 +401,9 @@ public final class Zimbra {
         if (sIsMailboxd) {
             PurgeThread.shutdown();
             AutoProvisionThread.shutdown();
+            if (ZimbraApplication.getInstance().supports(MailboxWarmup.class.getName())) {
+                MailboxWarmup.shutdown();
+            }
         }
 
         ZimbraApplication app = ZimbraApplication.getInstance();
@@ -276,6 +276,15 @@ public abstract class DocumentHandler {
         return true;
     }
 
+    /** Returns <tt>true</tt> if the given request only reads state and has
+     *  no side effects whatsoever, so that it may run concurrently with other
+     *  such requests in a <tt>BatchRequest</tt> sent with
+     *  <tt>parallel="1"</tt>.  Unlike {@link #isReadOnly()}, this defaults
+     *  to <tt>false</tt> and must be explicitly declared by each handler. */
+    public boolean isSideEffectFree(Element request) {
+        return false;
+    }
+
     /** Returns whether the client making the SOAP request is localhost. */
     protected boolean clientIsLocal(Map<String, Object> context) {
         HttpServletRequest req = (HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST);
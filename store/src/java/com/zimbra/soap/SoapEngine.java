@@ -20,7 +20,15 @@ package com.zimbra.soap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -31,6 +39,7 @@ import javax.xml.stream.XMLStreamReader;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -111,8 +120,20 @@ public class SoapEngine {
     /** context name of the original user agent */
     public static final String ORIG_REQUEST_USER_AGENT = "orig.request.user.agent";
 
+    /** set to true if the response envelope is written straight to the client, so handlers may stream their
+     *  children at serialization time (see {@link Element#addStreamedElements}) */
+    public static final String RESPONSE_STREAMING = "response.streaming";
+
     private final DocumentDispatcher dispatcher = new DocumentDispatcher();
 
+    /** Runs the side-effect free requests of parallel BatchRequests; when all threads are busy, the request thread
+     *  runs them itself. */
+    private static final ThreadPoolExecutor BATCH_EXECUTOR = new ThreadPoolExecutor(
+            0, Math.max(LC.soap_batch_parallel_threads.intValue(), 1), 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("SoapBatch-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
     SoapEngine() {
         SoapTransport.setDefaultUserAgent(SoapTransport.DEFAULT_USER_AGENT_NAME, BuildInfo.VERSION);
     }
@@ -455,28 +476,48 @@ public class SoapEngine {
         context.put(ZIMBRA_ENGINE, this);
 
         Element responseBody = null;
+        List<BatchEntry> batch = null;
         if (!zsc.isProxyRequest()) {
             // if the client's told us that they've seen through notification block 50, we can drop old notifications up to that point
             acknowledgeNotifications(zsc);
 
             if (doc.getQName().equals(ZimbraNamespace.E_BATCH_REQUEST)) {
                 boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
+                boolean parallel = isParallelBatch(doc, zsc);
                 responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
                 if (!isResumed) {
                     ZimbraLog.soap.info(doc.getName());
                 }
+                // a streamed response would be generated after the later requests in the batch have run
+                context.remove(RESPONSE_STREAMING);
+                batch = new ArrayList<BatchEntry>();
                 for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+                    DocumentHandler reqHandler = dispatcher.getHandler(req);
+                    batch.add(new BatchEntry(req, reqHandler, parallel && reqHandler != null && reqHandler.isSideEffectFree(req)));
+                }
+                for (int start = 0; start < batch.size(); ) {
+                    int end = nextBatchGroup(batch, start);
+                    if (end - start > 1) {
+                        dispatchConcurrently(batch.subList(start, end), context, zsc);
+                    } else {
+                        batch.get(start).dispatch(this, context, zsc);
                     }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
+                    boolean stop = false;
+                    for (BatchEntry entry : batch.subList(start, end)) {
+                        if (!isResumed) {
+                            ZimbraLog.soap.info("(batch) %s elapsed=%d%s", entry.request.getName(), entry.elapsed,
+                                    end - start > 1 ? " (parallel)" : "");
+                        }
+                        if (entry.id != null) {
+                            entry.response.addAttribute(A_REQUEST_CORRELATOR, entry.id);
+                        }
+                        responseBody.addNonUniqueElement(entry.response);
+                        if (!contOnError && responseProto.isFault(entry.response)) {
+                            stop = true;
+                            break;
+                        }
                     }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
+                    if (stop) {
                         break;
                     }
                     if (proxyAuthToken != null) {
@@ -484,6 +525,10 @@ public class SoapEngine {
                         // make sure it's set for each sub-request in batch
                         zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
                     }
+                    start = end;
+                }
+                if (!parallel) {
+                    batch = null;
                 }
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
@@ -526,6 +571,9 @@ public class SoapEngine {
 
         // put notifications (new sessions and incremental change notifications) to header...
         Element responseHeader = generateResponseHeader(zsc);
+        if (batch != null && responseHeader != null) {
+            addBatchTimings(responseHeader, batch);
+        }
         // ... and return the composed response
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
@@ -538,6 +586,161 @@ public class SoapEngine {
         return contextElmt;
     }
 
+    /**
+     * Returns whether the side-effect free requests in this BatchRequest may run concurrently. This has to be asked
+     * for with {@code parallel="1"}, and is never done for delegated requests, which are mostly proxied to the target
+     * account's server anyway, or when the auth token can't be copied for each request.
+     */
+    private boolean isParallelBatch(Element batchRequest, ZimbraSoapContext zsc) {
+        if (LC.soap_batch_parallel_threads.intValue() <= 0 || zsc.isDelegatedRequest() ||
+                zsc.copyForConcurrentRequest() == null) {
+            return false;
+        }
+        try {
+            return batchRequest.getAttributeBool(ZimbraNamespace.A_PARALLEL, false);
+        } catch (ServiceException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the end (exclusive) of the group of batched requests starting at {@code start} that may be dispatched
+     * together. Consecutive parallel requests form a group; any other request is a group of its own, so requests with
+     * side effects still see the results of everything before them and are seen by everything after them.
+     */
+    static int nextBatchGroup(List<BatchEntry> batch, int start) {
+        int end = start + 1;
+        if (batch.get(start).parallel) {
+            while (end < batch.size() && batch.get(end).parallel) {
+                end++;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Runs a group of side-effect free batched requests on the batch executor, the first of them on this thread. Each
+     * request gets its own copy of the request context and of the SOAP context, since handlers change the proxy auth
+     * token when they proxy. If the auth token can't be copied, the group is dispatched serially.
+     */
+    private void dispatchConcurrently(List<BatchEntry> group, Map<String, Object> context, ZimbraSoapContext zsc) {
+        // ZimbraSoapContext records newly created sessions, so fault in the session before going concurrent
+        prepareSession(group.get(0).handler, context, zsc);
+        List<ZimbraSoapContext> copies = new ArrayList<ZimbraSoapContext>(group.size() - 1);
+        for (int i = 1; i < group.size(); i++) {
+            ZimbraSoapContext copy = zsc.copyForConcurrentRequest();
+            if (copy == null) {
+                dispatchSerially(group, context, zsc);
+                return;
+            }
+            copies.add(copy);
+        }
+        final Map<String, String> logContext = ZimbraLog.getContext();
+        List<Future<?>> futures = new ArrayList<Future<?>>(copies.size());
+        for (int i = 0; i < copies.size(); i++) {
+            final BatchEntry entry = group.get(i + 1);
+            final ZimbraSoapContext entryZsc = copies.get(i);
+            final Map<String, Object> entryContext = new HashMap<String, Object>(context);
+            entryContext.put(ZIMBRA_CONTEXT, entryZsc);
+            futures.add(BATCH_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, String> saved = ZimbraLog.getContext();
+                    ZimbraLog.setContext(logContext);
+                    try {
+                        entry.dispatch(SoapEngine.this, entryContext, entryZsc);
+                    } finally {
+                        ZimbraLog.setContext(saved);
+                    }
+                }
+            }));
+        }
+        group.get(0).dispatch(this, context, zsc);
+        for (int i = 0; i < futures.size(); i++) {
+            BatchEntry entry = group.get(i + 1);
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.fail(zsc, ServiceException.INTERRUPTED(entry.request.getName()));
+            } catch (ExecutionException e) {
+                entry.fail(zsc, ServiceException.FAILURE(e.getCause().toString(), e.getCause()));
+                LOG.warn("handler exception", e.getCause());
+            }
+        }
+    }
+
+    private void dispatchSerially(List<BatchEntry> group, Map<String, Object> context, ZimbraSoapContext zsc) {
+        String proxyAuthToken = zsc.getAuthToken() != null ? zsc.getAuthToken().getProxyAuthToken() : null;
+        for (BatchEntry entry : group) {
+            entry.dispatch(this, context, zsc);
+            if (proxyAuthToken != null) {
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+    }
+
+    private void prepareSession(DocumentHandler handler, Map<String, Object> context, ZimbraSoapContext zsc) {
+        AuthToken at = zsc.getAuthToken();
+        if (at == null || !handler.needsAuth(context)) {
+            return;
+        }
+        try {
+            AuthProvider.validateAuthToken(Provisioning.getInstance(), at, false);
+            handler.getSession(zsc);
+        } catch (ServiceException e) {
+            // each request will fault on its own
+        }
+    }
+
+    /**
+     * Adds the execution time of each batched request to the response {@code <context>}:
+     * {@code <batch><r n="GetFolderRequest" [requestId="1"] elapsed="12" [parallel="1"]/>...</batch>}.
+     */
+    private static void addBatchTimings(Element ctxt, List<BatchEntry> batch) {
+        Element eBatch = ctxt.addUniqueElement(HeaderConstants.E_BATCH);
+        for (BatchEntry entry : batch) {
+            if (entry.response == null) {
+                continue;
+            }
+            Element eReq = eBatch.addNonUniqueElement(HeaderConstants.E_REQUEST);
+            eReq.addAttribute(HeaderConstants.A_N, entry.request.getName());
+            eReq.addAttribute(A_REQUEST_CORRELATOR, entry.id);
+            eReq.addAttribute(HeaderConstants.A_ELAPSED, entry.elapsed);
+            if (entry.parallel) {
+                eReq.addAttribute(HeaderConstants.A_PARALLEL, true);
+            }
+        }
+    }
+
+    static final class BatchEntry {
+        final Element request;
+        final DocumentHandler handler;
+        final String id;
+        final boolean parallel;
+        Element response;
+        long elapsed;
+
+        BatchEntry(Element request, DocumentHandler handler, boolean parallel) {
+            this.request = request;
+            this.handler = handler;
+            this.id = request.getAttribute(A_REQUEST_CORRELATOR, null);
+            this.parallel = parallel;
+        }
+
+        void dispatch(SoapEngine engine, Map<String, Object> context, ZimbraSoapContext zsc) {
+            long start = System.currentTimeMillis();
+            response = engine.dispatchRequest(handler, request, context, zsc);
+            elapsed = System.currentTimeMillis() - start;
+        }
+
+        void fail(ZimbraSoapContext zsc, ServiceException e) {
+            if (response == null) {
+                response = zsc.getResponseProtocol().soapFault(e);
+            }
+        }
+    }
+
     /**
      * Handles individual requests, either direct or from a batch
      */
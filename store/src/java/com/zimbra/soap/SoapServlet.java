@@ -303,6 +303,7 @@ public class SoapServlet extends ZimbraServlet {
         //checkAuthToken(req.getCookies(), context);
         context.put(SoapEngine.REQUEST_PORT, req.getServerPort());
         context.put(SoapEngine.ORIG_REQUEST_USER_AGENT, req.getHeader(HeaderConstants.HTTP_HEADER_ORIG_USER_AGENT));
+        context.put(SoapEngine.RESPONSE_STREAMING, LC.soap_response_streaming_enabled.booleanValue());
         Element envelope = null;
         try {
             envelope = mEngine.dispatch(req.getRequestURI(), buffer, context);
@@ -64,7 +64,7 @@ import com.zimbra.cs.util.BuildInfo;
  *
  * @since May 29, 2004
  */
-public final class ZimbraSoapContext {
+public final class ZimbraSoapContext implements Cloneable {
     public static String DEFAULT_NOTIFICATION_FORMAT = "DEFAULT";
     public static final String soapRequestIdAttr = "zimbraSoapRequestId";
     /* seed randomly so that unlikely to get same ID used on different machines in network
@@ -258,6 +258,35 @@ public final class ZimbraSoapContext {
         }
     }
 
+    /**
+     * Returns a copy of this context, with its own copy of the auth token,
+     * for one of the requests of a batch that are dispatched concurrently.
+     * Handlers set the proxy auth token on the context's auth token when
+     * they proxy, so the requests must not share it.
+     *
+     * @return the copy, or {@code null} if the auth token can't be copied
+     */
+    public ZimbraSoapContext copyForConcurrentRequest() {
+        ZimbraSoapContext zsc;
+        try {
+            zsc = (ZimbraSoapContext) super.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+        if (mAuthToken != null) {
+            zsc.mAuthToken = AuthToken.copyOf(mAuthToken);
+            if (zsc.mAuthToken == null) {
+                return null;
+            }
+            try {
+                zsc.mRawAuthToken = zsc.mAuthToken.toZAuthToken();
+            } catch (ServiceException e) {
+                return null;
+            }
+        }
+        return zsc;
+    }
+
     /**
      * Creates a {@link ZimbraSoapContext} from the {@code <context>}
      * {@link Element} from the SOAP header.